@@ -22,13 +22,15 @@ public class MessageDispatcher implements PathChangeListener {
     }
 
     /**
-     * A dispatcher is only interested in new paths, specifically XML files. Everything else will be ignored.
+     * A dispatcher is only interested in XML files that have been written completely. Everything else will be ignored.
+     * The path watcher awaits write completion, so it reports such files as <code>READY</code> instead of
+     * <code>CREATE</code>.
      *
-     * @param path The path that has been created. Must not be null.
+     * @param path The path that has changed. Must not be null.
      */
     @Override
     public void onPathChanged(EventKind eventKind, Path path) {
-        if (eventKind == EventKind.CREATE && path.toString().endsWith("xml")) {
+        if (eventKind == EventKind.READY && path.toString().endsWith("xml")) {
             LOGGER.info("Starting handling path '{}'", path);
             //Simulate work. Note that work is offloaded to a dedicated thread to ensure we do not block path watching
             executor.execute(new MessageProcessor(path));
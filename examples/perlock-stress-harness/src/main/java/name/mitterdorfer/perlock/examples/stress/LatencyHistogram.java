@@ -0,0 +1,107 @@
+package name.mitterdorfer.perlock.examples.stress;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>A histogram of latencies in nanoseconds with logarithmic buckets: Each power of two is split into
+ * {@link #SUB_BUCKETS} linear sub-buckets, so the width of a bucket is at most 1/8 of its lower bound. This keeps the
+ * relative error of percentiles below 12.5% over the whole range of a <code>long</code> with a few hundred
+ * buckets.</p>
+ *
+ * <p>Latencies can be recorded and read concurrently.</p>
+ */
+final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // values below SUB_BUCKETS have a bucket of their own, each further power of two has SUB_BUCKETS buckets
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long nanos) {
+        long value = Math.max(0L, nanos);
+        counts.incrementAndGet(bucketOf(value));
+        sum.addAndGet(value);
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) {
+                break;
+            }
+        }
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        // the highest bit is implied by the exponent; the next SUB_BUCKET_BITS bits select the sub-bucket
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    static long lowerBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    }
+
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        return lowerBoundOf(bucket) + (1L << shift) - 1L;
+    }
+
+    static int buckets() {
+        return BUCKETS;
+    }
+
+    long count(int bucket) {
+        return counts.get(bucket);
+    }
+
+    long count() {
+        long count = 0L;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            count += counts.get(bucket);
+        }
+        return count;
+    }
+
+    double mean() {
+        long count = count();
+        return count == 0L ? 0.0d : (double) sum.get() / count;
+    }
+
+    long max() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile The percentile in the range (0, 1].
+     * @return The upper bound of the bucket that contains the percentile (but at most the maximum) or 0 if no latency
+     * has been recorded.
+     */
+    long percentile(double percentile) {
+        long count = count();
+        if (count == 0L) {
+            return 0L;
+        }
+        long rank = Math.max(1L, (long) Math.ceil(percentile * count));
+        long seen = 0L;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts.get(bucket);
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(bucket), max());
+            }
+        }
+        return max();
+    }
+}
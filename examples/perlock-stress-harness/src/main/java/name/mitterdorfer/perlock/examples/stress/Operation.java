@@ -0,0 +1,56 @@
+package name.mitterdorfer.perlock.examples.stress;
+
+import name.mitterdorfer.perlock.EventKind;
+
+/**
+ * The operations that writers perform on the file system.
+ */
+enum Operation {
+    /**
+     * Creates an empty file. Empty files are created without a write, so the creation causes no modification event.
+     */
+    CREATE("create", EventKind.CREATE),
+    /**
+     * Appends to an existing file with a single write.
+     */
+    MODIFY("modify", EventKind.MODIFY),
+    /**
+     * Deletes an existing file.
+     */
+    DELETE("delete", EventKind.DELETE),
+    /**
+     * Creates a new directory and a burst of empty files in it.
+     */
+    MKDIR("mkdir", EventKind.CREATE);
+
+    private final String name;
+    private final EventKind eventKind;
+
+    Operation(String name, EventKind eventKind) {
+        this.name = name;
+        this.eventKind = eventKind;
+    }
+
+    /**
+     * @return The name of this operation in the mix.
+     */
+    String getName() {
+        return name;
+    }
+
+    /**
+     * @return The kind of event that a path watcher reports for this operation.
+     */
+    EventKind getEventKind() {
+        return eventKind;
+    }
+
+    static Operation forName(String name) {
+        for (Operation operation : values()) {
+            if (operation.name.equals(name)) {
+                return operation;
+            }
+        }
+        throw new IllegalArgumentException("Unknown operation '" + name + "'");
+    }
+}
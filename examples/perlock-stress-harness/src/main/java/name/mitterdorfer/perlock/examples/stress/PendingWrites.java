@@ -0,0 +1,128 @@
+package name.mitterdorfer.perlock.examples.stress;
+
+import name.mitterdorfer.perlock.EventKind;
+
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Matches the writes of the writers with the events that the path watcher reports.</p>
+ *
+ * <p>Writers announce each write with the time stamp at which it is issued just before they write. There is at most
+ * one pending write per path: Writers only touch a path again after its previous event has been observed. Thus an
+ * event of the expected kind on a path with a pending write is unambiguously caused by that write, even though the
+ * watch service merges repeated events of the same kind on the same path.</p>
+ */
+final class PendingWrites {
+    private static final EventKind[] EVENT_KINDS = EventKind.values();
+
+    private final ConcurrentMap<Path, Write> pending = new ConcurrentHashMap<>();
+    private final AtomicLongArray writes = new AtomicLongArray(EVENT_KINDS.length);
+    private final AtomicLong failedWrites = new AtomicLong();
+    private final AtomicLong matchedEvents = new AtomicLong();
+    private final AtomicLong unmatchedEvents = new AtomicLong();
+    private final AtomicLong lastMatchNanos = new AtomicLong();
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    /**
+     * Announces a write that is issued right after this method returns.
+     */
+    void expect(Path path, EventKind eventKind) {
+        writes.incrementAndGet(eventKind.ordinal());
+        pending.put(path, new Write(eventKind, System.nanoTime()));
+    }
+
+    /**
+     * Withdraws the announcement of a write that has failed.
+     */
+    void cancel(Path path, EventKind eventKind) {
+        if (pending.remove(path) != null) {
+            writes.decrementAndGet(eventKind.ordinal());
+            failedWrites.incrementAndGet();
+        }
+    }
+
+    boolean isPending(Path path) {
+        return pending.containsKey(path);
+    }
+
+    /**
+     * Records an event that the path watcher has reported at <code>nowNanos</code>.
+     */
+    void observe(EventKind eventKind, Path path, long nowNanos) {
+        Write write = pending.get(path);
+        if (write != null && write.eventKind == eventKind && pending.remove(path, write)) {
+            latencies.record(nowNanos - write.issuedNanos);
+            matchedEvents.incrementAndGet();
+            lastMatchNanos.set(nowNanos);
+        } else {
+            // e.g. a duplicate event, an event of an unexpected kind or of a path that no writer has written to
+            unmatchedEvents.incrementAndGet();
+        }
+    }
+
+    int size() {
+        return pending.size();
+    }
+
+    long writes(EventKind eventKind) {
+        return writes.get(eventKind.ordinal());
+    }
+
+    long writes() {
+        long total = 0L;
+        for (EventKind eventKind : EVENT_KINDS) {
+            total += writes(eventKind);
+        }
+        return total;
+    }
+
+    /**
+     * @return The number of writes of the provided kind whose event has not been observed (yet).
+     */
+    long lost(EventKind eventKind) {
+        long lost = 0L;
+        for (Write write : pending.values()) {
+            if (write.eventKind == eventKind) {
+                lost++;
+            }
+        }
+        return lost;
+    }
+
+    long failedWrites() {
+        return failedWrites.get();
+    }
+
+    long matchedEvents() {
+        return matchedEvents.get();
+    }
+
+    long unmatchedEvents() {
+        return unmatchedEvents.get();
+    }
+
+    /**
+     * @return The time stamp of the last event that has been matched with a write or 0 if there is none.
+     */
+    long lastMatchNanos() {
+        return lastMatchNanos.get();
+    }
+
+    LatencyHistogram latencies() {
+        return latencies;
+    }
+
+    private static final class Write {
+        private final EventKind eventKind;
+        private final long issuedNanos;
+
+        private Write(EventKind eventKind, long issuedNanos) {
+            this.eventKind = eventKind;
+            this.issuedNanos = issuedNanos;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package name.mitterdorfer.perlock.examples.stress;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Performs random operations according to the mix of the configuration until a deadline. Each writer only touches files
+ * that it has created itself, so writers never race each other on the same path.
+ */
+final class StormWriter implements Runnable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(StormWriter.class);
+
+    private static final byte[] PAYLOAD = "perlock\n".getBytes(StandardCharsets.US_ASCII);
+    // how often a writer tries to find a file without a pending write before it creates a new one instead
+    private static final int PICK_ATTEMPTS = 4;
+
+    private final int id;
+    private final StressConfig config;
+    private final PendingWrites pendingWrites;
+    private final long deadlineNanos;
+    private final Random random;
+    private final List<Path> directories;
+    private final List<Path> files = new ArrayList<>();
+    private int created;
+
+    /**
+     * @param directories The directories to write into. New directories of this writer are added to a copy.
+     */
+    StormWriter(int id, StressConfig config, PendingWrites pendingWrites, List<Path> directories,
+                long deadlineNanos) {
+        this.id = id;
+        this.config = config;
+        this.pendingWrites = pendingWrites;
+        this.deadlineNanos = deadlineNanos;
+        this.random = new Random(config.getSeed() + id);
+        this.directories = new ArrayList<>(directories);
+    }
+
+    @Override
+    public void run() {
+        long intervalNanos = config.getRate() == 0 ? 0L : TimeUnit.SECONDS.toNanos(1L) / config.getRate();
+        long nextNanos = System.nanoTime();
+        while (System.nanoTime() < deadlineNanos && !Thread.currentThread().isInterrupted()) {
+            perform(config.pickOperation(random));
+            if (intervalNanos > 0L) {
+                nextNanos += intervalNanos;
+                LockSupport.parkNanos(nextNanos - System.nanoTime());
+            }
+        }
+    }
+
+    private void perform(Operation operation) {
+        switch (operation) {
+            case CREATE:
+                create(randomDirectory());
+                break;
+            case MODIFY:
+                Path modified = idleFile(false);
+                if (modified == null) {
+                    create(randomDirectory());
+                    break;
+                }
+                pendingWrites.expect(modified, Operation.MODIFY.getEventKind());
+                try {
+                    Files.write(modified, PAYLOAD, StandardOpenOption.APPEND);
+                } catch (IOException ex) {
+                    failed(Operation.MODIFY, modified, ex);
+                }
+                break;
+            case DELETE:
+                Path deleted = idleFile(true);
+                if (deleted == null) {
+                    create(randomDirectory());
+                    break;
+                }
+                pendingWrites.expect(deleted, Operation.DELETE.getEventKind());
+                try {
+                    Files.delete(deleted);
+                } catch (IOException ex) {
+                    failed(Operation.DELETE, deleted, ex);
+                }
+                break;
+            case MKDIR:
+                Path directory = randomDirectory().resolve("dir-" + id + "-" + created++);
+                pendingWrites.expect(directory, Operation.MKDIR.getEventKind());
+                try {
+                    Files.createDirectory(directory);
+                } catch (IOException ex) {
+                    failed(Operation.MKDIR, directory, ex);
+                    break;
+                }
+                directories.add(directory);
+                // these files race the registration of the new directory with the watch service
+                for (int i = 0; i < config.getBurst(); i++) {
+                    create(directory);
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unknown operation " + operation);
+        }
+    }
+
+    private void create(Path directory) {
+        Path file = directory.resolve("file-" + id + "-" + created++);
+        pendingWrites.expect(file, Operation.CREATE.getEventKind());
+        try {
+            // an empty file is created without a write, so the path watcher reports no modification
+            Files.createFile(file);
+            files.add(file);
+        } catch (IOException ex) {
+            failed(Operation.CREATE, file, ex);
+        }
+    }
+
+    private void failed(Operation operation, Path path, IOException ex) {
+        pendingWrites.cancel(path, operation.getEventKind());
+        LOGGER.debug("Could not {} '{}'", operation.getName(), path, ex);
+    }
+
+    private Path randomDirectory() {
+        return directories.get(random.nextInt(directories.size()));
+    }
+
+    /**
+     * @param remove <code>true</code> if the file is about to be deleted and should be forgotten.
+     * @return A file of this writer whose previous write has been observed already or null if none has been found.
+     */
+    private Path idleFile(boolean remove) {
+        for (int attempt = 0; attempt < PICK_ATTEMPTS && !files.isEmpty(); attempt++) {
+            int index = random.nextInt(files.size());
+            Path file = files.get(index);
+            if (!pendingWrites.isPending(file)) {
+                if (remove) {
+                    // order does not matter; avoid shifting the list
+                    files.set(index, files.get(files.size() - 1));
+                    files.remove(files.size() - 1);
+                }
+                return file;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,261 @@
+package name.mitterdorfer.perlock.examples.stress;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The configuration of one run of the {@link StressHarness}. It starts from the defaults of a {@link Scenario} and is
+ * overridden by command line parameters of the form <code>key=value</code>:
+ *
+ * <ul>
+ *     <li><code>scenario</code> one of <code>mixed</code>, <code>writers</code>, <code>deep</code> or
+ *     <code>bursts</code> (default: <code>mixed</code>)</li>
+ *     <li><code>writers</code> the number of writer threads</li>
+ *     <li><code>duration</code> how long writers write, in seconds</li>
+ *     <li><code>rate</code> the writes per second of each writer; 0 writes as fast as possible</li>
+ *     <li><code>mix</code> the weights of the operations, e.g. <code>create:40,modify:40,delete:20,mkdir:0</code></li>
+ *     <li><code>burst</code> the number of files that are created right after each new directory</li>
+ *     <li><code>depth</code> and <code>fanOut</code> the shape of the tree that is created before watching</li>
+ *     <li><code>drain</code> how long to wait for outstanding events after the last write, in seconds</li>
+ *     <li><code>recover</code> whether the path watcher recovers from overflows (<code>true</code> or
+ *     <code>false</code>)</li>
+ *     <li><code>seed</code> the seed of the random choices of writers</li>
+ *     <li><code>directory</code> the directory to write into; a temporary directory by default</li>
+ *     <li><code>output</code> the file to write the JSON report to; standard output by default</li>
+ * </ul>
+ */
+final class StressConfig {
+    /**
+     * Presets for the most interesting kinds of write storms.
+     */
+    enum Scenario {
+        /**
+         * A few writers create, modify and delete files in a shallow tree.
+         */
+        MIXED(4, 1, 4, "create:40,modify:40,delete:20"),
+        /**
+         * Many writers contend for the path watcher.
+         */
+        WRITERS(32, 1, 4, "create:40,modify:40,delete:20"),
+        /**
+         * Writers spread their changes across a deep tree with many watched directories.
+         */
+        DEEP(4, 6, 3, "create:40,modify:40,delete:20"),
+        /**
+         * Writers create new directories and files in them right away, racing the registration of the new
+         * directories.
+         */
+        BURSTS(4, 1, 4, "create:30,modify:30,delete:10,mkdir:30");
+
+        private final int writers;
+        private final int depth;
+        private final int fanOut;
+        private final String mix;
+
+        Scenario(int writers, int depth, int fanOut, String mix) {
+            this.writers = writers;
+            this.depth = depth;
+            this.fanOut = fanOut;
+            this.mix = mix;
+        }
+    }
+
+    private Scenario scenario = Scenario.MIXED;
+    private int writers;
+    private int durationSeconds = 10;
+    private int rate = 0;
+    private final Map<Operation, Integer> mix = new EnumMap<>(Operation.class);
+    private int totalWeight;
+    private int burst = 10;
+    private int depth;
+    private int fanOut;
+    private int drainSeconds = 10;
+    private boolean recover = false;
+    private long seed = 42L;
+    private Path directory;
+    private Path output;
+
+    private StressConfig() {
+        // use parse()
+    }
+
+    /**
+     * @param args Command line parameters of the form <code>key=value</code>.
+     * @return The configuration. Never null.
+     * @throws IllegalArgumentException if a parameter is unknown or malformed.
+     */
+    static StressConfig parse(String... args) {
+        Map<String, String> parameters = new LinkedHashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Parameter '" + arg + "' is not of the form key=value");
+            }
+            parameters.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+        StressConfig config = new StressConfig();
+        String scenario = parameters.remove("scenario");
+        if (scenario != null) {
+            config.scenario = Scenario.valueOf(scenario.toUpperCase());
+        }
+        config.writers = config.scenario.writers;
+        config.depth = config.scenario.depth;
+        config.fanOut = config.scenario.fanOut;
+        config.parseMix(config.scenario.mix);
+
+        for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+            String value = parameter.getValue();
+            switch (parameter.getKey()) {
+                case "writers":
+                    config.writers = positive("writers", value);
+                    break;
+                case "duration":
+                    config.durationSeconds = positive("duration", value);
+                    break;
+                case "rate":
+                    config.rate = notNegative("rate", value);
+                    break;
+                case "mix":
+                    config.mix.clear();
+                    config.parseMix(value);
+                    break;
+                case "burst":
+                    config.burst = notNegative("burst", value);
+                    break;
+                case "depth":
+                    config.depth = notNegative("depth", value);
+                    break;
+                case "fanOut":
+                    config.fanOut = positive("fanOut", value);
+                    break;
+                case "drain":
+                    config.drainSeconds = notNegative("drain", value);
+                    break;
+                case "recover":
+                    config.recover = Boolean.parseBoolean(value);
+                    break;
+                case "seed":
+                    config.seed = Long.parseLong(value);
+                    break;
+                case "directory":
+                    config.directory = Paths.get(value);
+                    break;
+                case "output":
+                    config.output = Paths.get(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown parameter '" + parameter.getKey() + "'");
+            }
+        }
+        return config;
+    }
+
+    private void parseMix(String value) {
+        totalWeight = 0;
+        for (String entry : value.split(",")) {
+            String[] weight = entry.split(":");
+            if (weight.length != 2) {
+                throw new IllegalArgumentException("Mix entry '" + entry + "' is not of the form operation:weight");
+            }
+            Operation operation = Operation.forName(weight[0].trim());
+            int w = notNegative(operation.getName(), weight[1].trim());
+            mix.put(operation, w);
+            totalWeight += w;
+        }
+        if (totalWeight == 0) {
+            throw new IllegalArgumentException("At least one operation of mix '" + value + "' needs a weight");
+        }
+    }
+
+    private static int positive(String name, String value) {
+        int result = Integer.parseInt(value);
+        if (result <= 0) {
+            throw new IllegalArgumentException("'" + name + "' has to be positive but is " + value);
+        }
+        return result;
+    }
+
+    private static int notNegative(String name, String value) {
+        int result = Integer.parseInt(value);
+        if (result < 0) {
+            throw new IllegalArgumentException("'" + name + "' must not be negative but is " + value);
+        }
+        return result;
+    }
+
+    /**
+     * @return A random operation according to the weights of the mix.
+     */
+    Operation pickOperation(Random random) {
+        int pick = random.nextInt(totalWeight);
+        for (Map.Entry<Operation, Integer> weight : mix.entrySet()) {
+            pick -= weight.getValue();
+            if (pick < 0) {
+                return weight.getKey();
+            }
+        }
+        throw new IllegalStateException("Weights of the mix do not add up to " + totalWeight);
+    }
+
+    Scenario getScenario() {
+        return scenario;
+    }
+
+    int getWriters() {
+        return writers;
+    }
+
+    int getDurationSeconds() {
+        return durationSeconds;
+    }
+
+    int getRate() {
+        return rate;
+    }
+
+    Map<Operation, Integer> getMix() {
+        return mix;
+    }
+
+    int getBurst() {
+        return burst;
+    }
+
+    int getDepth() {
+        return depth;
+    }
+
+    int getFanOut() {
+        return fanOut;
+    }
+
+    int getDrainSeconds() {
+        return drainSeconds;
+    }
+
+    boolean isRecover() {
+        return recover;
+    }
+
+    long getSeed() {
+        return seed;
+    }
+
+    /**
+     * @return The directory to write into or null if a temporary directory should be used.
+     */
+    Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return The file to write the report to or null if it should be written to standard output.
+     */
+    Path getOutput() {
+        return output;
+    }
+}
@@ -0,0 +1,208 @@
+package name.mitterdorfer.perlock.examples.stress;
+
+import name.mitterdorfer.perlock.BatchPathChangeListener;
+import name.mitterdorfer.perlock.LifecycleListener;
+import name.mitterdorfer.perlock.PathEvent;
+import name.mitterdorfer.perlock.PathWatcher;
+import name.mitterdorfer.perlock.PathWatcherFactory;
+import name.mitterdorfer.perlock.PathWatcherMetrics;
+import name.mitterdorfer.perlock.ProgressReportingPathWatcher;
+import name.mitterdorfer.perlock.WatchOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>This application measures the end-to-end latency from a write on the real file system until the listener of a
+ * recursive path watcher is notified, the sustained event throughput and how many events get lost under write
+ * storms. Writer threads create, modify and delete files in a temporary directory (see {@link StressConfig} for all
+ * parameters and scenarios). Each write is time-stamped just before it is issued and matched with its event when the
+ * listener receives it. Writes whose event has not arrived when the run ends are reported as lost.</p>
+ *
+ * <p>The report is written as JSON (see {@link StressReport}) so results can be tracked over releases. First build the
+ * harness with <code>gradle fatJar</code>. To write with 32 threads for 30 seconds into a tree that is 6 levels deep,
+ * invoke it as follows:</p>
+ *
+ * <code>java -jar examples/perlock-stress-harness/build/libs/perlock-stress-harness-$VERSION.jar scenario=deep writers=32 duration=30 output=deep.json</code>
+ */
+public class StressHarness {
+    private static final Logger LOGGER = LoggerFactory.getLogger(StressHarness.class);
+
+    public static void main(String[] args) throws Exception {
+        StressConfig config;
+        try {
+            config = StressConfig.parse(args);
+        } catch (IllegalArgumentException ex) {
+            LOGGER.error("{}. Usage: [scenario=mixed|writers|deep|bursts] [writers=n] [duration=seconds] "
+                    + "[rate=writes_per_second] [mix=create:w,modify:w,delete:w,mkdir:w] [burst=n] [depth=n] "
+                    + "[fanOut=n] [drain=seconds] [recover=true|false] [seed=n] [directory=path] [output=file]",
+                    ex.getMessage());
+            System.exit(65);
+            return;
+        }
+        boolean temporary = config.getDirectory() == null;
+        Path root = temporary ? Files.createTempDirectory("perlock-stress")
+                : Files.createDirectories(config.getDirectory());
+        // events report paths below the real path of the root
+        root = root.toRealPath();
+        try {
+            StressReport report = run(config, root);
+            if (config.getOutput() == null) {
+                System.out.println(report.toJson());
+            } else {
+                try (Writer out = Files.newBufferedWriter(config.getOutput(), StandardCharsets.UTF_8)) {
+                    out.write(report.toJson());
+                }
+                LOGGER.info("Wrote report to '{}'", config.getOutput());
+            }
+        } finally {
+            if (temporary) {
+                deleteTree(root);
+            }
+        }
+    }
+
+    private static StressReport run(StressConfig config, Path root) throws Exception {
+        List<Path> directories = createTree(root, config.getDepth(), config.getFanOut());
+        LOGGER.info("Created {} directories below '{}'", directories.size(), root);
+
+        ExecutorService watcherExecutor = Executors.newCachedThreadPool();
+        ExecutorService writerExecutor = Executors.newFixedThreadPool(config.getWriters());
+        CountDownLatch started = new CountDownLatch(1);
+        PathWatcherFactory pathWatcherFactory = new PathWatcherFactory(watcherExecutor,
+                new StartedLifecycleListener(started));
+        PathWatcherMetrics metrics = pathWatcherFactory.createMetrics();
+        WatchOptions.Builder options = WatchOptions.builder().recordMetrics(metrics);
+        if (config.isRecover()) {
+            options.recoverFromOverflow(watcherExecutor, 100L, TimeUnit.MILLISECONDS);
+        }
+        PendingWrites pendingWrites = new PendingWrites();
+        EventCounter eventCounter = new EventCounter(pendingWrites);
+        PathWatcher pathWatcher = pathWatcherFactory.createRecursiveWatcher(root, eventCounter, options.build());
+        try {
+            pathWatcher.start();
+            if (!started.await(1, TimeUnit.MINUTES)) {
+                throw new IllegalStateException("Path watcher has not started within one minute");
+            }
+            ((ProgressReportingPathWatcher) pathWatcher).getRegistrationProgress().get();
+
+            LOGGER.info("Writing with {} writers for {} s", config.getWriters(), config.getDurationSeconds());
+            long startNanos = System.nanoTime();
+            long deadlineNanos = startNanos + TimeUnit.SECONDS.toNanos(config.getDurationSeconds());
+            for (int i = 0; i < config.getWriters(); i++) {
+                writerExecutor.execute(new StormWriter(i, config, pendingWrites, directories, deadlineNanos));
+            }
+            writerExecutor.shutdown();
+            writerExecutor.awaitTermination(config.getDurationSeconds() + 60L, TimeUnit.SECONDS);
+            long writesEndNanos = System.nanoTime();
+
+            long drainDeadlineNanos = writesEndNanos + TimeUnit.SECONDS.toNanos(config.getDrainSeconds());
+            while (pendingWrites.size() > 0 && System.nanoTime() < drainDeadlineNanos) {
+                Thread.sleep(10L);
+            }
+            StressReport report = new StressReport(config, directories.size(), pendingWrites, metrics,
+                    eventCounter.events(), startNanos, writesEndNanos);
+            report.log(LOGGER);
+            return report;
+        } finally {
+            writerExecutor.shutdownNow();
+            pathWatcher.stop();
+            watcherExecutor.shutdown();
+        }
+    }
+
+    private static List<Path> createTree(Path root, int depth, int fanOut) throws IOException {
+        List<Path> directories = new ArrayList<>();
+        directories.add(root);
+        int levelStart = 0;
+        for (int level = 0; level < depth; level++) {
+            int levelEnd = directories.size();
+            for (int parent = levelStart; parent < levelEnd; parent++) {
+                for (int child = 0; child < fanOut; child++) {
+                    Path directory = directories.get(parent).resolve("level" + level + "-" + child);
+                    directories.add(Files.createDirectory(directory));
+                }
+            }
+            levelStart = levelEnd;
+        }
+        return directories;
+    }
+
+    private static void deleteTree(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static final class EventCounter implements BatchPathChangeListener {
+        private final PendingWrites pendingWrites;
+        // only written by the path watcher thread
+        private volatile long events;
+
+        private EventCounter(PendingWrites pendingWrites) {
+            this.pendingWrites = pendingWrites;
+        }
+
+        @Override
+        public void onPathsChanged(List<PathEvent> events) {
+            // all events of a batch have been observed at the same time
+            long nowNanos = System.nanoTime();
+            for (int i = 0; i < events.size(); i++) {
+                PathEvent event = events.get(i);
+                pendingWrites.observe(event.getEventKind(), event.getPath(), nowNanos);
+            }
+            this.events += events.size();
+        }
+
+        private long events() {
+            return events;
+        }
+    }
+
+    private static final class StartedLifecycleListener implements LifecycleListener {
+        private final CountDownLatch started;
+
+        private StartedLifecycleListener(CountDownLatch started) {
+            this.started = started;
+        }
+
+        @Override
+        public void onStart(PathWatcher pathWatcher) {
+            started.countDown();
+        }
+
+        @Override
+        public void onException(PathWatcher pathWatcher, Exception ex) {
+            LOGGER.error("Path watcher has failed", ex);
+        }
+
+        @Override
+        public void onStop(PathWatcher pathWatcher) {
+            // not interesting here
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package name.mitterdorfer.perlock.examples.stress;
+
+import name.mitterdorfer.perlock.EventKind;
+import name.mitterdorfer.perlock.PathWatcherFactory;
+import name.mitterdorfer.perlock.PathWatcherMetrics;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>The results of one run of the {@link StressHarness}. They are rendered as one JSON object with these members:</p>
+ *
+ * <ul>
+ *     <li><code>perlockVersion</code>, <code>javaVersion</code>, <code>os</code> and <code>timestamp</code> identify
+ *     the run</li>
+ *     <li><code>config</code> contains all parameters of the run</li>
+ *     <li><code>writes</code> counts the writes per kind of the expected event and writes that have failed</li>
+ *     <li><code>events</code> counts the events that the listener has received, whether they could be matched with a
+ *     write and the sustained events per second from the first write until the last matched event</li>
+ *     <li><code>lost</code> counts writes whose event has not been received until the end of the run</li>
+ *     <li><code>overflows</code> counts the overflows of the kernel event queue</li>
+ *     <li><code>latencyNanos</code> summarizes the time from issuing a write until its event has been received and
+ *     <code>histogram</code> lists all non-empty buckets of the latency histogram</li>
+ * </ul>
+ */
+final class StressReport {
+    private static final EventKind[] WRITTEN_KINDS = {EventKind.CREATE, EventKind.MODIFY, EventKind.DELETE};
+    private static final double[] PERCENTILES = {0.5d, 0.9d, 0.99d, 0.999d};
+
+    private final StressConfig config;
+    private final int directories;
+    private final PendingWrites pendingWrites;
+    private final PathWatcherMetrics metrics;
+    private final long events;
+    private final double writeSeconds;
+    private final double eventSeconds;
+    private final String timestamp;
+
+    /**
+     * @param directories    The number of directories that have been created before watching.
+     * @param events         The number of events that the listener has received.
+     * @param startNanos     The time stamp at which the writers have started.
+     * @param writesEndNanos The time stamp at which the writers have finished.
+     */
+    StressReport(StressConfig config, int directories, PendingWrites pendingWrites, PathWatcherMetrics metrics,
+                 long events, long startNanos, long writesEndNanos) {
+        this.config = config;
+        this.directories = directories;
+        this.pendingWrites = pendingWrites;
+        this.metrics = metrics;
+        this.events = events;
+        this.writeSeconds = seconds(writesEndNanos - startNanos);
+        long lastMatchNanos = pendingWrites.lastMatchNanos();
+        this.eventSeconds = lastMatchNanos == 0L ? writeSeconds : seconds(lastMatchNanos - startNanos);
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.ROOT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        this.timestamp = format.format(new Date());
+    }
+
+    private static double seconds(long nanos) {
+        return (double) nanos / TimeUnit.SECONDS.toNanos(1L);
+    }
+
+    private long lost() {
+        long lost = 0L;
+        for (EventKind eventKind : WRITTEN_KINDS) {
+            lost += pendingWrites.lost(eventKind);
+        }
+        return lost;
+    }
+
+    private static double perSecond(long count, double seconds) {
+        return seconds <= 0.0d ? 0.0d : count / seconds;
+    }
+
+    void log(Logger logger) {
+        LatencyHistogram latencies = pendingWrites.latencies();
+        logger.info("Issued {} writes ({} writes/s), received {} events ({} events/s), lost {} events, {} overflows",
+                pendingWrites.writes(), format(perSecond(pendingWrites.writes(), writeSeconds)), events,
+                format(perSecond(events, eventSeconds)), lost(), metrics.getOverflows());
+        logger.info("Latency from write to listener: p50 {} us, p99 {} us, p99.9 {} us, max {} us",
+                micros(latencies.percentile(0.5d)), micros(latencies.percentile(0.99d)),
+                micros(latencies.percentile(0.999d)), micros(latencies.max()));
+    }
+
+    /**
+     * @return The implementation version from the manifest of the Perlock jar. If Perlock is not loaded from a jar
+     * (e.g. when the harness runs in the build), the project version that has been recorded when the harness was
+     * built.
+     */
+    private static String perlockVersion() {
+        String version = PathWatcherFactory.class.getPackage().getImplementationVersion();
+        if (version != null) {
+            return version;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = StressReport.class.getResourceAsStream("version.properties")) {
+            if (in != null) {
+                properties.load(in);
+            }
+        } catch (IOException ex) {
+            // fall through; the version is only informational
+        }
+        return properties.getProperty("version", "unknown");
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.1f", value);
+    }
+
+    private static String micros(long nanos) {
+        return format(nanos / 1000.0d);
+    }
+
+    String toJson() {
+        LatencyHistogram latencies = pendingWrites.latencies();
+        Json json = new Json();
+        json.begin();
+        json.field("perlockVersion", perlockVersion());
+        json.field("javaVersion", System.getProperty("java.version"));
+        json.field("os", System.getProperty("os.name") + " " + System.getProperty("os.version"));
+        json.field("timestamp", timestamp);
+
+        json.name("config").begin();
+        json.field("scenario", config.getScenario().name().toLowerCase(Locale.ROOT));
+        json.field("writers", config.getWriters());
+        json.field("durationSeconds", config.getDurationSeconds());
+        json.field("rate", config.getRate());
+        json.name("mix").begin();
+        for (Map.Entry<Operation, Integer> weight : config.getMix().entrySet()) {
+            json.field(weight.getKey().getName(), weight.getValue());
+        }
+        json.end();
+        json.field("burst", config.getBurst());
+        json.field("depth", config.getDepth());
+        json.field("fanOut", config.getFanOut());
+        json.field("directories", directories);
+        json.field("drainSeconds", config.getDrainSeconds());
+        json.field("recover", config.isRecover());
+        json.field("seed", config.getSeed());
+        json.end();
+
+        json.name("writes").begin();
+        json.field("total", pendingWrites.writes());
+        for (EventKind eventKind : WRITTEN_KINDS) {
+            json.field(eventKind.name(), pendingWrites.writes(eventKind));
+        }
+        json.field("failed", pendingWrites.failedWrites());
+        json.field("perSecond", perSecond(pendingWrites.writes(), writeSeconds));
+        json.end();
+
+        json.name("events").begin();
+        json.field("received", events);
+        json.field("matched", pendingWrites.matchedEvents());
+        json.field("unmatched", pendingWrites.unmatchedEvents());
+        json.field("perSecond", perSecond(events, eventSeconds));
+        json.field("perWakeup", metrics.getEventsPerWakeup());
+        json.end();
+
+        json.name("lost").begin();
+        json.field("total", lost());
+        for (EventKind eventKind : WRITTEN_KINDS) {
+            json.field(eventKind.name(), pendingWrites.lost(eventKind));
+        }
+        json.end();
+        json.field("overflows", metrics.getOverflows());
+
+        json.name("latencyNanos").begin();
+        json.field("count", latencies.count());
+        json.field("mean", latencies.mean());
+        for (double percentile : PERCENTILES) {
+            json.field("p" + format(percentile * 100.0d).replace(".0", ""), latencies.percentile(percentile));
+        }
+        json.field("max", latencies.max());
+        json.end();
+
+        json.name("histogram").beginArray();
+        for (int bucket = 0; bucket < LatencyHistogram.buckets(); bucket++) {
+            long count = latencies.count(bucket);
+            if (count > 0L) {
+                json.begin();
+                json.field("from", LatencyHistogram.lowerBoundOf(bucket));
+                json.field("to", LatencyHistogram.upperBoundOf(bucket));
+                json.field("count", count);
+                json.end();
+            }
+        }
+        json.endArray();
+        json.end();
+        return json.toString();
+    }
+
+    /**
+     * Renders JSON without depending on a JSON library. It knows where commas go but does not validate the structure.
+     */
+    private static final class Json {
+        private final StringBuilder out = new StringBuilder();
+        private boolean first = true;
+
+        Json begin() {
+            separate();
+            out.append('{');
+            first = true;
+            return this;
+        }
+
+        Json end() {
+            out.append('}');
+            first = false;
+            return this;
+        }
+
+        Json beginArray() {
+            separate();
+            out.append('[');
+            first = true;
+            return this;
+        }
+
+        Json endArray() {
+            out.append(']');
+            first = false;
+            return this;
+        }
+
+        Json name(String name) {
+            separate();
+            string(name);
+            out.append(':');
+            // the value follows without a separator
+            first = true;
+            return this;
+        }
+
+        void field(String name, String value) {
+            name(name);
+            first = false;
+            string(value);
+        }
+
+        void field(String name, long value) {
+            name(name);
+            first = false;
+            out.append(value);
+        }
+
+        void field(String name, double value) {
+            name(name);
+            first = false;
+            out.append(String.format(Locale.ROOT, "%.3f", value));
+        }
+
+        void field(String name, boolean value) {
+            name(name);
+            first = false;
+            out.append(value);
+        }
+
+        private void separate() {
+            if (!first) {
+                out.append(',');
+            }
+        }
+
+        private void string(String value) {
+            out.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    out.append('\\').append(c);
+                } else if (c < ' ') {
+                    out.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+                } else {
+                    out.append(c);
+                }
+            }
+            out.append('"');
+        }
+
+        @Override
+        public String toString() {
+            return out.toString();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package name.mitterdorfer.perlock.examples;
+
+import name.mitterdorfer.perlock.EventKind;
+import name.mitterdorfer.perlock.LifecycleListener;
+import name.mitterdorfer.perlock.PathChangeListener;
+import name.mitterdorfer.perlock.PathWatcher;
+import name.mitterdorfer.perlock.PathWatcherFactory;
+import name.mitterdorfer.perlock.VirtualThreads;
+import name.mitterdorfer.perlock.WatchServiceMode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This example application compares the number of platform threads and the heap usage of many path watchers that run
+ * on platform threads with path watchers that run on virtual threads. The demo accepts three command line parameters:
+ *
+ * <ol>
+ *     <li><code>mode</code> one of <code>platform</code> (a cached thread pool), <code>virtual</code> (one watch
+ *     service per path watcher on virtual threads) or <code>virtual-shared</code> (one watch service per file system on
+ *     virtual threads)</li>
+ *     <li><code>watchers</code> the number of path watchers to start</li>
+ *     <li><code>directory</code> an empty directory below which the benchmark creates one directory per path
+ *     watcher</li>
+ * </ol>
+ *
+ * First build the demo with <code>gradle fatJar</code>. The modes <code>virtual</code> and <code>virtual-shared</code>
+ * require Java 21 or later. To compare 1000 path watchers in both modes, invoke the sample application as follows (note
+ * that the platform's limit on inotify instances may be lower than 1000 which does not apply to
+ * <code>virtual-shared</code>):
+ *
+ * <code>java -jar examples/perlock-thread-footprint-demo/build/libs/perlock-thread-footprint-demo-$VERSION.jar platform 1000 /tmp/bench-platform</code>
+ * <code>java -jar examples/perlock-thread-footprint-demo/build/libs/perlock-thread-footprint-demo-$VERSION.jar virtual-shared 1000 /tmp/bench-virtual</code>
+ */
+public class ThreadFootprintBenchmark {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ThreadFootprintBenchmark.class);
+
+    // simulates a listener that blocks, e.g. because it copies the changed file to a remote location
+    private static final long LISTENER_BLOCKING_MILLIS = 10L;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 3) {
+            LOGGER.error("Usage: (platform|virtual|virtual-shared) number_of_watchers directory");
+            System.exit(65);
+        }
+        String mode = args[0];
+        int numberOfWatchers = Integer.parseInt(args[1]);
+        Path root = Paths.get(args[2]);
+        if (!mode.equals("platform") && !VirtualThreads.isSupported()) {
+            LOGGER.error("Mode '{}' requires virtual threads which are not supported by Java {}.", mode,
+                    System.getProperty("java.version"));
+            System.exit(66);
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        int threadsBefore = threads.getThreadCount();
+        long heapBefore = usedHeap(memory);
+
+        CountDownLatch started = new CountDownLatch(numberOfWatchers);
+        CountDownLatch changed = new CountDownLatch(numberOfWatchers);
+        ExecutorService executorService = null;
+        PathWatcherFactory pathWatcherFactory;
+        if (mode.equals("platform")) {
+            // path watchers run until they are stopped; a fixed thread pool would need one thread per watcher as well
+            executorService = Executors.newCachedThreadPool();
+            pathWatcherFactory = new PathWatcherFactory(executorService, new CountingLifecycleListener(started));
+        } else {
+            WatchServiceMode watchServiceMode = mode.equals("virtual-shared") ?
+                    WatchServiceMode.PER_FILE_SYSTEM : WatchServiceMode.PER_WATCHER;
+            pathWatcherFactory = PathWatcherFactory.withVirtualThreads(new CountingLifecycleListener(started),
+                    watchServiceMode);
+        }
+
+        LOGGER.info("Starting {} path watchers in mode '{}'", numberOfWatchers, mode);
+        PathWatcher[] pathWatchers = new PathWatcher[numberOfWatchers];
+        for (int i = 0; i < numberOfWatchers; i++) {
+            Path dir = Files.createDirectories(root.resolve("watched-" + i));
+            pathWatchers[i] = pathWatcherFactory.createNonRecursiveWatcher(dir, new BlockingPathChangeListener(changed));
+            pathWatchers[i].start();
+        }
+        if (!started.await(1, TimeUnit.MINUTES)) {
+            LOGGER.error("Only {} of {} path watchers have started.", numberOfWatchers - started.getCount(),
+                    numberOfWatchers);
+            System.exit(67);
+        }
+        int threadsWatching = threads.getThreadCount();
+        long heapWatching = usedHeap(memory);
+
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < numberOfWatchers; i++) {
+            Files.createFile(root.resolve("watched-" + i).resolve("file"));
+        }
+        boolean allDelivered = changed.await(1, TimeUnit.MINUTES);
+        long deliveryMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+
+        LOGGER.info("Platform threads: {} before, {} while watching, {} at peak", threadsBefore, threadsWatching,
+                threads.getPeakThreadCount());
+        LOGGER.info("Used heap: {} KiB before, {} KiB while watching ({} bytes per path watcher)", heapBefore / 1024,
+                heapWatching / 1024, (heapWatching - heapBefore) / numberOfWatchers);
+        if (allDelivered) {
+            LOGGER.info("Delivered one change to each path watcher ({} ms blocking listener) in {} ms",
+                    LISTENER_BLOCKING_MILLIS, deliveryMillis);
+        } else {
+            LOGGER.warn("Only {} of {} changes have been delivered within {} ms",
+                    numberOfWatchers - changed.getCount(), numberOfWatchers, deliveryMillis);
+        }
+
+        for (PathWatcher pathWatcher : pathWatchers) {
+            pathWatcher.stop();
+        }
+        if (executorService != null) {
+            executorService.shutdown();
+        }
+    }
+
+    private static long usedHeap(MemoryMXBean memory) throws InterruptedException {
+        System.gc();
+        // give the garbage collector a moment; this is no exact measurement anyway
+        Thread.sleep(200L);
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    private static final class CountingLifecycleListener implements LifecycleListener {
+        private final CountDownLatch started;
+
+        private CountingLifecycleListener(CountDownLatch started) {
+            this.started = started;
+        }
+
+        @Override
+        public void onStart(PathWatcher pathWatcher) {
+            started.countDown();
+        }
+
+        @Override
+        public void onException(PathWatcher pathWatcher, Exception ex) {
+            LOGGER.error("Path watcher has failed", ex);
+        }
+
+        @Override
+        public void onStop(PathWatcher pathWatcher) {
+            // not interesting here
+        }
+    }
+
+    private static final class BlockingPathChangeListener implements PathChangeListener {
+        private final CountDownLatch changed;
+
+        private BlockingPathChangeListener(CountDownLatch changed) {
+            this.changed = changed;
+        }
+
+        @Override
+        public void onPathChanged(EventKind eventKind, Path path) {
+            try {
+                Thread.sleep(LISTENER_BLOCKING_MILLIS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            if (eventKind == EventKind.CREATE) {
+                changed.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package name.mitterdorfer.perlock.benchmarks;
+
+import name.mitterdorfer.perlock.EventKind;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.WatchEvent;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * Measures the mapping of watch event kinds to {@link EventKind}s which happens for every event a watch service
+ * delivers. The kinds are cycled so the JIT cannot fold the mapping into a constant.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EventKindMappingBenchmark {
+    private final WatchEvent.Kind<?>[] kinds = {ENTRY_MODIFY, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE, OVERFLOW,
+            ENTRY_MODIFY, ENTRY_MODIFY, ENTRY_CREATE};
+    private int next;
+
+    @Benchmark
+    public EventKind eventKindForWatchEventKind() {
+        WatchEvent.Kind<?> kind = kinds[next];
+        next = (next + 1) & (kinds.length - 1);
+        return EventKind.eventKindForWatchEventKind(kind);
+    }
+}
@@ -0,0 +1,51 @@
+package name.mitterdorfer.perlock.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates regular directory trees for benchmarks.
+ */
+public final class GeneratedTrees {
+    private GeneratedTrees() {
+        // no instances intended
+    }
+
+    /**
+     * @param root   The root of the tree. It is included in the result.
+     * @param depth  The number of levels below the root.
+     * @param fanOut The number of subdirectories of each directory above the deepest level.
+     * @return All directories of the tree in breadth first order; the root comes first. Nothing is created on disk.
+     */
+    public static List<Path> directories(Path root, int depth, int fanOut) {
+        List<Path> directories = new ArrayList<>();
+        directories.add(root);
+        int levelStart = 0;
+        for (int level = 0; level < depth; level++) {
+            int levelEnd = directories.size();
+            for (int i = levelStart; i < levelEnd; i++) {
+                for (int child = 0; child < fanOut; child++) {
+                    directories.add(directories.get(i).resolve("dir" + child));
+                }
+            }
+            levelStart = levelEnd;
+        }
+        return directories;
+    }
+
+    /**
+     * Creates all directories of a tree (see {@link #directories(Path, int, int)}).
+     *
+     * @return The number of created directories, including the root.
+     */
+    public static int create(Path root, int depth, int fanOut) throws IOException {
+        List<Path> directories = directories(root, depth, fanOut);
+        for (Path directory : directories) {
+            Files.createDirectories(directory);
+        }
+        return directories.size();
+    }
+}
@@ -0,0 +1,123 @@
+package name.mitterdorfer.perlock.benchmarks;
+
+import name.mitterdorfer.perlock.impl.watch.InotifyLimits;
+import name.mitterdorfer.perlock.impl.watch.RegistrationTracker;
+import name.mitterdorfer.perlock.impl.watch.WatchKeyTrie;
+import name.mitterdorfer.perlock.impl.watch.WatchRegistrationStrategy;
+import name.mitterdorfer.perlock.impl.watch.registration.DefaultRecursiveRegistrationStrategy;
+import name.mitterdorfer.perlock.impl.watch.registration.ParallelRecursiveRegistrationStrategy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Measures how long it takes to start watching large trees on the default file system, sequentially with
+ * {@link DefaultRecursiveRegistrationStrategy} and in parallel with {@link ParallelRecursiveRegistrationStrategy} on
+ * a pool with one thread per available processor. Unlike {@link RegistrationBenchmark}, this includes listing the
+ * directories on disk and creating the kernel watches of the watch service of the JDK.</p>
+ *
+ * <p>The trees have ten subdirectories per directory, i.e. 11,111, 111,111 and 1,111,111 directories for depth 4, 5
+ * and 6. They are created in <code>java.io.tmpdir</code> (override with <code>-Dperlock.benchmark.dir</code>) before
+ * the first measurement. Each measurement registers the tree with a new watch service. On Linux, the user limit of
+ * inotify watches (<code>/proc/sys/fs/inotify/max_user_watches</code>) has to exceed the number of directories.</p>
+ *
+ * <p>A single registration of the largest tree takes seconds, so each measurement is a single shot. The directory
+ * entries are in the page cache after the warm-up.</p>
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class LargeTreeRegistrationBenchmark {
+    // subdirectories per directory of the synthetic tree
+    private static final int FAN_OUT = 10;
+
+    @Param({"4", "5", "6"})
+    public int depth;
+
+    @Param({"sequential", "parallel"})
+    public String strategy;
+
+    private Path rootPath;
+    private int directories;
+    private ForkJoinPool pool;
+    private WatchService watchService;
+    private WatchKeyTrie keys;
+
+    @Setup
+    public void createTree() throws IOException {
+        Path baseDir = Paths.get(System.getProperty("perlock.benchmark.dir", System.getProperty("java.io.tmpdir")));
+        rootPath = Files.createTempDirectory(baseDir, "perlock-registration-");
+        directories = GeneratedTrees.create(rootPath, depth, FAN_OUT);
+        if (InotifyLimits.isSupported()) {
+            int maxUserWatches = new InotifyLimits(Paths.get("/proc")).readMaxUserWatches();
+            if (maxUserWatches >= 0 && maxUserWatches < directories) {
+                deleteTree();
+                throw new IllegalStateException("Raise /proc/sys/fs/inotify/max_user_watches from " +
+                        maxUserWatches + " to at least " + directories);
+            }
+        }
+        pool = new ForkJoinPool();
+    }
+
+    @TearDown
+    public void deleteTree() throws IOException {
+        if (pool != null) {
+            pool.shutdown();
+        }
+        Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Setup(Level.Invocation)
+    public void openWatchService() throws IOException {
+        watchService = FileSystems.getDefault().newWatchService();
+        keys = new WatchKeyTrie();
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeWatchService() throws IOException {
+        if (keys.size() != directories) {
+            throw new IllegalStateException("Registered " + keys.size() + " directories");
+        }
+        watchService.close();
+    }
+
+    @Benchmark
+    public WatchKeyTrie registerAll() throws IOException {
+        WatchRegistrationStrategy registrationStrategy = "parallel".equals(strategy)
+                ? new ParallelRecursiveRegistrationStrategy(keys, pool)
+                : new DefaultRecursiveRegistrationStrategy(keys);
+        registrationStrategy.registerRoot(watchService, rootPath, new RegistrationTracker(null));
+        return keys;
+    }
+}
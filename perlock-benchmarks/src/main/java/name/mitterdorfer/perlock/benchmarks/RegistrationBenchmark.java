@@ -0,0 +1,101 @@
+package name.mitterdorfer.perlock.benchmarks;
+
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import name.mitterdorfer.perlock.impl.watch.RegistrationTracker;
+import name.mitterdorfer.perlock.impl.watch.WatchKeyTrie;
+import name.mitterdorfer.perlock.impl.watch.WatchRegistrationStrategy;
+import name.mitterdorfer.perlock.impl.watch.registration.DefaultRecursiveRegistrationStrategy;
+import name.mitterdorfer.perlock.impl.watch.registration.ParallelRecursiveRegistrationStrategy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.nio.file.WatchService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Measures the recursive registration of generated trees of varying depth and fan-out, i.e. walking the tree and
+ * maintaining the registry of watch keys. <code>sequential</code> registers with
+ * {@link DefaultRecursiveRegistrationStrategy}, <code>parallel</code> with
+ * {@link ParallelRecursiveRegistrationStrategy} on a pool with one thread per available processor.</p>
+ *
+ * <p>The trees live in an in-memory file system. This keeps the cost of kernel watches (which Perlock cannot
+ * influence) and the state of the disk cache out of the measurement. Each invocation registers the tree with a new
+ * watch service, as registering a directory again just returns the existing key.</p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+// each invocation starts the polling thread of a new watch service, which makes single iterations noisy
+@Warmup(iterations = 10, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RegistrationBenchmark {
+    @Param({"2", "4"})
+    public int depth;
+
+    @Param({"4", "8"})
+    public int fanOut;
+
+    @Param({"sequential", "parallel"})
+    public String strategy;
+
+    private FileSystem fileSystem;
+    private Path rootPath;
+    private int directories;
+    private WatchService watchService;
+    private WatchKeyTrie keys;
+    private ForkJoinPool pool;
+
+    @Setup
+    public void createTree() throws IOException {
+        fileSystem = Jimfs.newFileSystem(Configuration.unix());
+        rootPath = fileSystem.getPath("/tree");
+        directories = GeneratedTrees.create(rootPath, depth, fanOut);
+        pool = new ForkJoinPool();
+    }
+
+    @TearDown
+    public void deleteTree() throws IOException {
+        pool.shutdown();
+        fileSystem.close();
+    }
+
+    @Setup(Level.Invocation)
+    public void openWatchService() throws IOException {
+        watchService = fileSystem.newWatchService();
+        keys = new WatchKeyTrie();
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeWatchService() throws IOException {
+        if (keys.size() != directories) {
+            throw new IllegalStateException("Registered " + keys.size() + " directories");
+        }
+        watchService.close();
+    }
+
+    @Benchmark
+    public WatchKeyTrie registerAll() throws IOException {
+        WatchRegistrationStrategy registrationStrategy = "parallel".equals(strategy)
+                ? new ParallelRecursiveRegistrationStrategy(keys, pool)
+                : new DefaultRecursiveRegistrationStrategy(keys);
+        registrationStrategy.registerRoot(watchService, rootPath, new RegistrationTracker(null));
+        return keys;
+    }
+}
@@ -0,0 +1,126 @@
+package name.mitterdorfer.perlock.benchmarks;
+
+import name.mitterdorfer.perlock.impl.watch.WatchKeyTrie;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchKey;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Measures the heap that the registry of watch keys retains per registered directory. <code>trie</code> is the
+ * {@link WatchKeyTrie} of path watchers, <code>map</code> the <code>ConcurrentHashMap</code> of watch keys to paths
+ * that was used before. Each invocation fills a new registry with a synthetic tree and reports the growth of the used
+ * heap after a full garbage collection as auxiliary counter <code>bytesPerDirectory</code>, averaged over all
+ * invocations of an iteration.</p>
+ *
+ * <p>The tree has ten subdirectories per directory. Like a recursive registration, the invocation creates the path of
+ * each directory from the path of its parent, so the paths that a registry retains are part of the measurement. Names
+ * are unique within groups of 1,000 directories, i.e. they are shared less than in real trees where many directories
+ * have the same name (e.g. <code>src</code> or <code>target</code>). Watch keys are created up front and are not part
+ * of the measurement.</p>
+ *
+ * <p>The score of this benchmark is dominated by garbage collection and is only reported. Only
+ * <code>bytesPerDirectory</code> is meaningful. The benchmark runs with <code>-XX:+UseSerialGC</code> for the most
+ * stable numbers.</p>
+ */
+// JMH 1.21 does not report auxiliary counters of single shot benchmarks
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-XX:+UseSerialGC", "-Xmx2g"})
+@State(Scope.Thread)
+public class RegistryFootprintBenchmark {
+    // subdirectories per directory of the synthetic tree
+    private static final int FAN_OUT = 10;
+
+    @Param({"10000", "100000", "1000000"})
+    public int directories;
+
+    @Param({"trie", "map"})
+    public String registry;
+
+    private Path root;
+    private WatchKey[] keys;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        root = Paths.get("/var/lib/perlock/tree");
+        keys = new WatchKey[directories];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new StubWatchKey();
+        }
+    }
+
+    @Benchmark
+    public Map<WatchKey, Path> register(Footprint footprint) {
+        long before = usedHeapAfterGc();
+        Map<WatchKey, Path> keyMap = "map".equals(registry)
+                ? new ConcurrentHashMap<WatchKey, Path>()
+                : new WatchKeyTrie();
+        fill(keyMap);
+        long after = usedHeapAfterGc();
+        footprint.record(after - before, keys.length);
+        return keyMap;
+    }
+
+    private void fill(Map<WatchKey, Path> keyMap) {
+        // the paths are only reachable via the registry once this method returns
+        Path[] paths = new Path[keys.length];
+        paths[0] = root;
+        keyMap.put(keys[0], root);
+        for (int i = 1; i < keys.length; i++) {
+            paths[i] = paths[(i - 1) / FAN_OUT].resolve("dir" + (i - 1) % FAN_OUT + "-" + i / 1000);
+            keyMap.put(keys[i], paths[i]);
+        }
+        if (keyMap.size() != keys.length) {
+            throw new IllegalStateException("Registered " + keyMap.size() + " directories");
+        }
+    }
+
+    private static long usedHeapAfterGc() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Footprint {
+        // JMH reports the value of the public field at the end of an iteration
+        public double bytesPerDirectory;
+        private long bytes;
+        private long directories;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytesPerDirectory = 0.0d;
+            bytes = 0L;
+            directories = 0L;
+        }
+
+        private void record(long retainedBytes, int registeredDirectories) {
+            bytes += retainedBytes;
+            directories += registeredDirectories;
+            bytesPerDirectory = (double) bytes / directories;
+        }
+    }
+}
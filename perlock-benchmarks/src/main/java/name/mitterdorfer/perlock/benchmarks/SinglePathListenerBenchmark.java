@@ -0,0 +1,68 @@
+package name.mitterdorfer.perlock.benchmarks;
+
+import name.mitterdorfer.perlock.EventKind;
+import name.mitterdorfer.perlock.PathChangeListener;
+import name.mitterdorfer.perlock.PathWatcherFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.reflect.Constructor;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Measures how fast the listener of a single path watcher (see
+ * {@link PathWatcherFactory#createSinglePathWatcher(Path, PathChangeListener)}) filters the events of the watched
+ * directory. One of 16 paths is the watched file; the others are its siblings with names of the same length and
+ * prefix, which is the expensive case for the comparison of paths.</p>
+ *
+ * <p>The filtering listener is a private class of <code>PathWatcherFactory</code>. It is created via reflection.</p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SinglePathListenerBenchmark {
+    private static final int PATHS = 16;
+
+    private final Path[] paths = new Path[PATHS];
+    private PathChangeListener listener;
+    private int next;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) throws ReflectiveOperationException {
+        Path dir = Paths.get("/var/spool/perlock/incoming");
+        for (int i = 0; i < PATHS; i++) {
+            paths[i] = dir.resolve(String.format("report-%02d.csv", i));
+        }
+        PathChangeListener delegate = new PathChangeListener() {
+            @Override
+            public void onPathChanged(EventKind eventKind, Path path) {
+                blackhole.consume(path);
+            }
+        };
+        Class<?> listenerClass = Class.forName(PathWatcherFactory.class.getName() + "$SinglePathChangeListener");
+        Constructor<?> constructor = listenerClass.getDeclaredConstructor(Path.class, PathChangeListener.class);
+        constructor.setAccessible(true);
+        listener = (PathChangeListener) constructor.newInstance(paths[PATHS / 2], delegate);
+    }
+
+    @Benchmark
+    public void onPathChanged() {
+        Path path = paths[next];
+        next = (next + 1) & (PATHS - 1);
+        listener.onPathChanged(EventKind.MODIFY, path);
+    }
+}
@@ -0,0 +1,32 @@
+package name.mitterdorfer.perlock.benchmarks;
+
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+
+/**
+ * A watch event that is not produced by a watch service.
+ */
+public final class StubWatchEvent implements WatchEvent<Path> {
+    private final Kind<Path> kind;
+    private final Path context;
+
+    public StubWatchEvent(Kind<Path> kind, Path context) {
+        this.kind = kind;
+        this.context = context;
+    }
+
+    @Override
+    public Kind<Path> kind() {
+        return kind;
+    }
+
+    @Override
+    public int count() {
+        return 1;
+    }
+
+    @Override
+    public Path context() {
+        return context;
+    }
+}
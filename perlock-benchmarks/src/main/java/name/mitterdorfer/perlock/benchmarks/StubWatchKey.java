@@ -0,0 +1,36 @@
+package name.mitterdorfer.perlock.benchmarks;
+
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.Watchable;
+import java.util.List;
+
+/**
+ * A watch key that does not belong to a watch service. It is always valid and never signalled.
+ */
+public final class StubWatchKey implements WatchKey {
+    @Override
+    public boolean isValid() {
+        return true;
+    }
+
+    @Override
+    public List<WatchEvent<?>> pollEvents() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean reset() {
+        return true;
+    }
+
+    @Override
+    public void cancel() {
+        // nothing to cancel
+    }
+
+    @Override
+    public Watchable watchable() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,152 @@
+package name.mitterdorfer.perlock.impl;
+
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import name.mitterdorfer.perlock.BatchPathChangeListener;
+import name.mitterdorfer.perlock.EventKind;
+import name.mitterdorfer.perlock.PathEvent;
+import name.mitterdorfer.perlock.WatchOptions;
+import name.mitterdorfer.perlock.benchmarks.StubWatchEvent;
+import name.mitterdorfer.perlock.benchmarks.StubWatchKey;
+import name.mitterdorfer.perlock.impl.metrics.StripedWatchMetrics;
+import name.mitterdorfer.perlock.impl.watch.PathFilter;
+import name.mitterdorfer.perlock.impl.watch.RegistrationTracker;
+import name.mitterdorfer.perlock.impl.watch.WatchQuota;
+import name.mitterdorfer.perlock.impl.watch.WatchRegistrationFactory;
+import name.mitterdorfer.perlock.impl.watch.WatchRegistrationStrategy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+/**
+ * <p>Measures how fast a path watcher turns the events of a signalled watch key into a batch and hands it to the
+ * listener (see {@link WatchServicePathWatcher#handleKey(WatchKey, List)}). Events come from a synthetic watch key, so
+ * neither the kernel nor the watch service of the JDK are involved. The listener only inspects the kind of each event;
+ * requesting paths would allocate.</p>
+ *
+ * <p>The benchmark lives in the package of <code>WatchServicePathWatcher</code> because <code>handleKey</code> is
+ * package private.</p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HandleKeyBenchmark {
+    @Param({"1", "64"})
+    public int eventsPerKey;
+
+    @Param({"false", "true"})
+    public boolean recordMetrics;
+
+    private WatchKey key;
+    private List<WatchEvent<?>> events;
+    private WatchServicePathWatcher watcher;
+    private BlackholeListener listener;
+
+    @Setup
+    public void setUp(Blackhole blackhole) throws IOException {
+        FileSystem fs = Jimfs.newFileSystem(Configuration.unix());
+        Path rootPath = Files.createDirectories(fs.getPath("/rootPath/dir0/dir1"));
+        key = new StubWatchKey();
+        events = new ArrayList<>();
+        for (int i = 0; i < eventsPerKey; i++) {
+            events.add(new StubWatchEvent(i % 2 == 0 ? ENTRY_MODIFY : ENTRY_DELETE, fs.getPath("file" + i + ".txt")));
+        }
+        WatchOptions.Builder options = WatchOptions.builder();
+        if (recordMetrics) {
+            options.recordMetrics(new StripedWatchMetrics(new StripedWatchMetrics(null)));
+        }
+        listener = new BlackholeListener(blackhole);
+        watcher = new WatchServicePathWatcher(rootPath, new StubRegistrationFactory(key), true, listener,
+                options.build(), null, null, null, null);
+        watcher.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        watcher.stop();
+    }
+
+    @Benchmark
+    public void handleKey() {
+        watcher.handleKey(key, events);
+    }
+
+    private static final class BlackholeListener implements BatchPathChangeListener {
+        private final Blackhole blackhole;
+
+        private BlackholeListener(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void onPathsChanged(List<PathEvent> events) {
+            for (int i = 0; i < events.size(); i++) {
+                blackhole.consume(events.get(i).getEventKind());
+            }
+        }
+    }
+
+    /**
+     * Registers the synthetic watch key for the root path.
+     */
+    private static final class StubRegistrationFactory implements WatchRegistrationFactory {
+        private final WatchKey key;
+
+        private StubRegistrationFactory(WatchKey key) {
+            this.key = key;
+        }
+
+        @Override
+        public WatchService newWatchService(FileSystem fileSystem) throws IOException {
+            return fileSystem.newWatchService();
+        }
+
+        @Override
+        public WatchRegistrationStrategy createRegistrationStrategy(final Map<WatchKey, Path> keys,
+                                                                    boolean recursiveWatcher, WatchOptions options,
+                                                                    PathFilter filter, Set<EventKind> eventKinds,
+                                                                    WatchQuota quota) {
+            return new WatchRegistrationStrategy() {
+                @Override
+                public void registerRoot(WatchService watchService, Path rootPath, RegistrationTracker tracker) {
+                    keys.put(key, rootPath);
+                    tracker.complete();
+                }
+
+                @Override
+                public void registerChild(WatchService watchService, Path childPath) {
+                    // the synthetic events never create directories
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package name.mitterdorfer.perlock;
+
+import java.util.List;
+
+/**
+ * <p>Callback interface to get notified about changes on the file system in batches. In contrast to
+ * {@link PathChangeListener} a path watcher invokes a <code>BatchPathChangeListener</code> only once for all events
+ * that it has received in one wakeup. This saves per-event overhead for listeners which forward events to a database or
+ * a message queue anyway.</p>
+ *
+ * <p>To avoid allocating on every wakeup, path watchers reuse the list and the events in it. The list is read-only and
+ * is only valid until this method returns. Clients that need to retain events have to copy them (see
+ * {@link PathEvent#copy()}).</p>
+ *
+ * <p>The same threading rules as for {@link PathChangeListener} apply.</p>
+ */
+public interface BatchPathChangeListener {
+
+    /**
+     * This method is called when events occur on watched paths.
+     *
+     * @param events All events that have occurred since the last invocation in the order in which they have been
+     *               received. Never null. Never empty.
+     */
+    void onPathsChanged(List<PathEvent> events);
+
+}
@@ -0,0 +1,25 @@
+package name.mitterdorfer.perlock;
+
+/**
+ * Defines which events have to be delivered in order when events are dispatched in parallel (see
+ * {@link WatchOptions.Builder#dispatchInParallel}). Events with the same key are delivered one after another in the
+ * order in which they have occurred; events with different keys may be delivered concurrently.
+ *
+ * <p>A {@link EventKind#MOVE} has two keys, the one of its source and the one of its target path. Events with both keys
+ * cannot be ordered with each other unless both keys are assigned to the same serial lane. Therefore a move is only
+ * delivered as such if that is the case (e.g. a rename within a directory with {@link #PARENT_DIRECTORY}). Otherwise
+ * it is delivered as a {@link EventKind#DELETE} of the source path and a {@link EventKind#CREATE} of the target path,
+ * each in order with the other events of its key.</p>
+ */
+public enum DispatchKey {
+    /**
+     * Events are ordered per path. Moves are usually delivered as a deletion and a creation (see above).
+     */
+    PATH,
+
+    /**
+     * Events are ordered per directory, i.e. all events of the entries of a directory are delivered in order. Use this
+     * if listeners relate entries of the same directory to each other (e.g. a data file and its checksum file).
+     */
+    PARENT_DIRECTORY
+}
@@ -4,15 +4,14 @@ package name.mitterdorfer.perlock;
 import java.nio.file.Path;
 import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
 
 import static java.nio.file.StandardWatchEventKinds.*;
 
 /**
- * Defines the three kinds of events that can occur to a particular path.
- * These event kinds are analogous to the Path type {@link StandardWatchEventKinds}.
+ * Defines the kinds of events that can occur to a particular path.
+ * The first three event kinds are analogous to the Path type {@link StandardWatchEventKinds}. {@link #MOVE} and
+ * {@link #READY} have no counterpart; they are derived from other events (see {@link WatchOptions.Builder#detectMoves}
+ * and {@link WatchOptions.Builder#awaitWriteCompletion}).
  */
 public enum EventKind {
 
@@ -20,17 +19,19 @@ public enum EventKind {
 
     MODIFY(ENTRY_MODIFY),
 
-    DELETE(ENTRY_DELETE);
+    DELETE(ENTRY_DELETE),
 
-    private static final Map<WatchEvent.Kind<Path>, EventKind> WATCH_EVENT_KIND_TO_EVENT_KIND;
+    /**
+     * The entry has been renamed or moved within the watched tree. The path of such an event is the new path of the
+     * entry; its former path is available via {@link PathEvent#getSourcePath()}.
+     */
+    MOVE(null),
 
-    static {
-        Map<WatchEvent.Kind<Path>, EventKind> eventKindMap = new HashMap<>();
-        for (EventKind eventKind : values()) {
-            eventKindMap.put(eventKind.watchEventKind, eventKind);
-        }
-        WATCH_EVENT_KIND_TO_EVENT_KIND = Collections.unmodifiableMap(eventKindMap);
-    }
+    /**
+     * A file has been created or modified and is not written to anymore. Only reported by path watchers that await
+     * write completion; they report such files as <code>READY</code> instead of {@link #CREATE} or {@link #MODIFY}.
+     */
+    READY(null);
 
     private final WatchEvent.Kind<Path> watchEventKind;
 
@@ -38,8 +39,27 @@ public enum EventKind {
         this.watchEventKind = watchEventKind;
     }
 
-    public static EventKind eventKindForWatchEventKind(WatchEvent.Kind<Path> watchEventKind) {
-        return WATCH_EVENT_KIND_TO_EVENT_KIND.get(watchEventKind);
+    /**
+     * @return The watch event kind that corresponds to this event kind or <code>null</code> for {@link #MOVE} and
+     * {@link #READY} which have no counterpart.
+     */
+    public WatchEvent.Kind<Path> getWatchEventKind() {
+        return watchEventKind;
+    }
+
+    /**
+     * @return The event kind that corresponds to the provided watch event kind or <code>null</code> if there is none.
+     */
+    public static EventKind eventKindForWatchEventKind(WatchEvent.Kind<?> watchEventKind) {
+        // the standard kinds are singletons; comparing identities is cheaper than any lookup
+        if (watchEventKind == ENTRY_CREATE) {
+            return CREATE;
+        } else if (watchEventKind == ENTRY_MODIFY) {
+            return MODIFY;
+        } else if (watchEventKind == ENTRY_DELETE) {
+            return DELETE;
+        }
+        return null;
     }
 
 }
@@ -0,0 +1,15 @@
+package name.mitterdorfer.perlock;
+
+/**
+ * <p>A recursive {@link PathWatcher} that additionally maintains an in-memory mirror of the watched tree. Clients can
+ * query the mirror instead of the file system (see {@link WatchedTree}).</p>
+ *
+ * <p>The mirror is built when the path watcher is started and is kept up to date with every event that the path watcher
+ * receives. It is not updated anymore after the path watcher has stopped.</p>
+ */
+public interface MirroringPathWatcher extends ProgressReportingPathWatcher {
+    /**
+     * @return The mirror of the watched tree. Always the same instance for a path watcher. Never null.
+     */
+    WatchedTree getWatchedTree();
+}
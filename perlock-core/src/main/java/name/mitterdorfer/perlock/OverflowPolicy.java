@@ -0,0 +1,26 @@
+package name.mitterdorfer.perlock;
+
+/**
+ * Defines what happens when events are produced faster than they are consumed and a bounded buffer between producer
+ * and consumer is full.
+ */
+public enum OverflowPolicy {
+    /**
+     * The producer waits until there is free capacity again. Note that this may cause overflows of the kernel's event
+     * queue if the producer is the path watcher thread.
+     */
+    BLOCK,
+
+    /**
+     * The oldest buffered event is dropped to make room for the new event.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Events that do not fit into the buffer anymore are merged per path, i.e. only the net effect on a path is
+     * delivered (e.g. <code>CREATE</code> followed by <code>MODIFY</code> is delivered as <code>CREATE</code>,
+     * <code>CREATE</code> followed by <code>DELETE</code> is not delivered at all). Merged events are delivered in the
+     * order in which their paths have first overflowed.
+     */
+    COALESCE
+}
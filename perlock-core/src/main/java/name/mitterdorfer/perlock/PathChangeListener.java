@@ -7,7 +7,13 @@ import java.nio.file.Path;
  *
  * <p>Implementation note: A <code>PathChangeListener</code> will be called from the internal <code>PathWatcher</code>
  * thread. This implies that callback methods should return reasonably fast and offload heavy lifting to a dedicated
- * thread. Otherwise, events may be lost.</p>
+ * thread. Otherwise, events may be lost. Alternatively, a path watcher can be configured to invoke its listener on a
+ * dedicated dispatcher thread (see {@link WatchOptions.Builder#dispatchAsynchronously}).</p>
+ *
+ * <p>Listeners with a high per-event overhead should consider implementing {@link BatchPathChangeListener} instead.
+ * The same applies to listeners that are interested in moves: A <code>PathChangeListener</code> receives a
+ * {@link EventKind#MOVE} as a {@link EventKind#DELETE} of the source path followed by a {@link EventKind#CREATE} of
+ * the target path.</p>
  */
 public interface PathChangeListener {
 
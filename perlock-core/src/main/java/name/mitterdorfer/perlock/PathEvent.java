@@ -0,0 +1,132 @@
+package name.mitterdorfer.perlock;
+
+import name.mitterdorfer.perlock.impl.util.Preconditions;
+
+import java.nio.file.Path;
+
+/**
+ * <p>A <code>PathEvent</code> describes a single change on the file system, i.e. which {@link EventKind} has occurred
+ * on which path.</p>
+ *
+ * <p>Events that are delivered to a {@link BatchPathChangeListener} are reused by the path watcher after the listener
+ * has returned. Clients that need to retain an event beyond the callback have to {@link #copy()} it. Instances that
+ * are created by {@link #of(EventKind, Path)} or {@link #moved(Path, Path)} are immutable.</p>
+ *
+ * <p>Clients are not supposed to subclass <code>PathEvent</code>.</p>
+ */
+public abstract class PathEvent {
+    protected PathEvent() {
+        // subclassed internally
+    }
+
+    /**
+     * @param eventKind The event kind that has occurred on the path. Must not be null.
+     * @param path      The path that has changed. Must not be null.
+     * @return A new immutable <code>PathEvent</code>. Never null.
+     */
+    public static PathEvent of(EventKind eventKind, Path path) {
+        Preconditions.isNotNull(eventKind, "eventKind");
+        Preconditions.isNotNull(path, "path");
+        Preconditions.isTrue(eventKind != EventKind.MOVE, "Use #moved(Path, Path) to create a MOVE event");
+        return new ImmutablePathEvent(eventKind, path, null);
+    }
+
+    /**
+     * @param source The former path of the moved entry. Must not be null.
+     * @param target The new path of the moved entry. Must not be null.
+     * @return A new immutable {@link EventKind#MOVE} event. Never null.
+     */
+    public static PathEvent moved(Path source, Path target) {
+        Preconditions.isNotNull(source, "source");
+        Preconditions.isNotNull(target, "target");
+        return new ImmutablePathEvent(EventKind.MOVE, target, source);
+    }
+
+    /**
+     * @return The event kind that has occurred on the path. Never null.
+     */
+    public abstract EventKind getEventKind();
+
+    /**
+     * @return The path that has changed. For {@link EventKind#MOVE} events this is the new path of the entry. Never
+     * null.
+     */
+    public abstract Path getPath();
+
+    /**
+     * @return The former path of the entry for {@link EventKind#MOVE} events, otherwise <code>null</code>.
+     */
+    public Path getSourcePath() {
+        return null;
+    }
+
+    /**
+     * @return An immutable copy of this event that can safely be retained after the listener has returned. Never null.
+     */
+    public PathEvent copy() {
+        return new ImmutablePathEvent(getEventKind(), getPath(), getSourcePath());
+    }
+
+    @Override
+    public final boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof PathEvent)) {
+            return false;
+        }
+        PathEvent other = (PathEvent) o;
+        Path sourcePath = getSourcePath();
+        return getEventKind() == other.getEventKind() && getPath().equals(other.getPath()) &&
+                (sourcePath == null ? other.getSourcePath() == null : sourcePath.equals(other.getSourcePath()));
+    }
+
+    @Override
+    public final int hashCode() {
+        Path sourcePath = getSourcePath();
+        int result = 31 * getEventKind().hashCode() + getPath().hashCode();
+        return sourcePath != null ? 31 * result + sourcePath.hashCode() : result;
+    }
+
+    @Override
+    public String toString() {
+        Path sourcePath = getSourcePath();
+        if (sourcePath != null) {
+            return getEventKind() + " " + sourcePath + " -> " + getPath();
+        }
+        return getEventKind() + " " + getPath();
+    }
+
+    private static final class ImmutablePathEvent extends PathEvent {
+        private final EventKind eventKind;
+        private final Path path;
+        // null unless this is a MOVE event
+        private final Path sourcePath;
+
+        private ImmutablePathEvent(EventKind eventKind, Path path, Path sourcePath) {
+            this.eventKind = eventKind;
+            this.path = path;
+            this.sourcePath = sourcePath;
+        }
+
+        @Override
+        public EventKind getEventKind() {
+            return eventKind;
+        }
+
+        @Override
+        public Path getPath() {
+            return path;
+        }
+
+        @Override
+        public Path getSourcePath() {
+            return sourcePath;
+        }
+
+        @Override
+        public PathEvent copy() {
+            return this;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package name.mitterdorfer.perlock;
+
+/**
+ * <p>A {@link PathWatcher} that publishes its events to any number of {@link PathEventSubscriber}s instead of pushing
+ * them to a listener. All subscribers share the registrations of this one path watcher with the watch service.</p>
+ *
+ * <p>Each subscriber receives events only as fast as it requests them. Events that have not been requested yet are
+ * buffered per subscriber up to the buffer capacity of the publisher. Events that do not fit into the buffer anymore
+ * are merged per path like with {@link OverflowPolicy#COALESCE}: A subscriber that falls behind receives the net
+ * effect on each path instead of every single event, but no path change is lost and the path watcher thread is never
+ * blocked. Therefore, the memory needed by a slow subscriber is bounded by the number of distinct changed paths.</p>
+ *
+ * <p>Subscribers receive events on the path watcher thread or, if events have been buffered, on the thread that
+ * requests them. Subscribers are completed when the path watcher stops and receive an error if it fails. Subscribers
+ * that subscribe afterwards are completed immediately.</p>
+ */
+public interface PathEventPublisher extends ProgressReportingPathWatcher {
+    /**
+     * Subscribes a new subscriber to the events of this path watcher. The subscriber only receives events that occur
+     * after this method has been called.
+     *
+     * @param subscriber The subscriber. Must not be null.
+     */
+    void subscribe(PathEventSubscriber subscriber);
+}
@@ -0,0 +1,46 @@
+package name.mitterdorfer.perlock;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>A bounded queue of events that path watchers produce into and that clients consume on their own schedule, e.g.
+ * batch jobs that periodically drain all pending events. Pass the queue as listener when creating a path watcher (see
+ * {@link PathWatcherFactory#createEventQueue(int, OverflowPolicy)}).</p>
+ *
+ * <p>The queue is backed by preallocated arrays: Producing an event neither allocates nor takes a lock unless the queue
+ * is full or a consumer is waiting. Any number of path watchers may produce into the same queue and any number of
+ * threads may consume from it concurrently. What happens if the queue is full is determined by its
+ * {@link OverflowPolicy}; note that {@link OverflowPolicy#BLOCK} blocks the path watcher thread until a consumer polls
+ * the queue.</p>
+ */
+public interface PathEventQueue extends BatchPathChangeListener {
+    /**
+     * @return The oldest event in this queue or <code>null</code> if the queue is empty. Never blocks.
+     */
+    PathEvent poll();
+
+    /**
+     * Waits until an event is available.
+     *
+     * @param timeout The maximum time to wait.
+     * @param unit    The unit of <code>timeout</code>. Must not be null.
+     * @return The oldest event in this queue or <code>null</code> if no event has become available within the timeout.
+     * @throws InterruptedException If the current thread has been interrupted while waiting.
+     */
+    PathEvent poll(long timeout, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * Removes events from this queue and adds them to the provided collection. Never blocks.
+     *
+     * @param target    The collection to which events are added. Must not be null.
+     * @param maxEvents The maximum number of events to transfer.
+     * @return The number of transferred events.
+     */
+    int drainTo(Collection<? super PathEvent> target, int maxEvents);
+
+    /**
+     * @return The number of events in this queue. Only an estimate if the queue is modified concurrently.
+     */
+    int size();
+}
@@ -0,0 +1,43 @@
+package name.mitterdorfer.perlock;
+
+/**
+ * <p>Receives the events of a {@link PathEventPublisher} at the pace that it requests them via
+ * {@link PathEventSubscription#request(long)}.</p>
+ *
+ * <p>The contract is the one of a Reactive Streams <code>Subscriber</code> (and of
+ * <code>java.util.concurrent.Flow.Subscriber</code>): Methods are invoked serially, <code>onNext</code> is invoked at
+ * most as often as events have been requested and at most one of <code>onComplete</code> and <code>onError</code> is
+ * invoked as the last signal. As Perlock supports Java 7 it cannot implement these interfaces itself, but the methods
+ * have the same signatures so that an adapter only needs to forward each call. The module <code>perlock-flow</code>
+ * provides such an adapter for <code>Flow</code> (Java 9 and newer).</p>
+ */
+public interface PathEventSubscriber {
+    /**
+     * Called once when the subscriber has been subscribed to a publisher. No events are delivered before the subscriber
+     * requests them via the provided subscription.
+     *
+     * @param subscription The subscription of this subscriber. Never null.
+     */
+    void onSubscribe(PathEventSubscription subscription);
+
+    /**
+     * Called for every event.
+     *
+     * @param event The next event. In contrast to {@link BatchPathChangeListener} the event is not reused and can be
+     *              retained. Never null.
+     */
+    void onNext(PathEvent event);
+
+    /**
+     * Called when the path watcher of the publisher has failed. No further signals are invoked.
+     *
+     * @param throwable The reason of the failure. Never null.
+     */
+    void onError(Throwable throwable);
+
+    /**
+     * Called when the path watcher of the publisher has stopped and all buffered events have been delivered. No
+     * further signals are invoked.
+     */
+    void onComplete();
+}
@@ -0,0 +1,21 @@
+package name.mitterdorfer.perlock;
+
+/**
+ * The link between one {@link PathEventPublisher} and one {@link PathEventSubscriber}. Like a Reactive Streams
+ * <code>Subscription</code>, it can be used from any thread, including from within the signals of the subscriber.
+ */
+public interface PathEventSubscription {
+    /**
+     * Requests up to <code>n</code> further events. Demand accumulates; events that are not requested yet are buffered
+     * by the publisher.
+     *
+     * @param n The number of additional events. Must be positive; otherwise the subscriber is notified via
+     *          {@link PathEventSubscriber#onError(Throwable)} with an <code>IllegalArgumentException</code>.
+     */
+    void request(long n);
+
+    /**
+     * Stops delivering events to the subscriber and releases buffered events. Further calls have no effect.
+     */
+    void cancel();
+}
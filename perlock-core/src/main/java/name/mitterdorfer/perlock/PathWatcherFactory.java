@@ -1,17 +1,34 @@
 package name.mitterdorfer.perlock;
 
+import name.mitterdorfer.perlock.impl.SharedWatchService;
 import name.mitterdorfer.perlock.impl.WatchServicePathWatcher;
+import name.mitterdorfer.perlock.impl.EventLoopPathWatcher;
+import name.mitterdorfer.perlock.impl.dispatch.ArrayPathEventQueue;
+import name.mitterdorfer.perlock.impl.dispatch.PathChangeListenerAdapter;
+import name.mitterdorfer.perlock.impl.dispatch.PathEventBroadcaster;
+import name.mitterdorfer.perlock.impl.metrics.StripedWatchMetrics;
+import name.mitterdorfer.perlock.impl.poll.PollingPathWatcher;
+import name.mitterdorfer.perlock.impl.tree.TreeMirror;
 import name.mitterdorfer.perlock.impl.util.Preconditions;
 import name.mitterdorfer.perlock.impl.watch.DefaultWatchRegistrationFactory;
+import name.mitterdorfer.perlock.impl.watch.InotifyLimits;
+import name.mitterdorfer.perlock.impl.watch.WatchBudgetManager;
 import name.mitterdorfer.perlock.impl.watch.WatchRegistrationFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
 import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * <code>PathWatcherFactory</code> is the main entry point for clients. It creates new {@link PathWatcher}
@@ -25,6 +42,18 @@ public final class PathWatcherFactory {
 
     private final LifecycleListener globalLifecycleListener;
 
+    private final WatchServiceMode watchServiceMode;
+
+    private final ConcurrentMap<FileSystem, SharedWatchService> sharedWatchServices = new ConcurrentHashMap<>();
+
+    // checkpoint files of the path watchers of this factory that have not stopped yet
+    private final Set<Path> checkpointFiles = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+
+    // created on demand, see #budgetFor(FileSystem)
+    private volatile WatchBudgetManager watchBudget;
+
+    private final StripedWatchMetrics metrics = new StripedWatchMetrics(null);
+
     /**
      * Creates a new <code>PathWatcherFactory</code> instance. Exceptions within path watchers will be handled
      * internally without notification of clients.
@@ -52,19 +81,73 @@ public final class PathWatcherFactory {
      *                          event happens for a path watcher. Must not be null.
      */
     public PathWatcherFactory(ExecutorService executorService, LifecycleListener lifecycleListener) {
-        this(executorService, DefaultWatchRegistrationFactory.INSTANCE, lifecycleListener);
+        this(executorService, DefaultWatchRegistrationFactory.INSTANCE, lifecycleListener, WatchServiceMode.PER_WATCHER);
+    }
+
+    /**
+     * Creates a new <code>PathWatcherFactory</code> instance. All lifecycle events for path watchers will be reported
+     * to the provided lifecycle listener.
+     *
+     * @param executorService   An <code>ExecutorService</code> that will be used to create watcher threads. In mode
+     *                          {@link WatchServiceMode#PER_WATCHER} the <code>PathWatcherFactory</code> requests a new
+     *                          thread for each new <code>PathWatcher</code>. In mode
+     *                          {@link WatchServiceMode#PER_FILE_SYSTEM} it requests one thread per watched
+     *                          <code>FileSystem</code>. Must not be null. Must not be shutdown.
+     * @param lifecycleListener A <code>LifeCycleListener</code> implementation that is called every time a lifecycle
+     *                          event happens for a path watcher. Must not be null.
+     * @param watchServiceMode  Determines whether path watchers share a watch service. Must not be null.
+     */
+    public PathWatcherFactory(ExecutorService executorService, LifecycleListener lifecycleListener,
+                              WatchServiceMode watchServiceMode) {
+        this(executorService, DefaultWatchRegistrationFactory.INSTANCE, lifecycleListener, watchServiceMode);
+    }
+
+    /**
+     * <p>Creates a new <code>PathWatcherFactory</code> instance that runs the event loops of its path watchers on
+     * virtual threads (see {@link VirtualThreads}). Listeners are invoked on these threads as well, so listeners that
+     * block (e.g. on I/O) do not occupy a platform thread either. Stopping a path watcher interrupts its virtual
+     * thread which is waiting for events.</p>
+     *
+     * <p>Path watchers of such a factory always use the watch service of the JDK: The native inotify backend waits for
+     * events in native code which would pin a virtual thread to its carrier thread. Note that the watch service of the
+     * JDK has an internal platform thread on most platforms. To run thousands of path watchers with a handful of
+     * platform threads, use {@link WatchServiceMode#PER_FILE_SYSTEM}. Listeners are then invoked on the one (virtual)
+     * polling thread per file system; use {@link WatchOptions.Builder#dispatchAsynchronously} with an executor of
+     * virtual threads and {@link WaitStrategy#PARK} to invoke the listener of each path watcher on its own virtual
+     * thread.</p>
+     *
+     * @param lifecycleListener A <code>LifeCycleListener</code> implementation that is called every time a lifecycle
+     *                          event happens for a path watcher. Must not be null.
+     * @param watchServiceMode  Determines whether path watchers share a watch service. Must not be null.
+     * @return A new <code>PathWatcherFactory</code>. Never null.
+     * @throws UnsupportedOperationException If the JRE does not support virtual threads.
+     */
+    public static PathWatcherFactory withVirtualThreads(LifecycleListener lifecycleListener,
+                                                        WatchServiceMode watchServiceMode) {
+        return new PathWatcherFactory(VirtualThreads.newExecutorService(),
+                DefaultWatchRegistrationFactory.WITHOUT_NATIVE_BACKEND, lifecycleListener, watchServiceMode);
     }
 
     //internal constructor needed for testing
     protected PathWatcherFactory(ExecutorService executorService,
                                  WatchRegistrationFactory watchRegistrationFactory,
                                  LifecycleListener lifecycleListener) {
+        this(executorService, watchRegistrationFactory, lifecycleListener, WatchServiceMode.PER_WATCHER);
+    }
+
+    //internal constructor needed for testing
+    protected PathWatcherFactory(ExecutorService executorService,
+                                 WatchRegistrationFactory watchRegistrationFactory,
+                                 LifecycleListener lifecycleListener,
+                                 WatchServiceMode watchServiceMode) {
         Preconditions.isNotNull(executorService, "executorService");
         Preconditions.isTrue(!executorService.isShutdown(), "executorService must not be shutdown");
         Preconditions.isNotNull(lifecycleListener, "lifecycleListener");
+        Preconditions.isNotNull(watchServiceMode, "watchServiceMode");
         this.executorService = executorService;
         this.globalLifecycleListener = lifecycleListener;
         this.watchRegistrationFactory = watchRegistrationFactory;
+        this.watchServiceMode = watchServiceMode;
     }
 
     /**
@@ -81,7 +164,42 @@ public final class PathWatcherFactory {
      *         null.
      */
     public PathWatcher createRecursiveWatcher(Path rootPath, PathChangeListener listener) {
-        return createWatcher(rootPath, true, listener);
+        return createWatcher(rootPath, true, adapt(listener), WatchOptions.defaults(), null);
+    }
+
+    /**
+     * Creates a new <code>PathWatcher</code> that can watch the provided root path and all of its subdirectories. Note
+     * that the <code>PathWatcher</code> does not watch before {@link PathWatcher#start()} is invoked.
+     *
+     * @param rootPath The root path to watch. It has to be a readable directory. The directory has to exist when this
+     *                 method is called. Must not be null.
+     * @param listener The listener to notify when a file change event occurs. If the same listener is provided for
+     *                 multiple PathWatcher instances the listener has to be thread safe as it might get called from
+     *                 multiple watcher threads. Must not be null.
+     * @param options  Options that tune the behavior of the new <code>PathWatcher</code>. Must not be null.
+     * @return A new <code>PathWatcher</code> instance that will watch the complete file tree below (and including) the
+     *         provided <code>rootPath</code> after {@link PathWatcher#start()} has been called on that instance. Never
+     *         null.
+     */
+    public PathWatcher createRecursiveWatcher(Path rootPath, PathChangeListener listener, WatchOptions options) {
+        return createWatcher(rootPath, true, adapt(listener), options, null);
+    }
+
+    /**
+     * Creates a new <code>PathWatcher</code> like {@link #createRecursiveWatcher(Path, PathChangeListener, WatchOptions)} but
+     * notifies the provided listener with all events of one wakeup at once.
+     *
+     * @param rootPath The root path to watch. It has to be a readable directory. The directory has to exist when this
+     *                 method is called. Must not be null.
+     * @param listener The listener to notify when file change events occur. If the same listener is provided for
+     *                 multiple <code>PathWatcher</code> instances the listener has to be thread safe as it might get
+     *                 called from multiple (watcher) threads. Must not be null.
+     * @param options  Options that tune the behavior of the new <code>PathWatcher</code>. Must not be null.
+     * @return A new <code>PathWatcher</code> instance. Never null.
+     */
+    public PathWatcher createRecursiveWatcher(Path rootPath, BatchPathChangeListener listener,
+                                              WatchOptions options) {
+        return createWatcher(rootPath, true, listener, options, null);
     }
 
     /**
@@ -97,9 +215,147 @@ public final class PathWatcherFactory {
      *         {@link PathWatcher#start()} has been called on that instance. Never null.
      */
     public PathWatcher createNonRecursiveWatcher(Path rootPath, PathChangeListener listener) {
-        return createWatcher(rootPath, false, listener);
+        return createWatcher(rootPath, false, adapt(listener), WatchOptions.defaults(), null);
+    }
+
+    /**
+     * Creates a new <code>PathWatcher</code> that can watch the provided root path but none of its subdirectories.
+     * Note that the <code>PathWatcher</code> does not watch before {@link PathWatcher#start()} is invoked.
+     *
+     * @param rootPath The root path to watch. It has to be a readable directory. The directory has to exist when this
+     *                 method is called. Must not be null.
+     * @param listener The listener to notify when a file change event occurs. If the same listener is provided for
+     *                 multiple <code>PathWatcher</code> instances the listener has to be thread safe as it might get
+     *                 called from multiple (watcher) threads. Must not be null.
+     * @param options  Options that tune the behavior of the new <code>PathWatcher</code>. Must not be null.
+     * @return A new <code>PathWatcher</code> instance that will watch the the provided <code>rootPath</code> after
+     *         {@link PathWatcher#start()} has been called on that instance. Never null.
+     */
+    public PathWatcher createNonRecursiveWatcher(Path rootPath, PathChangeListener listener, WatchOptions options) {
+        return createWatcher(rootPath, false, adapt(listener), options, null);
     }
 
+    /**
+     * Creates a new <code>PathWatcher</code> like {@link #createNonRecursiveWatcher(Path, PathChangeListener, WatchOptions)} but
+     * notifies the provided listener with all events of one wakeup at once.
+     *
+     * @param rootPath The root path to watch. It has to be a readable directory. The directory has to exist when this
+     *                 method is called. Must not be null.
+     * @param listener The listener to notify when file change events occur. If the same listener is provided for
+     *                 multiple <code>PathWatcher</code> instances the listener has to be thread safe as it might get
+     *                 called from multiple (watcher) threads. Must not be null.
+     * @param options  Options that tune the behavior of the new <code>PathWatcher</code>. Must not be null.
+     * @return A new <code>PathWatcher</code> instance. Never null.
+     */
+    public PathWatcher createNonRecursiveWatcher(Path rootPath, BatchPathChangeListener listener,
+                                                 WatchOptions options) {
+        return createWatcher(rootPath, false, listener, options, null);
+    }
+
+    /**
+     * <p>Creates a new recursive <code>PathWatcher</code> like
+     * {@link #createRecursiveWatcher(Path, PathChangeListener, WatchOptions)} that additionally maintains an in-memory
+     * mirror of the watched tree. Clients can query the mirror via {@link MirroringPathWatcher#getWatchedTree()}
+     * instead of the file system.</p>
+     *
+     * <p>The mirror is built when the path watcher is started. Building it requires to read the attributes of every
+     * file in the watched tree once. Afterwards, it costs one additional <code>stat</code> call per event. Lost events
+     * due to an overflow of the kernel event queue are always recovered (see
+     * {@link WatchOptions.Builder#recoverFromOverflow(java.util.concurrent.ExecutorService, long,
+     * java.util.concurrent.TimeUnit)}) as the mirror would be inconsistent otherwise. Without explicit configuration,
+     * directories are rescanned sequentially on the path watcher thread.</p>
+     *
+     * @param rootPath The root path to watch. It has to be a readable directory. The directory has to exist when this
+     *                 method is called. Must not be null.
+     * @param listener The listener to notify when a file change event occurs. The mirror is already up to date when
+     *                 the listener is notified. If the same listener is provided for multiple PathWatcher instances
+     *                 the listener has to be thread safe as it might get called from multiple watcher threads. Must
+     *                 not be null.
+     * @param options  Options that tune the behavior of the new <code>PathWatcher</code>. Must not be null.
+     * @return A new <code>MirroringPathWatcher</code> instance. Never null.
+     */
+    public MirroringPathWatcher createMirroringWatcher(Path rootPath, PathChangeListener listener,
+                                                       WatchOptions options) {
+        return createMirroringWatcher(rootPath, adapt(listener), options);
+    }
+
+    /**
+     * Creates a new <code>MirroringPathWatcher</code> like
+     * {@link #createMirroringWatcher(Path, PathChangeListener, WatchOptions)} but notifies the provided listener with
+     * all events of one wakeup at once.
+     *
+     * @param rootPath The root path to watch. It has to be a readable directory. The directory has to exist when this
+     *                 method is called. Must not be null.
+     * @param listener The listener to notify when file change events occur. If the same listener is provided for
+     *                 multiple <code>PathWatcher</code> instances the listener has to be thread safe as it might get
+     *                 called from multiple (watcher) threads. Must not be null.
+     * @param options  Options that tune the behavior of the new <code>PathWatcher</code>. Must not be null.
+     * @return A new <code>MirroringPathWatcher</code> instance. Never null.
+     */
+    public MirroringPathWatcher createMirroringWatcher(Path rootPath, BatchPathChangeListener listener,
+                                                       WatchOptions options) {
+        Preconditions.isNotNull(rootPath, "rootPath");
+        TreeMirror mirror = new TreeMirror(rootPath);
+        return new MirroringPathWatcherAdapter(createWatcher(rootPath, true, listener, options, mirror), mirror);
+    }
+
+    /**
+     * <p>Creates a new <code>PathEventPublisher</code> that watches the provided root path and all its subdirectories
+     * and publishes the events to subscribers at the pace that they request them. All subscribers share one path
+     * watcher. Note that the publisher does not watch before {@link PathWatcher#start()} is invoked.</p>
+     *
+     * <p>This allows to consume events in reactive pipelines with backpressure. A subscriber that falls behind does not
+     * block the path watcher; it receives the net effect on each changed path instead (see
+     * {@link PathEventPublisher}).</p>
+     *
+     * @param rootPath       The root path to watch. It has to be a readable directory. The directory has to exist when
+     *                       this method is called. Must not be null.
+     * @param options        Options that tune the behavior of the new path watcher. Must not be null.
+     * @param bufferCapacity The number of events that are buffered per subscriber before further events are merged per
+     *                       path. Must be positive.
+     * @return A new <code>PathEventPublisher</code> instance. Never null.
+     */
+    public PathEventPublisher createRecursivePublisher(Path rootPath, WatchOptions options, int bufferCapacity) {
+        return createPublisher(rootPath, true, options, bufferCapacity);
+    }
+
+    /**
+     * Creates a new <code>PathEventPublisher</code> like {@link #createRecursivePublisher(Path, WatchOptions, int)} that
+     * watches the provided root path but none of its subdirectories.
+     *
+     * @param rootPath       The root path to watch. It has to be a readable directory. The directory has to exist when
+     *                       this method is called. Must not be null.
+     * @param options        Options that tune the behavior of the new path watcher. Must not be null.
+     * @param bufferCapacity The number of events that are buffered per subscriber before further events are merged per
+     *                       path. Must be positive.
+     * @return A new <code>PathEventPublisher</code> instance. Never null.
+     */
+    public PathEventPublisher createNonRecursivePublisher(Path rootPath, WatchOptions options, int bufferCapacity) {
+        return createPublisher(rootPath, false, options, bufferCapacity);
+    }
+
+    /**
+     * <p>Creates a new <code>PathEventQueue</code> for consumers that want to take events on their own schedule instead
+     * of being called back on the path watcher thread. Pass the queue as listener to any of the methods that create
+     * path watchers, e.g. {@link #createRecursiveWatcher(Path, BatchPathChangeListener, WatchOptions)}. Multiple path
+     * watchers can share one queue.</p>
+     *
+     * @param capacity       The number of events that the queue can hold. It is rounded up to the next power of two
+     *                       (at least 2). Must be in the range [1, 2^30].
+     * @param overflowPolicy Determines what happens to new events when the queue is full. Must not be null.
+     * @return A new, empty <code>PathEventQueue</code>. Never null.
+     */
+    public static PathEventQueue createEventQueue(int capacity, OverflowPolicy overflowPolicy) {
+        return new ArrayPathEventQueue(capacity, overflowPolicy);
+    }
+
+    private PathEventPublisher createPublisher(Path rootPath, boolean recursive, WatchOptions options,
+                                               int bufferCapacity) {
+        PathEventBroadcaster broadcaster = new PathEventBroadcaster(bufferCapacity);
+        ProgressReportingPathWatcher delegate = createWatcher(rootPath, recursive, broadcaster, options, null,
+                new PublishingLifecycleListener(globalLifecycleListener, broadcaster));
+        return new PathEventPublisherAdapter(delegate, broadcaster);
+    }
 
     /**
      * Creates a {@link PathWatcher} that watched for changes to the designated file, backed by a single thread executor.
@@ -155,10 +411,101 @@ public final class PathWatcherFactory {
                 new SinglePathChangeListener(path, pathChangeListener));
     }
 
-    private PathWatcher createWatcher(Path rootPath, boolean recursive, PathChangeListener listener) {
+    private static BatchPathChangeListener adapt(PathChangeListener listener) {
+        Preconditions.isNotNull(listener, "listener");
+        return new PathChangeListenerAdapter(listener);
+    }
+
+    /**
+     * @return The budget of kernel watches that is shared by all path watchers of this factory on the default file
+     * system. Never null.
+     */
+    public WatchBudget getWatchBudget() {
+        return watchBudget();
+    }
+
+    /**
+     * @return The metrics of all path watchers of this factory which record into metrics that have been created with
+     * {@link #createMetrics()}. Never null.
+     */
+    public PathWatcherMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Creates new metrics for one or more path watchers (see {@link WatchOptions.Builder#recordMetrics(WatchMetrics)}).
+     * Everything that is recorded into them is added to the metrics of this factory as well.
+     *
+     * @return New metrics. Never null.
+     */
+    public PathWatcherMetrics createMetrics() {
+        return new StripedWatchMetrics(metrics);
+    }
+
+    private WatchBudgetManager budgetFor(FileSystem fileSystem) {
+        // the budget is about inotify watches; other platforms and file systems (e.g. in-memory ones) do not use them
+        return fileSystem == FileSystems.getDefault() && InotifyLimits.isSupported() ? watchBudget() : null;
+    }
+
+    private WatchBudgetManager watchBudget() {
+        WatchBudgetManager budget = watchBudget;
+        if (budget == null) {
+            synchronized (this) {
+                budget = watchBudget;
+                if (budget == null) {
+                    budget = new WatchBudgetManager(new InotifyLimits(FileSystems.getDefault().getPath("/proc")));
+                    watchBudget = budget;
+                }
+            }
+        }
+        return budget;
+    }
+
+    private ProgressReportingPathWatcher createWatcher(Path rootPath, boolean recursive,
+                                                       BatchPathChangeListener listener, WatchOptions options,
+                                                       TreeMirror mirror) {
+        return createWatcher(rootPath, recursive, listener, options, mirror, globalLifecycleListener);
+    }
+
+    private ProgressReportingPathWatcher createWatcher(Path rootPath, boolean recursive,
+                                                       BatchPathChangeListener listener, WatchOptions options,
+                                                       TreeMirror mirror, LifecycleListener lifecycleListener) {
+        Preconditions.isNotNull(rootPath, "rootPath");
+        Preconditions.isNotNull(options, "options");
+        if (options.isCheckpoint()) {
+            // path watchers would overwrite each other's checkpoint and restore each other's state
+            Path checkpointFile = options.getCheckpointFile().toAbsolutePath().normalize();
+            Preconditions.isTrue(checkpointFiles.add(checkpointFile),
+                    "Checkpoint file '" + checkpointFile + "' is already used by another path watcher");
+            lifecycleListener = new CheckpointReleasingLifecycleListener(lifecycleListener, checkpointFile);
+        }
+        if (options.isPolling()) {
+            // there is no watch service to share
+            Preconditions.isTrue(mirror == null, "Polling path watchers cannot mirror the watched tree");
+            return new RunnablePathWatcherAdapter(new PollingPathWatcher(rootPath, recursive, listener, options),
+                    executorService, lifecycleListener);
+        }
+        if (watchServiceMode == WatchServiceMode.PER_FILE_SYSTEM) {
+            return new SharedPathWatcherAdapter(rootPath, watchRegistrationFactory, recursive, listener, options,
+                    sharedWatchServiceFor(rootPath.getFileSystem()), lifecycleListener, mirror,
+                    budgetFor(rootPath.getFileSystem()));
+        }
         WatchServicePathWatcher watcherDelegate = new WatchServicePathWatcher(rootPath, watchRegistrationFactory,
-                recursive, listener);
-        return new RunnablePathWatcherAdapter(watcherDelegate, executorService, globalLifecycleListener);
+                recursive, listener, options, null, null, mirror, budgetFor(rootPath.getFileSystem()));
+        return new RunnablePathWatcherAdapter(watcherDelegate, executorService, lifecycleListener);
+    }
+
+    private SharedWatchService sharedWatchServiceFor(FileSystem fileSystem) {
+        SharedWatchService sharedWatchService = sharedWatchServices.get(fileSystem);
+        if (sharedWatchService == null) {
+            SharedWatchService newSharedWatchService = new SharedWatchService(fileSystem, watchRegistrationFactory,
+                    executorService, budgetFor(fileSystem));
+            sharedWatchService = sharedWatchServices.putIfAbsent(fileSystem, newSharedWatchService);
+            if (sharedWatchService == null) {
+                sharedWatchService = newSharedWatchService;
+            }
+        }
+        return sharedWatchService;
     }
 
     private static final class SinglePathChangeListener implements PathChangeListener {
@@ -179,10 +526,10 @@ public final class PathWatcherFactory {
         }
     }
 
-    private static final class RunnablePathWatcherAdapter implements Runnable, PathWatcher {
+    private static final class RunnablePathWatcherAdapter implements Runnable, ProgressReportingPathWatcher {
         private static final Logger LOG = LoggerFactory.getLogger(RunnablePathWatcherAdapter.class);
 
-        private final WatchServicePathWatcher delegate;
+        private final EventLoopPathWatcher delegate;
         private final ExecutorService executorService;
         private final LifecycleListener lifecycleListener;
         // We cannot ensure that #start() and #stop() are called from the same thread.
@@ -198,7 +545,7 @@ public final class PathWatcherFactory {
          * @param executorService   The executor service that will be used to schedule the <code>delegate</code>
          * @param lifecycleListener Lifecycle listener that will be notified on lifecycle events of this path watcher.
          */
-        private RunnablePathWatcherAdapter(WatchServicePathWatcher delegate,
+        private RunnablePathWatcherAdapter(EventLoopPathWatcher delegate,
                                            ExecutorService executorService,
                                            LifecycleListener lifecycleListener) {
             this.delegate = delegate;
@@ -226,6 +573,11 @@ public final class PathWatcherFactory {
             return delegate.isRunning();
         }
 
+        @Override
+        public RegistrationProgress getRegistrationProgress() {
+            return delegate.getRegistrationProgress();
+        }
+
         /**
          * @see PathWatcher#stop()
          */
@@ -280,6 +632,252 @@ public final class PathWatcherFactory {
         }
     }
 
+    private static final class SharedPathWatcherAdapter implements ProgressReportingPathWatcher,
+            WatchServicePathWatcher.TerminationListener {
+        private static final Logger LOG = LoggerFactory.getLogger(SharedPathWatcherAdapter.class);
+
+        private final WatchServicePathWatcher delegate;
+        private final LifecycleListener lifecycleListener;
+        // guards against concurrent stops by clients and by the shared watch service
+        private final AtomicBoolean started = new AtomicBoolean();
+
+        /**
+         * Creates a new <code>SharedPathWatcherAdapter</code> instance. In contrast to
+         * <code>RunnablePathWatcherAdapter</code> it does not run an event loop on its own. Instead, events are
+         * delivered by the polling thread of the provided shared watch service.
+         */
+        private SharedPathWatcherAdapter(Path rootPath,
+                                         WatchRegistrationFactory watchRegistrationFactory,
+                                         boolean recursive,
+                                         BatchPathChangeListener listener,
+                                         WatchOptions options,
+                                         SharedWatchService sharedWatchService,
+                                         LifecycleListener lifecycleListener,
+                                         TreeMirror mirror,
+                                         WatchBudgetManager budget) {
+            this.delegate = new WatchServicePathWatcher(rootPath, watchRegistrationFactory, recursive, listener,
+                    options, sharedWatchService, this, mirror, budget);
+            this.lifecycleListener = lifecycleListener;
+        }
+
+        /**
+         * @see PathWatcher#start()
+         */
+        @Override
+        public PathWatcher start() throws IOException {
+            if (!started.compareAndSet(false, true)) {
+                throw new IllegalStateException("Cannot start a PathWatcher that is already running.");
+            }
+            try {
+                delegate.start();
+            } catch (IOException | RuntimeException ex) {
+                started.set(false);
+                throw ex;
+            }
+            LOG.trace("Started '{}' on shared watch service.", delegate);
+            Silently.run(new Block() {
+                @Override
+                public void run() {
+                    lifecycleListener.onStart(SharedPathWatcherAdapter.this);
+                }
+            });
+            return this;
+        }
+
+        @Override
+        public boolean isRunning() {
+            return delegate.isRunning();
+        }
+
+        @Override
+        public RegistrationProgress getRegistrationProgress() {
+            return delegate.getRegistrationProgress();
+        }
+
+        /**
+         * @see PathWatcher#stop()
+         */
+        @Override
+        public void stop() {
+            if (!started.compareAndSet(true, false)) {
+                throw new IllegalStateException("Cannot stop a PathWatcher that is not running.");
+            }
+            LOG.trace("Requesting that '{}' stops.", delegate);
+            delegate.stop();
+            notifyStop();
+        }
+
+        @Override
+        public void onException(final Exception ex) {
+            Silently.run(new Block() {
+                @Override
+                public void run() {
+                    lifecycleListener.onException(SharedPathWatcherAdapter.this, ex);
+                }
+            });
+        }
+
+        @Override
+        public void onTerminated() {
+            // the client may have stopped us concurrently. Notify only once in that case.
+            if (started.compareAndSet(true, false)) {
+                notifyStop();
+            }
+        }
+
+        private void notifyStop() {
+            Silently.run(new Block() {
+                @Override
+                public void run() {
+                    lifecycleListener.onStop(SharedPathWatcherAdapter.this);
+                }
+            });
+        }
+    }
+
+    private static final class MirroringPathWatcherAdapter implements MirroringPathWatcher {
+        private final ProgressReportingPathWatcher delegate;
+        private final WatchedTree watchedTree;
+
+        private MirroringPathWatcherAdapter(ProgressReportingPathWatcher delegate, WatchedTree watchedTree) {
+            this.delegate = delegate;
+            this.watchedTree = watchedTree;
+        }
+
+        @Override
+        public PathWatcher start() throws IOException {
+            delegate.start();
+            return this;
+        }
+
+        @Override
+        public boolean isRunning() {
+            return delegate.isRunning();
+        }
+
+        @Override
+        public void stop() {
+            delegate.stop();
+        }
+
+        @Override
+        public RegistrationProgress getRegistrationProgress() {
+            return delegate.getRegistrationProgress();
+        }
+
+        @Override
+        public WatchedTree getWatchedTree() {
+            return watchedTree;
+        }
+
+        @Override
+        public String toString() {
+            return delegate.toString();
+        }
+    }
+
+    private static final class PathEventPublisherAdapter implements PathEventPublisher {
+        private final ProgressReportingPathWatcher delegate;
+        private final PathEventBroadcaster broadcaster;
+
+        private PathEventPublisherAdapter(ProgressReportingPathWatcher delegate, PathEventBroadcaster broadcaster) {
+            this.delegate = delegate;
+            this.broadcaster = broadcaster;
+        }
+
+        @Override
+        public void subscribe(PathEventSubscriber subscriber) {
+            broadcaster.subscribe(subscriber);
+        }
+
+        @Override
+        public PathWatcher start() throws IOException {
+            delegate.start();
+            return this;
+        }
+
+        @Override
+        public boolean isRunning() {
+            return delegate.isRunning();
+        }
+
+        @Override
+        public void stop() {
+            delegate.stop();
+        }
+
+        @Override
+        public RegistrationProgress getRegistrationProgress() {
+            return delegate.getRegistrationProgress();
+        }
+
+        @Override
+        public String toString() {
+            return delegate.toString();
+        }
+    }
+
+    // Terminates the subscriptions of a publisher when its path watcher stops
+    private static final class PublishingLifecycleListener implements LifecycleListener {
+        private final LifecycleListener delegate;
+        private final PathEventBroadcaster broadcaster;
+
+        private PublishingLifecycleListener(LifecycleListener delegate, PathEventBroadcaster broadcaster) {
+            this.delegate = delegate;
+            this.broadcaster = broadcaster;
+        }
+
+        @Override
+        public void onStart(PathWatcher pathWatcher) {
+            delegate.onStart(pathWatcher);
+        }
+
+        @Override
+        public void onException(PathWatcher pathWatcher, Exception ex) {
+            broadcaster.fail(ex);
+            delegate.onException(pathWatcher, ex);
+        }
+
+        @Override
+        public void onStop(PathWatcher pathWatcher) {
+            try {
+                delegate.onStop(pathWatcher);
+            } finally {
+                broadcaster.terminate();
+            }
+        }
+    }
+
+    // Releases the checkpoint file of a path watcher when it stops, i.e. after it has written its last checkpoint
+    private final class CheckpointReleasingLifecycleListener implements LifecycleListener {
+        private final LifecycleListener delegate;
+        private final Path checkpointFile;
+
+        private CheckpointReleasingLifecycleListener(LifecycleListener delegate, Path checkpointFile) {
+            this.delegate = delegate;
+            this.checkpointFile = checkpointFile;
+        }
+
+        @Override
+        public void onStart(PathWatcher pathWatcher) {
+            delegate.onStart(pathWatcher);
+        }
+
+        @Override
+        public void onException(PathWatcher pathWatcher, Exception ex) {
+            delegate.onException(pathWatcher, ex);
+        }
+
+        @Override
+        public void onStop(PathWatcher pathWatcher) {
+            try {
+                delegate.onStop(pathWatcher);
+            } finally {
+                checkpointFiles.remove(checkpointFile);
+            }
+        }
+    }
+
     // Utility class to safely call client classes ignoring any exceptions they might throw
     private static final class Silently {
         // use as if it were a logger of the outer class to hide internal implementation structure
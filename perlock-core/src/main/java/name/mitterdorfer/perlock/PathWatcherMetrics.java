@@ -0,0 +1,36 @@
+package name.mitterdorfer.perlock;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * <p>The default implementation of {@link WatchMetrics}. Create new instances with
+ * {@link PathWatcherFactory#createMetrics()} and provide them to path watchers with
+ * {@link WatchOptions.Builder#recordMetrics(WatchMetrics)}:</p>
+ *
+ * <pre>
+ * PathWatcherMetrics metrics = pathWatcherFactory.createMetrics();
+ * metrics.registerMBean("incoming");
+ * PathWatcher watcher = pathWatcherFactory.createRecursiveWatcher(rootPath, listener,
+ *         WatchOptions.builder().recordMetrics(metrics).build());
+ * </pre>
+ *
+ * <p>Everything that is recorded is also added to the metrics of the factory (see
+ * {@link PathWatcherFactory#getMetrics()}).</p>
+ *
+ * <p>Counters are striped: Each thread increments the counters of one of several stripes and they are only summed up
+ * when they are read. So path watcher threads neither contend on the same counters nor allocate when they record.
+ * Listener latencies are recorded in a histogram with buckets of powers of two.</p>
+ */
+public interface PathWatcherMetrics extends WatchMetrics, PathWatcherMetricsMXBean {
+    /**
+     * Registers these metrics with the platform MBean server.
+     *
+     * @param name Distinguishes these metrics from others. It is quoted, so any characters are allowed. Must not be
+     *             null.
+     * @return The name of the MBean, i.e. <code>name.mitterdorfer.perlock:type=PathWatcherMetrics,name="..."</code>.
+     * Unregister the MBean with this name when it is not needed anymore. Never null.
+     * @throws JMException If the MBean cannot be registered, e.g. because another MBean has the same name.
+     */
+    ObjectName registerMBean(String name) throws JMException;
+}
@@ -0,0 +1,90 @@
+package name.mitterdorfer.perlock;
+
+import java.util.Map;
+
+/**
+ * <p>Read-only view on the metrics of one or more path watchers. It is a JMX MXBean interface, i.e. it can be read
+ * with any JMX client (see {@link PathWatcherMetrics#registerMBean(String)}).</p>
+ *
+ * <p>Values are sums of counters that are updated concurrently. Each value is thus only a snapshot and different
+ * values may not be consistent with each other.</p>
+ */
+public interface PathWatcherMetricsMXBean {
+    /**
+     * @return The number of events that have been delivered to listeners.
+     */
+    long getEvents();
+
+    /**
+     * @return The number of delivered events per {@link EventKind} (by its name).
+     */
+    Map<String, Long> getEventsByKind();
+
+    /**
+     * @return The number of times the watch service has lost events because its queue has overflown.
+     */
+    long getOverflows();
+
+    /**
+     * @return The number of directories that have been registered with a watch service.
+     */
+    long getRegisteredKeys();
+
+    /**
+     * @return The number of watch keys that have become invalid.
+     */
+    long getInvalidatedKeys();
+
+    /**
+     * @return The number of completed registrations of root paths.
+     */
+    long getRegistrations();
+
+    /**
+     * @return The total time all completed registrations of root paths have taken in milliseconds.
+     */
+    long getRegistrationTimeMillis();
+
+    /**
+     * @return The number of directories that have been walked by all completed registrations of root paths.
+     */
+    long getDirectoriesWalked();
+
+    /**
+     * @return The number of times event loops have handled signalled watch keys.
+     */
+    long getWakeups();
+
+    /**
+     * @return The average number of events that have been delivered per wakeup of an event loop. Low values on high
+     * load hint that events are delivered in many small batches.
+     */
+    double getEventsPerWakeup();
+
+    /**
+     * @return The number of times listeners have been invoked.
+     */
+    long getListenerInvocations();
+
+    /**
+     * @return The average time it took listeners to return in nanoseconds.
+     */
+    double getListenerLatencyMeanNanos();
+
+    /**
+     * @return The median time it took listeners to return in nanoseconds. Latencies are recorded in buckets of powers
+     * of two, so this is an upper bound that is at most twice the actual value.
+     */
+    long getListenerLatencyP50Nanos();
+
+    /**
+     * @return The 99th percentile of the time it took listeners to return in nanoseconds. It is an upper bound like
+     * {@link #getListenerLatencyP50Nanos()}.
+     */
+    long getListenerLatencyP99Nanos();
+
+    /**
+     * @return The longest time it took a listener to return in nanoseconds.
+     */
+    long getListenerLatencyMaxNanos();
+}
@@ -0,0 +1,22 @@
+package name.mitterdorfer.perlock;
+
+/**
+ * <p>A {@link PathWatcher} that reports how far it has registered its watched tree with the watch service (see
+ * {@link RegistrationProgress}).</p>
+ *
+ * <p>All path watchers that are created by {@link PathWatcherFactory} implement this interface. The factory methods
+ * return a plain <code>PathWatcher</code> for compatibility, so clients that need the progress have to cast:</p>
+ *
+ * <pre>
+ * PathWatcher watcher = factory.createRecursiveWatcher(rootPath, listener, options);
+ * watcher.start();
+ * ((ProgressReportingPathWatcher) watcher).getRegistrationProgress().get();
+ * </pre>
+ */
+public interface ProgressReportingPathWatcher extends PathWatcher {
+    /**
+     * @return The progress of registering the watched tree with the watch service. Refers to the most recent start of
+     * this <code>PathWatcher</code>. Never null.
+     */
+    RegistrationProgress getRegistrationProgress();
+}
@@ -0,0 +1,34 @@
+package name.mitterdorfer.perlock;
+
+import java.util.concurrent.Future;
+
+/**
+ * <p>Tracks how far a {@link ProgressReportingPathWatcher} has registered its watched tree with the watch service.
+ * Changes in a directory are only reported after the directory has been registered.</p>
+ *
+ * <p>Usually, the complete tree is registered before {@link PathWatcher#start()} returns. With progressive
+ * registration (see {@link WatchOptions.Builder#registerProgressively(int, java.util.concurrent.Executor)}) deeper
+ * levels are registered in the background and clients can use this handle to wait until the path watcher is ready:</p>
+ *
+ * <pre>
+ * watcher.start();
+ * // the top levels are watched already...
+ * ((ProgressReportingPathWatcher) watcher).getRegistrationProgress().get(); // ... and now the complete tree
+ * </pre>
+ *
+ * <p>The future completes with <code>null</code> once all directories are registered. It completes with an
+ * <code>ExecutionException</code> if registration has failed, e.g. because the path watcher has been stopped in the
+ * meantime. It cannot be cancelled. A <code>RegistrationProgress</code> can safely be used by multiple threads.</p>
+ */
+public interface RegistrationProgress extends Future<Void> {
+    /**
+     * @return The number of directories that have been registered so far.
+     */
+    long getRegisteredDirectories();
+
+    /**
+     * @return The number of directories that are known to exist but have not been registered yet. Note that this is a
+     * lower bound of the remaining work: Subdirectories of pending directories are not discovered yet.
+     */
+    long getPendingDirectories();
+}
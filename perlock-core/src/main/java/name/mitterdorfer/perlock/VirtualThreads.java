@@ -0,0 +1,57 @@
+package name.mitterdorfer.perlock;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * <p>Provides executors that run each task on a new virtual thread if the JRE supports virtual threads (Java 21 and
+ * later). Perlock is compiled for JRE 7, so virtual threads are looked up reflectively.</p>
+ *
+ * <p>An executor of virtual threads can be used wherever Perlock expects an executor, e.g. for
+ * {@link PathWatcherFactory#withVirtualThreads(LifecycleListener, WatchServiceMode)} or for
+ * {@link WatchOptions.Builder#dispatchAsynchronously} (together with {@link WaitStrategy#PARK}). Idle virtual threads
+ * do not occupy a platform thread.</p>
+ */
+public final class VirtualThreads {
+    // null if virtual threads are not supported
+    private static final Method NEW_EXECUTOR_SERVICE = lookupNewExecutorService();
+
+    private VirtualThreads() {
+        // no instances intended
+    }
+
+    private static Method lookupNewExecutorService() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * @return true iff the JRE supports virtual threads.
+     */
+    public static boolean isSupported() {
+        return NEW_EXECUTOR_SERVICE != null;
+    }
+
+    /**
+     * @return A new executor service that starts a new virtual thread for each task. Never null.
+     * @throws UnsupportedOperationException If the JRE does not support virtual threads.
+     */
+    public static ExecutorService newExecutorService() {
+        if (NEW_EXECUTOR_SERVICE == null) {
+            throw new UnsupportedOperationException("Virtual threads are not supported by this JRE ("
+                    + System.getProperty("java.version") + ")");
+        }
+        try {
+            return (ExecutorService) NEW_EXECUTOR_SERVICE.invoke(null);
+        } catch (IllegalAccessException ex) {
+            throw new UnsupportedOperationException("Cannot create virtual threads", ex);
+        } catch (InvocationTargetException ex) {
+            throw new UnsupportedOperationException("Cannot create virtual threads", ex.getCause());
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package name.mitterdorfer.perlock;
+
+/**
+ * Defines how a thread waits for new events (or free capacity) when it hands off events to another thread.
+ */
+public enum WaitStrategy {
+    /**
+     * Busy spins. Provides the lowest latency but burns a complete CPU core while waiting.
+     */
+    SPIN,
+
+    /**
+     * Yields to other threads while waiting. A compromise between latency and CPU usage.
+     */
+    YIELD,
+
+    /**
+     * Parks the waiting thread until it is signalled. Uses no CPU while waiting but has the highest hand off latency.
+     */
+    PARK
+}
@@ -0,0 +1,57 @@
+package name.mitterdorfer.perlock;
+
+/**
+ * <p>Describes how many kernel watches the path watchers of a {@link PathWatcherFactory} use and how many they may
+ * use. Clients can poll it to alert before watches run out.</p>
+ *
+ * <p>On Linux, each watched directory costs one inotify watch and the number of inotify watches is limited per user
+ * (<code>fs.inotify.max_user_watches</code>), i.e. all processes of a user share the same limit. The path watchers of
+ * a factory are limited to the watches that are not in use by other processes. This limit is refreshed periodically
+ * and whenever a reservation fails, so watches that other processes release become available again. Path watchers on
+ * other platforms or on other file systems than the default file system are not limited by the budget.</p>
+ *
+ * <p>Path watchers reserve a watch per registered directory (overlapping path watchers on a shared watch service share
+ * the watch of a directory) and release it when the directory is deleted or the path
+ * watcher is stopped. If there is no watch left, a directory is not registered. Instead, its subtree is degraded: It is
+ * scanned periodically and changes are reported with a delay (see
+ * {@link WatchOptions.Builder#limitWatches(int, long, java.util.concurrent.TimeUnit)}).</p>
+ *
+ * <p>A <code>WatchBudget</code> can safely be used by multiple threads.</p>
+ */
+public interface WatchBudget {
+    /**
+     * @return The maximum number of watches that the path watchers of the factory may reserve in total.
+     * <code>Integer.MAX_VALUE</code> if it is unknown.
+     */
+    int getLimit();
+
+    /**
+     * @return The number of watches that are currently reserved by the path watchers of the factory.
+     */
+    int getReserved();
+
+    /**
+     * @return The number of subtrees that are scanned periodically because there has been no watch left for them.
+     */
+    int getDegradedSubtrees();
+
+    /**
+     * @return true iff subtrees are currently degraded because there has been no watch left for them.
+     */
+    boolean isExhausted();
+
+    /**
+     * @return The limit of watches of the current user as configured in the operating system or <code>-1</code> if
+     * it is unknown.
+     */
+    int getSystemLimit();
+
+    /**
+     * Determines the number of watches that are in use by all processes of the current user that are visible to this
+     * process. This requires to inspect the file descriptors of all processes. Therefore, the usage is sampled at most
+     * every few seconds (together with the limits) and this method returns the most recent sample.
+     *
+     * @return The number of watches in use or <code>-1</code> if it is unknown.
+     */
+    int getSystemUsage();
+}
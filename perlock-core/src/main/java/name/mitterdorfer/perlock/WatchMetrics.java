@@ -0,0 +1,63 @@
+package name.mitterdorfer.perlock;
+
+/**
+ * <p>Service provider interface for recording what path watchers do, e.g. to bridge them to a metrics library of the
+ * application. Path watchers record into the <code>WatchMetrics</code> that have been provided with
+ * {@link WatchOptions.Builder#recordMetrics(WatchMetrics)}. {@link PathWatcherFactory#createMetrics()} provides a
+ * default implementation that can be registered as JMX MBean.</p>
+ *
+ * <p>Most methods are called on the hot path of a path watcher. Implementations have to be thread safe and should
+ * return quickly without blocking or allocating. They must not throw exceptions. If the same instance is provided to
+ * multiple path watchers, it receives the records of all of them.</p>
+ */
+public interface WatchMetrics {
+    /**
+     * Called each time the event loop of a path watcher has handled signalled watch keys (or a scan of a polling path
+     * watcher has finished).
+     *
+     * @param events The number of events that have been delivered to the listener afterwards. May be zero, e.g. if
+     *               all events have been filtered.
+     */
+    void onWakeup(int events);
+
+    /**
+     * Called for each event that is delivered to the listener.
+     *
+     * @param eventKind The kind of the event. Never null.
+     */
+    void onEvent(EventKind eventKind);
+
+    /**
+     * Called if the watch service has lost events because its queue has overflown.
+     */
+    void onOverflow();
+
+    /**
+     * Called each time a directory has been registered with the watch service.
+     */
+    void onKeyRegistered();
+
+    /**
+     * Called if watch keys have become invalid, e.g. because their directories have been deleted.
+     *
+     * @param keys The number of invalidated keys.
+     */
+    void onKeysInvalidated(int keys);
+
+    /**
+     * Called when the registration of the root path (or the initial scan of a polling path watcher) has completed.
+     *
+     * @param durationNanos     The time it took to register all directories in nanoseconds, including background
+     *                          registration.
+     * @param directoriesWalked The number of directories that have been registered (or scanned).
+     */
+    void onRegistrationCompleted(long durationNanos, long directoriesWalked);
+
+    /**
+     * Called after each invocation of the listener.
+     *
+     * @param latencyNanos The time it took the listener to return in nanoseconds. If events are dispatched
+     *                     asynchronously, this is only the time it took to hand off the events.
+     */
+    void onListenerInvoked(long latencyNanos);
+}
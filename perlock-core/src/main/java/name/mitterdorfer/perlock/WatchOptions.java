@@ -0,0 +1,885 @@
+package name.mitterdorfer.perlock;
+
+import name.mitterdorfer.perlock.impl.util.Preconditions;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p><code>WatchOptions</code> tune the behavior of an individual {@link PathWatcher}. Options are immutable and can be
+ * reused for multiple path watchers, except for options with a checkpoint (see {@link Builder#checkpoint}). Create new
+ * instances with {@link #builder()}:</p>
+ *
+ * <pre>
+ * WatchOptions options = WatchOptions.builder()
+ *         .dispatchAsynchronously(dispatchExecutor, 4096, WaitStrategy.PARK, OverflowPolicy.COALESCE)
+ *         .build();
+ * PathWatcher watcher = pathWatcherFactory.createRecursiveWatcher(rootPath, listener, options);
+ * </pre>
+ *
+ * <p>Options which require additional background threads expect clients to provide an <code>Executor</code>. The same
+ * rules as for the <code>ExecutorService</code> of {@link PathWatcherFactory} apply: It is up to clients to provide an
+ * executor that can create enough threads.</p>
+ */
+public final class WatchOptions {
+    private static final long DEFAULT_DEGRADED_SCAN_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5L);
+    private static final long DEFAULT_MOVE_WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100L);
+    private static final WatchOptions DEFAULTS = builder().build();
+
+    private final Executor dispatchExecutor;
+    private final int dispatchCapacity;
+    private final WaitStrategy dispatchWaitStrategy;
+    private final OverflowPolicy dispatchOverflowPolicy;
+    private final int dispatchWorkers;
+    private final DispatchKey dispatchKey;
+    private final Executor debounceExecutor;
+    private final long quietPeriodNanos;
+    private final ExecutorService overflowScanExecutor;
+    private final long minRescanIntervalNanos;
+    private final ForkJoinPool registrationPool;
+    private final Executor registrationExecutor;
+    private final int synchronousRegistrationLevels;
+    private final List<String> includes;
+    private final List<String> excludes;
+    private final int maxDepth;
+    private final Set<EventKind> eventKinds;
+    private final int maxWatches;
+    private final long degradedScanIntervalNanos;
+    private final boolean polling;
+    private final ExecutorService pollScanExecutor;
+    private final long minPollIntervalNanos;
+    private final long maxPollIntervalNanos;
+    private final long moveWindowNanos;
+    private final Executor writeCompletionExecutor;
+    private final long probeIntervalNanos;
+    private final WatchMetrics metrics;
+    private final Path checkpointFile;
+    private final long checkpointIntervalNanos;
+    private final ExecutorService checkpointScanExecutor;
+
+    private WatchOptions(Builder builder) {
+        this.dispatchExecutor = builder.dispatchExecutor;
+        this.dispatchCapacity = builder.dispatchCapacity;
+        this.dispatchWaitStrategy = builder.dispatchWaitStrategy;
+        this.dispatchOverflowPolicy = builder.dispatchOverflowPolicy;
+        this.dispatchWorkers = builder.dispatchWorkers;
+        this.dispatchKey = builder.dispatchKey;
+        this.debounceExecutor = builder.debounceExecutor;
+        this.quietPeriodNanos = builder.quietPeriodNanos;
+        this.overflowScanExecutor = builder.overflowScanExecutor;
+        this.minRescanIntervalNanos = builder.minRescanIntervalNanos;
+        this.registrationPool = builder.registrationPool;
+        this.registrationExecutor = builder.registrationExecutor;
+        this.synchronousRegistrationLevels = builder.synchronousRegistrationLevels;
+        this.includes = Collections.unmodifiableList(new ArrayList<>(builder.includes));
+        this.excludes = Collections.unmodifiableList(new ArrayList<>(builder.excludes));
+        this.maxDepth = builder.maxDepth;
+        EnumSet<EventKind> eventKinds = EnumSet.copyOf(builder.eventKinds);
+        if (builder.writeCompletionExecutor != null) {
+            eventKinds.add(EventKind.READY);
+        }
+        this.eventKinds = Collections.unmodifiableSet(eventKinds);
+        this.maxWatches = builder.maxWatches;
+        this.degradedScanIntervalNanos = builder.degradedScanIntervalNanos;
+        this.polling = builder.polling;
+        this.pollScanExecutor = builder.pollScanExecutor;
+        this.minPollIntervalNanos = builder.minPollIntervalNanos;
+        this.maxPollIntervalNanos = builder.maxPollIntervalNanos;
+        this.moveWindowNanos = builder.moveWindowNanos;
+        this.writeCompletionExecutor = builder.writeCompletionExecutor;
+        this.probeIntervalNanos = builder.probeIntervalNanos;
+        this.metrics = builder.metrics;
+        this.checkpointFile = builder.checkpointFile;
+        this.checkpointIntervalNanos = builder.checkpointIntervalNanos;
+        this.checkpointScanExecutor = builder.checkpointScanExecutor;
+    }
+
+    /**
+     * @return Options which resemble the behavior of path watchers that are created without options. Never null.
+     */
+    public static WatchOptions defaults() {
+        return DEFAULTS;
+    }
+
+    /**
+     * @return A new builder with default options. Never null.
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return true iff listeners are invoked on a dedicated dispatcher thread instead of the path watcher thread.
+     */
+    public boolean isDispatchAsynchronously() {
+        return dispatchExecutor != null && dispatchKey == null;
+    }
+
+    /**
+     * @return true iff listeners are invoked concurrently by multiple dispatcher threads, ordered per dispatch key.
+     */
+    public boolean isDispatchInParallel() {
+        return dispatchKey != null;
+    }
+
+    public Executor getDispatchExecutor() {
+        return dispatchExecutor;
+    }
+
+    public int getDispatchCapacity() {
+        return dispatchCapacity;
+    }
+
+    public WaitStrategy getDispatchWaitStrategy() {
+        return dispatchWaitStrategy;
+    }
+
+    public OverflowPolicy getDispatchOverflowPolicy() {
+        return dispatchOverflowPolicy;
+    }
+
+    public int getDispatchWorkers() {
+        return dispatchWorkers;
+    }
+
+    public DispatchKey getDispatchKey() {
+        return dispatchKey;
+    }
+
+    /**
+     * @return true iff events are held back per path until the path has been quiet for a while.
+     */
+    public boolean isDebounce() {
+        return debounceExecutor != null;
+    }
+
+    public Executor getDebounceExecutor() {
+        return debounceExecutor;
+    }
+
+    public long getQuietPeriodNanos() {
+        return quietPeriodNanos;
+    }
+
+    /**
+     * @return true iff events that are lost due to an overflow of the kernel event queue are recovered by rescanning.
+     */
+    public boolean isRecoverFromOverflow() {
+        return overflowScanExecutor != null;
+    }
+
+    public ExecutorService getOverflowScanExecutor() {
+        return overflowScanExecutor;
+    }
+
+    public long getMinRescanIntervalNanos() {
+        return minRescanIntervalNanos;
+    }
+
+    /**
+     * @return true iff recursive path watchers register the directories of the watched tree in parallel.
+     */
+    public boolean isRegisterInParallel() {
+        return registrationPool != null;
+    }
+
+    public ForkJoinPool getRegistrationPool() {
+        return registrationPool;
+    }
+
+    /**
+     * @return true iff recursive path watchers register only the top levels of the watched tree synchronously and the
+     * rest in the background.
+     */
+    public boolean isRegisterProgressively() {
+        return registrationExecutor != null;
+    }
+
+    public Executor getRegistrationExecutor() {
+        return registrationExecutor;
+    }
+
+    public int getSynchronousRegistrationLevels() {
+        return synchronousRegistrationLevels;
+    }
+
+    /**
+     * @return true iff some paths below the root path are not watched or not reported.
+     */
+    public boolean isFiltered() {
+        return !includes.isEmpty() || !excludes.isEmpty() || maxDepth != Integer.MAX_VALUE;
+    }
+
+    /**
+     * @return The include patterns in the syntax of {@link java.nio.file.FileSystem#getPathMatcher(String)}. Never null.
+     */
+    public List<String> getIncludes() {
+        return includes;
+    }
+
+    /**
+     * @return The exclude patterns in the syntax of {@link java.nio.file.FileSystem#getPathMatcher(String)}. Never null.
+     */
+    public List<String> getExcludes() {
+        return excludes;
+    }
+
+    /**
+     * @return The maximum depth of directories that are watched below the root path. <code>Integer.MAX_VALUE</code>
+     * if the depth is not limited.
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * @return The kinds of events that are reported. Never null and never empty.
+     */
+    public Set<EventKind> getEventKinds() {
+        return eventKinds;
+    }
+
+    /**
+     * @return The maximum number of kernel watches of the path watcher. <code>Integer.MAX_VALUE</code> if only the
+     * {@link WatchBudget} of the factory applies.
+     */
+    public int getMaxWatches() {
+        return maxWatches;
+    }
+
+    public long getDegradedScanIntervalNanos() {
+        return degradedScanIntervalNanos;
+    }
+
+    /**
+     * @return true iff the path watcher detects changes by scanning the watched tree periodically instead of using the
+     * watch service.
+     */
+    public boolean isPolling() {
+        return polling;
+    }
+
+    /**
+     * @return The executor service on which directories are scanned in parallel while polling. May be null.
+     */
+    public ExecutorService getPollScanExecutor() {
+        return pollScanExecutor;
+    }
+
+    public long getMinPollIntervalNanos() {
+        return minPollIntervalNanos;
+    }
+
+    public long getMaxPollIntervalNanos() {
+        return maxPollIntervalNanos;
+    }
+
+    /**
+     * @return true iff deletions and creations of the same entry are correlated into {@link EventKind#MOVE} events.
+     */
+    public boolean isDetectMoves() {
+        return eventKinds.contains(EventKind.MOVE);
+    }
+
+    /**
+     * @return The time a deletion is held back while waiting for the corresponding creation.
+     */
+    public long getMoveWindowNanos() {
+        return moveWindowNanos;
+    }
+
+    /**
+     * @return true iff creations and modifications of files are held back until the file is not written to anymore and
+     * then reported as {@link EventKind#READY}.
+     */
+    public boolean isAwaitWriteCompletion() {
+        return writeCompletionExecutor != null;
+    }
+
+    public Executor getWriteCompletionExecutor() {
+        return writeCompletionExecutor;
+    }
+
+    public long getProbeIntervalNanos() {
+        return probeIntervalNanos;
+    }
+
+    /**
+     * @return The metrics that path watchers record into or <code>null</code> if metrics are not recorded.
+     */
+    public WatchMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return true iff path watchers keep a checkpoint of the watched tree and report changes that have happened while
+     * they have not been running when they are started.
+     */
+    public boolean isCheckpoint() {
+        return checkpointFile != null;
+    }
+
+    public Path getCheckpointFile() {
+        return checkpointFile;
+    }
+
+    public long getCheckpointIntervalNanos() {
+        return checkpointIntervalNanos;
+    }
+
+    public ExecutorService getCheckpointScanExecutor() {
+        return checkpointScanExecutor;
+    }
+
+    /**
+     * Builder for {@link WatchOptions}. A builder is not thread safe.
+     */
+    public static final class Builder {
+        private Executor dispatchExecutor;
+        private int dispatchCapacity;
+        private WaitStrategy dispatchWaitStrategy;
+        private OverflowPolicy dispatchOverflowPolicy;
+        private int dispatchWorkers;
+        private DispatchKey dispatchKey;
+        private Executor debounceExecutor;
+        private long quietPeriodNanos;
+        private ExecutorService overflowScanExecutor;
+        private long minRescanIntervalNanos;
+        private ForkJoinPool registrationPool;
+        private Executor registrationExecutor;
+        private int synchronousRegistrationLevels;
+        private final List<String> includes = new ArrayList<>();
+        private final List<String> excludes = new ArrayList<>();
+        private int maxDepth = Integer.MAX_VALUE;
+        private EnumSet<EventKind> eventKinds = EnumSet.of(EventKind.CREATE, EventKind.MODIFY, EventKind.DELETE);
+        private int maxWatches = Integer.MAX_VALUE;
+        private long degradedScanIntervalNanos = DEFAULT_DEGRADED_SCAN_INTERVAL_NANOS;
+        private boolean polling;
+        private ExecutorService pollScanExecutor;
+        private long minPollIntervalNanos;
+        private long maxPollIntervalNanos;
+        private long moveWindowNanos = DEFAULT_MOVE_WINDOW_NANOS;
+        // true iff #detectMoves has been called. MOVE is then kept if the kinds of events are restricted afterwards.
+        private boolean detectMoves;
+        private Executor writeCompletionExecutor;
+        private long probeIntervalNanos;
+        private WatchMetrics metrics;
+        private Path checkpointFile;
+        private long checkpointIntervalNanos;
+        private ExecutorService checkpointScanExecutor;
+
+        private Builder() {
+            // use WatchOptions#builder()
+        }
+
+        /**
+         * <p>Decouples draining the kernel event queue from invoking the <code>PathChangeListener</code>. The path
+         * watcher thread just publishes events to a preallocated ring buffer. A dedicated dispatcher thread consumes
+         * the ring buffer and invokes the listener. This allows to drain the kernel event queue at full speed on bursty
+         * load even if the listener is slow.</p>
+         *
+         * <p>If the listener throws an exception on the dispatcher thread, the exception is rethrown on the path
+         * watcher thread when the next event is published and the path watcher is stopped.</p>
+         *
+         * <p>This replaces {@link #dispatchInParallel} and vice versa.</p>
+         *
+         * @param executor       The executor that provides the dispatcher thread. The dispatcher thread is requested
+         *                       when a path watcher is started and runs until it is stopped. Must not be null.
+         * @param capacity       The maximum number of events the ring buffer can hold. It will be rounded up to the
+         *                       next power of two. Must be positive.
+         * @param waitStrategy   Determines how the dispatcher thread waits for new events and how the path watcher
+         *                       thread waits for free capacity. Must not be null.
+         * @param overflowPolicy Determines what happens to new events when the ring buffer is full. Must not be null.
+         * @return this builder.
+         */
+        public Builder dispatchAsynchronously(Executor executor, int capacity, WaitStrategy waitStrategy,
+                                              OverflowPolicy overflowPolicy) {
+            Preconditions.isNotNull(executor, "executor");
+            Preconditions.isTrue(capacity > 0, "'capacity' must be positive");
+            Preconditions.isTrue(capacity <= 1 << 30, "'capacity' must not exceed 2^30");
+            Preconditions.isNotNull(waitStrategy, "waitStrategy");
+            Preconditions.isNotNull(overflowPolicy, "overflowPolicy");
+            this.dispatchExecutor = executor;
+            this.dispatchCapacity = capacity;
+            this.dispatchWaitStrategy = waitStrategy;
+            this.dispatchOverflowPolicy = overflowPolicy;
+            this.dispatchWorkers = 0;
+            this.dispatchKey = null;
+            return this;
+        }
+
+        /**
+         * <p>Invokes the listener concurrently on multiple dispatcher threads while preserving the order of events per
+         * key. Each event is assigned to one of several serial lanes by the hash of its key, so events with the same
+         * key are always delivered by one thread at a time and in order (e.g. a <code>DELETE</code> is never delivered
+         * before the preceding <code>CREATE</code> of the same path). Events with different keys are delivered in
+         * parallel. In contrast to handing off each event to a thread pool this keeps events of a path in order.</p>
+         *
+         * <p>There are four lanes per dispatcher thread, each a preallocated queue. Dispatcher threads prefer their own
+         * lanes but take over lanes of busy dispatcher threads when their own lanes are empty. A lane is only ever
+         * served by one thread at a time; hence a slow event delays only the events of its own lane.</p>
+         *
+         * <p>The listener has to be thread safe. It receives events in batches of one lane at a time. If it throws an
+         * exception, the exception is rethrown on the path watcher thread when the next event is published and the
+         * path watcher is stopped.</p>
+         *
+         * <p>This replaces {@link #dispatchAsynchronously} and vice versa.</p>
+         *
+         * @param executor       The executor that provides the dispatcher threads. They are requested when a path
+         *                       watcher is started and run until it is stopped. Must not be null.
+         * @param workers        The number of dispatcher threads. Must be positive.
+         * @param laneCapacity   The maximum number of events each lane can hold. It will be rounded up to the next
+         *                       power of two. Must be positive.
+         * @param dispatchKey    Determines which events have to be delivered in order. Must not be null.
+         * @param overflowPolicy Determines what happens to new events when a lane is full. Must not be null.
+         * @return this builder.
+         */
+        public Builder dispatchInParallel(Executor executor, int workers, int laneCapacity, DispatchKey dispatchKey,
+                                          OverflowPolicy overflowPolicy) {
+            Preconditions.isNotNull(executor, "executor");
+            Preconditions.isTrue(workers > 0, "'workers' must be positive");
+            Preconditions.isTrue(workers <= 1 << 16, "'workers' must not exceed 2^16");
+            Preconditions.isTrue(laneCapacity > 0, "'laneCapacity' must be positive");
+            Preconditions.isTrue(laneCapacity <= 1 << 30, "'laneCapacity' must not exceed 2^30");
+            Preconditions.isNotNull(dispatchKey, "dispatchKey");
+            Preconditions.isNotNull(overflowPolicy, "overflowPolicy");
+            this.dispatchExecutor = executor;
+            this.dispatchCapacity = laneCapacity;
+            this.dispatchWaitStrategy = null;
+            this.dispatchOverflowPolicy = overflowPolicy;
+            this.dispatchWorkers = workers;
+            this.dispatchKey = dispatchKey;
+            return this;
+        }
+
+        /**
+         * <p>Holds back events per path until no further event has occurred on that path for the provided quiet
+         * period. All events on a path within that window are merged into a single event that describes the net effect
+         * on the path:</p>
+         *
+         * <ul>
+         *     <li><code>CREATE</code> followed by any number of <code>MODIFY</code> is delivered as
+         *     <code>CREATE</code>.</li>
+         *     <li>Multiple <code>MODIFY</code> are delivered as one <code>MODIFY</code>.</li>
+         *     <li><code>CREATE</code> followed by <code>DELETE</code> is not delivered at all.</li>
+         *     <li><code>DELETE</code> followed by <code>CREATE</code> is delivered as <code>MODIFY</code>.</li>
+         * </ul>
+         *
+         * <p>This is useful to avoid reprocessing files that are written in many small steps (e.g. by editors or
+         * rsync). Pending events are delivered when the path watcher is stopped.</p>
+         *
+         * @param quietPeriod The period of time a path has to be quiet before its event is delivered. Must be
+         *                    positive.
+         * @param unit        The time unit of <code>quietPeriod</code>. Must not be null.
+         * @param executor    The executor that provides the timer thread which delivers the events. The timer thread
+         *                    is requested when a path watcher is started and runs until it is stopped. Must not be
+         *                    null.
+         * @return this builder.
+         */
+        public Builder debounce(long quietPeriod, TimeUnit unit, Executor executor) {
+            Preconditions.isTrue(quietPeriod > 0, "'quietPeriod' must be positive");
+            Preconditions.isNotNull(unit, "unit");
+            Preconditions.isNotNull(executor, "executor");
+            this.quietPeriodNanos = unit.toNanos(quietPeriod);
+            this.debounceExecutor = executor;
+            return this;
+        }
+
+        /**
+         * <p>Recovers events that are lost when the kernel event queue overflows. Without recovery, such events are
+         * lost for good and only a warning is logged.</p>
+         *
+         * <p>To detect what has changed, the path watcher keeps a lightweight snapshot of each watched directory (file
+         * names, modification times and sizes) that is updated on every event. This costs one additional
+         * <code>stat</code> call per event. When a directory overflows, it is rescanned (for recursive watchers
+         * including its subtree) and the missing events are synthesized from the difference to the snapshot.</p>
+         *
+         * @param scanExecutor       The executor service on which directories are scanned in parallel. The path
+         *                           watcher thread waits for the scans to finish. Must not be null.
+         * @param minRescanInterval  The minimum time between two rescans. Overflows that occur earlier are
+         *                           accumulated and handled together. Must not be negative.
+         * @param unit               The time unit of <code>minRescanInterval</code>. Must not be null.
+         * @return this builder.
+         */
+        public Builder recoverFromOverflow(ExecutorService scanExecutor, long minRescanInterval, TimeUnit unit) {
+            Preconditions.isNotNull(scanExecutor, "scanExecutor");
+            Preconditions.isTrue(minRescanInterval >= 0, "'minRescanInterval' must not be negative");
+            Preconditions.isNotNull(unit, "unit");
+            this.overflowScanExecutor = scanExecutor;
+            this.minRescanIntervalNanos = unit.toNanos(minRescanInterval);
+            return this;
+        }
+
+        /**
+         * <p>Registers the directories of a recursively watched tree in parallel instead of walking the tree on the
+         * thread that starts the path watcher. Each directory is listed by a separate fork/join task and subtrees are
+         * balanced across worker threads by work stealing.</p>
+         *
+         * <p>Only listing directories is done in parallel: The watch service of the JDK and the native inotify
+         * backend register directories one at a time. Therefore, {@link PathWatcher#start()} only gets faster if
+         * listing directories dominates, i.e. with multiple cores and storage that serves concurrent requests well
+         * (SSDs, network file systems). On a single core, it is not faster than the sequential registration. Measure
+         * the effect for a tree with <code>LargeTreeRegistrationBenchmark</code> of the module
+         * <code>perlock-benchmarks</code> before enabling this option.</p>
+         *
+         * <p>The level of parallelism is determined by the parallelism of the provided pool. The thread that starts
+         * the path watcher waits until all directories are registered. Directories that are created while the path
+         * watcher is running are registered in parallel as well.</p>
+         *
+         * <p>This option has no effect for non-recursive path watchers and on platforms that watch trees natively
+         * (Windows).</p>
+         *
+         * @param pool The fork/join pool on which directories are registered. Must not be null.
+         * @return this builder.
+         */
+        public Builder registerInParallel(ForkJoinPool pool) {
+            Preconditions.isNotNull(pool, "pool");
+            this.registrationPool = pool;
+            return this;
+        }
+
+        /**
+         * <p>Lets {@link PathWatcher#start()} return as soon as the top levels of a recursively watched tree are
+         * registered. Deeper levels are registered level by level in the background. Clients can track progress and
+         * wait until the complete tree is watched with
+         * {@link ProgressReportingPathWatcher#getRegistrationProgress()}.</p>
+         *
+         * <p>Changes in a directory cannot be reported before the directory is registered. Therefore, each directory
+         * that is registered in the background is scanned once: Entries that have been created or modified since the
+         * path watcher has been started are reported as <code>CREATE</code> or <code>MODIFY</code> events. This check
+         * is based on timestamps, so a change may occasionally be reported twice. On file systems that do not track
+         * the creation time, modified entries are reported as <code>CREATE</code>.</p>
+         *
+         * <p>This option cannot be combined with {@link #registerInParallel(ForkJoinPool)}. It has no effect for
+         * non-recursive path watchers and on platforms that watch trees natively (Windows). Note that
+         * {@link #recoverFromOverflow(ExecutorService, long, TimeUnit)} and mirroring path watchers still scan the
+         * complete tree on start.</p>
+         *
+         * @param synchronousLevels The number of levels below the root path that are registered before
+         *                          {@link PathWatcher#start()} returns. With <code>0</code> only the root path is
+         *                          registered synchronously. Must not be negative.
+         * @param executor          The executor that provides the background thread. The thread is requested on
+         *                          start and runs until registration is complete or the path watcher is stopped. Must
+         *                          not be null.
+         * @return this builder.
+         */
+        public Builder registerProgressively(int synchronousLevels, Executor executor) {
+            Preconditions.isTrue(synchronousLevels >= 0, "'synchronousLevels' must not be negative");
+            Preconditions.isNotNull(executor, "executor");
+            this.synchronousRegistrationLevels = synchronousLevels;
+            this.registrationExecutor = executor;
+            return this;
+        }
+
+        /**
+         * <p>Reports only changes of paths that match the provided pattern. If multiple include patterns are added,
+         * a path has to match at least one of them. Include patterns only filter events: All (not excluded)
+         * directories are still watched as included paths might be found deeper in the tree.</p>
+         *
+         * <p>Patterns use the syntax of {@link java.nio.file.FileSystem#getPathMatcher(String)} (i.e.
+         * <code>glob:</code> or <code>regex:</code> followed by the pattern) and are matched against paths relative to
+         * the root path of the path watcher, e.g. <code>glob:**.java</code>. Invalid patterns are rejected when the
+         * path watcher is created.</p>
+         *
+         * @param syntaxAndPattern The pattern, e.g. <code>glob:**.java</code>. Must not be null.
+         * @return this builder.
+         */
+        public Builder include(String syntaxAndPattern) {
+            checkPattern(syntaxAndPattern);
+            this.includes.add(syntaxAndPattern);
+            return this;
+        }
+
+        /**
+         * <p>Excludes paths that match the provided pattern. Excluded directories are pruned including their complete
+         * subtree: They are not registered with the watch service (which saves kernel resources like inotify watches)
+         * and no events are reported for them or for any path below them.</p>
+         *
+         * <p>Patterns use the same syntax as {@link #include(String)}. Note that glob patterns with a leading
+         * <code>**&#47;</code> need at least one parent directory. Use e.g. <code>glob:{.git,**&#47;.git}</code> to
+         * exclude <code>.git</code> directories at any level.</p>
+         *
+         * <p>On platforms that watch trees natively (Windows) excluded directories are watched anyway but no events
+         * are reported for them.</p>
+         *
+         * @param syntaxAndPattern The pattern, e.g. <code>glob:{target,**&#47;target}</code>. Must not be null.
+         * @return this builder.
+         */
+        public Builder exclude(String syntaxAndPattern) {
+            checkPattern(syntaxAndPattern);
+            this.excludes.add(syntaxAndPattern);
+            return this;
+        }
+
+        private static void checkPattern(String syntaxAndPattern) {
+            Preconditions.isNotNull(syntaxAndPattern, "syntaxAndPattern");
+            Preconditions.isTrue(syntaxAndPattern.indexOf(':') > 0,
+                    "'syntaxAndPattern' must be of the form 'syntax:pattern'");
+        }
+
+        /**
+         * Limits how deep recursive path watchers watch the tree below the root path. Directories up to the provided
+         * depth are watched, so changes are reported for paths up to one level deeper. The root path has depth
+         * <code>0</code>. Deeper directories are neither registered nor reported. By default, the depth is not limited.
+         *
+         * @param maxDepth The maximum depth of watched directories. Must not be negative.
+         * @return this builder.
+         */
+        public Builder maxDepth(int maxDepth) {
+            Preconditions.isTrue(maxDepth >= 0, "'maxDepth' must not be negative");
+            this.maxDepth = maxDepth;
+            return this;
+        }
+
+        /**
+         * <p>Restricts the kinds of events that are reported. By default, all kinds of events except
+         * {@link EventKind#MOVE} are reported. Including <code>MOVE</code> is equivalent to
+         * {@link #detectMoves(long, TimeUnit)} with a window of 100 milliseconds. {@link EventKind#READY} cannot be
+         * included; use {@link #awaitWriteCompletion(long, TimeUnit, Executor)} instead. If moves are detected (see
+         * {@link #detectMoves(long, TimeUnit)}), <code>MOVE</code> is reported regardless of the order in which both
+         * methods are called.</p>
+         *
+         * <p>The restriction is pushed down to the registration with the watch service, so the operating system does
+         * not even generate events of other kinds. This saves space in the kernel event queue and thus makes overflows
+         * less likely, e.g. if a listener is only interested in new files but existing files are modified
+         * frequently. This does not apply to {@link WatchServiceMode#PER_FILE_SYSTEM}: A directory has only one watch
+         * on a shared watch service, so it is registered for all kinds of events and each path watcher drops the
+         * events that it does not report.</p>
+         *
+         * <p>Some kinds of events are needed internally and are still observed (but not reported): Recursive path
+         * watchers observe {@link EventKind#CREATE} to watch new subdirectories. Path watchers that recover from
+         * overflows or mirror the watched tree observe all kinds of events to keep their snapshot up to date.</p>
+         *
+         * @param eventKinds The kinds of events that should be reported. Must not be null or empty and must not contain
+         *                   {@link EventKind#READY}.
+         * @return this builder.
+         */
+        public Builder eventKinds(EnumSet<EventKind> eventKinds) {
+            Preconditions.isNotNull(eventKinds, "eventKinds");
+            Preconditions.isTrue(!eventKinds.isEmpty(), "'eventKinds' must not be empty");
+            Preconditions.isTrue(!eventKinds.contains(EventKind.READY),
+                    "'eventKinds' must not contain READY. Use #awaitWriteCompletion instead");
+            this.eventKinds = EnumSet.copyOf(eventKinds);
+            if (detectMoves) {
+                this.eventKinds.add(EventKind.MOVE);
+            }
+            return this;
+        }
+
+        /**
+         * <p>Limits the number of kernel watches (i.e. registered directories) of the path watcher. Regardless of
+         * this option, the path watchers of a factory share its {@link WatchBudget}.</p>
+         *
+         * <p>If there is no watch left for a directory, it is not registered. Instead, its subtree (or just the
+         * directory for non-recursive path watchers) is degraded: It is scanned periodically and changes are
+         * reported after the next scan. The path watcher keeps working instead of failing with an
+         * <code>IOException</code> halfway through the registration. Watches are released as soon as a watched
+         * directory is deleted.</p>
+         *
+         * @param maxWatches   The maximum number of watches. Must be positive.
+         * @param scanInterval The interval in which degraded subtrees are scanned. Must be positive. It also applies
+         *                     if the budget of the factory is exhausted. It is five seconds by default.
+         * @param unit         The time unit of <code>scanInterval</code>. Must not be null.
+         * @return this builder.
+         */
+        public Builder limitWatches(int maxWatches, long scanInterval, TimeUnit unit) {
+            Preconditions.isTrue(maxWatches > 0, "'maxWatches' must be positive");
+            Preconditions.isTrue(scanInterval > 0, "'scanInterval' must be positive");
+            Preconditions.isNotNull(unit, "unit");
+            this.maxWatches = maxWatches;
+            this.degradedScanIntervalNanos = unit.toNanos(scanInterval);
+            return this;
+        }
+
+        /**
+         * <p>Detects changes by scanning the watched tree periodically instead of using the watch service. The watch
+         * service does not notice changes on network file systems or FUSE mounts (or changes that are made by other
+         * hosts), so a polling path watcher is the only option there.</p>
+         *
+         * <p>The path watcher keeps the modification time and size of each entry of the watched tree and reports the
+         * differences after each scan with the same kinds of events as a path watcher that uses the watch service.
+         * Directories whose modification time has not changed are not listed again; only the attributes of their
+         * known entries are read. Changes that are reverted between two scans are not reported.</p>
+         *
+         * <p>The poll interval adapts to the activity in the watched tree: After a scan that has found changes, the
+         * next scan happens after the minimum interval. Each scan without changes doubles the interval up to the
+         * maximum interval.</p>
+         *
+         * <p>A polling path watcher runs on a thread of the executor service of the factory in any
+         * {@link WatchServiceMode}. Options that concern the watch service (overflow recovery, parallel or progressive
+         * registration and limited watches) have no effect. Polling path watchers cannot mirror the watched tree.</p>
+         *
+         * @param scanExecutor The executor service on which all directories on the same level of the watched tree are
+         *                     scanned in parallel. Its number of threads bounds the number of concurrent scans. The
+         *                     path watcher thread waits for the scans to finish. May be null to scan directories
+         *                     sequentially on the path watcher thread.
+         * @param minInterval  The interval between two scans while the watched tree changes. Must be positive.
+         * @param maxInterval  The interval between two scans after the watched tree has been idle for a while. Must not
+         *                     be smaller than <code>minInterval</code>.
+         * @param unit         The time unit of both intervals. Must not be null.
+         * @return this builder.
+         */
+        public Builder poll(ExecutorService scanExecutor, long minInterval, long maxInterval, TimeUnit unit) {
+            Preconditions.isTrue(minInterval > 0, "'minInterval' must be positive");
+            Preconditions.isTrue(maxInterval >= minInterval, "'maxInterval' must not be smaller than 'minInterval'");
+            Preconditions.isNotNull(unit, "unit");
+            this.polling = true;
+            this.pollScanExecutor = scanExecutor;
+            this.minPollIntervalNanos = unit.toNanos(minInterval);
+            this.maxPollIntervalNanos = unit.toNanos(maxInterval);
+            return this;
+        }
+
+        /**
+         * <p>Reports renames and moves within the watched tree as one {@link EventKind#MOVE} event that carries both
+         * the former and the new path instead of an unrelated {@link EventKind#DELETE} and {@link EventKind#CREATE}.
+         * </p>
+         *
+         * <p>The watch service reports a move as a deletion in the source directory and a creation in the target
+         * directory. Both are correlated by the identity of the entry: The native inotify backend provides a cookie
+         * that is shared by both events. Otherwise, the file key (e.g. the inode) of the entry is used; the path
+         * watcher then keeps a snapshot of the watched tree (as for {@link #recoverFromOverflow}) to know the file key
+         * of a deleted entry. A deletion is held back for at most <code>window</code> while waiting for the
+         * corresponding creation. Deletions without a matching creation are reported as such once the window has
+         * elapsed. Moves into or out of the watched tree are reported as creations or deletions respectively.</p>
+         *
+         * <p>If a watched directory is moved within the tree of a recursive path watcher based on the native inotify
+         * backend, the watches of its subtree are kept and just re-keyed to the new path instead of registering the
+         * subtree again. Polling path watchers correlate moves within one scan and do not hold back deletions.</p>
+         *
+         * <p>Listeners that implement {@link PathChangeListener} receive a move as a deletion of the source path
+         * followed by a creation of the target path. Implement {@link BatchPathChangeListener} to receive the source
+         * path (see {@link PathEvent#getSourcePath()}).</p>
+         *
+         * @param window The time a deletion is held back while waiting for the corresponding creation. Must be
+         *               positive.
+         * @param unit   The time unit of <code>window</code>. Must not be null.
+         * @return this builder.
+         */
+        public Builder detectMoves(long window, TimeUnit unit) {
+            Preconditions.isTrue(window > 0, "'window' must be positive");
+            Preconditions.isNotNull(unit, "unit");
+            this.eventKinds.add(EventKind.MOVE);
+            this.moveWindowNanos = unit.toNanos(window);
+            this.detectMoves = true;
+            return this;
+        }
+
+        /**
+         * <p>Holds back creations and modifications of files until the file is not written to anymore and reports it
+         * as {@link EventKind#READY} instead. Consumers can process such files right away instead of retrying until the
+         * producer has finished writing.</p>
+         *
+         * <p>A file is considered complete if no further event has occurred on it and its size and modification time
+         * have not changed for one probe interval. Pending files are kept in a hashed timer wheel and probed on a
+         * single timer thread, so thousands of files can be written concurrently. The native inotify backend also
+         * reports when a file that has been opened for writing is closed; such files are ready immediately.</p>
+         *
+         * <p>Deletions and moves of files that are not ready yet are reported as follows: A file that has been created
+         * and deleted again before it was ready is not reported at all. A pending file that is moved stays pending
+         * under its new path; the move is only reported if the file existed before. All other events (including
+         * creations of directories, which are delayed by one probe interval) are delivered as is. Files that are still
+         * pending when the path watcher stops are reported with their original kind of event.</p>
+         *
+         * <p>This option cannot be combined with {@link #debounce(long, TimeUnit, Executor)} which holds back events
+         * anyway. Only creations and modifications that are reported (see {@link #eventKinds(EnumSet)}) are held back.
+         * </p>
+         *
+         * @param probeInterval The period of time a file has to be unchanged before it is ready. Must be positive.
+         * @param unit          The time unit of <code>probeInterval</code>. Must not be null.
+         * @param executor      The executor that provides the timer thread which probes files and delivers all events.
+         *                      The timer thread is requested when a path watcher is started and runs until it is
+         *                      stopped. Must not be null.
+         * @return this builder.
+         */
+        public Builder awaitWriteCompletion(long probeInterval, TimeUnit unit, Executor executor) {
+            Preconditions.isTrue(probeInterval > 0, "'probeInterval' must be positive");
+            Preconditions.isNotNull(unit, "unit");
+            Preconditions.isNotNull(executor, "executor");
+            this.probeIntervalNanos = unit.toNanos(probeInterval);
+            this.writeCompletionExecutor = executor;
+            return this;
+        }
+
+        /**
+         * <p>Records what path watchers do: Delivered events per kind, overflows, registered and invalidated watch
+         * keys, the duration of registrations, wakeups of the event loop and the latency of the listener. Use
+         * {@link PathWatcherFactory#createMetrics()} for metrics that can be read via JMX or provide an own
+         * implementation to bridge to a metrics library.</p>
+         *
+         * <p>Path watchers do not record anything unless this option is set. Provide the same metrics to multiple path
+         * watchers to aggregate their metrics.</p>
+         *
+         * @param metrics The metrics to record into. Must not be null.
+         * @return this builder.
+         */
+        public Builder recordMetrics(WatchMetrics metrics) {
+            Preconditions.isNotNull(metrics, "metrics");
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * <p>Keeps a checkpoint of the watched tree in a file, so that changes which happen while the path watcher is
+         * not running (e.g. while the application is restarted) are not lost. Without a checkpoint, a path watcher only
+         * reports changes that happen after it has been started.</p>
+         *
+         * <p>The checkpoint contains the same lightweight snapshot of each watched directory as is kept for
+         * {@link #recoverFromOverflow} (file names, modification times, sizes and file keys) in a compact binary
+         * format. It is written when the path watcher is stopped and periodically while it is running, so that a crash
+         * loses at most one interval. When the path watcher is started again, the checkpoint is read and the watched
+         * tree is scanned (for recursive watchers level by level, with all directories of a level in parallel). The
+         * differences are reported as regular events before any event that occurs after the start. Changes that
+         * happen while the path watcher starts might be reported twice. If the checkpoint does not exist, is corrupt
+         * or belongs to another root path, a warning is logged (unless it does not exist) and only changes after the
+         * start are reported.</p>
+         *
+         * <p>Each path watcher needs a checkpoint file of its own, so options with a checkpoint must not be shared by
+         * multiple path watchers. A {@link PathWatcherFactory} throws an <code>IllegalArgumentException</code> when a
+         * path watcher is created with a checkpoint file that another path watcher of the same factory uses already.
+         * The file is released when its path watcher has stopped, so a new path watcher can then pick up the
+         * checkpoint. A stopped path watcher must not be started again once another path watcher uses its file. The
+         * file should not be placed within the watched tree. This option cannot be combined with
+         * {@link #poll(ExecutorService, long, long, TimeUnit)}.</p>
+         *
+         * @param file         The checkpoint file. Must not be null. It does not need to exist but its parent directory
+         *                     does.
+         * @param interval     The time between two checkpoints while the path watcher is running. Must be positive.
+         * @param unit         The time unit of <code>interval</code>. Must not be null.
+         * @param scanExecutor The executor service on which directories are scanned in parallel on start. The path
+         *                     watcher thread waits for the scans to finish. May be null to scan directories on the path
+         *                     watcher thread. If {@link #recoverFromOverflow} is set as well, its executor is used
+         *                     instead.
+         * @return this builder.
+         */
+        public Builder checkpoint(Path file, long interval, TimeUnit unit, ExecutorService scanExecutor) {
+            Preconditions.isNotNull(file, "file");
+            Preconditions.isTrue(interval > 0, "'interval' must be positive");
+            Preconditions.isNotNull(unit, "unit");
+            this.checkpointFile = file;
+            this.checkpointIntervalNanos = unit.toNanos(interval);
+            this.checkpointScanExecutor = scanExecutor;
+            return this;
+        }
+
+        /**
+         * @return A new <code>WatchOptions</code> instance. Never null.
+         */
+        public WatchOptions build() {
+            Preconditions.isTrue(registrationPool == null || registrationExecutor == null,
+                    "Parallel and progressive registration cannot be combined");
+            Preconditions.isTrue(debounceExecutor == null || writeCompletionExecutor == null,
+                    "Debouncing and awaiting write completion cannot be combined");
+            Preconditions.isTrue(!polling || checkpointFile == null, "Polling and checkpoints cannot be combined");
+            return new WatchOptions(this);
+        }
+    }
+}
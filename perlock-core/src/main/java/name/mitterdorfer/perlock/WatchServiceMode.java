@@ -0,0 +1,21 @@
+package name.mitterdorfer.perlock;
+
+/**
+ * Defines how the path watchers of a {@link PathWatcherFactory} map onto the underlying JDK
+ * <code>WatchService</code> instances and watcher threads.
+ */
+public enum WatchServiceMode {
+    /**
+     * Each <code>PathWatcher</code> creates its own <code>WatchService</code> and requests a dedicated thread from the
+     * factory's executor service. This is the default mode.
+     */
+    PER_WATCHER,
+
+    /**
+     * All <code>PathWatcher</code> instances of a factory that watch paths on the same <code>FileSystem</code> share
+     * one <code>WatchService</code> and one thread of the factory's executor service. This mode is well suited for
+     * applications that watch a lot of root paths as it keeps the number of kernel resources (e.g. inotify instances)
+     * and threads constant.
+     */
+    PER_FILE_SYSTEM
+}
@@ -0,0 +1,49 @@
+package name.mitterdorfer.perlock;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+
+/**
+ * <p>A read-only in-memory mirror of the file tree that is watched by a {@link MirroringPathWatcher}. All queries are
+ * answered from memory without accessing the file system.</p>
+ *
+ * <p>The mirror is updated by the path watcher thread before the corresponding events are delivered to the listener.
+ * Hence, it is eventually consistent with the file system: It lags behind by the time it takes the watch service to
+ * report a change. A <code>WatchedTree</code> can safely be queried by multiple threads concurrently.</p>
+ *
+ * <p>Paths have to be provided in the same form as the root path of the path watcher, i.e. as the path watcher reports
+ * them in events. Paths are neither normalized nor resolved to real paths. Paths outside of the watched tree are
+ * treated as absent.</p>
+ */
+public interface WatchedTree {
+    /**
+     * @return The root path of the mirrored tree. Never null.
+     */
+    Path getRootPath();
+
+    /**
+     * @param path A path. Must not be null.
+     * @return true iff <code>path</code> is known to exist in the watched tree. Replaces {@link
+     * java.nio.file.Files#exists(Path, java.nio.file.LinkOption...)}.
+     */
+    boolean exists(Path path);
+
+    /**
+     * @param dir A path. Must not be null.
+     * @return The paths of the direct entries of <code>dir</code> in unspecified order or <code>null</code> if
+     * <code>dir</code> is not a known directory in the watched tree. Never contains null. Replaces {@link
+     * java.nio.file.Files#newDirectoryStream(Path)}.
+     */
+    List<Path> list(Path dir);
+
+    /**
+     * Returns the attributes of a path. Only the file type, the size and the last modification time are mirrored. The
+     * last access time and the creation time are reported as the last modification time and there is no file key.
+     * Symbolic links are not followed.
+     *
+     * @param path A path. Must not be null.
+     * @return The attributes of <code>path</code> or <code>null</code> if it is not known to exist in the watched tree.
+     */
+    BasicFileAttributes getAttributes(Path path);
+}
@@ -0,0 +1,16 @@
+package name.mitterdorfer.perlock.impl;
+
+import name.mitterdorfer.perlock.ProgressReportingPathWatcher;
+
+/**
+ * <p>A path watcher that runs its own event loop on a thread which is provided by its creator.</p>
+ *
+ * <p>THIS IS AN INTERNAL IMPLEMENTATION CLASS AND DOES NOT BELONG TO THE API. DO NOT USE IT DIRECTLY.</p>
+ */
+public interface EventLoopPathWatcher extends ProgressReportingPathWatcher {
+    /**
+     * Runs the event loop of a started path watcher on the calling thread. Returns when the path watcher is stopped
+     * or the calling thread is interrupted.
+     */
+    void watch();
+}
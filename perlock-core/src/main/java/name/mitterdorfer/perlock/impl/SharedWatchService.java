@@ -0,0 +1,407 @@
+package name.mitterdorfer.perlock.impl;
+
+import name.mitterdorfer.perlock.impl.util.Preconditions;
+import name.mitterdorfer.perlock.impl.watch.WatchBudgetManager;
+import name.mitterdorfer.perlock.impl.watch.WatchKeyTrie;
+import name.mitterdorfer.perlock.impl.watch.WatchRegistrationFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystem;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * <p>Multiplexes multiple {@link WatchServicePathWatcher} instances on one file system onto a single
+ * <code>WatchService</code> which is polled by a single thread. The polling thread routes each signalled
+ * <code>WatchKey</code> to all path watchers that have registered the key's directory.</p>
+ *
+ * <p>The underlying watch service is created lazily when the first path watcher is started and it is closed again as
+ * soon as the last path watcher has been stopped.</p>
+ *
+ * <p>Note that a <code>WatchService</code> may hand out the same <code>WatchKey</code> if the same directory is
+ * registered multiple times (e.g. by path watchers with overlapping root paths). Therefore, a key is only cancelled
+ * after the last path watcher that has registered it has been stopped.</p>
+ *
+ * <p>THIS IS AN INTERNAL IMPLEMENTATION CLASS AND DOES NOT BELONG TO THE API. DO NOT USE IT DIRECTLY.</p>
+ */
+public final class SharedWatchService {
+    private static final Logger LOG = LoggerFactory.getLogger(SharedWatchService.class);
+
+    private final FileSystem fileSystem;
+    private final WatchRegistrationFactory watchRegistrationFactory;
+    private final ExecutorService executorService;
+    // null if the watches of this file system do not count against a budget
+    private final WatchBudgetManager budget;
+    private final ConcurrentMap<WatchKey, WatchServicePathWatcher[]> routes = new ConcurrentHashMap<>();
+    // Registrations (read lock) may happen concurrently but must not overlap with the cancellation of keys (write lock).
+    // Otherwise a path watcher could get a key handed out that is cancelled before it can route it.
+    private final ReadWriteLock registrationLock = new ReentrantReadWriteLock();
+
+    // guarded by "this"
+    private final Set<WatchServicePathWatcher> watchers = new HashSet<>();
+    // guarded by "this"
+    private WatchService watchService;
+    // true iff deferred work has been scheduled via scheduleDeferredWork() and has to run without waiting
+    private volatile boolean deferredWorkScheduled;
+    // only accessed by the polling thread: true iff a path watcher has deferred work that is due later
+    private boolean deferredWorkPending;
+    // guards the following two fields which are used to wake up the polling thread if deferred work is scheduled by
+    // another thread
+    private final Object wakeUpLock = new Object();
+    // the polling thread while it waits for a key, null otherwise
+    private Thread waitingPoller;
+    private boolean wokenUp;
+
+    /**
+     * Creates a new <code>SharedWatchService</code>.
+     *
+     * @param fileSystem               The file system for which a watch service should be shared. Must not be null.
+     * @param watchRegistrationFactory Creates the underlying watch service. Must not be null.
+     * @param executorService          The executor service which will run the polling thread. Must not be null.
+     * @param budget                   The budget against which the path watchers of this file system reserve their
+     *                                 watches. A watch key that is shared by multiple path watchers is only charged
+     *                                 once. May be null if the watches are not limited by a budget.
+     */
+    public SharedWatchService(FileSystem fileSystem, WatchRegistrationFactory watchRegistrationFactory,
+                              ExecutorService executorService, WatchBudgetManager budget) {
+        Preconditions.isNotNull(fileSystem, "fileSystem");
+        Preconditions.isNotNull(watchRegistrationFactory, "watchRegistrationFactory");
+        Preconditions.isNotNull(executorService, "executorService");
+        this.fileSystem = fileSystem;
+        this.watchRegistrationFactory = watchRegistrationFactory;
+        this.executorService = executorService;
+        this.budget = budget;
+    }
+
+    /**
+     * Creates a key map for a path watcher that keeps the routing table of this shared watch service up to date.
+     */
+    WatchKeyTrie newRoutingTable(WatchServicePathWatcher owner) {
+        return new RoutingTable(owner);
+    }
+
+    /**
+     * Attaches a path watcher. The underlying watch service is created (and polled) on demand.
+     *
+     * @return The watch service on which the path watcher should register its paths.
+     */
+    synchronized WatchService acquire(WatchServicePathWatcher watcher) throws IOException {
+        if (watchService == null) {
+            LOG.trace("Creating shared watch service for '{}'.", fileSystem);
+            watchService = watchRegistrationFactory.newWatchService(fileSystem);
+            executorService.submit(new Poller(watchService));
+        }
+        watchers.add(watcher);
+        return watchService;
+    }
+
+    /**
+     * Detaches a path watcher. All keys that are not used by any other path watcher are cancelled. The underlying watch
+     * service is closed when the last path watcher has been detached.
+     */
+    void release(WatchServicePathWatcher watcher) {
+        registrationLock.writeLock().lock();
+        try {
+            watcher.clearKeys();
+        } finally {
+            registrationLock.writeLock().unlock();
+        }
+        WatchService serviceToClose = null;
+        synchronized (this) {
+            if (watchers.remove(watcher) && watchers.isEmpty()) {
+                serviceToClose = watchService;
+                watchService = null;
+            }
+        }
+        if (serviceToClose != null) {
+            LOG.trace("Closing shared watch service for '{}' as there are no more path watchers.", fileSystem);
+            try {
+                serviceToClose.close();
+            } catch (IOException ex) {
+                LOG.warn("Could not close shared watch service for '" + fileSystem + "' properly.", ex);
+            }
+        }
+    }
+
+    void beginRegistration() {
+        registrationLock.readLock().lock();
+    }
+
+    void endRegistration() {
+        registrationLock.readLock().unlock();
+    }
+
+    /**
+     * @return The lock that has to be held while registering paths on another thread than the one that calls
+     * {@link #beginRegistration()}.
+     */
+    Lock getRegistrationLock() {
+        return registrationLock.readLock();
+    }
+
+    private void route(WatchKey key, WatchServicePathWatcher watcher) {
+        while (true) {
+            WatchServicePathWatcher[] current = routes.get(key);
+            if (current == null) {
+                if (routes.putIfAbsent(key, new WatchServicePathWatcher[]{watcher}) == null) {
+                    return;
+                }
+            } else {
+                for (WatchServicePathWatcher routed : current) {
+                    if (routed == watcher) {
+                        return;
+                    }
+                }
+                WatchServicePathWatcher[] updated = Arrays.copyOf(current, current.length + 1);
+                updated[current.length] = watcher;
+                if (routes.replace(key, current, updated)) {
+                    if (budget != null) {
+                        // the directory has been registered already and the kernel reuses its watch
+                        budget.watchShared();
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    private void unroute(WatchKey key, WatchServicePathWatcher watcher, boolean cancelUnusedKey) {
+        while (true) {
+            WatchServicePathWatcher[] current = routes.get(key);
+            if (current == null) {
+                return;
+            }
+            List<WatchServicePathWatcher> remaining = new ArrayList<>(current.length);
+            for (WatchServicePathWatcher routed : current) {
+                if (routed != watcher) {
+                    remaining.add(routed);
+                }
+            }
+            if (remaining.isEmpty()) {
+                if (routes.remove(key, current)) {
+                    if (cancelUnusedKey) {
+                        key.cancel();
+                    }
+                    return;
+                }
+            } else if (routes.replace(key, current, remaining.toArray(new WatchServicePathWatcher[remaining.size()]))) {
+                if (budget != null) {
+                    // the other path watchers still use the watch
+                    budget.watchUnshared();
+                }
+                return;
+            }
+        }
+    }
+
+    private void dispatch(WatchKey key) {
+        List<WatchEvent<?>> events = key.pollEvents();
+        WatchServicePathWatcher[] targets = routes.get(key);
+        if (targets == null) {
+            if (key.isValid()) {
+                LOG.warn("WatchKey '{}' not recognized", key);
+            }
+        } else {
+            for (WatchServicePathWatcher target : targets) {
+                try {
+                    target.handleKey(key, events);
+                    //Catch all exceptions - not just IOException. Listeners might throw other exceptions as well
+                } catch (Exception ex) {
+                    target.terminate(ex);
+                }
+            }
+        }
+        if (!key.reset()) {
+            targets = routes.get(key);
+            if (targets != null) {
+                for (WatchServicePathWatcher target : targets) {
+                    if (!target.keyInvalidated(key)) {
+                        target.terminate(null);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Requests that the polling thread invokes {@link WatchServicePathWatcher#runDeferredWork()} on all path watchers.
+     * If the polling thread currently waits for a key, it is woken up by interrupting it. The polling thread is never
+     * interrupted while it handles keys (and thus runs listener code).
+     */
+    void scheduleDeferredWork() {
+        deferredWorkScheduled = true;
+        synchronized (wakeUpLock) {
+            if (waitingPoller != null && !wokenUp) {
+                wokenUp = true;
+                waitingPoller.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Called by the polling thread before it waits for a key.
+     *
+     * @return true iff deferred work has been scheduled in the meantime, i.e. the polling thread must not block.
+     */
+    private boolean beginWaiting() {
+        synchronized (wakeUpLock) {
+            waitingPoller = Thread.currentThread();
+        }
+        return deferredWorkScheduled;
+    }
+
+    /**
+     * Called by the polling thread after it has waited for a key.
+     *
+     * @return true iff the polling thread has been interrupted to wake it up. The interrupt is cleared in that case.
+     */
+    private boolean endWaiting() {
+        boolean interruptedToWakeUp;
+        synchronized (wakeUpLock) {
+            waitingPoller = null;
+            interruptedToWakeUp = wokenUp;
+            wokenUp = false;
+        }
+        if (interruptedToWakeUp) {
+            Thread.interrupted();
+            if (executorService.isShutdown()) {
+                // the executor service might have interrupted the polling thread as well; don't swallow that
+                Thread.currentThread().interrupt();
+            }
+        }
+        return interruptedToWakeUp;
+    }
+
+    /**
+     * @return <code>-1</code> if no path watcher has deferred work left, otherwise the number of nanoseconds until the
+     * next deferred work is due.
+     */
+    private long runDeferredWork() {
+        if (!deferredWorkScheduled && !deferredWorkPending) {
+            return -1L;
+        }
+        // reset before running the work so that work which is scheduled concurrently is not lost
+        deferredWorkScheduled = false;
+        List<WatchServicePathWatcher> targets;
+        synchronized (this) {
+            targets = new ArrayList<>(watchers);
+        }
+        long delay = -1L;
+        for (WatchServicePathWatcher target : targets) {
+            try {
+                long targetDelay = target.runDeferredWork();
+                if (targetDelay >= 0 && (delay < 0 || targetDelay < delay)) {
+                    delay = targetDelay;
+                }
+                //Catch all exceptions - not just IOException. Listeners might throw other exceptions as well
+            } catch (Exception ex) {
+                target.terminate(ex);
+            }
+        }
+        // Tracked separately from deferredWorkScheduled. Otherwise the poller could not tell work that is due later from
+        // work that has been scheduled concurrently and would wait for the full delay before running the latter.
+        deferredWorkPending = delay >= 0;
+        return delay;
+    }
+
+    private void terminateAll(WatchService service) {
+        List<WatchServicePathWatcher> orphans;
+        synchronized (this) {
+            // only terminate path watchers if this service has not been replaced in the meantime
+            orphans = service == watchService ? new ArrayList<>(watchers) : Collections.<WatchServicePathWatcher>emptyList();
+        }
+        for (WatchServicePathWatcher orphan : orphans) {
+            orphan.terminate(null);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SharedWatchService for '" + fileSystem + "'";
+    }
+
+    private final class Poller implements Runnable {
+        private final WatchService service;
+
+        private Poller(WatchService service) {
+            this.service = service;
+        }
+
+        @Override
+        public void run() {
+            LOG.trace("Waiting for file system events on '{}'", fileSystem);
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = null;
+                boolean interrupted = false;
+                try {
+                    long delay = runDeferredWork();
+                    if (beginWaiting()) {
+                        // deferred work has been scheduled in the meantime
+                        delay = 0L;
+                    }
+                    key = delay < 0 ? service.take() : service.poll(delay, TimeUnit.NANOSECONDS);
+                } catch (ClosedWatchServiceException ex) {
+                    LOG.trace("Shared watch service for '{}' has been closed.", fileSystem);
+                    return;
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                } finally {
+                    if (endWaiting() && interrupted) {
+                        // we have (most likely only) been woken up to run deferred work
+                        interrupted = Thread.currentThread().isInterrupted();
+                    }
+                }
+                if (interrupted) {
+                    LOG.trace("Polling thread for '{}' has been interrupted while waiting for an event to occur.", fileSystem);
+                    //signal interrupted status again
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                if (key != null) {
+                    dispatch(key);
+                }
+            }
+            // we have been interrupted from the outside (e.g. executor service shutdown). Nobody will poll anymore.
+            terminateAll(service);
+        }
+    }
+
+    /**
+     * Key map of one path watcher that updates the routing table of the shared watch service on modification.
+     */
+    private final class RoutingTable extends WatchKeyTrie {
+        private final WatchServicePathWatcher owner;
+
+        private RoutingTable(WatchServicePathWatcher owner) {
+            this.owner = owner;
+        }
+
+        @Override
+        protected void keyAdded(WatchKey key) {
+            route(key, owner);
+        }
+
+        @Override
+        protected void keyRemoved(WatchKey key, boolean cleared) {
+            // regular removal happens when a key has become invalid. It is not necessary to cancel it.
+            unroute(key, owner, cleared);
+        }
+    }
+}
@@ -1,6 +1,29 @@
 package name.mitterdorfer.perlock.impl;
 
+import name.mitterdorfer.perlock.BatchPathChangeListener;
 import name.mitterdorfer.perlock.EventKind;
+import name.mitterdorfer.perlock.PathEvent;
+import name.mitterdorfer.perlock.RegistrationProgress;
+import name.mitterdorfer.perlock.WatchMetrics;
+import name.mitterdorfer.perlock.WatchOptions;
+import name.mitterdorfer.perlock.impl.dispatch.DispatchStage;
+import name.mitterdorfer.perlock.impl.dispatch.DispatchStages;
+import name.mitterdorfer.perlock.impl.dispatch.WriteCompletionDispatcher;
+import name.mitterdorfer.perlock.impl.dispatch.EventBatch;
+import name.mitterdorfer.perlock.impl.dispatch.PathChangeListenerAdapter;
+import name.mitterdorfer.perlock.impl.inotify.InotifyWatchService;
+import name.mitterdorfer.perlock.impl.metrics.MeteredDelivery;
+import name.mitterdorfer.perlock.impl.move.MoveCorrelator;
+import name.mitterdorfer.perlock.impl.recovery.CheckpointFile;
+import name.mitterdorfer.perlock.impl.recovery.DirectorySnapshot;
+import name.mitterdorfer.perlock.impl.recovery.MapSnapshotStore;
+import name.mitterdorfer.perlock.impl.recovery.OverflowRecovery;
+import name.mitterdorfer.perlock.impl.tree.TreeMirror;
+import name.mitterdorfer.perlock.impl.watch.PathFilter;
+import name.mitterdorfer.perlock.impl.watch.RegistrationTracker;
+import name.mitterdorfer.perlock.impl.watch.WatchBudgetManager;
+import name.mitterdorfer.perlock.impl.watch.WatchKeyTrie;
+import name.mitterdorfer.perlock.impl.watch.WatchQuota;
 import name.mitterdorfer.perlock.impl.watch.WatchRegistrationFactory;
 import name.mitterdorfer.perlock.impl.util.Preconditions;
 import name.mitterdorfer.perlock.impl.watch.WatchRegistrationStrategy;
@@ -11,9 +34,15 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
 import static java.nio.file.StandardWatchEventKinds.*;
 
 /**
@@ -27,34 +56,200 @@ import static java.nio.file.StandardWatchEventKinds.*;
  *
  * <p>THIS IS AN INTERNAL IMPLEMENTATION CLASS AND DOES NOT BELONG TO THE API. DO NOT USE IT DIRECTLY.</p>
  */
-public final class WatchServicePathWatcher implements PathWatcher {
+public final class WatchServicePathWatcher implements EventLoopPathWatcher {
     private static final Logger LOG = LoggerFactory.getLogger(WatchServicePathWatcher.class);
+    // upper bound of signalled keys whose events are delivered together in one batch
+    private static final int MAX_KEYS_PER_BATCH = 64;
+    // how often catch-up events of a background registration are picked up
+    private static final long CATCH_UP_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100L);
 
-    private final Map<WatchKey,Path> keys;
-    private final PathChangeListener listener;
+    private final WatchKeyTrie keys;
+    private final BatchPathChangeListener listener;
+    // Events are collected here and delivered at once. Only used by the thread that handles keys.
+    private final EventBatch batch = new EventBatch();
+    private final List<WatchKey> signalledKeys = new ArrayList<>();
     private final Path rootPath;
+    private final boolean recursive;
+    // null if no paths are filtered
+    private final PathFilter filter;
+    // the kinds of events that are reported; other kinds might still be observed for internal purposes
+    private final EnumSet<EventKind> eventKinds;
+    private final WatchRegistrationFactory watchRegistrationFactory;
     private final WatchRegistrationStrategy registry;
-    //no need to declare watcher as volatile. It should only be used from the Watcher thread, otherwise something went
-    //seriously wrong...
-    private WatchService watcher;
+    // null if overflow recovery and checkpoints are disabled and the watched tree is not mirrored
+    private final OverflowRecovery recovery;
+    // null if no checkpoint is kept
+    private final CheckpointFile checkpoint;
+    private final long checkpointIntervalNanos;
+    // when the next checkpoint is due. Only used by the thread that handles keys.
+    private long nextCheckpoint;
+    private final OverflowRecovery.Sink recoverySink = new OverflowRecovery.Sink() {
+        @Override
+        public void onRecoveredEvent(EventKind eventKind, Path path) {
+            if (filter != null && filter.isExcluded(path)) {
+                return;
+            }
+            LOG.trace("Recovered watch event with kind '{}' for path '{}'.", eventKind, path);
+            if (isReported(eventKind, path)) {
+                batch.add(eventKind, path);
+            }
+            if (eventKind == EventKind.CREATE) {
+                registerChild(path);
+            }
+        }
+    };
+    // limits the number of watches; directories without a watch are degraded
+    private final WatchQuota quota;
+    private final long degradedScanIntervalNanos;
+    // scans degraded subtrees periodically
+    private final OverflowRecovery degradedScans;
+    // roots of degraded subtrees. Only used by the thread that handles keys (and the thread that starts this watcher).
+    private final List<Path> degradedDirs = new ArrayList<>();
+    private final OverflowRecovery.Sink degradedScanSink = new OverflowRecovery.Sink() {
+        @Override
+        public void onRecoveredEvent(EventKind eventKind, Path path) {
+            if (filter != null && filter.isExcluded(path)) {
+                return;
+            }
+            LOG.trace("Scanned watch event with kind '{}' for degraded path '{}'.", eventKind, path);
+            if (isReported(eventKind, path)) {
+                batch.add(eventKind, path);
+            }
+            if (recovery != null) {
+                recovery.update(eventKind, path);
+            }
+        }
+    };
+    // null unless deletions and creations are correlated into moves
+    private final MoveCorrelator moves;
+    private final MoveCorrelator.Sink moveSink = new MoveCorrelator.Sink() {
+        @Override
+        public void onDeleted(Path path) {
+            LOG.trace("Deleted path '{}' has not been moved.", path);
+            if (isReported(EventKind.DELETE, path)) {
+                batch.add(EventKind.DELETE, path);
+            }
+            if (recursive) {
+                removeTree(path);
+            }
+        }
+    };
+    // Creations in the current batch keyed by the identity of the created entry. Some watch services report the
+    // creation of a renamed entry before its deletion. Only used if moves are detected.
+    private final Map<Object, BatchedCreation> batchedCreations = new HashMap<>();
+    // null unless write completion is awaited
+    private final WriteCompletionDispatcher writeCompletion;
+    // files that have been closed after writing in the current batch. Only used if write completion is awaited.
+    private final List<Path> closedFiles = new ArrayList<>();
+    // null if this watcher owns its watch service
+    private final SharedWatchService sharedWatchService;
+    // null if this watcher owns its watch service
+    private final TerminationListener terminationListener;
+    // null if metrics are not recorded
+    private final WatchMetrics metrics;
+    //A dedicated watcher only uses the watch service from the watcher thread. A shared watch service is however
+    //acquired by the thread that starts the watcher and used by the polling thread of the shared watch service.
+    private volatile WatchService watcher;
     // due to #isRunning() we need visibility of running across threads...
     private volatile boolean running;
+    // the registration of the most recent start. It is read by clients and by the thread that handles keys.
+    private volatile RegistrationTracker registration = new RegistrationTracker(null);
 
     public WatchServicePathWatcher(Path rootPath,
                                    WatchRegistrationFactory factory,
                                    boolean recursive,
                                    PathChangeListener listener) {
+        this(rootPath, factory, recursive, new PathChangeListenerAdapter(listener), WatchOptions.defaults(), null, null,
+                null, null);
+    }
+
+    /**
+     * Creates a new <code>WatchServicePathWatcher</code> that is optionally multiplexed onto the provided shared watch
+     * service instead of owning a watch service.
+     *
+     * @param options             Options that tune the behavior of this path watcher. Must not be null.
+     * @param sharedWatchService  The shared watch service that delivers watch events to this path watcher. May be null
+     *                            if this path watcher should create its own watch service.
+     * @param terminationListener Is notified if the shared watch service stops this path watcher on its own, e.g.
+     *                            because the listener has thrown an exception. Must not be null if
+     *                            <code>sharedWatchService</code> is not null.
+     * @param mirror              The in-memory mirror of the watched tree that this path watcher keeps up to date.
+     *                            May be null if the watched tree should not be mirrored. Requires a recursive path
+     *                            watcher on <code>rootPath</code>.
+     * @param budget              The budget of kernel watches that this path watcher shares with other path watchers.
+     *                            May be null if the watches of this path watcher are not limited by a shared budget.
+     */
+    public WatchServicePathWatcher(Path rootPath,
+                                   WatchRegistrationFactory factory,
+                                   boolean recursive,
+                                   BatchPathChangeListener listener,
+                                   WatchOptions options,
+                                   SharedWatchService sharedWatchService,
+                                   TerminationListener terminationListener,
+                                   TreeMirror mirror,
+                                   WatchBudgetManager budget) {
         Preconditions.isNotNull(rootPath, "rootPath");
         Preconditions.isNotNull(factory, "factory");
         Preconditions.isNotNull(listener, "listener");
+        Preconditions.isNotNull(options, "options");
         Preconditions.isTrue(Files.exists(rootPath), String.format("'rootPath' (%s) must exist", rootPath.getFileName()));
         Preconditions.isTrue(Files.isReadable(rootPath), String.format("'rootPath' (%s) must be readable", rootPath.getFileName()));
         Preconditions.isTrue(Files.isDirectory(rootPath), String.format("'rootPath' (%s) must be a directory", rootPath.getFileName()));
 
-        this.keys = new HashMap<>();
+        Preconditions.isTrue(sharedWatchService == null || terminationListener != null,
+                "'terminationListener' must not be null for a shared watch service");
+        Preconditions.isTrue(mirror == null || recursive, "Only recursive path watchers can mirror the watched tree");
+        Preconditions.isTrue(mirror == null || rootPath.equals(mirror.getRootPath()),
+                "'mirror' must mirror the tree below 'rootPath'");
+
+        this.sharedWatchService = sharedWatchService;
+        this.terminationListener = terminationListener;
+        this.keys = sharedWatchService != null ? sharedWatchService.newRoutingTable(this) : new WatchKeyTrie();
         this.rootPath = rootPath;
-        this.listener = listener;
-        this.registry = factory.createRegistrationStrategy(keys, recursive);
+        this.recursive = recursive;
+        this.filter = PathFilter.create(rootPath, options);
+        this.eventKinds = EnumSet.copyOf(options.getEventKinds());
+        this.listener = DispatchStages.create(listener, options);
+        this.writeCompletion = this.listener instanceof WriteCompletionDispatcher
+                ? (WriteCompletionDispatcher) this.listener : null;
+        this.recovery = createRecovery(recursive, options, mirror, filter);
+        this.checkpoint = options.isCheckpoint() ? new CheckpointFile(options.getCheckpointFile()) : null;
+        this.checkpointIntervalNanos = options.getCheckpointIntervalNanos();
+        this.moves = options.isDetectMoves() ? new MoveCorrelator(options.getMoveWindowNanos()) : null;
+        this.quota = new WatchQuota(budget, options.getMaxWatches());
+        this.degradedScanIntervalNanos = options.getDegradedScanIntervalNanos();
+        this.metrics = options.getMetrics();
+        this.degradedScans = new OverflowRecovery(recursive, null, degradedScanIntervalNanos, new MapSnapshotStore(),
+                filter);
+        // snapshots can only be kept up to date if we observe all kinds of events
+        EnumSet<EventKind> observedKinds = EnumSet.copyOf(eventKinds);
+        if (recovery != null) {
+            observedKinds.addAll(EnumSet.range(EventKind.CREATE, EventKind.DELETE));
+        }
+        if (sharedWatchService != null) {
+            // Registering a directory again replaces the kinds of events of its watch. Other path watchers on the
+            // shared watch service might register the same directories, so all of them register all kinds of events
+            // and each one drops the events it has not asked for when handling a key.
+            observedKinds = EnumSet.allOf(EventKind.class);
+        }
+        this.watchRegistrationFactory = factory;
+        this.registry = factory.createRegistrationStrategy(keys, recursive, options, filter, observedKinds, quota);
+    }
+
+    private static OverflowRecovery createRecovery(boolean recursive, WatchOptions options, TreeMirror mirror,
+                                                   PathFilter filter) {
+        if (options.isRecoverFromOverflow()) {
+            return new OverflowRecovery(recursive, options.getOverflowScanExecutor(),
+                    options.getMinRescanIntervalNanos(), mirror != null ? mirror : new MapSnapshotStore(), filter);
+        } else if (mirror != null || options.isDetectMoves() || options.isCheckpoint()) {
+            // The mirror is built and kept up to date by the same means as the snapshots for overflow recovery. It
+            // would be inconsistent forever after an overflow so we need to rescan anyway. Moves are correlated via the
+            // file keys in the snapshots. Checkpoints persist the snapshots.
+            return new OverflowRecovery(recursive, options.getCheckpointScanExecutor(), 0L,
+                    mirror != null ? mirror : new MapSnapshotStore(), filter);
+        } else {
+            return null;
+        }
     }
 
     @SuppressWarnings("unchecked")
@@ -66,13 +261,29 @@ public final class WatchServicePathWatcher implements PathWatcher {
         if (running) {
             throw new IllegalStateException("Cannot start a PathWatcher that is already running.");
         }
-        // Always create a new WatchService instance as the old one will get closed on stop().
-        // We'll assume that it's safe to use the associated watch service of our root path.
-        this.watcher = rootPath.getFileSystem().newWatchService();
+        if (sharedWatchService != null) {
+            this.watcher = sharedWatchService.acquire(this);
+        } else {
+            // Always create a new WatchService instance as the old one will get closed on stop().
+            // We'll assume that it's safe to use the associated watch service of our root path.
+            this.watcher = watchRegistrationFactory.newWatchService(rootPath.getFileSystem());
+        }
     }
 
     private void performRegistration() throws IOException {
-        registry.registerRoot(watcher, rootPath);
+        if (sharedWatchService != null) {
+            sharedWatchService.beginRegistration();
+        }
+        RegistrationTracker tracker = new RegistrationTracker(
+                sharedWatchService != null ? sharedWatchService.getRegistrationLock() : null, metrics);
+        registration = tracker;
+        try {
+            registry.registerRoot(watcher, rootPath, tracker);
+        } finally {
+            if (sharedWatchService != null) {
+                sharedWatchService.endRegistration();
+            }
+        }
     }
 
     /**
@@ -80,37 +291,125 @@ public final class WatchServicePathWatcher implements PathWatcher {
      */
     @Override
     public PathWatcher start() throws IOException {
+        if (!running) {
+            // forget about the state of a previous run; it is outdated anyway
+            if (recovery != null) {
+                recovery.clear();
+            }
+            degradedScans.clear();
+            degradedDirs.clear();
+            if (moves != null) {
+                moves.clear();
+            }
+        }
         prepareWatcher();
-        performRegistration();
+        if (listener instanceof DispatchStage) {
+            ((DispatchStage) listener).start();
+        }
+        try {
+            performRegistration();
+            if (recovery != null) {
+                trackRoot();
+            }
+            // don't miss changes in directories that have been degraded during registration
+            takeOverDegradedDirs();
+        } catch (IOException | RuntimeException ex) {
+            // don't leak the watch service (or our share of it) if we cannot even register the root path
+            stop();
+            throw ex;
+        }
+        nextCheckpoint = System.nanoTime() + checkpointIntervalNanos;
         running = true;
+        if ((!registration.isDone() || quota.hasPendingDegraded() || checkpoint != null) && sharedWatchService != null) {
+            // pick up catch-up events of the background registration, start scanning degraded directories and catch up
+            // on changes since the last checkpoint
+            sharedWatchService.scheduleDeferredWork();
+        }
         return this;
     }
 
+    /**
+     * Takes the initial snapshots of the watched tree. If there is a checkpoint, its snapshots are restored instead and
+     * the tree is rescanned as deferred work (which runs before further keys are handled) to catch up on changes since
+     * then.
+     */
+    private void trackRoot() {
+        if (checkpoint != null) {
+            try {
+                if (recovery.restore(rootPath, checkpoint)) {
+                    LOG.debug("Restored checkpoint '{}'. Catching up on changes below '{}'.", checkpoint.getFile(),
+                            rootPath);
+                    return;
+                }
+            } catch (IOException ex) {
+                LOG.warn("Could not restore checkpoint '" + checkpoint.getFile() + "'. Changes below '" + rootPath +
+                        "' while not watching are not reported.", ex);
+            }
+        }
+        recovery.track(rootPath);
+    }
+
     @Override
     public boolean isRunning() {
         return running;
     }
 
+    @Override
+    public RegistrationProgress getRegistrationProgress() {
+        return registration;
+    }
+
+    /**
+     * Runs the event loop of a path watcher that owns its watch service. Returns when the path watcher is stopped.
+     */
+    @Override
     public void watch() {
+        Preconditions.isTrue(sharedWatchService == null, "A path watcher on a shared watch service has no event loop");
         LOG.trace("Waiting for file system events");
         boolean moreKeysToProcess = true;
         while(moreKeysToProcess && !Thread.currentThread().isInterrupted()) {
-            // wait for key to be signalled
-            WatchKey key = takeKey();
+            // wait for key to be signalled (or until deferred work is due)
+            WatchKey key = takeKey(runDeferredWork());
             if (key != null) {
-                handleKey(key);
-                moreKeysToProcess = resetKey(key);
+                // deliver the events of all keys that are already signalled as well in one batch
+                do {
+                    signalledKeys.add(key);
+                } while (signalledKeys.size() < MAX_KEYS_PER_BATCH && (key = watcher.poll()) != null);
+                try {
+                    for (int i = 0; i < signalledKeys.size(); i++) {
+                        WatchKey signalledKey = signalledKeys.get(i);
+                        collectEvents(signalledKey, signalledKey.pollEvents());
+                    }
+                    if (metrics != null) {
+                        metrics.onWakeup(batch.size());
+                    }
+                    deliverBatch();
+                    for (int i = 0; i < signalledKeys.size(); i++) {
+                        resetKey(signalledKeys.get(i));
+                    }
+                    // invalid keys have been removed; stop once no directory is accessible anymore
+                    moreKeysToProcess = !keys.isEmpty();
+                } finally {
+                    signalledKeys.clear();
+                }
             } else {
-                moreKeysToProcess = false;
+                // we either got interrupted or deferred work is due
+                moreKeysToProcess = !Thread.currentThread().isInterrupted();
             }
         }
+        if (checkpoint != null) {
+            writeCheckpoint();
+        }
         //close watch service also when exiting
         stop();
     }
 
-    private WatchKey takeKey() {
+    /**
+     * @param timeoutNanos The maximum time to wait for a key or a negative value to wait indefinitely.
+     */
+    private WatchKey takeKey(long timeoutNanos) {
         try {
-            return watcher.take();
+            return timeoutNanos < 0 ? watcher.take() : watcher.poll(timeoutNanos, TimeUnit.NANOSECONDS);
         } catch (InterruptedException x) {
             LOG.trace("Current watcher thread has been interrupted while waiting for an event to occur.");
             //signal interrupted status again
@@ -120,54 +419,520 @@ public final class WatchServicePathWatcher implements PathWatcher {
         }
     }
 
-    private void handleKey(WatchKey key) {
+    /**
+     * Processes all events that have been polled for the given key. In shared mode this method is called by the polling
+     * thread of the shared watch service.
+     */
+    void handleKey(WatchKey key, List<WatchEvent<?>> events) {
+        collectEvents(key, events);
+        if (metrics != null) {
+            metrics.onWakeup(batch.size());
+        }
+        deliverBatch();
+    }
+
+    /**
+     * Collects the events of a key in the batch. This is the hot path of a path watcher: In steady state it must not
+     * allocate. Therefore, the path of an entry is only resolved if it is needed.
+     */
+    private void collectEvents(WatchKey key, List<WatchEvent<?>> events) {
         Path dir = keys.get(key);
         if (dir != null) {
-            for (WatchEvent<?> event: key.pollEvents()) {
-                WatchEvent.Kind kind = event.kind();
-                LOG.trace("Received watch event with kind '{}'", kind);
+            // the list is random access; avoid allocating an iterator
+            for (int i = 0; i < events.size(); i++) {
+                WatchEvent<?> event = events.get(i);
+                WatchEvent.Kind<?> kind = event.kind();
                 //too many events
                 if (kind != OVERFLOW) {
                     // The context for a directory entry event is the file name of entry
                     WatchEvent<Path> ev = cast(event);
-                    Path name = ev.context();
-                    Path child = dir.resolve(name);
-                    LOG.trace("Handling watch event with kind '{}' for path '{}'.", kind, child);
-                    listener.onPathChanged(EventKind.eventKindForWatchEventKind(ev.kind()), child);
-
-                    if (kind == ENTRY_CREATE) {
-                        try {
-                            registry.registerChild(watcher, child);
-                        } catch (IOException e) {
-                            LOG.warn("Could not register watch for '{}'.", child);
+                    if (kind == InotifyWatchService.ENTRY_CLOSE_WRITE) {
+                        // only requested if write completion is awaited
+                        if (writeCompletion != null) {
+                            closedFiles.add(dir.resolve(ev.context()));
                         }
+                        continue;
+                    }
+                    EventKind eventKind = EventKind.eventKindForWatchEventKind(kind);
+                    if (moves != null && kind != ENTRY_MODIFY && correlateMove(ev, dir, eventKind)) {
+                        continue;
+                    }
+                    boolean reportedKind = eventKinds.contains(eventKind);
+                    // the native backend tells whether a new entry is a directory; avoids a stat call per new file
+                    boolean registerChild = kind == ENTRY_CREATE && recursive
+                            && !InotifyWatchService.isKnownNonDirectory(ev);
+                    if (!reportedKind && recovery == null && !registerChild) {
+                        // the watch service delivered an event we have not asked for and do not need internally
+                        continue;
+                    }
+                    PathEvent pathEvent;
+                    if (filter == null && reportedKind) {
+                        pathEvent = batch.add(eventKind, dir, ev.context());
+                    } else {
+                        Path child = dir.resolve(ev.context());
+                        if (filter != null && filter.isExcluded(child)) {
+                            continue;
+                        }
+                        // unreported events are still needed to keep registrations and snapshots up to date
+                        pathEvent = reportedKind && (filter == null || filter.isIncluded(child))
+                                ? batch.add(eventKind, child) : PathEvent.of(eventKind, child);
+                    }
+                    if (LOG.isTraceEnabled()) {
+                        LOG.trace("Handling watch event with kind '{}' for path '{}'.", kind, pathEvent.getPath());
+                    }
+                    if (kind == ENTRY_DELETE && recursive) {
+                        removeTree(key, ev.context(), pathEvent);
+                    }
+                    if (registerChild) {
+                        registerChild(pathEvent.getPath());
+                    }
+                    // correlateMove() has removed a deleted entry from the snapshots already
+                    if (recovery != null && (moves == null || kind != ENTRY_DELETE)) {
+                        recovery.update(eventKind, pathEvent.getPath());
+                    }
+                } else if (recovery != null) {
+                    LOG.debug("Watch service event overflow. Rescanning '{}'.", dir);
+                    if (metrics != null) {
+                        metrics.onOverflow();
+                    }
+                    recovery.overflow(dir);
+                    if (sharedWatchService != null) {
+                        sharedWatchService.scheduleDeferredWork();
                     }
                 } else {
                     LOG.warn("Watch service event overflow.");
+                    if (metrics != null) {
+                        metrics.onOverflow();
+                    }
                 }
             }
-        } else {
+        } else if (key.isValid()) {
+            // keys of deleted directories are removed eagerly; they might be signalled once more
             LOG.warn("WatchKey '{}' not recognized", key);
         }
     }
 
-    private boolean resetKey(WatchKey key) {
-        // reset key and remove from set if directory no longer accessible
-        boolean valid = key.reset();
-        if (!valid) {
-            keys.remove(key);
+    /**
+     * Releases the watches of a deleted directory and its subtree immediately and stops scanning it if it has been
+     * degraded.
+     */
+    private void removeTree(WatchKey parentKey, Path name, PathEvent pathEvent) {
+        releaseKeys(keys.removeTree(parentKey, name));
+        // don't resolve the path unless necessary
+        if (!degradedDirs.isEmpty() && degradedDirs.remove(pathEvent.getPath())) {
+            quota.degradedDirRemoved();
+        }
+    }
+
+    private void removeTree(Path dir) {
+        releaseKeys(keys.removeTree(dir));
+        if (!degradedDirs.isEmpty() && degradedDirs.remove(dir)) {
+            quota.degradedDirRemoved();
+        }
+    }
+
+    private void releaseKeys(List<WatchKey> removed) {
+        if (sharedWatchService == null) {
+            // a shared watch service cancels keys once no path watcher uses them anymore
+            for (int i = 0; i < removed.size(); i++) {
+                removed.get(i).cancel();
+            }
+        }
+        quota.release(removed.size());
+        if (metrics != null && !removed.isEmpty()) {
+            metrics.onKeysInvalidated(removed.size());
+        }
+    }
 
-            // all directories are inaccessible
-            if (keys.isEmpty()) {
+    /**
+     * Holds back deletions of entries with a known identity and correlates them with subsequent creations of the same
+     * entry. The inotify backend reports renames as such; its other deletions and creations are never part of a move.
+     * For other watch services, the file key of a deleted entry is taken from its snapshot.
+     *
+     * The snapshots are updated for all deletions of included entries, whether they are consumed or not.
+     *
+     * @return true iff the event has been consumed, i.e. a deletion has been held back or a creation has completed a
+     * move.
+     */
+    private boolean correlateMove(WatchEvent<Path> event, Path dir, EventKind eventKind) {
+        Path child = dir.resolve(event.context());
+        if (filter != null && filter.isExcluded(child)) {
+            return false;
+        }
+        int cookie = InotifyWatchService.moveCookieOf(event);
+        boolean renameCookies = watcher instanceof InotifyWatchService;
+        if (eventKind == EventKind.DELETE) {
+            DirectorySnapshot.Entry removed = recovery.update(EventKind.DELETE, child);
+            Object identity;
+            if (renameCookies) {
+                identity = cookie != 0 ? Integer.valueOf(cookie) : null;
+            } else {
+                identity = removed != null ? MoveCorrelator.identityOf(removed) : null;
+            }
+            if (identity == null) {
+                return false;
+            }
+            BatchedCreation creation = batchedCreations.isEmpty() ? null : batchedCreations.remove(identity);
+            if (creation != null) {
+                moveCreatedBefore(child, creation);
+                return true;
+            }
+            moves.deleted(child, identity, System.nanoTime(), moveSink);
+            if (sharedWatchService != null) {
+                sharedWatchService.scheduleDeferredWork();
+            }
+            return true;
+        }
+        // a deletion of the same path has happened before and has to be reported first
+        moves.release(child, moveSink);
+        Object identity;
+        if (renameCookies) {
+            identity = cookie != 0 ? Integer.valueOf(cookie) : null;
+        } else {
+            identity = identityOf(child);
+        }
+        if (identity == null) {
+            return false;
+        }
+        Path source = moves.created(identity);
+        if (source == null) {
+            if (renameCookies) {
                 return false;
             }
+            // the deletion might still follow in the current batch
+            LOG.trace("Handling watch event with kind '{}' for path '{}'.", eventKind, child);
+            int index = -1;
+            if (isReported(EventKind.CREATE, child)) {
+                index = batch.size();
+                batch.add(EventKind.CREATE, child);
+            }
+            batchedCreations.put(identity, new BatchedCreation(child, index));
+            if (recursive) {
+                registerChild(child);
+            }
+            recovery.update(EventKind.CREATE, child);
+            return true;
+        }
+        LOG.trace("Handling move from '{}' to '{}'.", source, child);
+        if (isReported(EventKind.MOVE, child)) {
+            batch.addMove(source, child);
+        } else {
+            // e.g. the entry has been moved to a path that is not included
+            if (isReported(EventKind.DELETE, source)) {
+                batch.add(EventKind.DELETE, source);
+            }
+            if (isReported(EventKind.CREATE, child)) {
+                batch.add(EventKind.CREATE, child);
+            }
+        }
+        if (recursive) {
+            // inotify keeps watching a moved directory; just re-key its subtree instead of registering it again
+            if (!renameCookies || containsDegradedDir(source) || !keys.move(source, child)) {
+                removeTree(source);
+                registerChild(child);
+            }
         }
+        recovery.update(EventKind.CREATE, child);
         return true;
     }
 
+    /**
+     * Turns a creation in the current batch into a move after the deletion of the same entry has been received.
+     */
+    private void moveCreatedBefore(Path source, BatchedCreation creation) {
+        LOG.trace("Handling move from '{}' to '{}'.", source, creation.path);
+        if (isReported(EventKind.MOVE, creation.path)) {
+            if (creation.index >= 0) {
+                batch.convertToMove(creation.index, source);
+            } else {
+                batch.addMove(source, creation.path);
+            }
+        } else if (isReported(EventKind.DELETE, source)) {
+            batch.add(EventKind.DELETE, source);
+        }
+        if (recursive) {
+            removeTree(source);
+        }
+    }
+
+    private static Object identityOf(Path path) {
+        try {
+            return MoveCorrelator.identityOf(DirectorySnapshot.Entry.of(Files.readAttributes(path,
+                    BasicFileAttributes.class, NOFOLLOW_LINKS)));
+        } catch (IOException ex) {
+            // the path is gone already
+            return null;
+        }
+    }
+
+    private boolean containsDegradedDir(Path dir) {
+        for (int i = 0; i < degradedDirs.size(); i++) {
+            if (degradedDirs.get(i).startsWith(dir)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Performs work that has been deferred by this path watcher, i.e. rescans after an overflow, delivery of events
+     * that a background registration has caught up on, periodic scans of degraded directories and deletions that have
+     * not turned out to be moves.
+     *
+     * @return <code>-1</code> if no work is pending anymore, otherwise the number of nanoseconds after which this
+     * method should be called again.
+     */
+    long runDeferredWork() {
+        long delay = -1L;
+        RegistrationTracker tracker = registration;
+        // check before draining; otherwise we might miss the last events
+        if (!tracker.isDone()) {
+            delay = CATCH_UP_INTERVAL_NANOS;
+        }
+        PathEvent event;
+        while ((event = tracker.pollCatchUpEvent()) != null) {
+            if (filter != null && filter.isExcluded(event.getPath())) {
+                continue;
+            }
+            LOG.trace("Caught up on watch event with kind '{}' for path '{}'.", event.getEventKind(), event.getPath());
+            if (isReported(event.getEventKind(), event.getPath())) {
+                batch.add(event.getEventKind(), event.getPath());
+            }
+            if (recovery != null) {
+                recovery.update(event.getEventKind(), event.getPath());
+            }
+        }
+        if (moves != null) {
+            long moveDelay = moves.expire(System.nanoTime(), moveSink);
+            if (moveDelay >= 0 && (delay < 0 || moveDelay < delay)) {
+                delay = moveDelay;
+            }
+        }
+        long scanDelay = scanDegradedDirs();
+        if (scanDelay >= 0 && (delay < 0 || scanDelay < delay)) {
+            delay = scanDelay;
+        }
+        if (recovery != null) {
+            long rescanDelay = recovery.rescanIfDue(recoverySink);
+            if (rescanDelay >= 0 && (delay < 0 || rescanDelay < delay)) {
+                delay = rescanDelay;
+            }
+        }
+        deliverBatch();
+        if (checkpoint != null && running) {
+            // only after delivery; a checkpoint must not contain changes that the listener has not been notified of
+            long checkpointDelay = nextCheckpoint - System.nanoTime();
+            if (checkpointDelay <= 0) {
+                writeCheckpoint();
+                nextCheckpoint = System.nanoTime() + checkpointIntervalNanos;
+                checkpointDelay = checkpointIntervalNanos;
+            }
+            if (delay < 0 || checkpointDelay < delay) {
+                delay = checkpointDelay;
+            }
+        }
+        return delay;
+    }
+
+    /**
+     * Writes the snapshots of the watched tree to the checkpoint. Failures are logged; the previous checkpoint is kept
+     * then.
+     */
+    private void writeCheckpoint() {
+        // writing to an interruptible channel fails if the thread is interrupted, e.g. because we are stopping
+        boolean interrupted = Thread.interrupted();
+        try {
+            recovery.checkpoint(rootPath, checkpoint);
+            LOG.trace("Wrote checkpoint '{}'.", checkpoint.getFile());
+            // Also catch runtime exceptions: A path watcher on a shared watch service is stopped on the client thread
+            // while the polling thread might still modify the snapshots.
+        } catch (IOException | RuntimeException ex) {
+            LOG.warn("Could not write checkpoint '" + checkpoint.getFile() + "'.", ex);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Takes over newly degraded directories and scans all degraded directories if the scan interval has elapsed.
+     *
+     * @return <code>-1</code> if there are no degraded directories, otherwise the number of nanoseconds until the next
+     * scan is due.
+     */
+    private long scanDegradedDirs() {
+        takeOverDegradedDirs();
+        if (degradedDirs.isEmpty()) {
+            return -1L;
+        }
+        for (int i = 0; i < degradedDirs.size(); i++) {
+            degradedScans.overflow(degradedDirs.get(i));
+        }
+        long scanDelay = degradedScans.rescanIfDue(degradedScanSink);
+        return scanDelay >= 0 ? scanDelay : degradedScanIntervalNanos;
+    }
+
+    /**
+     * Takes an initial snapshot of all directories that have been degraded since the last call. Changes are reported
+     * relative to this snapshot.
+     */
+    private void takeOverDegradedDirs() {
+        Path dir;
+        while ((dir = quota.pollDegraded()) != null) {
+            if (isDegraded(dir)) {
+                // e.g. a new directory within a degraded subtree; it is scanned already
+                quota.degradedDirRemoved();
+                continue;
+            }
+            degradedScans.track(dir);
+            degradedDirs.add(dir);
+        }
+    }
+
+    private boolean isDegraded(Path dir) {
+        for (int i = 0; i < degradedDirs.size(); i++) {
+            Path degradedDir = degradedDirs.get(i);
+            if (recursive ? dir.startsWith(degradedDir) : dir.equals(degradedDir)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true iff an event of the provided kind for the provided (not excluded) path should be delivered.
+     */
+    private boolean isReported(EventKind eventKind, Path path) {
+        return eventKinds.contains(eventKind) && (filter == null || filter.isIncluded(path));
+    }
+
+    private void deliverBatch() {
+        batchedCreations.clear();
+        if (!batch.isEmpty()) {
+            try {
+                MeteredDelivery.deliver(listener, batch.asList(), metrics);
+            } finally {
+                batch.clear();
+            }
+        }
+        if (!closedFiles.isEmpty()) {
+            // the files are pending only after the batch with their creation or modification has been delivered
+            for (int i = 0; i < closedFiles.size(); i++) {
+                writeCompletion.closedAfterWrite(closedFiles.get(i));
+            }
+            closedFiles.clear();
+        }
+    }
+
+    private void registerChild(Path child) {
+        if (sharedWatchService != null) {
+            sharedWatchService.beginRegistration();
+        }
+        try {
+            registry.registerChild(watcher, child);
+        } catch (IOException e) {
+            LOG.warn("Could not register watch for '{}'.", child);
+        } finally {
+            if (sharedWatchService != null) {
+                sharedWatchService.endRegistration();
+                if (quota.hasPendingDegraded()) {
+                    sharedWatchService.scheduleDeferredWork();
+                }
+            }
+        }
+    }
+
+    private void resetKey(WatchKey key) {
+        // reset key and remove from set if directory no longer accessible
+        if (!key.reset()) {
+            keyInvalidated(key);
+        }
+    }
+
+    /**
+     * Removes a key that is not valid anymore.
+     *
+     * @return true iff this path watcher has still at least one valid key left.
+     */
+    boolean keyInvalidated(WatchKey key) {
+        if (keys.remove(key) != null) {
+            quota.release(1);
+            if (metrics != null) {
+                metrics.onKeysInvalidated(1);
+            }
+        }
+        // all directories are inaccessible if there are no keys left
+        return !keys.isEmpty();
+    }
+
+    /**
+     * Forgets about all keys of this path watcher.
+     */
+    void clearKeys() {
+        keys.clear();
+        quota.releaseAll();
+    }
+
+    /**
+     * Stops a path watcher on a shared watch service on behalf of the shared watch service and notifies the termination
+     * listener.
+     *
+     * @param ex The exception that has caused termination. May be null if the path watcher terminated regularly.
+     */
+    void terminate(Exception ex) {
+        if (ex != null) {
+            LOG.trace("'" + this + "' threw an exception", ex);
+            terminationListener.onException(ex);
+        }
+        LOG.trace("Stopping '{}' on behalf of the shared watch service.", this);
+        // the snapshots might contain changes that the listener has not been notified of
+        stop(ex == null);
+        terminationListener.onTerminated();
+    }
+
     @Override
     public void stop() {
+        stop(true);
+    }
+
+    /**
+     * @param writeCheckpoint true iff a path watcher on a shared watch service should write its checkpoint (if any).
+     *                        Path watchers that own their watch service write it at the end of their event loop.
+     */
+    private void stop(boolean writeCheckpoint) {
         LOG.trace("Stopping '{}'", this);
+        // no more keys must be added once we release them
+        registration.abort();
+        try {
+            if (sharedWatchService != null) {
+                boolean wasRunning = running;
+                releaseSharedWatchService();
+                if (writeCheckpoint && wasRunning && checkpoint != null) {
+                    writeCheckpoint();
+                }
+            } else {
+                closeWatchService();
+            }
+        } finally {
+            if (listener instanceof DispatchStage) {
+                ((DispatchStage) listener).stop();
+            }
+        }
+    }
+
+    private void releaseSharedWatchService() {
+        try {
+            if (this.watcher != null) {
+                sharedWatchService.release(this);
+            }
+        } finally {
+            this.watcher = null;
+            this.running = false;
+        }
+    }
+
+    private void closeWatchService() {
         try {
             if (this.watcher != null) {
                 this.watcher.close();
@@ -178,11 +943,38 @@ public final class WatchServicePathWatcher implements PathWatcher {
             this.watcher = null;
             //no more keys to watch for
             this.keys.clear();
+            this.quota.releaseAll();
             //we're not running anymore
             this.running = false;
         }
     }
 
+    private static final class BatchedCreation {
+        private final Path path;
+        // the index of the creation in the batch or -1 if it is not reported
+        private final int index;
+
+        private BatchedCreation(Path path, int index) {
+            this.path = path;
+            this.index = index;
+        }
+    }
+
+    /**
+     * Callback for path watchers on a shared watch service which do not run their own event loop.
+     */
+    public interface TerminationListener {
+        /**
+         * Called when the path watcher has thrown an exception while handling events.
+         */
+        void onException(Exception ex);
+
+        /**
+         * Called after the shared watch service has stopped the path watcher on its own.
+         */
+        void onTerminated();
+    }
+
     @Override
     public String toString() {
         return "PathWatcher for '" + rootPath + "'";
@@ -0,0 +1,329 @@
+package name.mitterdorfer.perlock.impl.dispatch;
+
+import name.mitterdorfer.perlock.EventKind;
+import name.mitterdorfer.perlock.OverflowPolicy;
+import name.mitterdorfer.perlock.PathEvent;
+import name.mitterdorfer.perlock.PathEventQueue;
+import name.mitterdorfer.perlock.impl.util.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>A bounded multi-producer multi-consumer queue of events on top of preallocated arrays. Each slot carries a
+ * sequence number that tells producers and consumers whether the slot is free or holds a published event. Producers
+ * claim a slot by incrementing the head sequence, consumers by incrementing the tail sequence. Both only compete with
+ * their own kind and no locks are involved on the fast path.</p>
+ *
+ * <p>Waiting for events (or for free capacity with {@link OverflowPolicy#BLOCK}) is the slow path: Waiting threads
+ * announce themselves and await a condition, so the other side only takes the lock if somebody is actually waiting.
+ * Only {@link OverflowPolicy#COALESCE} takes another lock once the queue is full.</p>
+ *
+ * <p>THIS IS AN INTERNAL IMPLEMENTATION CLASS AND DOES NOT BELONG TO THE API. DO NOT USE IT DIRECTLY.</p>
+ */
+public final class ArrayPathEventQueue implements PathEventQueue {
+    private static final Logger LOG = LoggerFactory.getLogger(ArrayPathEventQueue.class);
+
+    private final OverflowPolicy overflowPolicy;
+
+    private final int mask;
+    // slot i is free for the producer of sequence s iff sequences[i] == s and holds the event of sequence s for a
+    // consumer iff sequences[i] == s + 1
+    private final AtomicLongArray sequences;
+    private final EventKind[] kinds;
+    private final Path[] paths;
+    // source paths of MOVE events; null for other kinds of events
+    private final Path[] sourcePaths;
+    // next sequence to publish
+    private final Sequence head = new Sequence();
+    // next sequence to consume
+    private final Sequence tail = new Sequence();
+
+    // Events that did not fit into the queue (only used for COALESCE). Guarded by "overflow".
+    private final Map<Path, EventKind> overflow = new LinkedHashMap<>();
+    // true as long as there are events in "overflow". New events must not bypass them to preserve order.
+    private volatile boolean overflowPending;
+
+    private final ReentrantLock waitLock = new ReentrantLock();
+    private final Condition notEmpty = waitLock.newCondition();
+    private final Condition notFull = waitLock.newCondition();
+    private final AtomicInteger waitingConsumers = new AtomicInteger();
+    private final AtomicInteger waitingProducers = new AtomicInteger();
+
+    public ArrayPathEventQueue(int capacity, OverflowPolicy overflowPolicy) {
+        Preconditions.isTrue(capacity > 0 && capacity <= 1 << 30, "'capacity' must be in the range [1, 2^30]");
+        Preconditions.isNotNull(overflowPolicy, "overflowPolicy");
+        this.overflowPolicy = overflowPolicy;
+        // with a single slot, a free slot and a published event would have the same sequence number
+        int size = Math.max(2, Integer.highestOneBit(capacity));
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.kinds = new EventKind[size];
+        this.paths = new Path[size];
+        this.sourcePaths = new Path[size];
+    }
+
+    @Override
+    public void onPathsChanged(List<PathEvent> events) {
+        for (int i = 0; i < events.size(); i++) {
+            PathEvent event = events.get(i);
+            publish(event.getEventKind(), event.getPath(), event.getSourcePath());
+        }
+    }
+
+    /**
+     * Adds a single event to the queue without wrapping it in a <code>PathEvent</code>.
+     */
+    void publish(EventKind eventKind, Path path, Path sourcePath) {
+        if (overflowPending && coalesce(eventKind, path, sourcePath)) {
+            signal(notEmpty, waitingConsumers);
+            return;
+        }
+        while (!offer(eventKind, path, sourcePath)) {
+            if (overflowPolicy == OverflowPolicy.COALESCE) {
+                if (coalesce(eventKind, path, sourcePath)) {
+                    break;
+                }
+            } else if (overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+                if (take() != null) {
+                    LOG.trace("Event queue is full. Dropped oldest event.");
+                }
+            } else if (!awaitCapacity()) {
+                LOG.warn("Dropping event '{}' for path '{}' as the path watcher has been interrupted.", eventKind, path);
+                return;
+            }
+        }
+        signal(notEmpty, waitingConsumers);
+    }
+
+    /**
+     * @return true iff the event has been published, false if the queue is full.
+     */
+    private boolean offer(EventKind eventKind, Path path, Path sourcePath) {
+        while (true) {
+            long h = head.get();
+            int index = (int) h & mask;
+            long available = sequences.get(index) - h;
+            if (available < 0) {
+                // the consumer of the previous round has not released the slot yet
+                return false;
+            }
+            if (available == 0 && head.compareAndSet(h, h + 1)) {
+                kinds[index] = eventKind;
+                paths[index] = path;
+                sourcePaths[index] = sourcePath;
+                // full fence: a consumer that is about to wait must not miss the new event
+                sequences.set(index, h + 1);
+                return true;
+            }
+            // another producer has claimed the slot; try the next one
+        }
+    }
+
+    /**
+     * Adds an event to the overflow buffer. Events are merged per path, so a move is split into a deletion of its
+     * source path and a creation of its target path.
+     *
+     * @return true iff the event has been added. false if the overflow buffer has been drained concurrently and the
+     * event should be published to the queue instead.
+     */
+    private boolean coalesce(EventKind eventKind, Path path, Path sourcePath) {
+        synchronized (overflow) {
+            if (overflowPending || head.get() - tail.get() > mask) {
+                if (eventKind == EventKind.MOVE) {
+                    merge(EventKind.DELETE, sourcePath);
+                    merge(EventKind.CREATE, path);
+                } else {
+                    merge(eventKind, path);
+                }
+                overflowPending = !overflow.isEmpty();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    // requires the lock on "overflow"
+    private void merge(EventKind eventKind, Path path) {
+        EventKind previous = overflow.get(path);
+        EventKind merged = previous == null ? eventKind : EventCoalescing.merge(previous, eventKind);
+        if (merged != null) {
+            // an existing entry keeps its position, i.e. paths are delivered in the order of their first event
+            overflow.put(path, merged);
+        } else {
+            overflow.remove(path);
+        }
+    }
+
+    @Override
+    public PathEvent poll() {
+        PathEvent event = take();
+        if (event == null && overflowPending) {
+            event = takeOverflow();
+        }
+        if (event != null) {
+            signal(notFull, waitingProducers);
+        }
+        return event;
+    }
+
+    @Override
+    public PathEvent poll(long timeout, TimeUnit unit) throws InterruptedException {
+        Preconditions.isNotNull(unit, "unit");
+        PathEvent event = poll();
+        if (event != null) {
+            return event;
+        }
+        long remainingNanos = unit.toNanos(timeout);
+        waitLock.lockInterruptibly();
+        try {
+            waitingConsumers.incrementAndGet();
+            try {
+                // re-check after announcing that we wait. Otherwise we could miss the signal of a producer
+                while ((event = poll()) == null && remainingNanos > 0) {
+                    remainingNanos = notEmpty.awaitNanos(remainingNanos);
+                }
+            } finally {
+                waitingConsumers.decrementAndGet();
+            }
+        } finally {
+            waitLock.unlock();
+        }
+        return event;
+    }
+
+    @Override
+    public int drainTo(Collection<? super PathEvent> target, int maxEvents) {
+        Preconditions.isNotNull(target, "target");
+        int transferred = 0;
+        PathEvent event;
+        while (transferred < maxEvents && (event = poll()) != null) {
+            target.add(event);
+            transferred++;
+        }
+        return transferred;
+    }
+
+    @Override
+    public int size() {
+        int size;
+        synchronized (overflow) {
+            size = overflow.size();
+        }
+        long queued = head.get() - tail.get();
+        return size + (int) Math.max(0L, Math.min(queued, mask + 1));
+    }
+
+    /**
+     * @return true iff there are no events in this queue. In contrast to {@link #size()}, it never takes a lock.
+     */
+    boolean isEmpty() {
+        return head.get() == tail.get() && !overflowPending;
+    }
+
+    /**
+     * Removes the oldest event from the queue, ignoring the overflow buffer.
+     *
+     * @return the oldest event or <code>null</code> if the queue is empty.
+     */
+    private PathEvent take() {
+        while (true) {
+            long t = tail.get();
+            int index = (int) t & mask;
+            long available = sequences.get(index) - (t + 1);
+            if (available < 0) {
+                return null;
+            }
+            if (available == 0 && tail.compareAndSet(t, t + 1)) {
+                EventKind eventKind = kinds[index];
+                Path path = paths[index];
+                Path sourcePath = sourcePaths[index];
+                // do not retain consumed paths
+                paths[index] = null;
+                sourcePaths[index] = null;
+                // release the slot for the producer of the next round
+                sequences.lazySet(index, t + mask + 1);
+                return eventKind == EventKind.MOVE ? PathEvent.moved(sourcePath, path) : PathEvent.of(eventKind, path);
+            }
+            // another consumer has taken this event; try the next one
+        }
+    }
+
+    private PathEvent takeOverflow() {
+        synchronized (overflow) {
+            if (!overflowPending || head.get() != tail.get()) {
+                // events in the queue are older than those in the overflow buffer
+                return null;
+            }
+            Iterator<Map.Entry<Path, EventKind>> iterator = overflow.entrySet().iterator();
+            if (!iterator.hasNext()) {
+                overflowPending = false;
+                return null;
+            }
+            Map.Entry<Path, EventKind> merged = iterator.next();
+            iterator.remove();
+            overflowPending = !overflow.isEmpty();
+            return PathEvent.of(merged.getValue(), merged.getKey());
+        }
+    }
+
+    /**
+     * Waits until a consumer signals that it has taken an event (only for {@link OverflowPolicy#BLOCK}).
+     *
+     * @return false iff the current thread has been interrupted while waiting.
+     */
+    private boolean awaitCapacity() {
+        waitLock.lock();
+        try {
+            waitingProducers.incrementAndGet();
+            try {
+                // re-check after announcing that we wait. Otherwise we could miss the signal of a consumer
+                if (head.get() - tail.get() > mask) {
+                    notFull.await();
+                }
+                return true;
+            } finally {
+                waitingProducers.decrementAndGet();
+            }
+        } catch (InterruptedException ex) {
+            // a path watcher is stopped by interrupting its thread
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            waitLock.unlock();
+        }
+    }
+
+    private void signal(Condition condition, AtomicInteger waiting) {
+        if (waiting.get() > 0) {
+            waitLock.lock();
+            try {
+                condition.signalAll();
+            } finally {
+                waitLock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ArrayPathEventQueue with capacity " + (mask + 1);
+    }
+}
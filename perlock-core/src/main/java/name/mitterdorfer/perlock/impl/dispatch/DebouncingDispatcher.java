@@ -0,0 +1,322 @@
+package name.mitterdorfer.perlock.impl.dispatch;
+
+import name.mitterdorfer.perlock.BatchPathChangeListener;
+import name.mitterdorfer.perlock.EventKind;
+import name.mitterdorfer.perlock.PathEvent;
+import name.mitterdorfer.perlock.impl.util.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>Holds back events per path until the path has been quiet for a configurable period and merges all events that
+ * have occurred on the path in the meantime (see {@link EventCoalescing}).</p>
+ *
+ * <p>Pending paths are tracked in a hashed timer wheel. Each event costs one hash lookup and at most one bucket insert.
+ * An event on an already pending path only updates its deadline. The entry is moved lazily when its (outdated) bucket
+ * expires. Expired paths are delivered in one batch per tick on a dedicated timer thread.</p>
+ *
+ * <p>A move is held back as such as long as neither its source nor its target path changes again. Otherwise, it is
+ * split into a deletion of the source path and a creation of the target path which are then merged as usual.</p>
+ *
+ * <p>THIS IS AN INTERNAL IMPLEMENTATION CLASS AND DOES NOT BELONG TO THE API. DO NOT USE IT DIRECTLY.</p>
+ */
+public final class DebouncingDispatcher implements DispatchStage {
+    private static final Logger LOG = LoggerFactory.getLogger(DebouncingDispatcher.class);
+
+    private static final int WHEEL_SIZE = 256;
+    private static final int TICKS_PER_QUIET_PERIOD = 8;
+    private static final long MIN_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1L);
+
+    private final BatchPathChangeListener listener;
+    private final Executor executor;
+    private final long quietPeriodNanos;
+    private final long tickNanos;
+    // all points in time are relative to this origin so they are never negative
+    private final long origin = System.nanoTime();
+
+    // all fields below are guarded by "this"
+    private final Map<Path, Pending> pending = new HashMap<>();
+    // pending MOVE events keyed by their source path
+    private final Map<Path, Pending> pendingMoves = new HashMap<>();
+    private final Pending[] wheel = new Pending[WHEEL_SIZE];
+
+    private volatile boolean running;
+    private volatile Thread timerThread;
+    // the first exception thrown by the listener on the timer thread. Rethrown on the producer thread.
+    private volatile RuntimeException failure;
+    private volatile CountDownLatch terminated;
+
+    public DebouncingDispatcher(BatchPathChangeListener listener, Executor executor, long quietPeriod, TimeUnit unit) {
+        Preconditions.isNotNull(listener, "listener");
+        Preconditions.isNotNull(executor, "executor");
+        Preconditions.isTrue(quietPeriod > 0, "'quietPeriod' must be positive");
+        Preconditions.isNotNull(unit, "unit");
+        this.listener = listener;
+        this.executor = executor;
+        this.quietPeriodNanos = unit.toNanos(quietPeriod);
+        this.tickNanos = Math.max(MIN_TICK_NANOS, quietPeriodNanos / TICKS_PER_QUIET_PERIOD);
+    }
+
+    @Override
+    public void start() {
+        CountDownLatch previous = terminated;
+        if (previous != null) {
+            // the timer thread of a previous run might still be flushing. There must only be one at a time.
+            awaitUninterruptibly(previous);
+        }
+        if (listener instanceof DispatchStage) {
+            ((DispatchStage) listener).start();
+        }
+        failure = null;
+        running = true;
+        terminated = new CountDownLatch(1);
+        executor.execute(new Timer(terminated));
+    }
+
+    /**
+     * Requests that the timer thread stops. It will deliver all pending events before it stops (and before it stops
+     * downstream dispatch stages).
+     */
+    @Override
+    public void stop() {
+        running = false;
+        LockSupport.unpark(timerThread);
+    }
+
+    @Override
+    public void onPathsChanged(List<PathEvent> events) {
+        RuntimeException ex = failure;
+        if (ex != null) {
+            throw ex;
+        }
+        long deadline = now() + quietPeriodNanos;
+        synchronized (this) {
+            for (int i = 0; i < events.size(); i++) {
+                PathEvent event = events.get(i);
+                add(event.getEventKind(), event.getPath(), event.getSourcePath(), deadline);
+            }
+        }
+    }
+
+    // requires the lock on "this"
+    private void add(EventKind eventKind, Path path, Path sourcePath, long deadline) {
+        // a pending move cannot be merged with other events
+        splitMove(pending.get(path), deadline);
+        splitMove(pendingMoves.get(path), deadline);
+        if (eventKind == EventKind.MOVE) {
+            splitMove(pending.get(sourcePath), deadline);
+            splitMove(pendingMoves.get(sourcePath), deadline);
+            if (pending.containsKey(path) || pending.containsKey(sourcePath)) {
+                add(EventKind.DELETE, sourcePath, null, deadline);
+                add(EventKind.CREATE, path, null, deadline);
+                return;
+            }
+        }
+        Pending entry = pending.get(path);
+        if (entry == null) {
+            entry = new Pending(path, eventKind, deadline);
+            pending.put(path, entry);
+            if (eventKind == EventKind.MOVE) {
+                entry.sourcePath = sourcePath;
+                pendingMoves.put(sourcePath, entry);
+            }
+            schedule(entry);
+        } else {
+            EventKind merged = EventCoalescing.merge(entry.eventKind, eventKind);
+            if (merged == null) {
+                // both events cancel each other out. The wheel will skip the entry when its bucket expires.
+                entry.cancelled = true;
+                pending.remove(path);
+            } else {
+                entry.eventKind = merged;
+                entry.deadline = deadline;
+            }
+        }
+    }
+
+    /**
+     * Turns a pending move into a creation of its target path and a deletion of its source path.
+     */
+    // requires the lock on "this"
+    private void splitMove(Pending entry, long deadline) {
+        if (entry != null && entry.eventKind == EventKind.MOVE) {
+            Path sourcePath = entry.sourcePath;
+            pendingMoves.remove(sourcePath);
+            entry.eventKind = EventKind.CREATE;
+            entry.sourcePath = null;
+            add(EventKind.DELETE, sourcePath, null, deadline);
+        }
+    }
+
+    // requires the lock on "this"
+    private void schedule(Pending entry) {
+        // the first tick that starts after the deadline. Thus, the entry has always expired when its bucket is visited.
+        int bucket = (int) (entry.deadline / tickNanos + 1) & (WHEEL_SIZE - 1);
+        entry.next = wheel[bucket];
+        wheel[bucket] = entry;
+    }
+
+    // requires the lock on "this"
+    private void expire(long tick, long now, List<PathEvent> expired) {
+        int bucket = (int) tick & (WHEEL_SIZE - 1);
+        Pending entry = wheel[bucket];
+        wheel[bucket] = null;
+        while (entry != null) {
+            Pending next = entry.next;
+            entry.next = null;
+            if (!entry.cancelled) {
+                if (entry.deadline <= now) {
+                    pending.remove(entry.path);
+                    if (entry.sourcePath != null) {
+                        pendingMoves.remove(entry.sourcePath);
+                    }
+                    expired.add(entry);
+                } else {
+                    // the path has changed again in the meantime
+                    schedule(entry);
+                }
+            }
+            entry = next;
+        }
+    }
+
+    // requires the lock on "this"
+    private void expireAll(List<PathEvent> expired) {
+        for (int bucket = 0; bucket < WHEEL_SIZE; bucket++) {
+            for (Pending entry = wheel[bucket]; entry != null; entry = entry.next) {
+                if (!entry.cancelled) {
+                    expired.add(entry);
+                }
+            }
+            wheel[bucket] = null;
+        }
+        pending.clear();
+        pendingMoves.clear();
+    }
+
+    private void deliver(List<PathEvent> expired, List<PathEvent> batch) {
+        if (!expired.isEmpty()) {
+            try {
+                listener.onPathsChanged(batch);
+            } finally {
+                expired.clear();
+            }
+        }
+    }
+
+    private long now() {
+        return System.nanoTime() - origin;
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DebouncingDispatcher for '" + listener + "'";
+    }
+
+    private static final class Pending extends PathEvent {
+        private final Path path;
+        private EventKind eventKind;
+        // null unless this is a MOVE event
+        private Path sourcePath;
+        private long deadline;
+        private boolean cancelled;
+        // next entry in the same wheel bucket
+        private Pending next;
+
+        private Pending(Path path, EventKind eventKind, long deadline) {
+            this.path = path;
+            this.eventKind = eventKind;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public EventKind getEventKind() {
+            return eventKind;
+        }
+
+        @Override
+        public Path getPath() {
+            return path;
+        }
+
+        @Override
+        public Path getSourcePath() {
+            return sourcePath;
+        }
+    }
+
+    private final class Timer implements Runnable {
+        private final CountDownLatch terminated;
+
+        private Timer(CountDownLatch terminated) {
+            this.terminated = terminated;
+        }
+
+        @Override
+        public void run() {
+            timerThread = Thread.currentThread();
+            LOG.trace("Timer thread for '{}' started.", listener);
+            // expired entries are removed from the wheel so they can be delivered as is
+            List<PathEvent> expired = new ArrayList<>();
+            List<PathEvent> batch = Collections.unmodifiableList(expired);
+            long lastTick = now() / tickNanos;
+            try {
+                while (running) {
+                    long now = now();
+                    long currentTick = now / tickNanos;
+                    synchronized (DebouncingDispatcher.this) {
+                        // visiting each bucket once is sufficient even if we have fallen behind more than one rotation
+                        long firstTick = Math.max(lastTick + 1, currentTick - WHEEL_SIZE + 1);
+                        for (long tick = firstTick; tick <= currentTick; tick++) {
+                            expire(tick, now, expired);
+                        }
+                    }
+                    lastTick = currentTick;
+                    deliver(expired, batch);
+                    LockSupport.parkNanos(DebouncingDispatcher.this, (currentTick + 1) * tickNanos - now());
+                }
+                // don't lose any pending events when we stop
+                synchronized (DebouncingDispatcher.this) {
+                    expireAll(expired);
+                }
+                deliver(expired, batch);
+            } catch (RuntimeException ex) {
+                LOG.trace("Listener threw an exception on the timer thread.", ex);
+                failure = ex;
+            } finally {
+                if (listener instanceof DispatchStage) {
+                    ((DispatchStage) listener).stop();
+                }
+                timerThread = null;
+                LOG.trace("Timer thread for '{}' stopped.", listener);
+                terminated.countDown();
+            }
+        }
+    }
+}
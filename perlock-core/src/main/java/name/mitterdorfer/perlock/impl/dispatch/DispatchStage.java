@@ -0,0 +1,23 @@
+package name.mitterdorfer.perlock.impl.dispatch;
+
+import name.mitterdorfer.perlock.BatchPathChangeListener;
+
+/**
+ * <p>A <code>DispatchStage</code> is a <code>BatchPathChangeListener</code> that sits between a path watcher and the
+ * client's listener and needs to be notified when the path watcher starts and stops (e.g. because it needs a background
+ * thread).</p>
+ *
+ * <p>THIS IS AN INTERNAL IMPLEMENTATION CLASS AND DOES NOT BELONG TO THE API. DO NOT USE IT DIRECTLY.</p>
+ */
+public interface DispatchStage extends BatchPathChangeListener {
+    /**
+     * Called when the path watcher is about to start, before any event is delivered.
+     */
+    void start();
+
+    /**
+     * Called when the path watcher has stopped. Events that are still buffered in the stage may be delivered after
+     * this method has returned.
+     */
+    void stop();
+}
@@ -0,0 +1,49 @@
+package name.mitterdorfer.perlock.impl.dispatch;
+
+import name.mitterdorfer.perlock.BatchPathChangeListener;
+import name.mitterdorfer.perlock.WatchOptions;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Assembles the chain of dispatch stages between a path watcher and the client's listener according to the
+ * provided watch options.</p>
+ *
+ * <p>THIS IS AN INTERNAL IMPLEMENTATION CLASS AND DOES NOT BELONG TO THE API. DO NOT USE IT DIRECTLY.</p>
+ */
+public final class DispatchStages {
+    private DispatchStages() {
+        // no instances intended
+    }
+
+    /**
+     * @param listener The client's listener. Must not be null.
+     * @param options  The watch options of the path watcher. Must not be null.
+     * @return The listener that the path watcher should notify. Might be the client's listener itself if no dispatch
+     * stage is required. Never null.
+     */
+    public static BatchPathChangeListener create(BatchPathChangeListener listener, WatchOptions options) {
+        BatchPathChangeListener head = listener;
+        if (options.isDispatchAsynchronously()) {
+            head = new RingBufferDispatcher(head, options.getDispatchExecutor(), options.getDispatchCapacity(),
+                    options.getDispatchWaitStrategy(), options.getDispatchOverflowPolicy());
+        }
+        if (options.isDispatchInParallel()) {
+            head = new KeyedParallelDispatcher(head, options.getDispatchExecutor(), options.getDispatchWorkers(),
+                    options.getDispatchCapacity(), options.getDispatchKey(), options.getDispatchOverflowPolicy());
+        }
+        // debounce before handing off to the dispatcher thread. There is no point in dispatching events that are
+        // merged later anyway.
+        if (options.isDebounce()) {
+            head = new DebouncingDispatcher(head, options.getDebounceExecutor(), options.getQuietPeriodNanos(),
+                    TimeUnit.NANOSECONDS);
+        }
+        // write completion is awaited first so the path watcher can pass on close events (see
+        // WriteCompletionDispatcher#closedAfterWrite). It cannot be combined with debouncing.
+        if (options.isAwaitWriteCompletion()) {
+            head = new WriteCompletionDispatcher(head, options.getWriteCompletionExecutor(),
+                    options.getProbeIntervalNanos(), TimeUnit.NANOSECONDS);
+        }
+        return head;
+    }
+}
@@ -0,0 +1,159 @@
+package name.mitterdorfer.perlock.impl.dispatch;
+
+import name.mitterdorfer.perlock.EventKind;
+import name.mitterdorfer.perlock.PathEvent;
+
+import java.nio.file.Path;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * <p>A reusable batch of events. Event instances are pooled and recycled on {@link #clear()} so filling a batch does
+ * not allocate once the batch has grown to its steady state size. Events that are added with a directory and the name
+ * of an entry resolve their path only when it is requested for the first time.</p>
+ *
+ * <p>A batch is not thread safe. It is intended to be owned by the single thread that fills and delivers it.</p>
+ *
+ * <p>THIS IS AN INTERNAL IMPLEMENTATION CLASS AND DOES NOT BELONG TO THE API. DO NOT USE IT DIRECTLY.</p>
+ */
+public final class EventBatch {
+    private final List<MutablePathEvent> pool = new ArrayList<>();
+    private final List<PathEvent> view = new View();
+    private int size;
+
+    /**
+     * @return The added event. It is only valid until this batch is cleared.
+     */
+    public PathEvent add(EventKind eventKind, Path path) {
+        MutablePathEvent event = next();
+        event.eventKind = eventKind;
+        event.path = path;
+        return event;
+    }
+
+    /**
+     * Adds an event for the entry <code>name</code> in <code>dir</code>. Its path is resolved lazily.
+     *
+     * @return The added event. It is only valid until this batch is cleared.
+     */
+    public PathEvent add(EventKind eventKind, Path dir, Path name) {
+        MutablePathEvent event = next();
+        event.eventKind = eventKind;
+        event.dir = dir;
+        event.name = name;
+        return event;
+    }
+
+    /**
+     * Adds a {@link EventKind#MOVE} event.
+     *
+     * @return The added event. It is only valid until this batch is cleared.
+     */
+    public PathEvent addMove(Path source, Path target) {
+        MutablePathEvent event = next();
+        event.eventKind = EventKind.MOVE;
+        event.path = target;
+        event.sourcePath = source;
+        return event;
+    }
+
+    /**
+     * Turns a creation that has already been added into a {@link EventKind#MOVE} event, e.g. because the corresponding
+     * deletion has been received only afterwards.
+     *
+     * @param index  The index of the creation in this batch.
+     * @param source The former path of the created entry.
+     */
+    public void convertToMove(int index, Path source) {
+        MutablePathEvent event = pool.get(index);
+        event.eventKind = EventKind.MOVE;
+        event.sourcePath = source;
+    }
+
+    private MutablePathEvent next() {
+        MutablePathEvent event;
+        if (size < pool.size()) {
+            event = pool.get(size);
+        } else {
+            event = new MutablePathEvent();
+            pool.add(event);
+        }
+        size++;
+        return event;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return A read-only view of the current contents of this batch. The view always reflects the current contents.
+     * Never null.
+     */
+    public List<PathEvent> asList() {
+        return view;
+    }
+
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            // don't keep paths reachable longer than necessary
+            MutablePathEvent event = pool.get(i);
+            event.path = null;
+            event.sourcePath = null;
+            event.dir = null;
+            event.name = null;
+        }
+        size = 0;
+    }
+
+    private static final class MutablePathEvent extends PathEvent {
+        private EventKind eventKind;
+        private Path path;
+        // null unless this is a MOVE event
+        private Path sourcePath;
+        // only set until the path has been resolved
+        private Path dir;
+        private Path name;
+
+        @Override
+        public EventKind getEventKind() {
+            return eventKind;
+        }
+
+        @Override
+        public Path getPath() {
+            if (path == null) {
+                path = dir.resolve(name);
+                dir = null;
+                name = null;
+            }
+            return path;
+        }
+
+        @Override
+        public Path getSourcePath() {
+            return sourcePath;
+        }
+    }
+
+    private final class View extends AbstractList<PathEvent> implements RandomAccess {
+        @Override
+        public PathEvent get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            }
+            return pool.get(index);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package name.mitterdorfer.perlock.impl.dispatch;
+
+import name.mitterdorfer.perlock.EventKind;
+
+/**
+ * <p>Merges two subsequent events for the same path into one event that describes the net effect on the path.</p>
+ *
+ * <p>THIS IS AN INTERNAL IMPLEMENTATION CLASS AND DOES NOT BELONG TO THE API. DO NOT USE IT DIRECTLY.</p>
+ */
+public final class EventCoalescing {
+    private EventCoalescing() {
+        // no instances intended
+    }
+
+    /**
+     * @param previous The event kind that is currently pending for a path. Must not be null or {@link EventKind#MOVE}.
+     * @param next     The event kind that has just occurred on the same path. Must not be null or
+     *                 {@link EventKind#MOVE}. Moves have to be split into their deletion and creation before.
+     * @return The event kind that describes the net effect of both events or <code>null</code> if both events cancel
+     * each other out (i.e. the path has been created and deleted again).
+     */
+    public static EventKind merge(EventKind previous, EventKind next) {
+        if (next == EventKind.READY) {
+            // whatever has happened before, the path is now a completely written file
+            return EventKind.READY;
+        }
+        switch (previous) {
+            case CREATE:
+                // CREATE + MODIFY -> CREATE; CREATE + DELETE -> nothing
+                return next == EventKind.DELETE ? null : EventKind.CREATE;
+            case READY:
+                // READY + DELETE -> DELETE; further changes of a ready file are reported as READY again
+                return next == EventKind.DELETE ? EventKind.DELETE : EventKind.READY;
+            case DELETE:
+                // a path that is deleted and created again has effectively been modified
+                return next == EventKind.CREATE ? EventKind.MODIFY : next;
+            default:
+                // MODIFY + MODIFY -> MODIFY; MODIFY + DELETE -> DELETE
+                return next;
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package name.mitterdorfer.perlock.impl.dispatch;
+
+import name.mitterdorfer.perlock.BatchPathChangeListener;
+import name.mitterdorfer.perlock.DispatchKey;
+import name.mitterdorfer.perlock.EventKind;
+import name.mitterdorfer.perlock.OverflowPolicy;
+import name.mitterdorfer.perlock.PathEvent;
+import name.mitterdorfer.perlock.impl.util.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>Hands off events from the path watcher thread to multiple dispatcher threads while preserving the order of events
+ * per key. The path watcher thread assigns each event to a lane by the hash of its key. Each lane is a preallocated
+ * queue (see {@link ArrayPathEventQueue}) that is served by at most one dispatcher thread at a time, which guarantees
+ * the order within a lane.</p>
+ *
+ * <p>A move belongs to the keys of both its source and its target path. If both keys fall into the same lane, the move
+ * is published to that lane. Otherwise it is split into a deletion of the source path in the lane of the source and a
+ * creation of the target path in the lane of the target. Each half is then ordered with the other events of its path;
+ * no lane could order a move with both.</p>
+ *
+ * <p>Each dispatcher thread owns a few lanes which it serves first. If they are empty, it takes over any other lane that
+ * has events and is not served at the moment. So an idle dispatcher thread steals work from busy ones, but it always
+ * takes over a whole lane and never single events of a lane.</p>
+ *
+ * <p>THIS IS AN INTERNAL IMPLEMENTATION CLASS AND DOES NOT BELONG TO THE API. DO NOT USE IT DIRECTLY.</p>
+ */
+public final class KeyedParallelDispatcher implements DispatchStage {
+    private static final Logger LOG = LoggerFactory.getLogger(KeyedParallelDispatcher.class);
+
+    // more lanes than threads: a slow event blocks only its own lane and other lanes can be taken over meanwhile
+    static final int LANES_PER_WORKER = 4;
+    // the maximum number of events that a dispatcher thread delivers before it looks for other lanes
+    private static final int MAX_BATCH_SIZE = 64;
+
+    private final BatchPathChangeListener listener;
+    private final Executor executor;
+    private final int workers;
+    private final DispatchKey dispatchKey;
+
+    private final ArrayPathEventQueue[] lanes;
+    private final int laneMask;
+    // 1 while a dispatcher thread serves the lane, 0 otherwise
+    private final AtomicIntegerArray laneOwners;
+
+    private final ReentrantLock waitLock = new ReentrantLock();
+    private final Condition workAvailable = waitLock.newCondition();
+    private final AtomicInteger waitingWorkers = new AtomicInteger();
+
+    private volatile boolean running;
+    // the first exception thrown by the listener on a dispatcher thread. Rethrown on the producer thread.
+    private volatile RuntimeException failure;
+    private volatile CountDownLatch terminated;
+
+    public KeyedParallelDispatcher(BatchPathChangeListener listener, Executor executor, int workers, int laneCapacity,
+                                   DispatchKey dispatchKey, OverflowPolicy overflowPolicy) {
+        Preconditions.isNotNull(listener, "listener");
+        Preconditions.isNotNull(executor, "executor");
+        Preconditions.isTrue(workers > 0 && workers <= 1 << 16, "'workers' must be in the range [1, 2^16]");
+        Preconditions.isNotNull(dispatchKey, "dispatchKey");
+        Preconditions.isNotNull(overflowPolicy, "overflowPolicy");
+        this.listener = listener;
+        this.executor = executor;
+        this.workers = workers;
+        this.dispatchKey = dispatchKey;
+        int laneCount = Integer.highestOneBit(workers * LANES_PER_WORKER);
+        if (laneCount < workers * LANES_PER_WORKER) {
+            laneCount <<= 1;
+        }
+        this.lanes = new ArrayPathEventQueue[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new ArrayPathEventQueue(laneCapacity, overflowPolicy);
+        }
+        this.laneMask = laneCount - 1;
+        this.laneOwners = new AtomicIntegerArray(laneCount);
+    }
+
+    @Override
+    public void start() {
+        CountDownLatch previous = terminated;
+        if (previous != null) {
+            // dispatcher threads of a previous run might still be draining. A lane must only be served by one thread.
+            awaitUninterruptibly(previous);
+        }
+        failure = null;
+        running = true;
+        terminated = new CountDownLatch(workers);
+        int firstLaneStride = (laneMask + 1) / workers;
+        for (int i = 0; i < workers; i++) {
+            executor.execute(new Worker(i * firstLaneStride, terminated));
+        }
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        signalWorkers();
+    }
+
+    @Override
+    public void onPathsChanged(List<PathEvent> events) {
+        RuntimeException ex = failure;
+        if (ex != null) {
+            throw ex;
+        }
+        for (int i = 0; i < events.size(); i++) {
+            PathEvent event = events.get(i);
+            Path path = event.getPath();
+            int lane = laneOf(path);
+            if (event.getEventKind() == EventKind.MOVE) {
+                Path sourcePath = event.getSourcePath();
+                int sourceLane = laneOf(sourcePath);
+                if (sourceLane != lane) {
+                    lanes[sourceLane].publish(EventKind.DELETE, sourcePath, null);
+                    lanes[lane].publish(EventKind.CREATE, path, null);
+                    continue;
+                }
+            }
+            lanes[lane].publish(event.getEventKind(), path, event.getSourcePath());
+        }
+        signalWorkers();
+    }
+
+    int laneOf(Path path) {
+        Path key = path;
+        if (dispatchKey == DispatchKey.PARENT_DIRECTORY && path.getParent() != null) {
+            key = path.getParent();
+        }
+        int h = key.hashCode();
+        // spread the higher bits as only the lower bits select the lane
+        return (h ^ (h >>> 16)) & laneMask;
+    }
+
+    private void signalWorkers() {
+        if (waitingWorkers.get() > 0) {
+            waitLock.lock();
+            try {
+                workAvailable.signalAll();
+            } finally {
+                waitLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Delivers the next batch of events of the first lane, starting at <code>firstLane</code>, that has events and is
+     * not served by another dispatcher thread.
+     *
+     * @return true iff events have been delivered.
+     */
+    private boolean serveNextLane(int firstLane, List<PathEvent> batch) {
+        for (int i = 0; i <= laneMask; i++) {
+            int lane = (firstLane + i) & laneMask;
+            if (!lanes[lane].isEmpty() && laneOwners.compareAndSet(lane, 0, 1)) {
+                try {
+                    lanes[lane].drainTo(batch, MAX_BATCH_SIZE);
+                    if (!batch.isEmpty()) {
+                        deliver(batch);
+                        return true;
+                    }
+                } finally {
+                    laneOwners.set(lane, 0);
+                    if (!lanes[lane].isEmpty()) {
+                        // let an idle dispatcher thread take over while we look for other lanes
+                        signalWorkers();
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private void deliver(List<PathEvent> batch) {
+        try {
+            listener.onPathsChanged(batch);
+        } catch (RuntimeException ex) {
+            LOG.trace("Listener threw an exception on a dispatcher thread.", ex);
+            if (failure == null) {
+                failure = ex;
+            }
+        } finally {
+            batch.clear();
+        }
+    }
+
+    private boolean hasUnservedEvents() {
+        for (int lane = 0; lane <= laneMask; lane++) {
+            if (!lanes[lane].isEmpty() && laneOwners.get(lane) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return false iff the dispatcher thread has been interrupted while waiting.
+     */
+    private boolean awaitWork() {
+        waitLock.lock();
+        try {
+            waitingWorkers.incrementAndGet();
+            try {
+                // re-check after announcing that we wait. Otherwise we could miss the signal of the producer
+                if (running && !hasUnservedEvents()) {
+                    workAvailable.await();
+                }
+                return true;
+            } finally {
+                waitingWorkers.decrementAndGet();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            waitLock.unlock();
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "KeyedParallelDispatcher for '" + listener + "'";
+    }
+
+    private final class Worker implements Runnable {
+        private final int firstLane;
+        private final CountDownLatch terminated;
+        private final List<PathEvent> batch = new ArrayList<>(MAX_BATCH_SIZE);
+
+        private Worker(int firstLane, CountDownLatch terminated) {
+            this.firstLane = firstLane;
+            this.terminated = terminated;
+        }
+
+        @Override
+        public void run() {
+            LOG.trace("Dispatcher thread for '{}' started.", listener);
+            try {
+                while (true) {
+                    if (!serveNextLane(firstLane, batch)) {
+                        if (!running) {
+                            // one last round: the producer might have published just before it has been stopped
+                            while (serveNextLane(firstLane, batch)) {
+                                // keep delivering
+                            }
+                            break;
+                        }
+                        if (!awaitWork()) {
+                            LOG.debug("Dispatcher thread for '{}' has been interrupted.", listener);
+                            break;
+                        }
+                    }
+                }
+            } finally {
+                LOG.trace("Dispatcher thread for '{}' stopped.", listener);
+                terminated.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package name.mitterdorfer.perlock.impl.dispatch;
+
+import name.mitterdorfer.perlock.BatchPathChangeListener;
+import name.mitterdorfer.perlock.EventKind;
+import name.mitterdorfer.perlock.PathChangeListener;
+import name.mitterdorfer.perlock.PathEvent;
+import name.mitterdorfer.perlock.impl.util.Preconditions;
+
+import java.util.List;
+
+/**
+ * <p>Delivers each event of a batch individually to a <code>PathChangeListener</code>. Path watchers deliver events
+ * only in batches internally; this adapter lets clients keep using per-event listeners.</p>
+ *
+ * <p>A per-event listener cannot learn the source path of a {@link EventKind#MOVE} event. Therefore, moves are
+ * delivered as a deletion of the source path followed by a creation of the target path.</p>
+ *
+ * <p>THIS IS AN INTERNAL IMPLEMENTATION CLASS AND DOES NOT BELONG TO THE API. DO NOT USE IT DIRECTLY.</p>
+ */
+public final class PathChangeListenerAdapter implements BatchPathChangeListener {
+    private final PathChangeListener listener;
+
+    public PathChangeListenerAdapter(PathChangeListener listener) {
+        Preconditions.isNotNull(listener, "listener");
+        this.listener = listener;
+    }
+
+    @Override
+    public void onPathsChanged(List<PathEvent> events) {
+        // batches are random access; avoid allocating an iterator per batch
+        for (int i = 0; i < events.size(); i++) {
+            PathEvent event = events.get(i);
+            if (event.getEventKind() == EventKind.MOVE) {
+                listener.onPathChanged(EventKind.DELETE, event.getSourcePath());
+                listener.onPathChanged(EventKind.CREATE, event.getPath());
+            } else {
+                listener.onPathChanged(event.getEventKind(), event.getPath());
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return listener.toString();
+    }
+}
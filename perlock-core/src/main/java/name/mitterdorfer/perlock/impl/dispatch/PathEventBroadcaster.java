@@ -0,0 +1,281 @@
+package name.mitterdorfer.perlock.impl.dispatch;
+
+import name.mitterdorfer.perlock.BatchPathChangeListener;
+import name.mitterdorfer.perlock.EventKind;
+import name.mitterdorfer.perlock.PathEvent;
+import name.mitterdorfer.perlock.PathEventSubscriber;
+import name.mitterdorfer.perlock.PathEventSubscription;
+import name.mitterdorfer.perlock.impl.util.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Fans out the events of one path watcher to any number of subscribers. Each subscriber has its own bounded buffer
+ * of events that it has not requested yet. Once a buffer is full, further events for that subscriber are merged per
+ * path (see {@link EventCoalescing}) until the subscriber has caught up again.</p>
+ *
+ * <p>Signals to a subscriber are serialized: Whichever thread adds events, requests events or terminates a
+ * subscription drains the buffer, unless another thread is already draining it.</p>
+ *
+ * <p>THIS IS AN INTERNAL IMPLEMENTATION CLASS AND DOES NOT BELONG TO THE API. DO NOT USE IT DIRECTLY.</p>
+ */
+public final class PathEventBroadcaster implements BatchPathChangeListener {
+    private static final Logger LOG = LoggerFactory.getLogger(PathEventBroadcaster.class);
+
+    private final int bufferCapacity;
+    private final List<BufferedSubscription> subscriptions = new CopyOnWriteArrayList<>();
+    // the reason why the path watcher has failed; only valid once "terminated" is set
+    private volatile Throwable failure;
+    private volatile boolean terminated;
+
+    /**
+     * @param bufferCapacity The number of events that are buffered per subscriber before events are merged. Must be
+     *                       positive.
+     */
+    public PathEventBroadcaster(int bufferCapacity) {
+        Preconditions.isTrue(bufferCapacity > 0, "bufferCapacity must be positive");
+        this.bufferCapacity = bufferCapacity;
+    }
+
+    public void subscribe(PathEventSubscriber subscriber) {
+        Preconditions.isNotNull(subscriber, "subscriber");
+        BufferedSubscription subscription = new BufferedSubscription(subscriber);
+        try {
+            subscriber.onSubscribe(subscription);
+        } catch (RuntimeException ex) {
+            LOG.warn("Subscriber '" + subscriber + "' has thrown an exception in onSubscribe. Cancelling it.", ex);
+            subscription.cancel();
+            return;
+        }
+        subscriptions.add(subscription);
+        // the subscriber may have cancelled (or requested a non-positive number of events) in onSubscribe, i.e.
+        // before it has been added
+        if (subscription.isDetached()) {
+            subscriptions.remove(subscription);
+            return;
+        }
+        // the path watcher may have terminated while the subscriber has been added
+        if (terminated) {
+            subscription.terminate(failure);
+        }
+    }
+
+    /**
+     * @return The number of subscribers that have neither cancelled nor been removed due to a protocol violation.
+     */
+    int getSubscriberCount() {
+        return subscriptions.size();
+    }
+
+    @Override
+    public void onPathsChanged(List<PathEvent> events) {
+        for (BufferedSubscription subscription : subscriptions) {
+            subscription.offer(events);
+        }
+    }
+
+    /**
+     * Remembers that the path watcher has failed. Subscribers are notified on {@link #terminate()}.
+     *
+     * @param failure The reason of the failure. Must not be null.
+     */
+    public void fail(Throwable failure) {
+        Preconditions.isNotNull(failure, "failure");
+        this.failure = failure;
+    }
+
+    /**
+     * Completes all subscribers (or signals the failure that has been provided via {@link #fail(Throwable)}) once they
+     * have received all buffered events. Events that arrive afterwards are discarded.
+     */
+    public void terminate() {
+        terminated = true;
+        for (BufferedSubscription subscription : subscriptions) {
+            subscription.terminate(failure);
+        }
+    }
+
+    private final class BufferedSubscription implements PathEventSubscription {
+        private final PathEventSubscriber subscriber;
+        // > 0 while a thread is draining; counts the signals that have arrived meanwhile
+        private final AtomicInteger pendingDrains = new AtomicInteger();
+
+        // guarded by "this"
+        private final ArrayDeque<PathEvent> buffer = new ArrayDeque<>();
+        // events that did not fit into the buffer anymore. Guarded by "this".
+        private final Map<Path, EventKind> overflow = new LinkedHashMap<>();
+        private long demand;
+        private boolean cancelled;
+        // true once this subscription is removed from the subscriptions of the broadcaster
+        private boolean detached;
+        private boolean terminated;
+        private Throwable error;
+        // true once the terminal signal has been delivered
+        private boolean done;
+
+        private BufferedSubscription(PathEventSubscriber subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        private void offer(List<PathEvent> events) {
+            synchronized (this) {
+                if (cancelled || terminated) {
+                    return;
+                }
+                for (PathEvent event : events) {
+                    // once events overflow, new events must not bypass them
+                    if (overflow.isEmpty() && buffer.size() < bufferCapacity) {
+                        // the path watcher reuses its events
+                        buffer.add(event.copy());
+                    } else if (event.getEventKind() == EventKind.MOVE) {
+                        merge(EventKind.DELETE, event.getSourcePath());
+                        merge(EventKind.CREATE, event.getPath());
+                    } else {
+                        merge(event.getEventKind(), event.getPath());
+                    }
+                }
+            }
+            drain();
+        }
+
+        // requires the lock on "this"
+        private void merge(EventKind eventKind, Path path) {
+            EventKind previous = overflow.get(path);
+            EventKind merged = previous == null ? eventKind : EventCoalescing.merge(previous, eventKind);
+            if (merged != null) {
+                // an existing entry keeps its position, i.e. paths are delivered in the order of their first event
+                overflow.put(path, merged);
+            } else {
+                overflow.remove(path);
+            }
+        }
+
+        private void terminate(Throwable error) {
+            synchronized (this) {
+                if (terminated) {
+                    return;
+                }
+                terminated = true;
+                this.error = error;
+            }
+            drain();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                synchronized (this) {
+                    detached = true;
+                    buffer.clear();
+                    overflow.clear();
+                }
+                subscriptions.remove(this);
+                terminate(new IllegalArgumentException("Requested " + n + " events but demand must be positive"));
+                return;
+            }
+            synchronized (this) {
+                demand += n;
+                if (demand < 0) {
+                    // Long.MAX_VALUE means "unbounded"
+                    demand = Long.MAX_VALUE;
+                }
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                cancelled = true;
+                detached = true;
+                buffer.clear();
+                overflow.clear();
+            }
+            subscriptions.remove(this);
+        }
+
+        private synchronized boolean isDetached() {
+            return detached;
+        }
+
+        private void drain() {
+            if (pendingDrains.getAndIncrement() != 0) {
+                // the draining thread will loop once more
+                return;
+            }
+            int missed = 1;
+            do {
+                //noinspection StatementWithEmptyBody
+                while (deliverNext()) {
+                    // keep delivering
+                }
+                missed = pendingDrains.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        /**
+         * Delivers the next requested event or the terminal signal (draining thread only).
+         *
+         * @return true iff an event has been delivered and there may be more.
+         */
+        private boolean deliverNext() {
+            PathEvent next = null;
+            boolean complete = false;
+            Throwable failure = null;
+            synchronized (this) {
+                if (cancelled || done) {
+                    return false;
+                }
+                if (demand > 0) {
+                    next = poll();
+                }
+                if (next != null) {
+                    if (demand != Long.MAX_VALUE) {
+                        demand--;
+                    }
+                } else if (terminated && buffer.isEmpty() && overflow.isEmpty()) {
+                    done = true;
+                    complete = true;
+                    failure = error;
+                }
+            }
+            try {
+                if (next != null) {
+                    subscriber.onNext(next);
+                    return true;
+                } else if (complete) {
+                    if (failure != null) {
+                        subscriber.onError(failure);
+                    } else {
+                        subscriber.onComplete();
+                    }
+                }
+            } catch (RuntimeException ex) {
+                LOG.warn("Subscriber '" + subscriber + "' has thrown an exception. Cancelling it.", ex);
+                cancel();
+            }
+            return false;
+        }
+
+        // requires the lock on "this"
+        private PathEvent poll() {
+            PathEvent event = buffer.poll();
+            if (event == null && !overflow.isEmpty()) {
+                Iterator<Map.Entry<Path, EventKind>> iterator = overflow.entrySet().iterator();
+                Map.Entry<Path, EventKind> merged = iterator.next();
+                iterator.remove();
+                event = PathEvent.of(merged.getValue(), merged.getKey());
+            }
+            return event;
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package name.mitterdorfer.perlock.impl.dispatch;
+
+import name.mitterdorfer.perlock.BatchPathChangeListener;
+import name.mitterdorfer.perlock.EventKind;
+import name.mitterdorfer.perlock.OverflowPolicy;
+import name.mitterdorfer.perlock.PathEvent;
+import name.mitterdorfer.perlock.WaitStrategy;
+import name.mitterdorfer.perlock.impl.util.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>Hands off events from the path watcher thread (the single producer) to a dedicated dispatcher thread (the single
+ * consumer) via a preallocated ring buffer. Producer and consumer only synchronize via two sequence counters; no locks
+ * are involved on the fast path. Only {@link OverflowPolicy#COALESCE} takes a lock once the ring buffer is full.</p>
+ *
+ * <p>The dispatcher thread delivers all events that are available when it wakes up in one batch.</p>
+ *
+ * <p>THIS IS AN INTERNAL IMPLEMENTATION CLASS AND DOES NOT BELONG TO THE API. DO NOT USE IT DIRECTLY.</p>
+ */
+public final class RingBufferDispatcher implements DispatchStage {
+    private static final Logger LOG = LoggerFactory.getLogger(RingBufferDispatcher.class);
+
+    private static final long PARK_NANOS = 50000L;
+
+    private final BatchPathChangeListener listener;
+    private final Executor executor;
+    private final WaitStrategy waitStrategy;
+    private final OverflowPolicy overflowPolicy;
+
+    private final int mask;
+    private final EventKind[] kinds;
+    private final Path[] paths;
+    // source paths of MOVE events; null for other kinds of events
+    private final Path[] sourcePaths;
+    // next sequence to publish. Only written by the producer.
+    private final Sequence head = new Sequence();
+    // next sequence to consume. Written by the consumer and - for DROP_OLDEST - also by the producer.
+    private final Sequence tail = new Sequence();
+
+    // Events that did not fit into the ring buffer (only used for COALESCE). Guarded by "overflow".
+    private final Map<Path, EventKind> overflow = new LinkedHashMap<>();
+    // true as long as there are events in "overflow". New events must not bypass them to preserve order.
+    private volatile boolean overflowPending;
+    // only used by the consumer
+    private final EventBatch batch = new EventBatch();
+
+    private volatile boolean running;
+    private volatile boolean consumerWaiting;
+    private volatile Thread consumerThread;
+    // the first exception thrown by the listener on the dispatcher thread. Rethrown on the producer thread.
+    private volatile RuntimeException failure;
+    private volatile CountDownLatch terminated;
+
+    public RingBufferDispatcher(BatchPathChangeListener listener, Executor executor, int capacity,
+                                WaitStrategy waitStrategy, OverflowPolicy overflowPolicy) {
+        Preconditions.isNotNull(listener, "listener");
+        Preconditions.isNotNull(executor, "executor");
+        Preconditions.isTrue(capacity > 0 && capacity <= 1 << 30, "'capacity' must be in the range [1, 2^30]");
+        Preconditions.isNotNull(waitStrategy, "waitStrategy");
+        Preconditions.isNotNull(overflowPolicy, "overflowPolicy");
+        this.listener = listener;
+        this.executor = executor;
+        this.waitStrategy = waitStrategy;
+        this.overflowPolicy = overflowPolicy;
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.kinds = new EventKind[size];
+        this.paths = new Path[size];
+        this.sourcePaths = new Path[size];
+    }
+
+    @Override
+    public void start() {
+        CountDownLatch previous = terminated;
+        if (previous != null) {
+            // a dispatcher thread of a previous run might still be draining. There must only be one consumer at a time.
+            awaitUninterruptibly(previous);
+        }
+        failure = null;
+        running = true;
+        terminated = new CountDownLatch(1);
+        executor.execute(new Consumer(terminated));
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        LockSupport.unpark(consumerThread);
+    }
+
+    @Override
+    public void onPathsChanged(List<PathEvent> events) {
+        RuntimeException ex = failure;
+        if (ex != null) {
+            throw ex;
+        }
+        for (int i = 0; i < events.size(); i++) {
+            PathEvent event = events.get(i);
+            publish(event.getEventKind(), event.getPath(), event.getSourcePath());
+        }
+    }
+
+    private void publish(EventKind eventKind, Path path, Path sourcePath) {
+        if (overflowPending && coalesce(eventKind, path, sourcePath)) {
+            signalConsumer();
+            return;
+        }
+        while (!offer(eventKind, path, sourcePath)) {
+            if (overflowPolicy == OverflowPolicy.COALESCE) {
+                if (coalesce(eventKind, path, sourcePath)) {
+                    break;
+                }
+            } else if (overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+                long t = tail.get();
+                if (head.get() - t > mask && tail.compareAndSet(t, t + 1)) {
+                    LOG.trace("Dispatcher ring buffer is full. Dropped oldest event.");
+                }
+            } else {
+                RuntimeException consumerFailure = failure;
+                if (consumerFailure != null) {
+                    throw consumerFailure;
+                }
+                if (!running) {
+                    // nobody will ever free up capacity again
+                    LOG.warn("Dropping event '{}' for path '{}' as the dispatcher is not running anymore.", eventKind, path);
+                    return;
+                }
+                idle();
+            }
+        }
+        signalConsumer();
+    }
+
+    /**
+     * Publishes an event to the ring buffer (producer only).
+     *
+     * @return true iff the event has been published, false if the ring buffer is full.
+     */
+    private boolean offer(EventKind eventKind, Path path, Path sourcePath) {
+        long h = head.get();
+        if (h - tail.get() > mask) {
+            return false;
+        }
+        int index = (int) h & mask;
+        kinds[index] = eventKind;
+        paths[index] = path;
+        sourcePaths[index] = sourcePath;
+        if (waitStrategy == WaitStrategy.PARK) {
+            // full fence: the consumer must not miss the new event after it has announced that it will park.
+            head.set(h + 1);
+        } else {
+            head.lazySet(h + 1);
+        }
+        return true;
+    }
+
+    /**
+     * Adds an event to the overflow buffer. Events are merged per path, so a move is split into a deletion of its
+     * source path and a creation of its target path.
+     *
+     * @return true iff the event has been added. false if the overflow buffer has been drained concurrently and the
+     * event should be published to the ring buffer instead.
+     */
+    private boolean coalesce(EventKind eventKind, Path path, Path sourcePath) {
+        synchronized (overflow) {
+            if (overflowPending || head.get() - tail.get() > mask) {
+                if (eventKind == EventKind.MOVE) {
+                    merge(EventKind.DELETE, sourcePath);
+                    merge(EventKind.CREATE, path);
+                } else {
+                    merge(eventKind, path);
+                }
+                overflowPending = true;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    // requires the lock on "overflow"
+    private void merge(EventKind eventKind, Path path) {
+        EventKind previous = overflow.get(path);
+        EventKind merged = previous == null ? eventKind : EventCoalescing.merge(previous, eventKind);
+        if (merged != null) {
+            // an existing entry keeps its position, i.e. paths are delivered in the order of their first event
+            overflow.put(path, merged);
+        } else {
+            overflow.remove(path);
+        }
+    }
+
+    private void signalConsumer() {
+        if (consumerWaiting) {
+            LockSupport.unpark(consumerThread);
+        }
+    }
+
+    /**
+     * Consumes all events that are currently available (consumer only).
+     *
+     * @return the number of delivered events.
+     */
+    private int drain() {
+        long t = tail.get();
+        long h = head.get();
+        while (t < h) {
+            int index = (int) t & mask;
+            EventKind eventKind = kinds[index];
+            Path path = paths[index];
+            Path sourcePath = sourcePaths[index];
+            if (overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+                if (!tail.compareAndSet(t, t + 1)) {
+                    // the producer has dropped this event while we have been reading it
+                    t = tail.get();
+                    continue;
+                }
+            } else {
+                tail.lazySet(t + 1);
+            }
+            t++;
+            if (eventKind == EventKind.MOVE) {
+                batch.addMove(sourcePath, path);
+            } else {
+                batch.add(eventKind, path);
+            }
+        }
+        if (batch.isEmpty() && overflowPending) {
+            drainOverflow();
+        }
+        int delivered = batch.size();
+        if (delivered > 0) {
+            try {
+                listener.onPathsChanged(batch.asList());
+            } finally {
+                batch.clear();
+            }
+        }
+        return delivered;
+    }
+
+    private void drainOverflow() {
+        synchronized (overflow) {
+            for (Map.Entry<Path, EventKind> event : overflow.entrySet()) {
+                batch.add(event.getValue(), event.getKey());
+            }
+            overflow.clear();
+            overflowPending = false;
+        }
+    }
+
+    private void idle() {
+        switch (waitStrategy) {
+            case SPIN:
+                break;
+            case YIELD:
+                Thread.yield();
+                break;
+            default:
+                LockSupport.parkNanos(this, PARK_NANOS);
+        }
+    }
+
+    private void awaitEvents() {
+        if (waitStrategy != WaitStrategy.PARK) {
+            idle();
+            return;
+        }
+        consumerWaiting = true;
+        try {
+            // re-check after announcing that we park. Otherwise we could miss the wake up signal of the producer
+            if (running && tail.get() == head.get() && !overflowPending) {
+                LockSupport.park(this);
+            }
+        } finally {
+            consumerWaiting = false;
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RingBufferDispatcher for '" + listener + "'";
+    }
+
+    private final class Consumer implements Runnable {
+        private final CountDownLatch terminated;
+
+        private Consumer(CountDownLatch terminated) {
+            this.terminated = terminated;
+        }
+
+        @Override
+        public void run() {
+            consumerThread = Thread.currentThread();
+            LOG.trace("Dispatcher thread for '{}' started.", listener);
+            try {
+                while (true) {
+                    if (drain() == 0) {
+                        if (!running) {
+                            // one last attempt: the producer might have published just before it has been stopped
+                            drain();
+                            break;
+                        }
+                        awaitEvents();
+                    }
+                }
+            } catch (RuntimeException ex) {
+                LOG.trace("Listener threw an exception on the dispatcher thread.", ex);
+                failure = ex;
+            } finally {
+                consumerThread = null;
+                LOG.trace("Dispatcher thread for '{}' stopped.", listener);
+                terminated.countDown();
+            }
+        }
+    }
+}
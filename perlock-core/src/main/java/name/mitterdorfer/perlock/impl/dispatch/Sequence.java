@@ -0,0 +1,15 @@
+package name.mitterdorfer.perlock.impl.dispatch;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An <code>AtomicLong</code> that is padded to avoid false sharing between the producer's and the consumer's sequence
+ * of a ring buffer.
+ */
+@SuppressWarnings("unused")
+final class Sequence extends AtomicLong {
+    // sequences are never serialized; declared because AtomicLong is serializable
+    private static final long serialVersionUID = 1L;
+
+    private long p1, p2, p3, p4, p5, p6, p7;
+}
@@ -0,0 +1,448 @@
+package name.mitterdorfer.perlock.impl.dispatch;
+
+import name.mitterdorfer.perlock.BatchPathChangeListener;
+import name.mitterdorfer.perlock.EventKind;
+import name.mitterdorfer.perlock.PathEvent;
+import name.mitterdorfer.perlock.impl.util.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>Holds back creations and modifications of files until the file is not written to anymore and delivers it as
+ * {@link EventKind#READY} then. A file is complete once no further event has occurred on it and its size and
+ * modification time have not changed for one probe interval, or as soon as the watch service reports that it has been
+ * closed after writing (see {@link #closedAfterWrite(Path)}).</p>
+ *
+ * <p>Pending files are tracked in a hashed timer wheel like in {@link DebouncingDispatcher}. When the bucket of a file
+ * expires, the timer thread reads its attributes without holding the lock, so the path watcher thread is never blocked
+ * by file system access. The first probe records the attributes, each further probe compares them to the previous
+ * one.</p>
+ *
+ * <p>All other events are delivered on the timer thread as well, so the listener is never called concurrently and
+ * sees all events in order.</p>
+ *
+ * <p>THIS IS AN INTERNAL IMPLEMENTATION CLASS AND DOES NOT BELONG TO THE API. DO NOT USE IT DIRECTLY.</p>
+ */
+public final class WriteCompletionDispatcher implements DispatchStage {
+    private static final Logger LOG = LoggerFactory.getLogger(WriteCompletionDispatcher.class);
+
+    private static final int WHEEL_SIZE = 256;
+    private static final int TICKS_PER_PROBE_INTERVAL = 8;
+    private static final long MIN_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1L);
+
+    // results of a probe
+    private static final int PROBE_FILE = 0;
+    private static final int PROBE_OTHER = 1;
+    private static final int PROBE_MISSING = 2;
+    private static final int PROBE_FAILED = 3;
+
+    private final BatchPathChangeListener listener;
+    private final Executor executor;
+    private final long probeIntervalNanos;
+    private final long tickNanos;
+    // all points in time are relative to this origin so they are never negative
+    private final long origin = System.nanoTime();
+
+    // all fields below are guarded by "this"
+    private final Map<Path, Pending> pending = new HashMap<>();
+    private final Pending[] wheel = new Pending[WHEEL_SIZE];
+    // events that are not held back; they are delivered on the next tick
+    private final List<PathEvent> passed = new ArrayList<>();
+
+    private volatile boolean running;
+    private volatile Thread timerThread;
+    // the first exception thrown by the listener on the timer thread. Rethrown on the producer thread.
+    private volatile RuntimeException failure;
+    private volatile CountDownLatch terminated;
+
+    public WriteCompletionDispatcher(BatchPathChangeListener listener, Executor executor, long probeInterval,
+                                     TimeUnit unit) {
+        Preconditions.isNotNull(listener, "listener");
+        Preconditions.isNotNull(executor, "executor");
+        Preconditions.isTrue(probeInterval > 0, "'probeInterval' must be positive");
+        Preconditions.isNotNull(unit, "unit");
+        this.listener = listener;
+        this.executor = executor;
+        this.probeIntervalNanos = unit.toNanos(probeInterval);
+        this.tickNanos = Math.max(MIN_TICK_NANOS, probeIntervalNanos / TICKS_PER_PROBE_INTERVAL);
+    }
+
+    @Override
+    public void start() {
+        CountDownLatch previous = terminated;
+        if (previous != null) {
+            // the timer thread of a previous run might still be flushing. There must only be one at a time.
+            awaitUninterruptibly(previous);
+        }
+        if (listener instanceof DispatchStage) {
+            ((DispatchStage) listener).start();
+        }
+        failure = null;
+        running = true;
+        terminated = new CountDownLatch(1);
+        executor.execute(new Timer(terminated));
+    }
+
+    /**
+     * Requests that the timer thread stops. It will deliver all pending events with their original kind before it
+     * stops (and before it stops downstream dispatch stages).
+     */
+    @Override
+    public void stop() {
+        running = false;
+        LockSupport.unpark(timerThread);
+    }
+
+    @Override
+    public void onPathsChanged(List<PathEvent> events) {
+        RuntimeException ex = failure;
+        if (ex != null) {
+            throw ex;
+        }
+        long deadline = now() + probeIntervalNanos;
+        boolean wakeUp;
+        synchronized (this) {
+            boolean idle = passed.isEmpty();
+            for (int i = 0; i < events.size(); i++) {
+                add(events.get(i), deadline);
+            }
+            wakeUp = idle && !passed.isEmpty();
+        }
+        if (wakeUp) {
+            LockSupport.unpark(timerThread);
+        }
+    }
+
+    /**
+     * Notifies this stage that a file has been closed after writing. If the file is pending, it is ready immediately.
+     *
+     * @param path The path of the file. Must not be null.
+     */
+    public void closedAfterWrite(Path path) {
+        boolean wakeUp = false;
+        synchronized (this) {
+            Pending entry = pending.remove(path);
+            if (entry != null) {
+                // the wheel will skip the entry when its bucket expires
+                entry.cancelled = true;
+                wakeUp = passed.isEmpty();
+                passed.add(PathEvent.of(EventKind.READY, path));
+            }
+        }
+        if (wakeUp) {
+            LockSupport.unpark(timerThread);
+        }
+    }
+
+    // requires the lock on "this"
+    private void add(PathEvent event, long deadline) {
+        EventKind eventKind = event.getEventKind();
+        Path path = event.getPath();
+        if (eventKind == EventKind.CREATE || eventKind == EventKind.MODIFY) {
+            Pending entry = pending.get(path);
+            if (entry == null) {
+                entry = new Pending(path, eventKind, deadline);
+                pending.put(path, entry);
+                schedule(entry);
+            } else {
+                // the file is still being written. Its bucket will be revisited lazily.
+                entry.deadline = deadline;
+            }
+        } else if (eventKind == EventKind.DELETE) {
+            Pending entry = pending.remove(path);
+            if (entry != null) {
+                entry.cancelled = true;
+                if (entry.eventKind == EventKind.CREATE) {
+                    // the file has never been reported
+                    return;
+                }
+            }
+            passed.add(event.copy());
+        } else if (eventKind == EventKind.MOVE) {
+            Pending target = pending.remove(path);
+            if (target != null) {
+                // the file has been replaced
+                target.cancelled = true;
+            }
+            Pending entry = pending.remove(event.getSourcePath());
+            if (entry != null) {
+                // the file is still being written under its new path
+                entry.cancelled = true;
+                Pending moved = new Pending(path, entry.eventKind, deadline);
+                pending.put(path, moved);
+                schedule(moved);
+                if (entry.eventKind == EventKind.CREATE) {
+                    // the file has never been reported under its former path
+                    return;
+                }
+            }
+            passed.add(event.copy());
+        } else {
+            passed.add(event.copy());
+        }
+    }
+
+    // requires the lock on "this"
+    private void schedule(Pending entry) {
+        // the first tick that starts after the deadline. Thus, the entry has always expired when its bucket is visited.
+        int bucket = (int) (entry.deadline / tickNanos + 1) & (WHEEL_SIZE - 1);
+        entry.next = wheel[bucket];
+        wheel[bucket] = entry;
+    }
+
+    /**
+     * Collects the entries whose deadline has passed. They stay in the map of pending entries while they are probed.
+     */
+    // requires the lock on "this"
+    private void expire(long tick, long now, List<Pending> due) {
+        int bucket = (int) tick & (WHEEL_SIZE - 1);
+        Pending entry = wheel[bucket];
+        wheel[bucket] = null;
+        while (entry != null) {
+            Pending next = entry.next;
+            entry.next = null;
+            if (!entry.cancelled) {
+                if (entry.deadline <= now) {
+                    due.add(entry);
+                } else {
+                    // the file has changed again in the meantime
+                    schedule(entry);
+                }
+            }
+            entry = next;
+        }
+    }
+
+    /**
+     * Reads the attributes of the provided entries. Only the timer thread accesses the probe fields of an entry.
+     */
+    private static void probe(List<Pending> due) {
+        for (int i = 0; i < due.size(); i++) {
+            Pending entry = due.get(i);
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(entry.path, BasicFileAttributes.class);
+                if (attributes.isRegularFile()) {
+                    entry.probe = PROBE_FILE;
+                    entry.probedSize = attributes.size();
+                    entry.probedLastModified = attributes.lastModifiedTime().toMillis();
+                } else {
+                    entry.probe = PROBE_OTHER;
+                }
+            } catch (NoSuchFileException ex) {
+                entry.probe = PROBE_MISSING;
+            } catch (IOException ex) {
+                LOG.debug("Cannot read attributes of '{}'. Assuming that it is complete.", entry.path, ex);
+                entry.probe = PROBE_FAILED;
+            }
+        }
+    }
+
+    /**
+     * Decides for each probed entry whether it is complete.
+     *
+     * @param expiredAt The point in time when the entries have been collected.
+     */
+    // requires the lock on "this"
+    private void complete(List<Pending> due, long expiredAt, long now, List<PathEvent> expired) {
+        for (int i = 0; i < due.size(); i++) {
+            Pending entry = due.get(i);
+            if (entry.cancelled) {
+                continue;
+            }
+            if (entry.deadline > expiredAt) {
+                // an event has occurred while probing; the probe serves as the reference for the next one
+                entry.remember();
+                schedule(entry);
+                continue;
+            }
+            switch (entry.probe) {
+                case PROBE_FILE:
+                    if (!entry.hasReference || entry.probedSize != entry.size
+                            || entry.probedLastModified != entry.lastModified) {
+                        entry.remember();
+                        entry.deadline = now + probeIntervalNanos;
+                        schedule(entry);
+                        continue;
+                    }
+                    entry.eventKind = EventKind.READY;
+                    break;
+                case PROBE_OTHER:
+                    // directories are never written to; deliver the original event
+                    break;
+                case PROBE_MISSING:
+                    // the file is gone again; its deletion (if reported) decides what is delivered
+                    pending.remove(entry.path);
+                    continue;
+                default:
+                    entry.eventKind = EventKind.READY;
+                    break;
+            }
+            pending.remove(entry.path);
+            expired.add(entry);
+        }
+    }
+
+    // requires the lock on "this"
+    private void expireAll(List<PathEvent> expired) {
+        for (int bucket = 0; bucket < WHEEL_SIZE; bucket++) {
+            for (Pending entry = wheel[bucket]; entry != null; entry = entry.next) {
+                if (!entry.cancelled) {
+                    // we cannot tell whether the file is complete; deliver the original event
+                    expired.add(entry);
+                }
+            }
+            wheel[bucket] = null;
+        }
+        pending.clear();
+    }
+
+    private void deliver(List<PathEvent> expired, List<PathEvent> batch) {
+        if (!expired.isEmpty()) {
+            try {
+                listener.onPathsChanged(batch);
+            } finally {
+                expired.clear();
+            }
+        }
+    }
+
+    private long now() {
+        return System.nanoTime() - origin;
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "WriteCompletionDispatcher for '" + listener + "'";
+    }
+
+    private static final class Pending extends PathEvent {
+        private final Path path;
+        // CREATE or MODIFY while pending, READY once complete
+        private EventKind eventKind;
+        private long deadline;
+        private boolean cancelled;
+        // next entry in the same wheel bucket
+        private Pending next;
+        // the attributes of the previous probe
+        private boolean hasReference;
+        private long size;
+        private long lastModified;
+        // the result of the current probe
+        private int probe;
+        private long probedSize;
+        private long probedLastModified;
+
+        private Pending(Path path, EventKind eventKind, long deadline) {
+            this.path = path;
+            this.eventKind = eventKind;
+            this.deadline = deadline;
+        }
+
+        private void remember() {
+            hasReference = probe == PROBE_FILE;
+            size = probedSize;
+            lastModified = probedLastModified;
+        }
+
+        @Override
+        public EventKind getEventKind() {
+            return eventKind;
+        }
+
+        @Override
+        public Path getPath() {
+            return path;
+        }
+    }
+
+    private final class Timer implements Runnable {
+        private final CountDownLatch terminated;
+
+        private Timer(CountDownLatch terminated) {
+            this.terminated = terminated;
+        }
+
+        @Override
+        public void run() {
+            timerThread = Thread.currentThread();
+            LOG.trace("Timer thread for '{}' started.", listener);
+            List<PathEvent> expired = new ArrayList<>();
+            List<PathEvent> batch = Collections.unmodifiableList(expired);
+            List<Pending> due = new ArrayList<>();
+            long lastTick = now() / tickNanos;
+            try {
+                while (running) {
+                    long now = now();
+                    long currentTick = now / tickNanos;
+                    synchronized (WriteCompletionDispatcher.this) {
+                        // events that have not been held back happened before any file that is due now completed
+                        expired.addAll(passed);
+                        passed.clear();
+                        // visiting each bucket once is sufficient even if we have fallen behind more than one rotation
+                        long firstTick = Math.max(lastTick + 1, currentTick - WHEEL_SIZE + 1);
+                        for (long tick = firstTick; tick <= currentTick; tick++) {
+                            expire(tick, now, due);
+                        }
+                    }
+                    lastTick = currentTick;
+                    if (!due.isEmpty()) {
+                        probe(due);
+                        synchronized (WriteCompletionDispatcher.this) {
+                            complete(due, now, now(), expired);
+                        }
+                        due.clear();
+                    }
+                    deliver(expired, batch);
+                    LockSupport.parkNanos(WriteCompletionDispatcher.this, (currentTick + 1) * tickNanos - now());
+                }
+                // don't lose any pending events when we stop
+                synchronized (WriteCompletionDispatcher.this) {
+                    expired.addAll(passed);
+                    passed.clear();
+                    expireAll(expired);
+                }
+                deliver(expired, batch);
+            } catch (RuntimeException ex) {
+                LOG.trace("Listener threw an exception on the timer thread.", ex);
+                failure = ex;
+            } finally {
+                if (listener instanceof DispatchStage) {
+                    ((DispatchStage) listener).stop();
+                }
+                timerThread = null;
+                LOG.trace("Timer thread for '{}' stopped.", listener);
+                terminated.countDown();
+            }
+        }
+    }
+}
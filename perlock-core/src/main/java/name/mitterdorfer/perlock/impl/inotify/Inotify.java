@@ -0,0 +1,142 @@
+package name.mitterdorfer.perlock.impl.inotify;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+
+/**
+ * <p>Bindings to the inotify API of Linux. The native part is provided by the optional library
+ * <code>perlockinotify</code> (see <code>src/main/native</code>) which has to be on the
+ * <code>java.library.path</code>. If it cannot be loaded, {@link #isAvailable()} returns false.</p>
+ *
+ * <p>Native functions return a negative <code>errno</code> value on failure instead of throwing exceptions. Use
+ * {@link #exception(int, Path)} to map it.</p>
+ *
+ * <p>THIS IS AN INTERNAL IMPLEMENTATION CLASS AND DOES NOT BELONG TO THE API. DO NOT USE IT DIRECTLY.</p>
+ */
+final class Inotify {
+    private static final Logger LOG = LoggerFactory.getLogger(Inotify.class);
+    private static final String LIBRARY_NAME = "perlockinotify";
+
+    static final int IN_MODIFY = 0x00000002;
+    static final int IN_ATTRIB = 0x00000004;
+    static final int IN_CLOSE_WRITE = 0x00000008;
+    static final int IN_MOVED_FROM = 0x00000040;
+    static final int IN_MOVED_TO = 0x00000080;
+    static final int IN_CREATE = 0x00000100;
+    static final int IN_DELETE = 0x00000200;
+    static final int IN_UNMOUNT = 0x00002000;
+    static final int IN_Q_OVERFLOW = 0x00004000;
+    static final int IN_IGNORED = 0x00008000;
+    static final int IN_ONLYDIR = 0x01000000;
+    static final int IN_ISDIR = 0x40000000;
+
+    // struct inotify_event: int wd, uint32_t mask, uint32_t cookie, uint32_t len, followed by len bytes of the name
+    static final int EVENT_HEADER_SIZE = 16;
+    static final int EVENT_MASK_OFFSET = 4;
+    static final int EVENT_COOKIE_OFFSET = 8;
+    static final int EVENT_LENGTH_OFFSET = 12;
+    // NAME_MAX plus the terminating null byte
+    static final int MAX_NAME_LENGTH = 256;
+
+    private static final int ENOENT = 2;
+    private static final int EACCES = 13;
+    private static final int ENOTDIR = 20;
+    private static final int EMFILE = 24;
+    private static final int ENOSPC = 28;
+
+    private static final boolean AVAILABLE = load();
+
+    private Inotify() {
+        // no instances intended
+    }
+
+    private static boolean load() {
+        String osName = System.getProperty("os.name");
+        if (osName == null || !osName.toLowerCase().startsWith("linux")) {
+            return false;
+        }
+        try {
+            System.loadLibrary(LIBRARY_NAME);
+            LOG.debug("Using the native inotify backend.");
+            return true;
+        } catch (UnsatisfiedLinkError | SecurityException ex) {
+            LOG.trace("Native inotify backend is not available. Using the watch service of the JDK.", ex);
+            return false;
+        }
+    }
+
+    /**
+     * @return true iff the native library has been loaded.
+     */
+    static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    /**
+     * Maps a negative <code>errno</code> value that has been returned by a native function to an exception.
+     *
+     * @param error The negative <code>errno</code> value.
+     * @param path  The affected path. May be null if no path is affected.
+     */
+    static IOException exception(int error, Path path) {
+        String file = path != null ? path.toString() : null;
+        switch (-error) {
+            case ENOENT:
+                return new NoSuchFileException(file);
+            case EACCES:
+                return new AccessDeniedException(file);
+            case ENOTDIR:
+                return new NotDirectoryException(file);
+            case ENOSPC:
+                // watch quotas rely on it
+                return new WatchLimitReachedException(file);
+            case EMFILE:
+                return new IOException("User limit of inotify instances reached or too many open files");
+            default:
+                return new FileSystemException(file, null, strerror(-error));
+        }
+    }
+
+    /**
+     * @return A new inotify instance (in non-blocking mode) or a negative <code>errno</code> value.
+     */
+    static native int init();
+
+    /**
+     * @param path The path to watch encoded as null terminated byte sequence.
+     * @return The watch descriptor or a negative <code>errno</code> value.
+     */
+    static native int addWatch(int fd, byte[] path, int mask);
+
+    static native int removeWatch(int fd, int wd);
+
+    /**
+     * Waits until events are available and reads as many as fit into the buffer.
+     *
+     * @param buffer        A direct buffer that receives the events. Its position and limit are ignored.
+     * @param timeoutMillis The maximum time to wait. <code>0</code> does not wait at all.
+     * @return The number of bytes read, <code>0</code> on timeout or after a wakeup or a negative <code>errno</code>
+     * value.
+     */
+    static native int read(int fd, int wakeupFd, ByteBuffer buffer, int timeoutMillis);
+
+    /**
+     * @return A file descriptor that wakes up {@link #read(int, int, ByteBuffer, int)} once it is signalled or a
+     * negative <code>errno</code> value.
+     */
+    static native int createWakeup();
+
+    static native void wakeup(int wakeupFd);
+
+    static native void close(int fd);
+
+    static native String strerror(int error);
+}
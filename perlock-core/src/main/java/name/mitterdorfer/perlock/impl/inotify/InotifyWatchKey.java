@@ -0,0 +1,182 @@
+package name.mitterdorfer.perlock.impl.inotify;
+
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.Watchable;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * <p>The watch key of a directory that is watched by an {@link InotifyWatchService}. It follows the contract of the
+ * watch keys of the JDK: Repeated events are counted instead of queued and too many pending events are replaced by an
+ * overflow event. Events of renames additionally carry the cookie of the rename; they are only counted together if
+ * their cookies match.</p>
+ *
+ * <p>Threading: This class is thread-safe.</p>
+ *
+ * <p>THIS IS AN INTERNAL IMPLEMENTATION CLASS AND DOES NOT BELONG TO THE API. DO NOT USE IT DIRECTLY.</p>
+ */
+final class InotifyWatchKey implements WatchKey {
+    // same limit as the watch keys of the JDK
+    private static final int MAX_EVENT_LIST_SIZE = 512;
+
+    private final InotifyWatchService watchService;
+    private final Path dir;
+    private final int wd;
+    // guarded by this
+    private List<WatchEvent<?>> events = new ArrayList<>();
+    // guarded by this
+    private boolean signalled;
+    private volatile boolean valid = true;
+
+    InotifyWatchKey(InotifyWatchService watchService, Path dir, int wd) {
+        this.watchService = watchService;
+        this.dir = dir;
+        this.wd = wd;
+    }
+
+    int getWatchDescriptor() {
+        return wd;
+    }
+
+    Path getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Adds an event to this key and signals it.
+     *
+     * @param context The file name of the affected entry. Null for overflow events.
+     * @param cookie  The cookie of a rename or <code>0</code> if the event has not been caused by a rename.
+     * @param dir     true iff the affected entry is a directory.
+     */
+    synchronized void signalEvent(WatchEvent.Kind<?> kind, Path context, int cookie, boolean dir) {
+        int size = events.size();
+        if (size > 0) {
+            Event last = (Event) events.get(size - 1);
+            if (last.kind == OVERFLOW ||
+                    (last.kind == kind && last.cookie == cookie && last.dir == dir && context != null &&
+                            context.equals(last.context))) {
+                last.count++;
+                signal();
+                return;
+            }
+            if (size >= MAX_EVENT_LIST_SIZE) {
+                kind = OVERFLOW;
+                context = null;
+                cookie = 0;
+                dir = false;
+            }
+        }
+        events.add(new Event(kind, context, cookie, dir));
+        signal();
+    }
+
+    /**
+     * Marks this key as invalid because the kernel has removed the watch, e.g. because the directory has been deleted.
+     * The key is signalled so its owner notices.
+     */
+    synchronized void invalidate() {
+        valid = false;
+        signal();
+    }
+
+    // requires the monitor of this key
+    private void signal() {
+        if (!signalled) {
+            signalled = true;
+            watchService.enqueue(this);
+        }
+    }
+
+    @Override
+    public boolean isValid() {
+        return valid && watchService.isOpen();
+    }
+
+    @Override
+    public synchronized List<WatchEvent<?>> pollEvents() {
+        List<WatchEvent<?>> result = events;
+        events = new ArrayList<>();
+        return result;
+    }
+
+    @Override
+    public synchronized boolean reset() {
+        if (signalled && isValid()) {
+            if (events.isEmpty()) {
+                signalled = false;
+            } else {
+                // events have arrived while the owner has handled the previous ones
+                watchService.enqueue(this);
+            }
+        }
+        return isValid();
+    }
+
+    @Override
+    public void cancel() {
+        if (valid) {
+            valid = false;
+            watchService.cancel(this);
+        }
+    }
+
+    @Override
+    public Watchable watchable() {
+        return dir;
+    }
+
+    @Override
+    public String toString() {
+        return "InotifyWatchKey{dir=" + dir + ", wd=" + wd + "}";
+    }
+
+    static final class Event implements WatchEvent<Object> {
+        private final WatchEvent.Kind<?> kind;
+        private final Object context;
+        private final int cookie;
+        private final boolean dir;
+        // guarded by the monitor of the key
+        private int count = 1;
+
+        private Event(WatchEvent.Kind<?> kind, Object context, int cookie, boolean dir) {
+            this.kind = kind;
+            this.context = context;
+            this.cookie = cookie;
+            this.dir = dir;
+        }
+
+        int getCookie() {
+            return cookie;
+        }
+
+        boolean isDirectory() {
+            return dir;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public WatchEvent.Kind<Object> kind() {
+            return (WatchEvent.Kind<Object>) kind;
+        }
+
+        @Override
+        public int count() {
+            return count;
+        }
+
+        @Override
+        public Object context() {
+            return context;
+        }
+
+        @Override
+        public String toString() {
+            return "Event{kind=" + kind + ", context=" + context + ", count=" + count + "}";
+        }
+    }
+}
@@ -0,0 +1,382 @@
+package name.mitterdorfer.perlock.impl.inotify;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * <p>A watch service that talks to inotify directly instead of using the watch service of the JDK.</p>
+ *
+ * <p>The watch service of the JDK reads events on an internal background thread and hands them over to the thread
+ * that waits for watch keys. In contrast, this watch service has no thread of its own: The thread that calls
+ * {@link #poll()}, {@link #poll(long, TimeUnit)} or {@link #take()} reads all available events in bulk into a reusable
+ * off-heap buffer and decodes them directly into the affected watch keys.</p>
+ *
+ * <p>Directories cannot be registered via {@link Path#register(WatchService, WatchEvent.Kind[])} as this watch service
+ * does not belong to the file system provider. Use {@link #register(Path, WatchEvent.Kind[])} instead.</p>
+ *
+ * <p>Threading: This class is thread-safe. Only one thread reads events at a time.</p>
+ *
+ * <p>THIS IS AN INTERNAL IMPLEMENTATION CLASS AND DOES NOT BELONG TO THE API. DO NOT USE IT DIRECTLY.</p>
+ */
+public final class InotifyWatchService implements WatchService {
+    /**
+     * A file that has been opened for writing has been closed. This kind of event is not supported by the watch service
+     * of the JDK.
+     */
+    public static final WatchEvent.Kind<Path> ENTRY_CLOSE_WRITE = new CloseWriteKind();
+
+    private static final Logger LOG = LoggerFactory.getLogger(InotifyWatchService.class);
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Interrupts cannot wake up a thread that blocks in native code. Check for them at least this often.
+    private static final long MAX_BLOCKING_NANOS = TimeUnit.MILLISECONDS.toNanos(100L);
+    private static final long NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1L);
+    // file names are encoded like the JDK encodes them
+    private static final Charset PATH_CHARSET = pathCharset();
+
+    private final int fd;
+    private final int wakeupFd;
+    // guarded by itself
+    private final Map<Integer, InotifyWatchKey> keys = new HashMap<>();
+    private final BlockingQueue<InotifyWatchKey> signalledKeys = new LinkedBlockingQueue<>();
+    // guards reading events and closing the file descriptors
+    private final ReentrantLock readLock = new ReentrantLock();
+    // the following fields are guarded by readLock
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.nativeOrder());
+    private final byte[] name = new byte[Inotify.MAX_NAME_LENGTH];
+    private volatile boolean closed;
+
+    private InotifyWatchService(int fd, int wakeupFd) {
+        this.fd = fd;
+        this.wakeupFd = wakeupFd;
+    }
+
+    /**
+     * @return true iff an <code>InotifyWatchService</code> can watch paths of the provided file system.
+     */
+    public static boolean isSupported(FileSystem fileSystem) {
+        return Inotify.isAvailable() && fileSystem == FileSystems.getDefault();
+    }
+
+    /**
+     * Creates a new inotify instance.
+     *
+     * @throws IOException If the inotify instance cannot be created, e.g. because the user limit has been reached.
+     */
+    public static InotifyWatchService open() throws IOException {
+        int fd = Inotify.init();
+        if (fd < 0) {
+            throw Inotify.exception(fd, null);
+        }
+        int wakeupFd = Inotify.createWakeup();
+        if (wakeupFd < 0) {
+            Inotify.close(fd);
+            throw Inotify.exception(wakeupFd, null);
+        }
+        return new InotifyWatchService(fd, wakeupFd);
+    }
+
+    private static Charset pathCharset() {
+        try {
+            return Charset.forName(System.getProperty("sun.jnu.encoding", "UTF-8"));
+        } catch (IllegalArgumentException ex) {
+            return Charset.defaultCharset();
+        }
+    }
+
+    /**
+     * Registers a directory. Registering the same directory again replaces the kinds of events and returns the same
+     * key.
+     *
+     * @param dir   The directory to watch. Must not be null.
+     * @param kinds The kinds of events to watch for. Besides the standard kinds, {@link #ENTRY_CLOSE_WRITE} is
+     *              supported. Overflow events are always delivered.
+     * @return The watch key of <code>dir</code>. Never null.
+     * @throws IOException If <code>dir</code> cannot be watched.
+     */
+    public WatchKey register(Path dir, WatchEvent.Kind<?>... kinds) throws IOException {
+        int mask = Inotify.IN_ONLYDIR;
+        for (WatchEvent.Kind<?> kind : kinds) {
+            if (kind == ENTRY_CREATE) {
+                mask |= Inotify.IN_CREATE | Inotify.IN_MOVED_TO;
+            } else if (kind == ENTRY_DELETE) {
+                mask |= Inotify.IN_DELETE | Inotify.IN_MOVED_FROM;
+            } else if (kind == ENTRY_MODIFY) {
+                mask |= Inotify.IN_MODIFY | Inotify.IN_ATTRIB;
+            } else if (kind == ENTRY_CLOSE_WRITE) {
+                mask |= Inotify.IN_CLOSE_WRITE;
+            } else if (kind != OVERFLOW) {
+                throw new UnsupportedOperationException("Unsupported event kind '" + kind + "'");
+            }
+        }
+        byte[] path = (dir.toAbsolutePath().toString() + '\0').getBytes(PATH_CHARSET);
+        synchronized (keys) {
+            if (closed) {
+                throw new ClosedWatchServiceException();
+            }
+            int wd = Inotify.addWatch(fd, path, mask);
+            if (wd < 0) {
+                throw Inotify.exception(wd, dir);
+            }
+            InotifyWatchKey key = keys.get(wd);
+            if (key == null) {
+                key = new InotifyWatchKey(this, dir, wd);
+                keys.put(wd, key);
+            }
+            return key;
+        }
+    }
+
+    void cancel(InotifyWatchKey key) {
+        synchronized (keys) {
+            if (keys.get(key.getWatchDescriptor()) == key) {
+                keys.remove(key.getWatchDescriptor());
+                if (!closed) {
+                    // the kernel confirms with IN_IGNORED which is ignored as the key is gone already
+                    Inotify.removeWatch(fd, key.getWatchDescriptor());
+                }
+            }
+        }
+    }
+
+    void enqueue(InotifyWatchKey key) {
+        signalledKeys.offer(key);
+    }
+
+    boolean isOpen() {
+        return !closed;
+    }
+
+    @Override
+    public WatchKey poll() {
+        checkOpen();
+        WatchKey key = signalledKeys.poll();
+        if (key == null) {
+            readEvents(0L);
+            key = signalledKeys.poll();
+        }
+        return key;
+    }
+
+    @Override
+    public WatchKey poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return await(System.nanoTime() + unit.toNanos(timeout), true);
+    }
+
+    @Override
+    public WatchKey take() throws InterruptedException {
+        return await(0L, false);
+    }
+
+    private WatchKey await(long deadline, boolean timed) throws InterruptedException {
+        while (true) {
+            checkOpen();
+            WatchKey key = signalledKeys.poll();
+            if (key != null) {
+                return key;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            long remaining = timed ? deadline - System.nanoTime() : MAX_BLOCKING_NANOS;
+            if (remaining <= 0) {
+                return null;
+            }
+            readEvents(Math.min(remaining, MAX_BLOCKING_NANOS));
+        }
+    }
+
+    /**
+     * Reads all available events and signals the affected keys.
+     *
+     * @param timeoutNanos The maximum time to wait for events.
+     */
+    private void readEvents(long timeoutNanos) {
+        readLock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            // round up; a timeout of zero would not wait at all
+            int timeoutMillis = (int) ((timeoutNanos + NANOS_PER_MILLI - 1L) / NANOS_PER_MILLI);
+            int bytes = Inotify.read(fd, wakeupFd, buffer, timeoutMillis);
+            if (bytes < 0) {
+                throw new IllegalStateException("Could not read inotify events", Inotify.exception(bytes, null));
+            }
+            decode(bytes);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Decodes the events in the buffer without creating intermediate objects. Only the file names of the affected
+     * entries are materialized as they are the context of the events.
+     */
+    private void decode(int bytes) {
+        int position = 0;
+        while (position + Inotify.EVENT_HEADER_SIZE <= bytes) {
+            int wd = buffer.getInt(position);
+            int mask = buffer.getInt(position + Inotify.EVENT_MASK_OFFSET);
+            // both halves of a rename share a cookie; it is 0 for all other events
+            int cookie = buffer.getInt(position + Inotify.EVENT_COOKIE_OFFSET);
+            int length = buffer.getInt(position + Inotify.EVENT_LENGTH_OFFSET);
+            int nameOffset = position + Inotify.EVENT_HEADER_SIZE;
+            position = nameOffset + length;
+
+            if ((mask & Inotify.IN_Q_OVERFLOW) != 0) {
+                LOG.debug("inotify event queue has overflowed.");
+                signalOverflow();
+                continue;
+            }
+            InotifyWatchKey key;
+            synchronized (keys) {
+                key = keys.get(wd);
+                if (key != null && (mask & (Inotify.IN_IGNORED | Inotify.IN_UNMOUNT)) != 0) {
+                    keys.remove(wd);
+                }
+            }
+            if (key == null) {
+                // e.g. a late event of a cancelled key
+                continue;
+            }
+            if ((mask & (Inotify.IN_IGNORED | Inotify.IN_UNMOUNT)) != 0) {
+                // the directory is gone (or not accessible anymore)
+                key.invalidate();
+                continue;
+            }
+            WatchEvent.Kind<?> kind = kindOf(mask);
+            if (kind != null && length > 0) {
+                key.signalEvent(kind, key.getDirectory().getFileSystem().getPath(decodeName(nameOffset, length)),
+                        cookie, (mask & Inotify.IN_ISDIR) != 0);
+            }
+        }
+    }
+
+    private static WatchEvent.Kind<?> kindOf(int mask) {
+        if ((mask & (Inotify.IN_CREATE | Inotify.IN_MOVED_TO)) != 0) {
+            return ENTRY_CREATE;
+        } else if ((mask & (Inotify.IN_DELETE | Inotify.IN_MOVED_FROM)) != 0) {
+            return ENTRY_DELETE;
+        } else if ((mask & (Inotify.IN_MODIFY | Inotify.IN_ATTRIB)) != 0) {
+            return ENTRY_MODIFY;
+        } else if ((mask & Inotify.IN_CLOSE_WRITE) != 0) {
+            return ENTRY_CLOSE_WRITE;
+        }
+        // events on the directory itself, e.g. IN_DELETE_SELF
+        return null;
+    }
+
+    private String decodeName(int offset, int length) {
+        // the name is null terminated and might be padded with further null bytes
+        int nameLength = 0;
+        int maxLength = Math.min(length, name.length);
+        while (nameLength < maxLength) {
+            byte b = buffer.get(offset + nameLength);
+            if (b == 0) {
+                break;
+            }
+            name[nameLength++] = b;
+        }
+        return new String(name, 0, nameLength, PATH_CHARSET);
+    }
+
+    private void signalOverflow() {
+        List<InotifyWatchKey> allKeys;
+        synchronized (keys) {
+            allKeys = new ArrayList<>(keys.values());
+        }
+        for (InotifyWatchKey key : allKeys) {
+            key.signalEvent(OVERFLOW, null, 0, false);
+        }
+    }
+
+    /**
+     * @param event An event that has been polled from a watch key of any watch service.
+     * @return The cookie that relates the deletion and the creation event of a renamed entry if the event has been
+     * caused by a rename within the watched directories, otherwise <code>0</code>.
+     */
+    public static int moveCookieOf(WatchEvent<?> event) {
+        return event instanceof InotifyWatchKey.Event ? ((InotifyWatchKey.Event) event).getCookie() : 0;
+    }
+
+    /**
+     * @param event An event that has been polled from a watch key of any watch service.
+     * @return true iff the event is known to affect an entry that is not a directory. inotify reports this with each
+     * event. Events of other watch services do not tell, so <code>false</code> is returned for them.
+     */
+    public static boolean isKnownNonDirectory(WatchEvent<?> event) {
+        return event instanceof InotifyWatchKey.Event && !((InotifyWatchKey.Event) event).isDirectory();
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new ClosedWatchServiceException();
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (keys) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            keys.clear();
+        }
+        // wake up a thread that waits for events; it holds the read lock
+        Inotify.wakeup(wakeupFd);
+        readLock.lock();
+        try {
+            // closing the inotify instance removes all watches
+            Inotify.close(fd);
+            Inotify.close(wakeupFd);
+        } finally {
+            readLock.unlock();
+        }
+        signalledKeys.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "InotifyWatchService{fd=" + fd + "}";
+    }
+
+    private static final class CloseWriteKind implements WatchEvent.Kind<Path> {
+        @Override
+        public String name() {
+            return "ENTRY_CLOSE_WRITE";
+        }
+
+        @Override
+        public Class<Path> type() {
+            return Path.class;
+        }
+
+        @Override
+        public String toString() {
+            return name();
+        }
+    }
+}
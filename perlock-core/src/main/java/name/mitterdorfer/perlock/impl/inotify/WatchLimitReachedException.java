@@ -0,0 +1,25 @@
+package name.mitterdorfer.perlock.impl.inotify;
+
+import java.nio.file.FileSystemException;
+
+/**
+ * <p>Thrown by the native inotify backend if a directory cannot be watched because the user limit of inotify watches
+ * has been reached (<code>ENOSPC</code>). The reason is the same as the one of the watch service of the JDK.</p>
+ *
+ * <p>THIS IS AN INTERNAL IMPLEMENTATION CLASS AND DOES NOT BELONG TO THE API. DO NOT USE IT DIRECTLY.</p>
+ */
+public final class WatchLimitReachedException extends FileSystemException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The reason of the exception that both the native backend and the watch service of the JDK report.
+     */
+    public static final String REASON = "User limit of inotify watches reached";
+
+    /**
+     * @param file The directory that could not be watched. May be null.
+     */
+    public WatchLimitReachedException(String file) {
+        super(file, null, REASON);
+    }
+}
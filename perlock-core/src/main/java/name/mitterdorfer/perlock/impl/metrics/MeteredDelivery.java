@@ -0,0 +1,36 @@
+package name.mitterdorfer.perlock.impl.metrics;
+
+import name.mitterdorfer.perlock.BatchPathChangeListener;
+import name.mitterdorfer.perlock.PathEvent;
+import name.mitterdorfer.perlock.WatchMetrics;
+
+import java.util.List;
+
+/**
+ * <p>Delivers a batch of events to a listener and records the events and the latency of the listener.</p>
+ *
+ * <p>THIS IS AN INTERNAL IMPLEMENTATION CLASS AND DOES NOT BELONG TO THE API. DO NOT USE IT DIRECTLY.</p>
+ */
+public final class MeteredDelivery {
+    private MeteredDelivery() {
+        // no instances intended
+    }
+
+    /**
+     * @param metrics The metrics to record into. May be null if metrics are not recorded; then the listener is just
+     *                invoked.
+     */
+    public static void deliver(BatchPathChangeListener listener, List<PathEvent> events, WatchMetrics metrics) {
+        if (metrics == null) {
+            listener.onPathsChanged(events);
+            return;
+        }
+        // the list is random access; avoid allocating an iterator
+        for (int i = 0; i < events.size(); i++) {
+            metrics.onEvent(events.get(i).getEventKind());
+        }
+        long start = System.nanoTime();
+        listener.onPathsChanged(events);
+        metrics.onListenerInvoked(System.nanoTime() - start);
+    }
+}
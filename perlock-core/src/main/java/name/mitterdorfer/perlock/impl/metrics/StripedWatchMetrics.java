@@ -0,0 +1,326 @@
+package name.mitterdorfer.perlock.impl.metrics;
+
+import name.mitterdorfer.perlock.EventKind;
+import name.mitterdorfer.perlock.PathWatcherMetrics;
+import name.mitterdorfer.perlock.PathWatcherMetricsMXBean;
+import name.mitterdorfer.perlock.impl.util.Preconditions;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Records metrics into striped counters. All counters of a stripe are laid out in one row of an
+ * <code>AtomicLongArray</code>; rows are padded so threads on different rows do not share cache lines. Readers sum up
+ * all rows.</p>
+ *
+ * <p>The row of a thread is selected by its id. The first thread that records into a row becomes its owner. As the
+ * owner is the only writer of its row, it updates counters with plain ordered writes instead of atomic
+ * read-modify-write operations, which is as cheap as updating a thread-local counter. Threads whose row is owned by
+ * another thread update the shared row 0 atomically. Path watcher threads are long-lived, so most records end up in
+ * owned rows.</p>
+ *
+ * <p>Listener latencies are counted in a histogram per stripe with one bucket per power of two. Recording a latency is
+ * thus an increment as well and percentiles are upper bounds of their bucket.</p>
+ *
+ * <p>THIS IS AN INTERNAL IMPLEMENTATION CLASS AND DOES NOT BELONG TO THE API. DO NOT USE IT DIRECTLY.</p>
+ */
+public final class StripedWatchMetrics implements PathWatcherMetrics, PathWatcherMetricsMXBean {
+    private static final EventKind[] EVENT_KINDS = EventKind.values();
+    private static final int MAX_OWNED_STRIPES = 32;
+    private static final int SHARED_ROW = 0;
+    private static final int BUCKETS = 64;
+
+    // offsets of the counters within a row
+    private static final int EVENTS = 0;
+    private static final int OVERFLOWS = EVENTS + EVENT_KINDS.length;
+    private static final int REGISTERED_KEYS = OVERFLOWS + 1;
+    private static final int INVALIDATED_KEYS = REGISTERED_KEYS + 1;
+    private static final int REGISTRATIONS = INVALIDATED_KEYS + 1;
+    private static final int REGISTRATION_NANOS = REGISTRATIONS + 1;
+    private static final int DIRECTORIES_WALKED = REGISTRATION_NANOS + 1;
+    private static final int WAKEUPS = DIRECTORIES_WALKED + 1;
+    private static final int WAKEUP_EVENTS = WAKEUPS + 1;
+    private static final int LISTENER_INVOCATIONS = WAKEUP_EVENTS + 1;
+    private static final int LISTENER_NANOS = LISTENER_INVOCATIONS + 1;
+    private static final int LISTENER_MAX_NANOS = LISTENER_NANOS + 1;
+    private static final int LATENCY_BUCKETS = LISTENER_MAX_NANOS + 1;
+    // a multiple of a cache line (8 longs) plus one cache line of padding between adjacent rows
+    private static final int ROW_LENGTH = ((LATENCY_BUCKETS + BUCKETS + 7) & ~7) + 8;
+
+    // null unless this records on behalf of a single path watcher and the factory's metrics are updated as well
+    private final StripedWatchMetrics parent;
+    private final int ownedStripeMask;
+    // the id of the thread that owns a stripe or 0 if it is not owned yet. The shared stripe 0 is never owned.
+    private final AtomicLongArray owners;
+    private final AtomicLongArray cells;
+
+    /**
+     * @param parent Metrics that receive all records of these metrics as well. May be null.
+     */
+    public StripedWatchMetrics(StripedWatchMetrics parent) {
+        this.parent = parent;
+        int ownedStripes = Math.min(MAX_OWNED_STRIPES,
+                Integer.highestOneBit(Runtime.getRuntime().availableProcessors()) << 1);
+        this.ownedStripeMask = ownedStripes - 1;
+        this.owners = new AtomicLongArray(ownedStripes + 1);
+        this.cells = new AtomicLongArray((ownedStripes + 1) * ROW_LENGTH);
+    }
+
+    /**
+     * @return The offset of the row that is owned by the current thread or {@link #SHARED_ROW} if the current thread
+     * does not own a row.
+     */
+    private int row() {
+        long threadId = Thread.currentThread().getId();
+        // thread ids are assigned sequentially, so the lower bits spread threads evenly across stripes
+        int stripe = 1 + ((int) threadId & ownedStripeMask);
+        long owner = owners.get(stripe);
+        if (owner == threadId || (owner == 0L && owners.compareAndSet(stripe, 0L, threadId))) {
+            return stripe * ROW_LENGTH;
+        }
+        return SHARED_ROW;
+    }
+
+    private void add(int row, int counter, long delta) {
+        int index = row + counter;
+        if (row == SHARED_ROW) {
+            cells.addAndGet(index, delta);
+        } else {
+            // only the owner writes this row; the ordered write publishes the new value to readers
+            cells.lazySet(index, cells.get(index) + delta);
+        }
+    }
+
+    private void max(int row, int counter, long value) {
+        int index = row + counter;
+        long max;
+        while (value > (max = cells.get(index))) {
+            if (row != SHARED_ROW) {
+                cells.lazySet(index, value);
+                break;
+            }
+            if (cells.compareAndSet(index, max, value)) {
+                break;
+            }
+        }
+    }
+
+    @Override
+    public void onWakeup(int events) {
+        int row = row();
+        add(row, WAKEUPS, 1L);
+        if (events > 0) {
+            add(row, WAKEUP_EVENTS, events);
+        }
+        if (parent != null) {
+            parent.onWakeup(events);
+        }
+    }
+
+    @Override
+    public void onEvent(EventKind eventKind) {
+        add(row(), EVENTS + eventKind.ordinal(), 1L);
+        if (parent != null) {
+            parent.onEvent(eventKind);
+        }
+    }
+
+    @Override
+    public void onOverflow() {
+        add(row(), OVERFLOWS, 1L);
+        if (parent != null) {
+            parent.onOverflow();
+        }
+    }
+
+    @Override
+    public void onKeyRegistered() {
+        add(row(), REGISTERED_KEYS, 1L);
+        if (parent != null) {
+            parent.onKeyRegistered();
+        }
+    }
+
+    @Override
+    public void onKeysInvalidated(int keys) {
+        add(row(), INVALIDATED_KEYS, keys);
+        if (parent != null) {
+            parent.onKeysInvalidated(keys);
+        }
+    }
+
+    @Override
+    public void onRegistrationCompleted(long durationNanos, long directoriesWalked) {
+        int row = row();
+        add(row, REGISTRATIONS, 1L);
+        add(row, REGISTRATION_NANOS, durationNanos);
+        add(row, DIRECTORIES_WALKED, directoriesWalked);
+        if (parent != null) {
+            parent.onRegistrationCompleted(durationNanos, directoriesWalked);
+        }
+    }
+
+    @Override
+    public void onListenerInvoked(long latencyNanos) {
+        int row = row();
+        add(row, LISTENER_INVOCATIONS, 1L);
+        add(row, LISTENER_NANOS, latencyNanos);
+        add(row, LATENCY_BUCKETS + bucketOf(latencyNanos), 1L);
+        max(row, LISTENER_MAX_NANOS, latencyNanos);
+        if (parent != null) {
+            parent.onListenerInvoked(latencyNanos);
+        }
+    }
+
+    /**
+     * @return The bucket of the histogram for the provided latency. Bucket <code>b</code> holds latencies in the range
+     * [2^(b-1), 2^b - 1]; bucket 0 holds zero latencies.
+     */
+    static int bucketOf(long nanos) {
+        return nanos <= 0L ? 0 : BUCKETS - Long.numberOfLeadingZeros(nanos);
+    }
+
+    private static long upperBoundOf(int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1L;
+    }
+
+    private long sum(int offset) {
+        long sum = 0L;
+        for (int row = 0; row < cells.length(); row += ROW_LENGTH) {
+            sum += cells.get(row + offset);
+        }
+        return sum;
+    }
+
+    @Override
+    public ObjectName registerMBean(String name) throws JMException {
+        Preconditions.isNotNull(name, "name");
+        ObjectName objectName = new ObjectName("name.mitterdorfer.perlock:type=PathWatcherMetrics,name="
+                + ObjectName.quote(name));
+        return ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName).getObjectName();
+    }
+
+    @Override
+    public long getEvents() {
+        long events = 0L;
+        for (EventKind eventKind : EVENT_KINDS) {
+            events += sum(EVENTS + eventKind.ordinal());
+        }
+        return events;
+    }
+
+    @Override
+    public Map<String, Long> getEventsByKind() {
+        Map<String, Long> events = new LinkedHashMap<>();
+        for (EventKind eventKind : EVENT_KINDS) {
+            events.put(eventKind.name(), sum(EVENTS + eventKind.ordinal()));
+        }
+        return Collections.unmodifiableMap(events);
+    }
+
+    @Override
+    public long getOverflows() {
+        return sum(OVERFLOWS);
+    }
+
+    @Override
+    public long getRegisteredKeys() {
+        return sum(REGISTERED_KEYS);
+    }
+
+    @Override
+    public long getInvalidatedKeys() {
+        return sum(INVALIDATED_KEYS);
+    }
+
+    @Override
+    public long getRegistrations() {
+        return sum(REGISTRATIONS);
+    }
+
+    @Override
+    public long getRegistrationTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(sum(REGISTRATION_NANOS));
+    }
+
+    @Override
+    public long getDirectoriesWalked() {
+        return sum(DIRECTORIES_WALKED);
+    }
+
+    @Override
+    public long getWakeups() {
+        return sum(WAKEUPS);
+    }
+
+    @Override
+    public double getEventsPerWakeup() {
+        long wakeups = getWakeups();
+        return wakeups == 0L ? 0.0d : (double) sum(WAKEUP_EVENTS) / wakeups;
+    }
+
+    @Override
+    public long getListenerInvocations() {
+        return sum(LISTENER_INVOCATIONS);
+    }
+
+    @Override
+    public double getListenerLatencyMeanNanos() {
+        long invocations = getListenerInvocations();
+        return invocations == 0L ? 0.0d : (double) sum(LISTENER_NANOS) / invocations;
+    }
+
+    @Override
+    public long getListenerLatencyP50Nanos() {
+        return listenerLatencyPercentile(0.5d);
+    }
+
+    @Override
+    public long getListenerLatencyP99Nanos() {
+        return listenerLatencyPercentile(0.99d);
+    }
+
+    @Override
+    public long getListenerLatencyMaxNanos() {
+        long max = 0L;
+        for (int row = 0; row < cells.length(); row += ROW_LENGTH) {
+            max = Math.max(max, cells.get(row + LISTENER_MAX_NANOS));
+        }
+        return max;
+    }
+
+    long listenerLatencyPercentile(double percentile) {
+        long[] buckets = new long[BUCKETS];
+        long count = 0L;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            buckets[bucket] = sum(LATENCY_BUCKETS + bucket);
+            count += buckets[bucket];
+        }
+        if (count == 0L) {
+            return 0L;
+        }
+        long rank = Math.max(1L, (long) Math.ceil(percentile * count));
+        long seen = 0L;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += buckets[bucket];
+            if (seen >= rank) {
+                // the maximum is a tighter bound for the highest bucket
+                return Math.min(upperBoundOf(bucket), getListenerLatencyMaxNanos());
+            }
+        }
+        return getListenerLatencyMaxNanos();
+    }
+
+    @Override
+    public String toString() {
+        return "PathWatcherMetrics{events=" + getEvents() + ", overflows=" + getOverflows() + ", registeredKeys="
+                + getRegisteredKeys() + ", invalidatedKeys=" + getInvalidatedKeys() + ", wakeups=" + getWakeups()
+                + ", listenerInvocations=" + getListenerInvocations() + "}";
+    }
+}
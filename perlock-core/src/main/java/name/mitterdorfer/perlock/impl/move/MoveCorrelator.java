@@ -0,0 +1,192 @@
+package name.mitterdorfer.perlock.impl.move;
+
+import name.mitterdorfer.perlock.impl.recovery.DirectorySnapshot;
+import name.mitterdorfer.perlock.impl.util.Preconditions;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>Correlates the deletion and the creation of the same entry into a move. The deletion of an entry whose identity is
+ * known (e.g. the cookie of a rename or the file key of the entry) is held back for a short window. If an entry with
+ * the same identity is created within the window, both events describe a move. Otherwise, the deletion is released
+ * once the window has elapsed.</p>
+ *
+ * <p>As the window is the same for all deletions, pending deletions expire in the order in which they have
+ * occurred.</p>
+ *
+ * <p>An instance is confined to the thread that handles the watch keys of its path watcher.</p>
+ *
+ * <p>THIS IS AN INTERNAL IMPLEMENTATION CLASS AND DOES NOT BELONG TO THE API. DO NOT USE IT DIRECTLY.</p>
+ */
+public final class MoveCorrelator {
+    private final long windowNanos;
+    // pending deletions in the order in which they have occurred
+    private final Map<Object, PendingDelete> byIdentity = new LinkedHashMap<>();
+    private final Map<Path, PendingDelete> byPath = new HashMap<>();
+
+    /**
+     * @param windowNanos The time a deletion is held back in nanoseconds. Must be positive.
+     */
+    public MoveCorrelator(long windowNanos) {
+        Preconditions.isTrue(windowNanos > 0, "'windowNanos' must be positive");
+        this.windowNanos = windowNanos;
+    }
+
+    /**
+     * <p>Derives the identity of an entry from its attributes. A renamed file keeps its file key, size and
+     * modification time. Comparing all of them avoids to mistake a new file that reuses the file key (e.g. the inode)
+     * of a file that has just been deleted for a renamed file. The modification time of a directory might change if it
+     * is moved to another parent; only the file key is compared for directories.</p>
+     *
+     * @return The identity of the entry or <code>null</code> if the file system does not provide file keys.
+     */
+    public static Object identityOf(DirectorySnapshot.Entry entry) {
+        Object fileKey = entry.fileKey();
+        if (fileKey == null) {
+            return null;
+        }
+        return entry.isDirectory() ? new Identity(fileKey, true, 0L, 0L)
+                : new Identity(fileKey, false, entry.getLastModified(), entry.size());
+    }
+
+    /**
+     * Holds back the deletion of an entry until a creation with the same identity occurs or the window has elapsed.
+     *
+     * @param path      The deleted path. Must not be null.
+     * @param identity  The identity of the deleted entry. Must not be null.
+     * @param nowNanos  The current value of {@link System#nanoTime()}.
+     * @param sink      Receives a deletion that cannot be held back anymore because another deletion with the same
+     *                  identity or path takes its place.
+     */
+    public void deleted(Path path, Object identity, long nowNanos, Sink sink) {
+        Preconditions.isNotNull(path, "path");
+        Preconditions.isNotNull(identity, "identity");
+        release(byIdentity.get(identity), sink);
+        release(byPath.get(path), sink);
+        PendingDelete pending = new PendingDelete(path, identity, nowNanos + windowNanos);
+        byIdentity.put(identity, pending);
+        byPath.put(path, pending);
+    }
+
+    /**
+     * @param identity The identity of a created entry. Must not be null.
+     * @return The deleted path of the same entry if its deletion is still pending, i.e. the source of a move, or
+     * <code>null</code> if there is no such deletion. The deletion is not pending anymore afterwards.
+     */
+    public Path created(Object identity) {
+        PendingDelete pending = byIdentity.remove(identity);
+        if (pending == null) {
+            return null;
+        }
+        byPath.remove(pending.path);
+        return pending.path;
+    }
+
+    /**
+     * Releases a pending deletion of the provided path right away, e.g. because the path has been created again and
+     * the deletion has to be reported before.
+     *
+     * @return true iff a deletion has been pending.
+     */
+    public boolean release(Path path, Sink sink) {
+        return release(byPath.get(path), sink);
+    }
+
+    private boolean release(PendingDelete pending, Sink sink) {
+        if (pending == null) {
+            return false;
+        }
+        byIdentity.remove(pending.identity);
+        byPath.remove(pending.path);
+        sink.onDeleted(pending.path);
+        return true;
+    }
+
+    /**
+     * Releases all deletions whose window has elapsed.
+     *
+     * @return <code>-1</code> if no deletion is pending anymore, otherwise the number of nanoseconds until the next
+     * deletion expires.
+     */
+    public long expire(long nowNanos, Sink sink) {
+        Iterator<PendingDelete> iterator = byIdentity.values().iterator();
+        while (iterator.hasNext()) {
+            PendingDelete pending = iterator.next();
+            long remaining = pending.deadline - nowNanos;
+            if (remaining > 0) {
+                return remaining;
+            }
+            iterator.remove();
+            byPath.remove(pending.path);
+            sink.onDeleted(pending.path);
+        }
+        return -1L;
+    }
+
+    public boolean isEmpty() {
+        return byIdentity.isEmpty();
+    }
+
+    /**
+     * Forgets all pending deletions without releasing them.
+     */
+    public void clear() {
+        byIdentity.clear();
+        byPath.clear();
+    }
+
+    /**
+     * Receives deletions that are not part of a move.
+     */
+    public interface Sink {
+        void onDeleted(Path path);
+    }
+
+    private static final class PendingDelete {
+        private final Path path;
+        private final Object identity;
+        private final long deadline;
+
+        private PendingDelete(Path path, Object identity, long deadline) {
+            this.path = path;
+            this.identity = identity;
+            this.deadline = deadline;
+        }
+    }
+
+    private static final class Identity {
+        private final Object fileKey;
+        private final boolean directory;
+        private final long lastModified;
+        private final long size;
+
+        private Identity(Object fileKey, boolean directory, long lastModified, long size) {
+            this.fileKey = fileKey;
+            this.directory = directory;
+            this.lastModified = lastModified;
+            this.size = size;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Identity)) {
+                return false;
+            }
+            Identity other = (Identity) o;
+            return directory == other.directory && lastModified == other.lastModified && size == other.size &&
+                    fileKey.equals(other.fileKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return fileKey.hashCode();
+        }
+    }
+}
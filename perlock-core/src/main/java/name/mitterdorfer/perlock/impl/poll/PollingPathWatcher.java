@@ -0,0 +1,471 @@
+package name.mitterdorfer.perlock.impl.poll;
+
+import name.mitterdorfer.perlock.BatchPathChangeListener;
+import name.mitterdorfer.perlock.EventKind;
+import name.mitterdorfer.perlock.PathWatcher;
+import name.mitterdorfer.perlock.RegistrationProgress;
+import name.mitterdorfer.perlock.WatchMetrics;
+import name.mitterdorfer.perlock.WatchOptions;
+import name.mitterdorfer.perlock.impl.EventLoopPathWatcher;
+import name.mitterdorfer.perlock.impl.dispatch.DispatchStage;
+import name.mitterdorfer.perlock.impl.dispatch.DispatchStages;
+import name.mitterdorfer.perlock.impl.dispatch.EventBatch;
+import name.mitterdorfer.perlock.impl.metrics.MeteredDelivery;
+import name.mitterdorfer.perlock.impl.move.MoveCorrelator;
+import name.mitterdorfer.perlock.impl.recovery.DirectorySnapshot;
+import name.mitterdorfer.perlock.impl.util.Preconditions;
+import name.mitterdorfer.perlock.impl.watch.PathFilter;
+import name.mitterdorfer.perlock.impl.watch.RegistrationTracker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>A path watcher that detects changes by scanning the watched tree periodically instead of relying on the watch
+ * service. It works on file systems which do not deliver change notifications, e.g. network file systems or FUSE
+ * mounts.</p>
+ *
+ * <p>The path watcher keeps a {@link DirectorySnapshot} (modification times and sizes) per watched directory and
+ * reports the differences to the previous scan with the same kinds of events as a path watcher based on the watch
+ * service. A directory whose modification time has not changed is not listed again; only its known entries are
+ * checked (see {@link DirectorySnapshot#rescan(Path, DirectorySnapshot)}). All directories on the same level of the
+ * tree are scanned in parallel if a scan executor is provided.</p>
+ *
+ * <p>The poll interval adapts to the activity in the watched tree: It drops to the minimum interval as soon as a scan
+ * finds changes and doubles after each scan without changes up to the maximum interval.</p>
+ *
+ * <p>If moves are detected, entries that disappear and appear with the same identity (see
+ * {@link MoveCorrelator#identityOf(DirectorySnapshot.Entry)}) within one scan are reported as moves.</p>
+ *
+ * <p>THIS IS AN INTERNAL IMPLEMENTATION CLASS AND DOES NOT BELONG TO THE API. DO NOT USE IT DIRECTLY.</p>
+ */
+public final class PollingPathWatcher implements EventLoopPathWatcher {
+    private static final Logger LOG = LoggerFactory.getLogger(PollingPathWatcher.class);
+
+    private final Path rootPath;
+    private final boolean recursive;
+    // null if no paths are filtered
+    private final PathFilter filter;
+    private final EnumSet<EventKind> eventKinds;
+    private final boolean detectMoves;
+    private final BatchPathChangeListener listener;
+    // null if directories should be scanned sequentially
+    private final ExecutorService scanExecutor;
+    private final long minIntervalNanos;
+    private final long maxIntervalNanos;
+    // null if metrics are not recorded
+    private final WatchMetrics metrics;
+    // Snapshots of all watched directories. Used by the thread that starts this watcher and afterwards by the thread
+    // that runs the event loop.
+    private final Map<Path, DirectorySnapshot> snapshots = new HashMap<>();
+    // Events are collected here and delivered at once after each scan.
+    private final EventBatch batch = new EventBatch();
+    // Deleted and created entries of the current scan keyed by their identity. Only used if moves are detected.
+    private final Map<Object, Path> deletedEntries = new LinkedHashMap<>();
+    private final Map<Object, Path> createdEntries = new LinkedHashMap<>();
+    private long intervalNanos;
+    // due to #isRunning() we need visibility of running across threads...
+    private volatile boolean running;
+    // the initial scan of the most recent start
+    private volatile RegistrationTracker registration = new RegistrationTracker(null);
+
+    /**
+     * @param rootPath  The root path to watch. Must be an existing, readable directory.
+     * @param recursive true iff the complete tree below <code>rootPath</code> should be watched.
+     * @param listener  The listener to notify about changes. Must not be null.
+     * @param options   Options that tune the behavior of this path watcher. Must not be null and must enable polling.
+     */
+    public PollingPathWatcher(Path rootPath, boolean recursive, BatchPathChangeListener listener,
+                              WatchOptions options) {
+        Preconditions.isNotNull(rootPath, "rootPath");
+        Preconditions.isNotNull(listener, "listener");
+        Preconditions.isNotNull(options, "options");
+        Preconditions.isTrue(options.isPolling(), "'options' must enable polling");
+        Preconditions.isTrue(Files.exists(rootPath), String.format("'rootPath' (%s) must exist", rootPath.getFileName()));
+        Preconditions.isTrue(Files.isReadable(rootPath), String.format("'rootPath' (%s) must be readable", rootPath.getFileName()));
+        Preconditions.isTrue(Files.isDirectory(rootPath), String.format("'rootPath' (%s) must be a directory", rootPath.getFileName()));
+
+        this.rootPath = rootPath;
+        this.recursive = recursive;
+        this.filter = PathFilter.create(rootPath, options);
+        this.eventKinds = EnumSet.copyOf(options.getEventKinds());
+        this.detectMoves = options.isDetectMoves();
+        this.listener = DispatchStages.create(listener, options);
+        this.scanExecutor = options.getPollScanExecutor();
+        this.minIntervalNanos = options.getMinPollIntervalNanos();
+        this.maxIntervalNanos = options.getMaxPollIntervalNanos();
+        this.metrics = options.getMetrics();
+    }
+
+    /**
+     * Takes the initial snapshot of the watched tree. Changes are reported relative to this snapshot.
+     */
+    @Override
+    public PathWatcher start() throws IOException {
+        if (running) {
+            throw new IllegalStateException("Cannot start a PathWatcher that is already running.");
+        }
+        // forget about the state of a previous run; it is outdated anyway
+        snapshots.clear();
+        // scanned directories are not registered anywhere, so only the scan as a whole is recorded
+        long startNanos = System.nanoTime();
+        RegistrationTracker tracker = new RegistrationTracker(null);
+        registration = tracker;
+        if (listener instanceof DispatchStage) {
+            ((DispatchStage) listener).start();
+        }
+        try {
+            if (scan(false) < 0) {
+                throw new IOException("Cannot scan '" + rootPath + "'");
+            }
+        } catch (IOException | RuntimeException ex) {
+            stop();
+            throw ex;
+        }
+        tracker.complete();
+        if (metrics != null) {
+            metrics.onRegistrationCompleted(System.nanoTime() - startNanos, tracker.getRegisteredDirectories());
+        }
+        intervalNanos = minIntervalNanos;
+        running = true;
+        return this;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return The progress of the initial scan. The number of registered directories is the number of scanned
+     * directories.
+     */
+    @Override
+    public RegistrationProgress getRegistrationProgress() {
+        return registration;
+    }
+
+    /**
+     * Runs the poll loop. Returns when the path watcher is stopped or the root path is not accessible anymore.
+     */
+    @Override
+    public void watch() {
+        LOG.trace("Polling '{}' for changes", rootPath);
+        while (!Thread.currentThread().isInterrupted() && sleep(intervalNanos)) {
+            int changes = scan(true);
+            if (detectMoves) {
+                correlateMoves();
+            }
+            if (changes < 0) {
+                LOG.debug("'{}' is not accessible anymore.", rootPath);
+                break;
+            }
+            if (metrics != null) {
+                metrics.onWakeup(batch.size());
+            }
+            deliverBatch();
+            intervalNanos = nextInterval(intervalNanos, changes > 0, minIntervalNanos, maxIntervalNanos);
+        }
+        stop();
+    }
+
+    /**
+     * @return The poll interval after a scan: The minimum interval if the scan has found changes, otherwise twice the
+     * current interval but at most the maximum interval.
+     */
+    static long nextInterval(long currentNanos, boolean changed, long minNanos, long maxNanos) {
+        if (changed) {
+            return minNanos;
+        }
+        return currentNanos > maxNanos / 2 ? maxNanos : currentNanos * 2;
+    }
+
+    private static boolean sleep(long nanos) {
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+            return true;
+        } catch (InterruptedException ex) {
+            LOG.trace("Current watcher thread has been interrupted while waiting for the next scan.");
+            //signal interrupted status again
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Scans the watched tree level by level and replaces the snapshots.
+     *
+     * @param report true iff differences to the previous snapshots should be reported.
+     * @return The number of changes that have been found or <code>-1</code> if the root path cannot be scanned.
+     */
+    private int scan(boolean report) {
+        int changes = 0;
+        List<Path> level = Collections.singletonList(rootPath);
+        while (!level.isEmpty()) {
+            List<DirectorySnapshot> scanned = scanAll(level);
+            if (scanned == null) {
+                // interrupted; the next scan (if any) will pick up the remaining changes
+                return changes;
+            }
+            List<Path> nextLevel = new ArrayList<>();
+            for (int i = 0; i < level.size(); i++) {
+                Path dir = level.get(i);
+                DirectorySnapshot current = scanned.get(i);
+                if (current == null) {
+                    if (dir.equals(rootPath)) {
+                        return -1;
+                    }
+                    // the directory is gone. Its parent reports the deletion.
+                    forget(dir);
+                    continue;
+                }
+                DirectorySnapshot previous = snapshots.put(dir, current);
+                changes += diff(dir, previous != null ? previous : DirectorySnapshot.empty(), current, report);
+                if (!report) {
+                    registration.registered();
+                }
+                if (recursive) {
+                    for (Map.Entry<Path, DirectorySnapshot.Entry> entry : current.entries()) {
+                        if (entry.getValue().isDirectory()) {
+                            Path subDir = dir.resolve(entry.getKey());
+                            if (filter == null || filter.isWatched(subDir)) {
+                                nextLevel.add(subDir);
+                            }
+                        }
+                    }
+                }
+            }
+            level = nextLevel;
+        }
+        return changes;
+    }
+
+    /**
+     * @return The snapshots in the same order as <code>dirs</code>. An element is null if the directory could not be
+     * scanned. Returns null if the current thread has been interrupted while waiting for the scan results.
+     */
+    private List<DirectorySnapshot> scanAll(List<Path> dirs) {
+        List<DirectorySnapshot> scanned = new ArrayList<>(dirs.size());
+        if (dirs.size() == 1 || scanExecutor == null) {
+            // a single directory is not worth a context switch
+            for (Path dir : dirs) {
+                scanned.add(rescanQuietly(dir, snapshots.get(dir)));
+            }
+            return scanned;
+        }
+        List<Callable<DirectorySnapshot>> tasks = new ArrayList<>(dirs.size());
+        for (final Path dir : dirs) {
+            // snapshots are only read by this thread
+            final DirectorySnapshot previous = snapshots.get(dir);
+            tasks.add(new Callable<DirectorySnapshot>() {
+                @Override
+                public DirectorySnapshot call() {
+                    return rescanQuietly(dir, previous);
+                }
+            });
+        }
+        try {
+            for (Future<DirectorySnapshot> result : scanExecutor.invokeAll(tasks)) {
+                scanned.add(result.get());
+            }
+            return scanned;
+        } catch (InterruptedException ex) {
+            LOG.trace("Interrupted while waiting for directory scans to finish.");
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException ex) {
+            // rescanQuietly() does not throw checked exceptions
+            throw new IllegalStateException(ex.getCause());
+        }
+    }
+
+    private static DirectorySnapshot rescanQuietly(Path dir, DirectorySnapshot previous) {
+        try {
+            return DirectorySnapshot.rescan(dir, previous);
+        } catch (IOException ex) {
+            LOG.trace("Could not scan '" + dir + "'.", ex);
+            return null;
+        }
+    }
+
+    /**
+     * @return The number of changes between both snapshots.
+     */
+    private int diff(Path dir, DirectorySnapshot previous, DirectorySnapshot current, boolean report) {
+        int changes = 0;
+        for (Map.Entry<Path, DirectorySnapshot.Entry> entry : previous.entries()) {
+            DirectorySnapshot.Entry now = current.get(entry.getKey());
+            boolean wasDirectory = entry.getValue().isDirectory();
+            if (now == null || now.isDirectory() != wasDirectory) {
+                Path child = dir.resolve(entry.getKey());
+                if (wasDirectory) {
+                    forget(child);
+                }
+                if (report) {
+                    changes += collect(EventKind.DELETE, child, entry.getValue());
+                }
+            }
+        }
+        if (!report) {
+            return changes;
+        }
+        for (Map.Entry<Path, DirectorySnapshot.Entry> entry : current.entries()) {
+            DirectorySnapshot.Entry before = previous.get(entry.getKey());
+            if (before == null || before.isDirectory() != entry.getValue().isDirectory()) {
+                changes += collect(EventKind.CREATE, dir.resolve(entry.getKey()), entry.getValue());
+            } else if (before.isModified(entry.getValue())) {
+                changes += collect(EventKind.MODIFY, dir.resolve(entry.getKey()));
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Adds an event to the batch if it should be delivered.
+     *
+     * @return <code>1</code> if the change counts as activity in the watched tree, otherwise <code>0</code>.
+     */
+    private int collect(EventKind eventKind, Path path) {
+        if (filter != null && filter.isExcluded(path)) {
+            return 0;
+        }
+        LOG.trace("Handling polled event with kind '{}' for path '{}'.", eventKind, path);
+        if (isReported(eventKind, path)) {
+            batch.add(eventKind, path);
+        }
+        return 1;
+    }
+
+    /**
+     * Adds a deletion or creation to the batch if it should be delivered. If moves are detected, it is held back until
+     * the end of the scan instead.
+     *
+     * @return <code>1</code> if the change counts as activity in the watched tree, otherwise <code>0</code>.
+     */
+    private int collect(EventKind eventKind, Path path, DirectorySnapshot.Entry entry) {
+        Object identity = detectMoves ? MoveCorrelator.identityOf(entry) : null;
+        if (identity == null || (filter != null && filter.isExcluded(path))) {
+            return collect(eventKind, path);
+        }
+        Path previous = (eventKind == EventKind.DELETE ? deletedEntries : createdEntries).put(identity, path);
+        if (previous != null) {
+            // e.g. hard links of the same file
+            collect(eventKind, previous);
+        }
+        return 1;
+    }
+
+    /**
+     * Reports entries that have been deleted and created during the same scan as moves. The remaining deletions and
+     * creations are reported as such. Entries below a moved directory have been scanned as new entries; they are not
+     * reported.
+     */
+    private void correlateMoves() {
+        List<Path> sources = new ArrayList<>();
+        List<Path> targets = new ArrayList<>();
+        Iterator<Map.Entry<Object, Path>> created = createdEntries.entrySet().iterator();
+        while (created.hasNext()) {
+            Map.Entry<Object, Path> entry = created.next();
+            Path source = deletedEntries.remove(entry.getKey());
+            if (source != null) {
+                sources.add(source);
+                targets.add(entry.getValue());
+                created.remove();
+            }
+        }
+        for (Path path : deletedEntries.values()) {
+            collect(EventKind.DELETE, path);
+        }
+        for (int i = 0; i < sources.size(); i++) {
+            LOG.trace("Handling polled move from '{}' to '{}'.", sources.get(i), targets.get(i));
+            if (isReported(EventKind.MOVE, targets.get(i))) {
+                batch.addMove(sources.get(i), targets.get(i));
+            } else {
+                if (isReported(EventKind.DELETE, sources.get(i))) {
+                    batch.add(EventKind.DELETE, sources.get(i));
+                }
+                if (isReported(EventKind.CREATE, targets.get(i))) {
+                    batch.add(EventKind.CREATE, targets.get(i));
+                }
+            }
+        }
+        for (Path path : createdEntries.values()) {
+            if (!isBelowAny(path, targets)) {
+                collect(EventKind.CREATE, path);
+            }
+        }
+        deletedEntries.clear();
+        createdEntries.clear();
+    }
+
+    private static boolean isBelowAny(Path path, List<Path> dirs) {
+        for (int i = 0; i < dirs.size(); i++) {
+            if (!path.equals(dirs.get(i)) && path.startsWith(dirs.get(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true iff an event of the provided kind for the provided (not excluded) path should be delivered.
+     */
+    private boolean isReported(EventKind eventKind, Path path) {
+        return eventKinds.contains(eventKind) && (filter == null || filter.isIncluded(path));
+    }
+
+    /**
+     * Forgets the snapshots of <code>dir</code> and all of its subdirectories.
+     */
+    private void forget(Path dir) {
+        DirectorySnapshot snapshot = snapshots.remove(dir);
+        if (snapshot != null) {
+            for (Map.Entry<Path, DirectorySnapshot.Entry> entry : snapshot.entries()) {
+                if (entry.getValue().isDirectory()) {
+                    forget(dir.resolve(entry.getKey()));
+                }
+            }
+        }
+    }
+
+    private void deliverBatch() {
+        if (!batch.isEmpty()) {
+            try {
+                MeteredDelivery.deliver(listener, batch.asList(), metrics);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        LOG.trace("Stopping '{}'", this);
+        registration.abort();
+        running = false;
+        if (listener instanceof DispatchStage) {
+            ((DispatchStage) listener).stop();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Polling PathWatcher for '" + rootPath + "'";
+    }
+}
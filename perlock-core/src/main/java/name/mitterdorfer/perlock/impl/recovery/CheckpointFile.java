@@ -0,0 +1,281 @@
+package name.mitterdorfer.perlock.impl.recovery;
+
+import name.mitterdorfer.perlock.impl.util.Preconditions;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * <p>Persists the {@link DirectorySnapshot}s of a watched tree in a compact binary file, so that changes which happen
+ * while no path watcher is running can be detected when the tree is watched again.</p>
+ *
+ * <p>The file starts with a header (magic number, format version and the root path) followed by one record per
+ * tracked directory in breadth-first order. A record consists of the names of the directory relative to the root path,
+ * the attributes of the directory itself and the file name and attributes (type, modification time, size and the
+ * string representation of the file key) of each entry. A trailer with the number of records marks the end of the
+ * file. All numbers are big-endian, strings are UTF-8 encoded and prefixed by their length in bytes.</p>
+ *
+ * <p>A checkpoint is written to a temporary file next to the checkpoint which then atomically replaces the previous
+ * checkpoint (if the file system supports atomic moves), so a crash while writing never leaves a partially written
+ * checkpoint behind. A checkpoint is read via a memory-mapped buffer.</p>
+ *
+ * <p>THIS IS AN INTERNAL IMPLEMENTATION CLASS AND DOES NOT BELONG TO THE API. DO NOT USE IT DIRECTLY.</p>
+ */
+public final class CheckpointFile {
+    private static final int MAGIC = 0x504c434b;
+    private static final int VERSION = 1;
+    private static final byte DIRECTORY_RECORD = 1;
+    private static final byte END_RECORD = 2;
+    // an absent entry or file key
+    private static final int ABSENT = -1;
+
+    private final Path file;
+
+    /**
+     * @param file The checkpoint file. Must not be null. The file does not need to exist.
+     */
+    public CheckpointFile(Path file) {
+        Preconditions.isNotNull(file, "file");
+        this.file = file;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Writes all snapshots of the tree below <code>rootPath</code> and replaces the previous checkpoint.
+     *
+     * @param rootPath  The root of the watched tree. Must not be null.
+     * @param snapshots The snapshots to write. Must not be null.
+     * @throws IOException If the checkpoint cannot be written. The previous checkpoint is kept in that case.
+     */
+    public void write(Path rootPath, SnapshotStore snapshots) throws IOException {
+        Path target = file.toAbsolutePath();
+        // unique per write as a path watcher on a shared watch service might be stopped while writing periodically
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                writeString(out, rootPath.toString());
+                int records = 0;
+                Queue<Path> pending = new ArrayDeque<>();
+                pending.add(rootPath);
+                Path dir;
+                while ((dir = pending.poll()) != null) {
+                    DirectorySnapshot snapshot = snapshots.get(dir);
+                    if (snapshot == null) {
+                        // e.g. an excluded directory
+                        continue;
+                    }
+                    out.writeByte(DIRECTORY_RECORD);
+                    out.writeInt(dir.getNameCount() - rootPath.getNameCount());
+                    for (int i = rootPath.getNameCount(); i < dir.getNameCount(); i++) {
+                        writeString(out, dir.getName(i).toString());
+                    }
+                    writeEntry(out, snapshot.getDirectory());
+                    out.writeInt(snapshot.size());
+                    for (Map.Entry<Path, DirectorySnapshot.Entry> entry : snapshot.entries()) {
+                        writeString(out, entry.getKey().toString());
+                        writeEntry(out, entry.getValue());
+                        if (entry.getValue().isDirectory()) {
+                            pending.add(dir.resolve(entry.getKey()));
+                        }
+                    }
+                    records++;
+                }
+                out.writeByte(END_RECORD);
+                out.writeInt(records);
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static void writeEntry(DataOutputStream out, DirectorySnapshot.Entry entry) throws IOException {
+        if (entry == null) {
+            out.writeByte(ABSENT);
+            return;
+        }
+        out.writeByte(entry.getType());
+        out.writeLong(entry.getLastModified());
+        out.writeLong(entry.size());
+        Object fileKey = entry.fileKey();
+        writeString(out, fileKey != null ? fileKey.toString() : null);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(ABSENT);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Replaces the snapshots of all directories in the checkpoint. The snapshots are restored breadth-first, i.e. the
+     * snapshot of a directory is always restored before the snapshots of its subdirectories. The restored file keys
+     * are strings.
+     *
+     * @param rootPath  The root of the watched tree. Must not be null. Must match the root path of the checkpoint.
+     * @param snapshots The store that receives the snapshots. Must not be null.
+     * @return true iff the checkpoint has been read, false if there is no checkpoint.
+     * @throws IOException If the checkpoint cannot be read, is corrupt or belongs to another root path. Some snapshots
+     *                     might have been replaced already in that case.
+     */
+    public boolean read(Path rootPath, SnapshotStore snapshots) throws IOException {
+        ByteBuffer buffer;
+        try {
+            buffer = map();
+        } catch (NoSuchFileException ex) {
+            return false;
+        }
+        try {
+            Reader reader = new Reader(buffer);
+            if (buffer.getInt() != MAGIC) {
+                throw corrupt("Unknown file format", null);
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw corrupt("Unsupported version " + version, null);
+            }
+            String checkpointRoot = reader.string();
+            if (!rootPath.toString().equals(checkpointRoot)) {
+                throw new IOException("Checkpoint '" + file + "' belongs to '" + checkpointRoot + "' instead of '" +
+                        rootPath + "'");
+            }
+            FileSystem fileSystem = rootPath.getFileSystem();
+            int records = 0;
+            byte record;
+            while ((record = buffer.get()) == DIRECTORY_RECORD) {
+                Path dir = rootPath;
+                for (int names = reader.count(); names > 0; names--) {
+                    dir = dir.resolve(reader.name());
+                }
+                DirectorySnapshot.Entry directory = reader.entry();
+                int count = reader.count();
+                Map<Path, DirectorySnapshot.Entry> entries = new HashMap<>(count * 4 / 3 + 1);
+                for (int i = 0; i < count; i++) {
+                    Path name = fileSystem.getPath(reader.name());
+                    DirectorySnapshot.Entry entry = reader.entry();
+                    if (entry == null) {
+                        throw corrupt("Missing attributes of '" + dir.resolve(name) + "'", null);
+                    }
+                    entries.put(name, entry);
+                }
+                snapshots.replace(dir, DirectorySnapshot.of(directory, entries));
+                records++;
+            }
+            if (record != END_RECORD || buffer.getInt() != records || buffer.hasRemaining()) {
+                throw corrupt("Unexpected end of checkpoint", null);
+            }
+            return true;
+        } catch (BufferUnderflowException | IllegalArgumentException ex) {
+            throw corrupt("Unexpected end of checkpoint", ex);
+        }
+    }
+
+    private ByteBuffer map() throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw corrupt("Checkpoint is too large (" + size + " bytes)", null);
+            }
+            try {
+                // the mapping stays valid after the channel has been closed
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0L, size);
+            } catch (UnsupportedOperationException ex) {
+                // e.g. an in-memory file system
+                ByteBuffer buffer = ByteBuffer.allocate((int) size);
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                    // keep reading
+                }
+                buffer.flip();
+                return buffer;
+            }
+        }
+    }
+
+    private IOException corrupt(String reason, Exception cause) {
+        return new IOException("Checkpoint '" + file + "' is corrupt: " + reason, cause);
+    }
+
+    /**
+     * Decodes the building blocks of a checkpoint. Throws an <code>IllegalArgumentException</code> or a
+     * <code>BufferUnderflowException</code> if the buffer does not contain a valid building block.
+     */
+    private static final class Reader {
+        private final ByteBuffer buffer;
+        // reused to decode strings from buffers that are not backed by an array
+        private byte[] scratch = new byte[256];
+
+        private Reader(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        private int count() {
+            int count = buffer.getInt();
+            Preconditions.isTrue(count >= 0, "Negative count " + count);
+            return count;
+        }
+
+        private String name() {
+            String name = string();
+            Preconditions.isTrue(name != null && !name.isEmpty(), "Missing file name");
+            return name;
+        }
+
+        private String string() {
+            int length = buffer.getInt();
+            if (length == ABSENT) {
+                return null;
+            }
+            Preconditions.isTrue(length >= 0 && length <= buffer.remaining(), "Invalid string length " + length);
+            if (buffer.hasArray()) {
+                String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+                        StandardCharsets.UTF_8);
+                buffer.position(buffer.position() + length);
+                return value;
+            }
+            if (scratch.length < length) {
+                scratch = new byte[Math.max(length, scratch.length * 2)];
+            }
+            buffer.get(scratch, 0, length);
+            return new String(scratch, 0, length, StandardCharsets.UTF_8);
+        }
+
+        private DirectorySnapshot.Entry entry() {
+            byte type = buffer.get();
+            if (type == ABSENT) {
+                return null;
+            }
+            long lastModified = buffer.getLong();
+            long size = buffer.getLong();
+            return DirectorySnapshot.Entry.of(lastModified, size, type, string());
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package name.mitterdorfer.perlock.impl.recovery;
+
+import name.mitterdorfer.perlock.impl.util.Preconditions;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+
+/**
+ * <p>A lightweight snapshot of the direct entries of one directory. For each entry it only remembers the file name,
+ * the last modification time, the size, the file type and the file key (if the file system provides one).</p>
+ *
+ * <p>A snapshot is not thread safe.</p>
+ *
+ * <p>THIS IS AN INTERNAL IMPLEMENTATION CLASS AND DOES NOT BELONG TO THE API. DO NOT USE IT DIRECTLY.</p>
+ */
+public final class DirectorySnapshot {
+    // Modification times are only trusted if they are older than this when a directory is scanned. Coarse timestamps
+    // (e.g. one second on many network file systems, two seconds on FAT) cannot tell apart changes within this window.
+    private static final long RACY_WINDOW_MILLIS = 2000L;
+    private static final long UNKNOWN = -1L;
+
+    private final Entry directory;
+    private final Map<Path, Entry> entries;
+    // wall clock time at which the directory has been listed; UNKNOWN if the snapshot has not been scanned
+    private final long listedAt;
+
+    private DirectorySnapshot(Entry directory, Map<Path, Entry> entries, long listedAt) {
+        this.directory = directory;
+        this.entries = entries;
+        this.listedAt = listedAt;
+    }
+
+    public static DirectorySnapshot empty() {
+        return new DirectorySnapshot(null, new HashMap<Path, Entry>(), UNKNOWN);
+    }
+
+    /**
+     * Creates a snapshot from existing entries.
+     *
+     * @param directory The attributes of the directory itself. May be null if unknown.
+     * @param entries   The entries of the directory keyed by file name. Must not be null. Ownership is transferred to
+     *                  the new snapshot.
+     */
+    public static DirectorySnapshot of(Entry directory, Map<Path, Entry> entries) {
+        return new DirectorySnapshot(directory, entries, UNKNOWN);
+    }
+
+    /**
+     * Lists the provided directory (but not its subdirectories).
+     *
+     * @param dir The directory to scan. Must not be null.
+     * @return A new snapshot of <code>dir</code>. Never null.
+     * @throws IOException If <code>dir</code> cannot be listed (e.g. because it does not exist anymore).
+     */
+    public static DirectorySnapshot scan(Path dir) throws IOException {
+        long listedAt = System.currentTimeMillis();
+        Entry directory = Entry.of(Files.readAttributes(dir, BasicFileAttributes.class, NOFOLLOW_LINKS));
+        return list(dir, directory, listedAt);
+    }
+
+    /**
+     * <p>Scans the provided directory again. If its modification time has not changed since <code>previous</code>
+     * has been taken, no entries have been added or removed in the meantime. In that case only the attributes of the
+     * known entries are read and the (much more expensive) listing of the directory is skipped.</p>
+     *
+     * <p>The shortcut is only taken if the modification time of the directory has been well in the past when it has
+     * been listed before. Otherwise, a change within the granularity of the file system timestamps could be missed.</p>
+     *
+     * @param dir      The directory to scan. Must not be null.
+     * @param previous The previous snapshot of <code>dir</code>. May be null if there is none.
+     * @return A new snapshot of <code>dir</code>. Never null.
+     * @throws IOException If <code>dir</code> cannot be read (e.g. because it does not exist anymore).
+     */
+    public static DirectorySnapshot rescan(Path dir, DirectorySnapshot previous) throws IOException {
+        long listedAt = System.currentTimeMillis();
+        Entry directory = Entry.of(Files.readAttributes(dir, BasicFileAttributes.class, NOFOLLOW_LINKS));
+        if (previous == null || !previous.isListingCurrent(directory)) {
+            return list(dir, directory, listedAt);
+        }
+        Map<Path, Entry> entries = new HashMap<>(previous.entries.size() * 4 / 3 + 1);
+        for (Path name : previous.entries.keySet()) {
+            try {
+                entries.put(name, Entry.of(Files.readAttributes(dir.resolve(name), BasicFileAttributes.class,
+                        NOFOLLOW_LINKS)));
+            } catch (NoSuchFileException ex) {
+                // deleted within the racy window of the previous listing; it is not part of the snapshot
+            }
+        }
+        return new DirectorySnapshot(directory, entries, previous.listedAt);
+    }
+
+    private boolean isListingCurrent(Entry currentDirectory) {
+        return directory != null && listedAt != UNKNOWN && directory.isDirectory() &&
+                directory.getLastModified() == currentDirectory.getLastModified() &&
+                listedAt - directory.getLastModified() > RACY_WINDOW_MILLIS;
+    }
+
+    private static DirectorySnapshot list(Path dir, Entry directory, long listedAt) throws IOException {
+        Map<Path, Entry> entries = new HashMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path child : stream) {
+                try {
+                    entries.put(child.getFileName(), Entry.of(Files.readAttributes(child, BasicFileAttributes.class,
+                            NOFOLLOW_LINKS)));
+                } catch (NoSuchFileException ex) {
+                    // the entry has been deleted concurrently; it is not part of the snapshot
+                }
+            }
+        }
+        return new DirectorySnapshot(directory, entries, listedAt);
+    }
+
+    /**
+     * @return The attributes of the directory itself at the time of the scan. May be null if unknown.
+     */
+    public Entry getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @param name The file name of an entry.
+     * @return The entry with the given name or <code>null</code> if there is no such entry.
+     */
+    public Entry get(Path name) {
+        return entries.get(name);
+    }
+
+    public void put(Path name, Entry entry) {
+        entries.put(name, entry);
+    }
+
+    /**
+     * @return The removed entry or <code>null</code> if there was no such entry.
+     */
+    public Entry remove(Path name) {
+        return entries.remove(name);
+    }
+
+    /**
+     * @return A read-only view of all entries keyed by file name. Never null.
+     */
+    public Set<Map.Entry<Path, Entry>> entries() {
+        return Collections.unmodifiableMap(entries).entrySet();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Attributes of a single directory entry. Entries are immutable.
+     */
+    public static final class Entry implements BasicFileAttributes {
+        private static final byte REGULAR_FILE = 0;
+        private static final byte DIRECTORY = 1;
+        private static final byte SYMBOLIC_LINK = 2;
+        private static final byte OTHER = 3;
+
+        private final long lastModified;
+        private final long size;
+        private final byte type;
+        // identifies the file independent of its path (e.g. the inode); null if not supported by the file system
+        private final Object fileKey;
+
+        private Entry(long lastModified, long size, byte type, Object fileKey) {
+            this.lastModified = lastModified;
+            this.size = size;
+            this.type = type;
+            this.fileKey = fileKey;
+        }
+
+        /**
+         * Restores an entry from its raw attributes.
+         *
+         * @param type The value that {@link #getType()} has returned for the original entry.
+         */
+        static Entry of(long lastModified, long size, byte type, Object fileKey) {
+            Preconditions.isTrue(type >= REGULAR_FILE && type <= OTHER, "Unknown type " + type);
+            return new Entry(lastModified, size, type, fileKey);
+        }
+
+        public static Entry of(BasicFileAttributes attributes) {
+            byte type;
+            if (attributes.isDirectory()) {
+                type = DIRECTORY;
+            } else if (attributes.isRegularFile()) {
+                type = REGULAR_FILE;
+            } else if (attributes.isSymbolicLink()) {
+                type = SYMBOLIC_LINK;
+            } else {
+                type = OTHER;
+            }
+            return new Entry(attributes.lastModifiedTime().toMillis(), attributes.size(), type, attributes.fileKey());
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        byte getType() {
+            return type;
+        }
+
+        @Override
+        public FileTime lastModifiedTime() {
+            return FileTime.fromMillis(lastModified);
+        }
+
+        /**
+         * Only the last modification time is tracked.
+         */
+        @Override
+        public FileTime lastAccessTime() {
+            return lastModifiedTime();
+        }
+
+        /**
+         * Only the last modification time is tracked.
+         */
+        @Override
+        public FileTime creationTime() {
+            return lastModifiedTime();
+        }
+
+        @Override
+        public boolean isRegularFile() {
+            return type == REGULAR_FILE;
+        }
+
+        @Override
+        public boolean isDirectory() {
+            return type == DIRECTORY;
+        }
+
+        @Override
+        public boolean isSymbolicLink() {
+            return type == SYMBOLIC_LINK;
+        }
+
+        @Override
+        public boolean isOther() {
+            return type == OTHER;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        /**
+         * @return The file key at the time of the scan. May be null if the file system does not provide file keys.
+         */
+        @Override
+        public Object fileKey() {
+            return fileKey;
+        }
+
+        /**
+         * @return true iff the entry has been modified between this entry and <code>other</code>. Both entries have to
+         * belong to the same path. An entry that has been replaced by another file (with a different file key) is
+         * considered modified even if its modification time and size are the same.
+         */
+        public boolean isModified(Entry other) {
+            return lastModified != other.lastModified || size != other.size || !isSameFile(other);
+        }
+
+        private boolean isSameFile(Entry other) {
+            if (fileKey == null || other.fileKey == null || fileKey.equals(other.fileKey)) {
+                return true;
+            }
+            // file keys that have been restored from a checkpoint are only known by their string representation
+            return fileKey.getClass() != other.fileKey.getClass() && fileKey.toString().equals(other.fileKey.toString());
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package name.mitterdorfer.perlock.impl.recovery;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>Stores snapshots in a flat map keyed by directory. Intended for the exclusive use of one path watcher.</p>
+ *
+ * <p>THIS IS AN INTERNAL IMPLEMENTATION CLASS AND DOES NOT BELONG TO THE API. DO NOT USE IT DIRECTLY.</p>
+ */
+public final class MapSnapshotStore implements SnapshotStore {
+    // concurrent as the initial snapshot might be taken while the watch key handling thread already receives events
+    private final ConcurrentMap<Path, DirectorySnapshot> snapshots = new ConcurrentHashMap<>();
+
+    @Override
+    public boolean isTracked(Path dir) {
+        return snapshots.containsKey(dir);
+    }
+
+    @Override
+    public DirectorySnapshot get(Path dir) {
+        return snapshots.get(dir);
+    }
+
+    @Override
+    public DirectorySnapshot replace(Path dir, DirectorySnapshot snapshot) {
+        return snapshots.put(dir, snapshot);
+    }
+
+    @Override
+    public DirectorySnapshot.Entry put(Path path, DirectorySnapshot.Entry entry) {
+        DirectorySnapshot parent = snapshots.get(path.getParent());
+        if (parent == null) {
+            return null;
+        }
+        DirectorySnapshot.Entry previous = parent.get(path.getFileName());
+        parent.put(path.getFileName(), entry);
+        if (previous != null && previous.isDirectory() && !entry.isDirectory()) {
+            forget(path);
+        }
+        return previous;
+    }
+
+    @Override
+    public DirectorySnapshot.Entry remove(Path path) {
+        DirectorySnapshot parent = snapshots.get(path.getParent());
+        if (parent == null) {
+            return null;
+        }
+        DirectorySnapshot.Entry removed = parent.remove(path.getFileName());
+        if (removed != null && removed.isDirectory()) {
+            forget(path);
+        }
+        return removed;
+    }
+
+    @Override
+    public void forget(Path dir) {
+        DirectorySnapshot snapshot = snapshots.remove(dir);
+        if (snapshot != null) {
+            for (Map.Entry<Path, DirectorySnapshot.Entry> entry : snapshot.entries()) {
+                if (entry.getValue().isDirectory()) {
+                    forget(dir.resolve(entry.getKey()));
+                }
+            }
+        }
+    }
+
+    @Override
+    public void clear() {
+        snapshots.clear();
+    }
+}
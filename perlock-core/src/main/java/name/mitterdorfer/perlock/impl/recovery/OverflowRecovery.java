@@ -0,0 +1,343 @@
+package name.mitterdorfer.perlock.impl.recovery;
+
+import name.mitterdorfer.perlock.EventKind;
+import name.mitterdorfer.perlock.impl.util.Preconditions;
+import name.mitterdorfer.perlock.impl.watch.PathFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+
+/**
+ * <p>Recovers events that have been lost due to an overflow of the kernel event queue or while the path watcher has
+ * not been running.</p>
+ *
+ * <p><code>OverflowRecovery</code> keeps a {@link DirectorySnapshot} for each watched directory in a
+ * {@link SnapshotStore} that is kept up to date with every event that the path watcher receives. When a watch key
+ * overflows, its directory (and for recursive watchers its subtree) is rescanned and the missing events are synthesized
+ * from the difference between the old and the new snapshot.</p>
+ *
+ * <p>Rescans are rate limited: Overflows that occur within the minimum rescan interval after the last rescan are
+ * accumulated and handled together once the interval has elapsed. If an executor is provided, all directories on the
+ * same level of a subtree are scanned in parallel.</p>
+ *
+ * <p>The snapshots can be written to a {@link CheckpointFile} and restored from it when the path watcher starts again.
+ * The first rescan after restoring then reports all changes that have happened in the meantime.</p>
+ *
+ * <p>An instance is confined to the thread that handles watch keys of its path watcher. Only {@link #track(Path)} and
+ * {@link #restore(Path, CheckpointFile)} may also be called by the thread that starts the path watcher.</p>
+ *
+ * <p>THIS IS AN INTERNAL IMPLEMENTATION CLASS AND DOES NOT BELONG TO THE API. DO NOT USE IT DIRECTLY.</p>
+ */
+public final class OverflowRecovery {
+    private static final Logger LOG = LoggerFactory.getLogger(OverflowRecovery.class);
+
+    private final boolean recursive;
+    // null if directories should be scanned sequentially
+    private final ExecutorService scanExecutor;
+    private final long minRescanIntervalNanos;
+    private final SnapshotStore snapshots;
+    // null if all subdirectories should be tracked
+    private final PathFilter filter;
+    // directories that need to be rescanned in the order in which they have overflowed
+    private final Set<Path> overflowedDirs = new LinkedHashSet<>();
+    private boolean rescannedBefore;
+    private long lastRescan;
+
+    /**
+     * Creates a new <code>OverflowRecovery</code> which keeps its snapshots in a {@link MapSnapshotStore}.
+     *
+     * @see #OverflowRecovery(boolean, ExecutorService, long, SnapshotStore)
+     */
+    public OverflowRecovery(boolean recursive, ExecutorService scanExecutor, long minRescanIntervalNanos) {
+        this(recursive, scanExecutor, minRescanIntervalNanos, new MapSnapshotStore());
+    }
+
+    /**
+     * @param recursive              true iff overflows should be recovered for the complete subtree of a directory.
+     * @param scanExecutor           The executor on which directories are scanned in parallel. May be null to scan
+     *                               directories sequentially on the calling thread.
+     * @param minRescanIntervalNanos The minimum time between two rescans in nanoseconds. Must not be negative.
+     * @param snapshots              The store for the directory snapshots. Must not be null.
+     */
+    public OverflowRecovery(boolean recursive, ExecutorService scanExecutor, long minRescanIntervalNanos,
+                            SnapshotStore snapshots) {
+        this(recursive, scanExecutor, minRescanIntervalNanos, snapshots, null);
+    }
+
+    /**
+     * @param recursive              true iff overflows should be recovered for the complete subtree of a directory.
+     * @param scanExecutor           The executor on which directories are scanned in parallel. May be null to scan
+     *                               directories sequentially on the calling thread.
+     * @param minRescanIntervalNanos The minimum time between two rescans in nanoseconds. Must not be negative.
+     * @param snapshots              The store for the directory snapshots. Must not be null.
+     * @param filter                 Determines which subdirectories are tracked. May be null to track all of them.
+     */
+    public OverflowRecovery(boolean recursive, ExecutorService scanExecutor, long minRescanIntervalNanos,
+                            SnapshotStore snapshots, PathFilter filter) {
+        Preconditions.isTrue(minRescanIntervalNanos >= 0, "'minRescanIntervalNanos' must not be negative");
+        Preconditions.isNotNull(snapshots, "snapshots");
+        this.recursive = recursive;
+        this.scanExecutor = scanExecutor;
+        this.minRescanIntervalNanos = minRescanIntervalNanos;
+        this.snapshots = snapshots;
+        this.filter = filter;
+    }
+
+    /**
+     * Takes an initial snapshot of the provided directory (and its subtree if recursive). No events are generated.
+     */
+    public void track(Path dir) {
+        scan(Collections.singletonList(dir), null);
+    }
+
+    /**
+     * Restores the snapshots of the provided directory (and its subtree if recursive) from a checkpoint and marks the
+     * directory for rescanning. The next rescan synthesizes events for all changes since the checkpoint has been
+     * written.
+     *
+     * @return true iff the snapshots have been restored, false if there is no checkpoint.
+     * @throws IOException If the checkpoint cannot be read. All snapshots are forgotten in that case.
+     */
+    public boolean restore(Path dir, CheckpointFile checkpoint) throws IOException {
+        try {
+            if (!checkpoint.read(dir, snapshots)) {
+                return false;
+            }
+        } catch (IOException ex) {
+            snapshots.clear();
+            throw ex;
+        }
+        overflow(dir);
+        return true;
+    }
+
+    /**
+     * Writes the current snapshots of the provided directory (and its subtree if recursive) to a checkpoint.
+     */
+    public void checkpoint(Path dir, CheckpointFile checkpoint) throws IOException {
+        checkpoint.write(dir, snapshots);
+    }
+
+    /**
+     * Updates the snapshot of the parent directory of <code>path</code> after an event has been received.
+     *
+     * @return The entry of <code>path</code> before the update or <code>null</code> if it has not been known.
+     */
+    public DirectorySnapshot.Entry update(EventKind eventKind, Path path) {
+        if (!snapshots.isTracked(path.getParent())) {
+            return null;
+        }
+        if (eventKind != EventKind.DELETE) {
+            try {
+                DirectorySnapshot.Entry entry = DirectorySnapshot.Entry.of(Files.readAttributes(path,
+                        BasicFileAttributes.class, NOFOLLOW_LINKS));
+                DirectorySnapshot.Entry previous = snapshots.put(path, entry);
+                if (recursive && entry.isDirectory() && (previous == null || !previous.isDirectory()) &&
+                        isWatched(path)) {
+                    // a new subtree is watched from now on
+                    track(path);
+                }
+                return previous;
+            } catch (IOException ex) {
+                // the path is gone already. We'll receive a DELETE event soon.
+            }
+        }
+        return snapshots.remove(path);
+    }
+
+    /**
+     * Marks a directory for rescanning.
+     */
+    public void overflow(Path dir) {
+        overflowedDirs.add(dir);
+    }
+
+    /**
+     * Rescans all overflowed directories if the minimum rescan interval has elapsed.
+     *
+     * @param sink Receives the synthesized events.
+     * @return <code>-1</code> if no rescan is pending (anymore), otherwise the number of nanoseconds until the pending
+     * rescan is due.
+     */
+    public long rescanIfDue(Sink sink) {
+        if (overflowedDirs.isEmpty()) {
+            return -1L;
+        }
+        long now = System.nanoTime();
+        long remaining = lastRescan + minRescanIntervalNanos - now;
+        if (rescannedBefore && remaining > 0) {
+            return remaining;
+        }
+        List<Path> dirs = new ArrayList<>();
+        for (Path dir : overflowedDirs) {
+            // the subtree of an ancestor is rescanned anyway
+            if (!recursive || !hasOverflowedAncestor(dir)) {
+                dirs.add(dir);
+            }
+        }
+        overflowedDirs.clear();
+        rescannedBefore = true;
+        lastRescan = now;
+        LOG.debug("Rescanning {} directories after watch service event overflow.", dirs.size());
+        scan(dirs, sink);
+        return -1L;
+    }
+
+    private boolean isWatched(Path dir) {
+        return filter == null || filter.isWatched(dir);
+    }
+
+    private boolean hasOverflowedAncestor(Path dir) {
+        for (Path ancestor = dir.getParent(); ancestor != null; ancestor = ancestor.getParent()) {
+            if (overflowedDirs.contains(ancestor)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Forgets all snapshots and pending rescans.
+     */
+    public void clear() {
+        snapshots.clear();
+        overflowedDirs.clear();
+        rescannedBefore = false;
+    }
+
+    /**
+     * Scans the provided directories (and their subtrees if recursive) level by level and replaces their snapshots.
+     *
+     * @param sink Receives events for all differences to the previous snapshots. May be null if no events should be
+     *             generated.
+     */
+    private void scan(List<Path> dirs, Sink sink) {
+        List<Path> level = dirs;
+        while (!level.isEmpty()) {
+            List<DirectorySnapshot> scanned = scanAll(level);
+            if (scanned == null) {
+                // interrupted
+                return;
+            }
+            List<Path> nextLevel = new ArrayList<>();
+            for (int i = 0; i < level.size(); i++) {
+                Path dir = level.get(i);
+                DirectorySnapshot current = scanned.get(i);
+                if (current == null) {
+                    // the directory is gone. Its parent reports the deletion if it is watched.
+                    snapshots.forget(dir);
+                    continue;
+                }
+                DirectorySnapshot previous = snapshots.replace(dir, current);
+                diff(dir, previous != null ? previous : DirectorySnapshot.empty(), current, sink);
+                if (recursive) {
+                    for (Map.Entry<Path, DirectorySnapshot.Entry> entry : current.entries()) {
+                        if (entry.getValue().isDirectory()) {
+                            Path subDir = dir.resolve(entry.getKey());
+                            if (isWatched(subDir)) {
+                                nextLevel.add(subDir);
+                            }
+                        }
+                    }
+                }
+            }
+            level = nextLevel;
+        }
+    }
+
+    /**
+     * @return The snapshots in the same order as <code>dirs</code>. An element is null if the directory could not be
+     * scanned. Returns null if the current thread has been interrupted while waiting for the scan results.
+     */
+    private List<DirectorySnapshot> scanAll(List<Path> dirs) {
+        List<DirectorySnapshot> snapshots = new ArrayList<>(dirs.size());
+        if (dirs.size() == 1 || scanExecutor == null) {
+            // a single directory is not worth a context switch
+            for (Path dir : dirs) {
+                snapshots.add(scanQuietly(dir));
+            }
+            return snapshots;
+        }
+        List<Callable<DirectorySnapshot>> tasks = new ArrayList<>(dirs.size());
+        for (final Path dir : dirs) {
+            tasks.add(new Callable<DirectorySnapshot>() {
+                @Override
+                public DirectorySnapshot call() {
+                    return scanQuietly(dir);
+                }
+            });
+        }
+        try {
+            for (Future<DirectorySnapshot> result : scanExecutor.invokeAll(tasks)) {
+                snapshots.add(result.get());
+            }
+            return snapshots;
+        } catch (InterruptedException ex) {
+            LOG.trace("Interrupted while waiting for directory scans to finish.");
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException ex) {
+            // scanQuietly() does not throw checked exceptions
+            throw new IllegalStateException(ex.getCause());
+        }
+    }
+
+    private static DirectorySnapshot scanQuietly(Path dir) {
+        try {
+            return DirectorySnapshot.scan(dir);
+        } catch (IOException ex) {
+            LOG.trace("Could not scan '" + dir + "'.", ex);
+            return null;
+        }
+    }
+
+    private void diff(Path dir, DirectorySnapshot previous, DirectorySnapshot current, Sink sink) {
+        for (Map.Entry<Path, DirectorySnapshot.Entry> entry : previous.entries()) {
+            DirectorySnapshot.Entry now = current.get(entry.getKey());
+            boolean wasDirectory = entry.getValue().isDirectory();
+            if (now == null || now.isDirectory() != wasDirectory) {
+                Path child = dir.resolve(entry.getKey());
+                if (wasDirectory) {
+                    snapshots.forget(child);
+                }
+                if (sink != null) {
+                    sink.onRecoveredEvent(EventKind.DELETE, child);
+                }
+            }
+        }
+        if (sink == null) {
+            return;
+        }
+        for (Map.Entry<Path, DirectorySnapshot.Entry> entry : current.entries()) {
+            DirectorySnapshot.Entry before = previous.get(entry.getKey());
+            if (before == null || before.isDirectory() != entry.getValue().isDirectory()) {
+                sink.onRecoveredEvent(EventKind.CREATE, dir.resolve(entry.getKey()));
+            } else if (before.isModified(entry.getValue())) {
+                sink.onRecoveredEvent(EventKind.MODIFY, dir.resolve(entry.getKey()));
+            }
+        }
+    }
+
+    /**
+     * Receives events that have been synthesized by a rescan.
+     */
+    public interface Sink {
+        void onRecoveredEvent(EventKind eventKind, Path path);
+    }
+}
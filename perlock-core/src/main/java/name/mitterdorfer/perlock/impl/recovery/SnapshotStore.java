@@ -0,0 +1,61 @@
+package name.mitterdorfer.perlock.impl.recovery;
+
+import java.nio.file.Path;
+
+/**
+ * <p>Stores the {@link DirectorySnapshot}s of all watched directories of one path watcher.</p>
+ *
+ * <p>A snapshot store is only modified by the thread that handles the watch keys of its path watcher (or the thread
+ * that starts the path watcher). Whether it may be read concurrently is up to the implementation.</p>
+ *
+ * <p>THIS IS AN INTERNAL IMPLEMENTATION CLASS AND DOES NOT BELONG TO THE API. DO NOT USE IT DIRECTLY.</p>
+ */
+public interface SnapshotStore {
+    /**
+     * @return true iff a snapshot of <code>dir</code> is stored.
+     */
+    boolean isTracked(Path dir);
+
+    /**
+     * @return The snapshot of <code>dir</code> or <code>null</code> if it is not tracked. The snapshot must not be
+     * modified.
+     */
+    DirectorySnapshot get(Path dir);
+
+    /**
+     * Replaces the snapshot of a directory. The snapshots of its subdirectories are kept.
+     *
+     * @param dir      A directory. Must not be null.
+     * @param snapshot The new snapshot. Must not be null. Ownership is transferred to the store.
+     * @return The previous snapshot or <code>null</code> if <code>dir</code> has not been tracked before.
+     */
+    DirectorySnapshot replace(Path dir, DirectorySnapshot snapshot);
+
+    /**
+     * Adds or replaces the entry for <code>path</code> in the snapshot of its parent directory. Does nothing if the
+     * parent directory is not tracked. If a directory is replaced by a file, the subtree of the directory is
+     * forgotten.
+     *
+     * @return The previous entry or <code>null</code> if there was none.
+     */
+    DirectorySnapshot.Entry put(Path path, DirectorySnapshot.Entry entry);
+
+    /**
+     * Removes the entry for <code>path</code> from the snapshot of its parent directory. If it is a directory, its
+     * subtree is forgotten as well.
+     *
+     * @return The removed entry or <code>null</code> if there was none.
+     */
+    DirectorySnapshot.Entry remove(Path path);
+
+    /**
+     * Forgets the snapshots of <code>dir</code> and all of its subdirectories but keeps the entry of <code>dir</code>
+     * in its parent directory.
+     */
+    void forget(Path dir);
+
+    /**
+     * Forgets all snapshots.
+     */
+    void clear();
+}
@@ -0,0 +1,368 @@
+package name.mitterdorfer.perlock.impl.tree;
+
+import name.mitterdorfer.perlock.WatchedTree;
+import name.mitterdorfer.perlock.impl.recovery.DirectorySnapshot;
+import name.mitterdorfer.perlock.impl.recovery.SnapshotStore;
+import name.mitterdorfer.perlock.impl.util.Preconditions;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>In-memory mirror of a watched file tree. It is populated and kept up to date by
+ * {@link name.mitterdorfer.perlock.impl.recovery.OverflowRecovery} via the {@link SnapshotStore} interface and
+ * answers queries via the {@link WatchedTree} interface.</p>
+ *
+ * <p>Each directory is represented by a node that holds the child nodes in a compact child map: Small directories use a
+ * sorted array which is searched with binary search, large directories switch to a hash map.</p>
+ *
+ * <p>Threading: There is exactly one writer (the thread that handles the watch keys of the owning path watcher) but
+ * arbitrary many concurrent readers. Writers publish changes via volatile writes only: Child arrays are never modified
+ * after publication (copy on write) and child maps are concurrent. Readers hence never block and never see a partially
+ * updated directory.</p>
+ *
+ * <p>THIS IS AN INTERNAL IMPLEMENTATION CLASS AND DOES NOT BELONG TO THE API. DO NOT USE IT DIRECTLY.</p>
+ */
+public final class TreeMirror implements WatchedTree, SnapshotStore {
+    // directories with more entries switch from a sorted array to a hash map
+    private static final int MAX_ARRAY_CHILDREN = 32;
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    private final Path rootPath;
+    private final int rootNameCount;
+    private volatile Node root;
+
+    public TreeMirror(Path rootPath) {
+        Preconditions.isNotNull(rootPath, "rootPath");
+        this.rootPath = rootPath;
+        this.rootNameCount = rootPath.getNameCount();
+        this.root = new Node(rootPath.getFileName());
+    }
+
+    @Override
+    public Path getRootPath() {
+        return rootPath;
+    }
+
+    @Override
+    public boolean exists(Path path) {
+        return getAttributes(path) != null;
+    }
+
+    @Override
+    public List<Path> list(Path dir) {
+        Node node = find(dir);
+        Children children = node != null ? node.children : null;
+        if (children == null) {
+            return null;
+        }
+        Node[] nodes = children.nodes();
+        List<Path> paths = new ArrayList<>(nodes.length);
+        for (Node child : nodes) {
+            paths.add(dir.resolve(child.name));
+        }
+        return paths;
+    }
+
+    @Override
+    public BasicFileAttributes getAttributes(Path path) {
+        Node node = find(path);
+        return node != null ? node.attributes : null;
+    }
+
+    private Node find(Path path) {
+        Preconditions.isNotNull(path, "path");
+        if (!path.startsWith(rootPath)) {
+            return null;
+        }
+        Node node = root;
+        for (int i = rootNameCount; i < path.getNameCount() && node != null; i++) {
+            Children children = node.children;
+            node = children != null ? children.get(path.getName(i)) : null;
+        }
+        return node;
+    }
+
+    private Children childrenOf(Path dir) {
+        Node node = find(dir);
+        return node != null ? node.children : null;
+    }
+
+    @Override
+    public boolean isTracked(Path dir) {
+        return childrenOf(dir) != null;
+    }
+
+    @Override
+    public DirectorySnapshot get(Path dir) {
+        Node node = find(dir);
+        Children children = node != null ? node.children : null;
+        if (children == null) {
+            return null;
+        }
+        Node[] nodes = children.nodes();
+        Map<Path, DirectorySnapshot.Entry> entries = new HashMap<>(nodes.length * 4 / 3 + 1);
+        for (Node child : nodes) {
+            entries.put(child.name, child.attributes);
+        }
+        return DirectorySnapshot.of(node.attributes, entries);
+    }
+
+    @Override
+    public DirectorySnapshot replace(Path dir, DirectorySnapshot snapshot) {
+        Node node = find(dir);
+        if (node == null) {
+            // the parent directory has been forgotten in the meantime
+            return null;
+        }
+        Children previous = node.children;
+        Map<Path, DirectorySnapshot.Entry> previousEntries = new HashMap<>();
+        Node[] nodes = new Node[snapshot.size()];
+        int i = 0;
+        for (Map.Entry<Path, DirectorySnapshot.Entry> entry : snapshot.entries()) {
+            Path name = entry.getKey();
+            Node child = previous != null ? previous.get(name) : null;
+            if (child != null && child.attributes.isDirectory() && entry.getValue().isDirectory()) {
+                // keep the subtree; it is replaced separately if necessary
+                child.attributes = entry.getValue();
+            } else {
+                child = new Node(name, entry.getValue());
+            }
+            nodes[i++] = child;
+        }
+        if (previous != null) {
+            for (Node child : previous.nodes()) {
+                previousEntries.put(child.name, child.attributes);
+            }
+        }
+        DirectorySnapshot.Entry previousDirectory = node.attributes;
+        if (snapshot.getDirectory() != null) {
+            node.attributes = snapshot.getDirectory();
+        }
+        node.children = Children.of(nodes);
+        return previous != null ? DirectorySnapshot.of(previousDirectory, previousEntries) : null;
+    }
+
+    @Override
+    public DirectorySnapshot.Entry put(Path path, DirectorySnapshot.Entry entry) {
+        Node parent = find(path.getParent());
+        Children children = parent != null ? parent.children : null;
+        if (children == null) {
+            return null;
+        }
+        Path name = path.getFileName();
+        Node existing = children.get(name);
+        if (existing == null) {
+            parent.children = children.with(new Node(name, entry));
+            return null;
+        }
+        DirectorySnapshot.Entry previous = existing.attributes;
+        if (previous.isDirectory() == entry.isDirectory()) {
+            existing.attributes = entry;
+        } else {
+            // the type has changed; drop the subtree (if any)
+            parent.children = children.with(new Node(name, entry));
+        }
+        return previous;
+    }
+
+    @Override
+    public DirectorySnapshot.Entry remove(Path path) {
+        Node parent = find(path.getParent());
+        Children children = parent != null ? parent.children : null;
+        if (children == null) {
+            return null;
+        }
+        Node existing = children.get(path.getFileName());
+        if (existing == null) {
+            return null;
+        }
+        parent.children = children.without(existing.name);
+        return existing.attributes;
+    }
+
+    @Override
+    public void forget(Path dir) {
+        Node node = find(dir);
+        if (node != null) {
+            node.children = null;
+        }
+    }
+
+    @Override
+    public void clear() {
+        root = new Node(rootPath.getFileName());
+    }
+
+    @Override
+    public String toString() {
+        return "WatchedTree for '" + rootPath + "'";
+    }
+
+    /**
+     * A file or directory in the tree. Only the writer modifies nodes.
+     */
+    private static final class Node {
+        private final Path name;
+        private volatile DirectorySnapshot.Entry attributes;
+        // null if this node is not a directory or its entries are (not yet) known
+        private volatile Children children;
+
+        // the root node which is unknown until it is scanned
+        private Node(Path name) {
+            this.name = name;
+        }
+
+        private Node(Path name, DirectorySnapshot.Entry attributes) {
+            this.name = name;
+            this.attributes = attributes;
+        }
+    }
+
+    /**
+     * The direct children of a directory node. Instances are either immutable or thread safe. Modifications either
+     * return a new instance or modify this instance in place.
+     */
+    private abstract static class Children {
+        static Children of(Node[] nodes) {
+            if (nodes.length > MAX_ARRAY_CHILDREN) {
+                return new MapChildren(nodes);
+            }
+            Arrays.sort(nodes, ArrayChildren.BY_NAME);
+            return new ArrayChildren(nodes);
+        }
+
+        abstract Node get(Path name);
+
+        /**
+         * @return The children including <code>node</code> (replacing any child with the same name).
+         */
+        abstract Children with(Node node);
+
+        abstract Children without(Path name);
+
+        abstract Node[] nodes();
+    }
+
+    private static final class ArrayChildren extends Children {
+        private static final Comparator<Node> BY_NAME = new Comparator<Node>() {
+            @Override
+            public int compare(Node o1, Node o2) {
+                return o1.name.compareTo(o2.name);
+            }
+        };
+
+        // sorted by name; never modified
+        private final Node[] nodes;
+
+        private ArrayChildren(Node[] nodes) {
+            this.nodes = nodes;
+        }
+
+        private int indexOf(Path name) {
+            int low = 0;
+            int high = nodes.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = nodes[mid].name.compareTo(name);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -(low + 1);
+        }
+
+        @Override
+        Node get(Path name) {
+            int index = indexOf(name);
+            return index >= 0 ? nodes[index] : null;
+        }
+
+        @Override
+        Children with(Node node) {
+            int index = indexOf(node.name);
+            if (index >= 0) {
+                Node[] updated = nodes.clone();
+                updated[index] = node;
+                return new ArrayChildren(updated);
+            }
+            if (nodes.length == MAX_ARRAY_CHILDREN) {
+                MapChildren grown = new MapChildren(nodes);
+                return grown.with(node);
+            }
+            int insertion = -(index + 1);
+            Node[] updated = new Node[nodes.length + 1];
+            System.arraycopy(nodes, 0, updated, 0, insertion);
+            updated[insertion] = node;
+            System.arraycopy(nodes, insertion, updated, insertion + 1, nodes.length - insertion);
+            return new ArrayChildren(updated);
+        }
+
+        @Override
+        Children without(Path name) {
+            int index = indexOf(name);
+            if (index < 0) {
+                return this;
+            }
+            if (nodes.length == 1) {
+                return new ArrayChildren(NO_CHILDREN);
+            }
+            Node[] updated = new Node[nodes.length - 1];
+            System.arraycopy(nodes, 0, updated, 0, index);
+            System.arraycopy(nodes, index + 1, updated, index, nodes.length - index - 1);
+            return new ArrayChildren(updated);
+        }
+
+        @Override
+        Node[] nodes() {
+            return nodes;
+        }
+    }
+
+    private static final class MapChildren extends Children {
+        private final ConcurrentHashMap<Path, Node> nodes;
+
+        private MapChildren(Node[] initial) {
+            this.nodes = new ConcurrentHashMap<>(initial.length * 2);
+            for (Node node : initial) {
+                nodes.put(node.name, node);
+            }
+        }
+
+        @Override
+        Node get(Path name) {
+            return nodes.get(name);
+        }
+
+        @Override
+        Children with(Node node) {
+            nodes.put(node.name, node);
+            return this;
+        }
+
+        @Override
+        Children without(Path name) {
+            // large directories tend to stay large; don't shrink back to an array
+            nodes.remove(name);
+            return this;
+        }
+
+        @Override
+        Node[] nodes() {
+            Collection<Node> values = nodes.values();
+            return values.toArray(new Node[values.size()]);
+        }
+    }
+}
@@ -1,32 +1,87 @@
 package name.mitterdorfer.perlock.impl.watch;
 
+import name.mitterdorfer.perlock.EventKind;
+import name.mitterdorfer.perlock.WatchOptions;
+import name.mitterdorfer.perlock.impl.inotify.InotifyWatchService;
 import name.mitterdorfer.perlock.impl.watch.registration.DefaultRecursiveRegistrationStrategy;
 import name.mitterdorfer.perlock.impl.watch.registration.NonRecursiveRegistrationStrategy;
+import name.mitterdorfer.perlock.impl.watch.registration.ParallelRecursiveRegistrationStrategy;
+import name.mitterdorfer.perlock.impl.watch.registration.ProgressiveRecursiveRegistrationStrategy;
 import name.mitterdorfer.perlock.impl.watch.registration.WindowsRecursiveRegistrationStrategy;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.FileSystem;
 import java.nio.file.Path;
 import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.EnumSet;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * THIS IS AN INTERNAL IMPLEMENTATION CLASS AND DOES NOT BELONG TO THE API. DO NOT USE IT DIRECTLY.
  */
 public final class DefaultWatchRegistrationFactory implements WatchRegistrationFactory {
-    public static final DefaultWatchRegistrationFactory INSTANCE = new DefaultWatchRegistrationFactory();
+    public static final DefaultWatchRegistrationFactory INSTANCE = new DefaultWatchRegistrationFactory(true);
+    /**
+     * Always uses the watch service of the JDK. A thread that waits for events of the native inotify backend blocks in
+     * native code, which pins a virtual thread to its carrier thread. The watch service of the JDK waits in Java code.
+     */
+    public static final DefaultWatchRegistrationFactory WITHOUT_NATIVE_BACKEND = new DefaultWatchRegistrationFactory(false);
+    private static final Logger LOG = LoggerFactory.getLogger(DefaultWatchRegistrationFactory.class);
+
+    private final boolean nativeBackend;
+
+    private DefaultWatchRegistrationFactory(boolean nativeBackend) {
+        this.nativeBackend = nativeBackend;
+    }
 
     @Override
-    public WatchRegistrationStrategy createRegistrationStrategy(Map<WatchKey, Path> keys, boolean recursiveWatcher) {
+    public WatchService newWatchService(FileSystem fileSystem) throws IOException {
+        // on Linux we talk to inotify directly if the native backend is available
+        if (nativeBackend && InotifyWatchService.isSupported(fileSystem)) {
+            try {
+                return InotifyWatchService.open();
+            } catch (IOException ex) {
+                LOG.debug("Could not create native inotify instance. Using the watch service of the JDK.", ex);
+            }
+        }
+        return fileSystem.newWatchService();
+    }
+
+    @Override
+    public WatchRegistrationStrategy createRegistrationStrategy(Map<WatchKey, Path> keys, boolean recursiveWatcher,
+                                                                WatchOptions options, PathFilter filter,
+                                                                Set<EventKind> eventKinds, WatchQuota quota) {
         if (!recursiveWatcher) {
             // non-recursive watching is treated equally on all systems
-            return new NonRecursiveRegistrationStrategy(keys);
+            return new NonRecursiveRegistrationStrategy(keys, eventKinds, quota);
         } else if (isWindows()) {
             // on Windows we provide an especially suitable implementation for recursive watching
-            return new WindowsRecursiveRegistrationStrategy(keys);
+            return new WindowsRecursiveRegistrationStrategy(keys, eventKinds, quota);
+        }
+        // we need to know about new subdirectories to watch them as well
+        Set<EventKind> recursiveEventKinds = withCreate(eventKinds);
+        if (options.isRegisterProgressively()) {
+            return new ProgressiveRecursiveRegistrationStrategy(keys, filter, recursiveEventKinds, quota,
+                    options.getSynchronousRegistrationLevels(), options.getRegistrationExecutor());
+        } else if (options.isRegisterInParallel()) {
+            return new ParallelRecursiveRegistrationStrategy(keys, filter, recursiveEventKinds, quota,
+                    options.getRegistrationPool());
         } else {
-            return new DefaultRecursiveRegistrationStrategy(keys);
+            return new DefaultRecursiveRegistrationStrategy(keys, filter, recursiveEventKinds, quota);
         }
     }
 
+    private static Set<EventKind> withCreate(Set<EventKind> eventKinds) {
+        EnumSet<EventKind> result = EnumSet.copyOf(eventKinds);
+        result.add(EventKind.CREATE);
+        return result;
+    }
+
     private static boolean isWindows() {
         String osName = System.getProperty("os.name");
         return osName != null && osName.toLowerCase().startsWith("windows");
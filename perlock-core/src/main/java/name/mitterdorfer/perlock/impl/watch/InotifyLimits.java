@@ -0,0 +1,131 @@
+package name.mitterdorfer.perlock.impl.watch;
+
+import name.mitterdorfer.perlock.impl.util.Preconditions;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * <p>Reads the limit and the usage of inotify watches from the <code>proc</code> file system of Linux.</p>
+ *
+ * <ul>
+ *     <li>The limit is read from <code>sys/fs/inotify/max_user_watches</code>.</li>
+ *     <li>The usage is determined by counting the watches of all inotify instances of all processes that are visible
+ *     to the current process. The file descriptors of other users' processes are not accessible, so only the
+ *     watches of the current user (which count against the limit) are included. Each watch is a line starting with
+ *     <code>inotify wd:</code> in <code>[pid]/fdinfo/[fd]</code>.</li>
+ * </ul>
+ *
+ * <p>THIS IS AN INTERNAL IMPLEMENTATION CLASS AND DOES NOT BELONG TO THE API. DO NOT USE IT DIRECTLY.</p>
+ */
+public final class InotifyLimits {
+    private static final String INOTIFY_FD_TARGET = "anon_inode:inotify";
+    private static final String WATCH_LINE_PREFIX = "inotify wd:";
+
+    private final Path procRoot;
+
+    /**
+     * @param procRoot The mount point of the <code>proc</code> file system, usually <code>/proc</code>. Must not be
+     *                 null.
+     */
+    public InotifyLimits(Path procRoot) {
+        Preconditions.isNotNull(procRoot, "procRoot");
+        this.procRoot = procRoot;
+    }
+
+    /**
+     * @return true iff the default file system uses inotify watches, i.e. this is Linux.
+     */
+    public static boolean isSupported() {
+        String osName = System.getProperty("os.name");
+        return osName != null && osName.toLowerCase().startsWith("linux");
+    }
+
+    /**
+     * @return The maximum number of inotify watches per user or <code>-1</code> if it cannot be determined (e.g. if
+     * this is not Linux).
+     */
+    public int readMaxUserWatches() {
+        try {
+            List<String> lines = Files.readAllLines(procRoot.resolve("sys/fs/inotify/max_user_watches"),
+                    StandardCharsets.US_ASCII);
+            return lines.isEmpty() ? -1 : Integer.parseInt(lines.get(0).trim());
+        } catch (IOException | NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return The number of inotify watches that are in use by all visible processes or <code>-1</code> if it
+     * cannot be determined.
+     */
+    public int countUserWatches() {
+        if (!Files.isDirectory(procRoot)) {
+            return -1;
+        }
+        int watches = 0;
+        try (DirectoryStream<Path> processes = Files.newDirectoryStream(procRoot)) {
+            for (Path process : processes) {
+                if (isProcess(process)) {
+                    watches += countWatchesOf(process);
+                }
+            }
+        } catch (IOException ex) {
+            return -1;
+        }
+        return watches;
+    }
+
+    private static boolean isProcess(Path path) {
+        String name = path.getFileName().toString();
+        for (int i = 0; i < name.length(); i++) {
+            if (!Character.isDigit(name.charAt(i))) {
+                return false;
+            }
+        }
+        return !name.isEmpty();
+    }
+
+    private static int countWatchesOf(Path process) {
+        int watches = 0;
+        try (DirectoryStream<Path> fds = Files.newDirectoryStream(process.resolve("fd"))) {
+            for (Path fd : fds) {
+                // only read the fdinfo of inotify instances; reading it is much more expensive than the link
+                if (isInotifyInstance(fd)) {
+                    watches += countWatchLines(process.resolve("fdinfo").resolve(fd.getFileName().toString()));
+                }
+            }
+        } catch (IOException ex) {
+            // not our process or it has terminated in the meantime
+        }
+        return watches;
+    }
+
+    private static boolean isInotifyInstance(Path fd) {
+        try {
+            return INOTIFY_FD_TARGET.equals(Files.readSymbolicLink(fd).toString());
+        } catch (IOException | UnsupportedOperationException ex) {
+            return false;
+        }
+    }
+
+    private static int countWatchLines(Path fdInfo) {
+        int watches = 0;
+        try (BufferedReader reader = Files.newBufferedReader(fdInfo, StandardCharsets.US_ASCII)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(WATCH_LINE_PREFIX)) {
+                    watches++;
+                }
+            }
+        } catch (IOException ex) {
+            // the file descriptor has been closed in the meantime
+        }
+        return watches;
+    }
+}
@@ -0,0 +1,122 @@
+package name.mitterdorfer.perlock.impl.watch;
+
+import name.mitterdorfer.perlock.WatchOptions;
+import name.mitterdorfer.perlock.impl.util.Preconditions;
+
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>Applies the include and exclude patterns and the maximum depth of {@link WatchOptions} to the paths below a root
+ * path. Patterns are matched against paths relative to the root path.</p>
+ *
+ * <ul>
+ *     <li>Excluded directories and directories deeper than the maximum depth are neither registered nor scanned.</li>
+ *     <li>Events for excluded paths, for paths below excluded directories and for paths below directories that are
+ *     too deep are dropped.</li>
+ *     <li>If there are include patterns, events are only delivered for paths that match at least one of them.
+ *     Include patterns do not affect registration.</li>
+ * </ul>
+ *
+ * <p>A path filter is immutable and can be used by multiple threads.</p>
+ *
+ * <p>THIS IS AN INTERNAL IMPLEMENTATION CLASS AND DOES NOT BELONG TO THE API. DO NOT USE IT DIRECTLY.</p>
+ */
+public final class PathFilter {
+    private final Path rootPath;
+    private final List<PathMatcher> includes;
+    private final List<PathMatcher> excludes;
+    private final int maxDepth;
+
+    private PathFilter(Path rootPath, List<PathMatcher> includes, List<PathMatcher> excludes, int maxDepth) {
+        this.rootPath = rootPath;
+        this.includes = includes;
+        this.excludes = excludes;
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * @return A filter for the tree below <code>rootPath</code> or <code>null</code> if the provided options do not
+     * filter any paths.
+     * @throws IllegalArgumentException if a pattern is invalid.
+     */
+    public static PathFilter create(Path rootPath, WatchOptions options) {
+        Preconditions.isNotNull(rootPath, "rootPath");
+        Preconditions.isNotNull(options, "options");
+        if (!options.isFiltered()) {
+            return null;
+        }
+        FileSystem fileSystem = rootPath.getFileSystem();
+        return new PathFilter(rootPath, matchers(fileSystem, options.getIncludes()),
+                matchers(fileSystem, options.getExcludes()), options.getMaxDepth());
+    }
+
+    private static List<PathMatcher> matchers(FileSystem fileSystem, List<String> patterns) {
+        List<PathMatcher> matchers = new ArrayList<>(patterns.size());
+        for (String pattern : patterns) {
+            matchers.add(fileSystem.getPathMatcher(pattern));
+        }
+        return matchers;
+    }
+
+    /**
+     * @return true iff the provided directory should be registered (and scanned).
+     */
+    public boolean isWatched(Path dir) {
+        if (dir.equals(rootPath)) {
+            return true;
+        }
+        Path relativePath = rootPath.relativize(dir);
+        return relativePath.getNameCount() <= maxDepth && !matchesAny(excludes, relativePath);
+    }
+
+    /**
+     * @return true iff the provided path or one of its ancestors below the root path is excluded. Nothing should be
+     * done for excluded paths.
+     */
+    public boolean isExcluded(Path path) {
+        if (path.equals(rootPath)) {
+            return false;
+        }
+        Path relativePath = rootPath.relativize(path);
+        int nameCount = relativePath.getNameCount();
+        // entries of the deepest watched directories are still reported
+        if (nameCount - 1 > maxDepth) {
+            return true;
+        }
+        if (!excludes.isEmpty()) {
+            for (int i = 1; i < nameCount; i++) {
+                if (matchesAny(excludes, relativePath.subpath(0, i))) {
+                    return true;
+                }
+            }
+            return matchesAny(excludes, relativePath);
+        }
+        return false;
+    }
+
+    /**
+     * @return true iff events for the provided (not excluded) path should be delivered.
+     */
+    public boolean isIncluded(Path path) {
+        return includes.isEmpty() || matchesAny(includes, rootPath.relativize(path));
+    }
+
+    private static boolean matchesAny(List<PathMatcher> matchers, Path relativePath) {
+        for (int i = 0; i < matchers.size(); i++) {
+            if (matchers.get(i).matches(relativePath)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "PathFilter{rootPath=" + rootPath + ", includes=" + includes.size() + ", excludes=" + excludes.size() +
+                ", maxDepth=" + maxDepth + "}";
+    }
+}
@@ -0,0 +1,202 @@
+package name.mitterdorfer.perlock.impl.watch;
+
+import name.mitterdorfer.perlock.EventKind;
+import name.mitterdorfer.perlock.PathEvent;
+import name.mitterdorfer.perlock.RegistrationProgress;
+import name.mitterdorfer.perlock.WatchMetrics;
+
+import java.nio.file.Path;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>Tracks a single registration of a root path (see {@link WatchRegistrationStrategy#registerRoot(
+ * java.nio.file.WatchService, Path, RegistrationTracker)}). Directories which have been registered in the background
+ * may have changed before they have been registered. The registering thread enqueues events for such changes here and
+ * the path watcher thread picks them up with {@link #pollCatchUpEvent()}.</p>
+ *
+ * <p>Each registration in the background has to happen within {@link #beginStep()} and {@link #endStep()}. When the
+ * path watcher stops, it {@link #abort() aborts} the registration. No directory is registered anymore after
+ * <code>abort()</code> has returned.</p>
+ *
+ * <p>THIS IS AN INTERNAL IMPLEMENTATION CLASS AND DOES NOT BELONG TO THE API. DO NOT USE IT DIRECTLY.</p>
+ */
+public final class RegistrationTracker implements RegistrationProgress {
+    private final AtomicLong registered = new AtomicLong();
+    private final AtomicLong pending = new AtomicLong();
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final Queue<PathEvent> catchUpEvents = new ConcurrentLinkedQueue<>();
+    // written before the latch is counted down
+    private volatile Throwable failure;
+    // held during each step of a background registration
+    private final Lock stepLock = new ReentrantLock();
+    // null if background registration does not need to be guarded
+    private final Lock registrationLock;
+    private volatile boolean aborted;
+    // null if metrics are not recorded
+    private final WatchMetrics metrics;
+    private final long startNanos;
+
+    /**
+     * @param registrationLock A lock that needs to be held while a directory is registered in the background. May be
+     *                         null.
+     */
+    public RegistrationTracker(Lock registrationLock) {
+        this(registrationLock, null);
+    }
+
+    /**
+     * @param registrationLock A lock that needs to be held while a directory is registered in the background. May be
+     *                         null.
+     * @param metrics          Records registered directories and the registration once it is complete. May be null.
+     */
+    public RegistrationTracker(Lock registrationLock, WatchMetrics metrics) {
+        this.registrationLock = registrationLock;
+        this.metrics = metrics;
+        this.startNanos = metrics != null ? System.nanoTime() : 0L;
+    }
+
+    /**
+     * Begins a step of a background registration.
+     *
+     * @return true iff the step may be performed. In that case {@link #endStep()} has to be called afterwards.
+     */
+    public boolean beginStep() {
+        stepLock.lock();
+        if (aborted) {
+            stepLock.unlock();
+            return false;
+        }
+        if (registrationLock != null) {
+            registrationLock.lock();
+        }
+        return true;
+    }
+
+    public void endStep() {
+        if (registrationLock != null) {
+            registrationLock.unlock();
+        }
+        stepLock.unlock();
+    }
+
+    /**
+     * Aborts a background registration. Waits for the current step (if any) to finish.
+     */
+    public void abort() {
+        stepLock.lock();
+        try {
+            aborted = true;
+        } finally {
+            stepLock.unlock();
+        }
+        fail(new CancellationException("Registration has been aborted"));
+    }
+
+    public void registered() {
+        registered.incrementAndGet();
+        if (metrics != null) {
+            metrics.onKeyRegistered();
+        }
+    }
+
+    public void discovered(long directories) {
+        pending.addAndGet(directories);
+    }
+
+    public void pendingRegistered() {
+        pending.decrementAndGet();
+    }
+
+    public void catchUp(EventKind eventKind, Path path) {
+        catchUpEvents.add(PathEvent.of(eventKind, path));
+    }
+
+    /**
+     * @return The next event that has been missed while registering or <code>null</code> if there is none.
+     */
+    public PathEvent pollCatchUpEvent() {
+        return catchUpEvents.poll();
+    }
+
+    /**
+     * Marks this registration as complete. Subsequent calls have no effect.
+     */
+    public synchronized void complete() {
+        if (metrics != null && done.getCount() > 0) {
+            metrics.onRegistrationCompleted(System.nanoTime() - startNanos, registered.get());
+        }
+        done.countDown();
+    }
+
+    /**
+     * Marks this registration as failed unless it has been completed already.
+     */
+    public synchronized void fail(Throwable cause) {
+        if (done.getCount() > 0) {
+            failure = cause;
+            done.countDown();
+        }
+    }
+
+    @Override
+    public long getRegisteredDirectories() {
+        return registered.get();
+    }
+
+    @Override
+    public long getPendingDirectories() {
+        return pending.get();
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        // registration is stopped together with the path watcher
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    @Override
+    public Void get() throws InterruptedException, ExecutionException {
+        done.await();
+        return result();
+    }
+
+    @Override
+    public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException("Registration has not finished within " + timeout + " " + unit);
+        }
+        return result();
+    }
+
+    private Void result() throws ExecutionException {
+        Throwable cause = failure;
+        if (cause != null) {
+            throw new ExecutionException(cause);
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "RegistrationProgress{registered=" + registered + ", pending=" + pending + ", done=" + isDone() + "}";
+    }
+}
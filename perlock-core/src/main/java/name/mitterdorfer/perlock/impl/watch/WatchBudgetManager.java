@@ -0,0 +1,192 @@
+package name.mitterdorfer.perlock.impl.watch;
+
+import name.mitterdorfer.perlock.WatchBudget;
+import name.mitterdorfer.perlock.impl.util.Preconditions;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Manages the kernel watches of all path watchers of a factory. Path watchers reserve watches via their
+ * {@link WatchQuota}.</p>
+ *
+ * <p>The limit is the system limit minus the watches that are in use by the current user but not reserved via this
+ * budget (e.g. by other processes or by other factories). Determining the usage requires to inspect the file
+ * descriptors of all processes, so the limits are sampled on the first reservation and then at most every
+ * {@link #SAMPLE_INTERVAL_NANOS}. A reservation that fails takes a new sample if the current one is older than
+ * {@link #MIN_RESAMPLE_INTERVAL_NANOS}, as other processes might have released watches in the meantime. If the limits
+ * cannot be determined, reservations are not limited.</p>
+ *
+ * <p>Threading: This class is thread-safe.</p>
+ *
+ * <p>THIS IS AN INTERNAL IMPLEMENTATION CLASS AND DOES NOT BELONG TO THE API. DO NOT USE IT DIRECTLY.</p>
+ */
+public final class WatchBudgetManager implements WatchBudget {
+    private static final long SAMPLE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10L);
+    private static final long MIN_RESAMPLE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1L);
+
+    private final InotifyLimits limits;
+    private final long sampleIntervalNanos;
+    private final long minResampleIntervalNanos;
+    private final AtomicInteger reserved = new AtomicInteger();
+    private final AtomicInteger degradedSubtrees = new AtomicInteger();
+    // null until the limits are needed for the first time
+    private volatile Sample sample;
+
+    /**
+     * @param limits Provides the system limit and usage. Must not be null.
+     */
+    public WatchBudgetManager(InotifyLimits limits) {
+        this(limits, SAMPLE_INTERVAL_NANOS, MIN_RESAMPLE_INTERVAL_NANOS);
+    }
+
+    WatchBudgetManager(InotifyLimits limits, long sampleIntervalNanos, long minResampleIntervalNanos) {
+        Preconditions.isNotNull(limits, "limits");
+        this.limits = limits;
+        this.sampleIntervalNanos = sampleIntervalNanos;
+        this.minResampleIntervalNanos = minResampleIntervalNanos;
+    }
+
+    /**
+     * Reserves a single watch.
+     *
+     * @return true iff a watch has been reserved.
+     */
+    boolean tryReserve() {
+        Sample current = sample(sampleIntervalNanos);
+        boolean resampled = false;
+        while (true) {
+            int currentReserved = reserved.get();
+            if (currentReserved >= current.limit) {
+                if (resampled) {
+                    return false;
+                }
+                // other processes might have released watches in the meantime
+                Sample newer = sample(minResampleIntervalNanos);
+                if (newer == current) {
+                    return false;
+                }
+                current = newer;
+                resampled = true;
+            } else if (reserved.compareAndSet(currentReserved, currentReserved + 1)) {
+                return true;
+            }
+        }
+    }
+
+    void release(int watches) {
+        reserved.addAndGet(-watches);
+    }
+
+    /**
+     * Called by a shared watch service when a path watcher has registered a directory which other path watchers have
+     * registered already. They share one kernel watch, so the reservation of the path watcher is handed back. The path
+     * watcher still releases its reservation later on, see {@link #watchUnshared()}.
+     */
+    public void watchShared() {
+        reserved.decrementAndGet();
+    }
+
+    /**
+     * Called by a shared watch service when a path watcher releases its reservation for a kernel watch that other path
+     * watchers still use. The reservation is taken over on behalf of the remaining path watchers.
+     */
+    public void watchUnshared() {
+        reserved.incrementAndGet();
+    }
+
+    void degraded(int subtrees) {
+        degradedSubtrees.addAndGet(subtrees);
+    }
+
+    /**
+     * Called when the kernel has refused a watch although it has been reserved, i.e. the current sample of the limits
+     * is outdated.
+     */
+    void limitReached() {
+        sample(minResampleIntervalNanos);
+    }
+
+    /**
+     * @param maxAgeNanos The maximum age of the sample. A new sample is taken if the current one is older.
+     */
+    private Sample sample(long maxAgeNanos) {
+        Sample current = sample;
+        long now = System.nanoTime();
+        if (current != null && now - current.nanoTime < maxAgeNanos) {
+            return current;
+        }
+        synchronized (this) {
+            current = sample;
+            // another thread might have taken a sample in the meantime
+            if (current == null || now - current.nanoTime >= maxAgeNanos) {
+                current = takeSample();
+                sample = current;
+            }
+            return current;
+        }
+    }
+
+    private Sample takeSample() {
+        int systemLimit = limits.readMaxUserWatches();
+        if (systemLimit < 0) {
+            return new Sample(systemLimit, -1, Integer.MAX_VALUE, System.nanoTime());
+        }
+        // our own watches are included in the usage but must not reduce the limit
+        int ownWatches = reserved.get();
+        int systemUsage = limits.countUserWatches();
+        int otherWatches = Math.max(0, systemUsage - ownWatches);
+        return new Sample(systemLimit, systemUsage, Math.max(0, systemLimit - otherWatches), System.nanoTime());
+    }
+
+    @Override
+    public int getLimit() {
+        return sample(sampleIntervalNanos).limit;
+    }
+
+    @Override
+    public int getReserved() {
+        return reserved.get();
+    }
+
+    @Override
+    public int getDegradedSubtrees() {
+        return degradedSubtrees.get();
+    }
+
+    @Override
+    public boolean isExhausted() {
+        return degradedSubtrees.get() > 0;
+    }
+
+    @Override
+    public int getSystemLimit() {
+        return sample(sampleIntervalNanos).systemLimit;
+    }
+
+    @Override
+    public int getSystemUsage() {
+        return sample(sampleIntervalNanos).systemUsage;
+    }
+
+    @Override
+    public String toString() {
+        Sample current = sample;
+        return "WatchBudget{reserved=" + reserved.get() + ", limit=" + (current != null ? current.limit : "unknown") +
+                ", degradedSubtrees=" + degradedSubtrees.get() + "}";
+    }
+
+    private static final class Sample {
+        private final int systemLimit;
+        private final int systemUsage;
+        private final int limit;
+        private final long nanoTime;
+
+        private Sample(int systemLimit, int systemUsage, int limit, long nanoTime) {
+            this.systemLimit = systemLimit;
+            this.systemUsage = systemUsage;
+            this.limit = limit;
+            this.nanoTime = nanoTime;
+        }
+    }
+}
@@ -0,0 +1,649 @@
+package name.mitterdorfer.perlock.impl.watch;
+
+import name.mitterdorfer.perlock.impl.util.Preconditions;
+
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.nio.file.WatchKey;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <p>Maps the watch keys of a path watcher to their directories in a compact form. Instead of a <code>Path</code> per
+ * directory, each directory is a node in a prefix trie of name segments. Name segments are shared between all nodes
+ * with the same name. Nodes and segments are identified by int ids; their data is kept in parallel arrays and the
+ * lookup tables (watch key to node, parent and name to child, name to segment) are open addressing tables of ids. The
+ * <code>Path</code> of a directory is only materialized when it is requested via {@link #get(Object)}. A small cache of
+ * recently materialized paths keeps lookups for busy directories allocation-free.</p>
+ *
+ * <p>When a directory is deleted, {@link #detach(Path)} unlinks its subtree from the trie in O(depth) so the path can be
+ * used by a new directory. The watch keys within the subtree still resolve to their (former) paths until they are
+ * removed; their nodes (and ancestors that are not needed anymore) are reclaimed one by one when that happens. If a
+ * directory is registered with a new watch key while a node with an old watch key exists for its path (i.e. it has been
+ * deleted and created again), the old node is detached implicitly. When a directory is moved, {@link #move(Path, Path)}
+ * relinks its node below the new parent; the watch keys within its subtree resolve to their new paths right away.</p>
+ *
+ * <p>All paths have to belong to the same file system. Subclasses can react to the addition and removal of watch keys
+ * by overriding {@link #keyAdded(WatchKey)} and {@link #keyRemoved(WatchKey, boolean)}. Both are called without holding
+ * the lock of this trie.</p>
+ *
+ * <p>Threading: This class is thread-safe. All operations are guarded by the lock of this instance.</p>
+ *
+ * <p>THIS IS AN INTERNAL IMPLEMENTATION CLASS AND DOES NOT BELONG TO THE API. DO NOT USE IT DIRECTLY.</p>
+ */
+public class WatchKeyTrie extends AbstractMap<WatchKey, Path> {
+    private static final int INITIAL_CAPACITY = 16;
+    // id of the virtual node above all file system roots
+    private static final int ROOT = 0;
+    private static final int NONE = -1;
+    // markers in open addressing tables; ids are always positive
+    private static final int EMPTY = 0;
+    private static final int REMOVED = -1;
+    // must be a power of two
+    private static final int CACHE_SIZE = 256;
+
+    private FileSystem fileSystem;
+
+    // nodes
+    private int[] parent;
+    private int[] segmentOf;
+    private int[] childCount;
+    private boolean[] detached;
+    private WatchKey[] key;
+    private int nextNode;
+    // head of the list of free node ids, linked via parent
+    private int freeNodes;
+
+    // segments
+    private String[] segment;
+    private int[] segmentRefs;
+    private int nextSegment;
+    // head of the list of free segment ids, linked via segmentRefs
+    private int freeSegments;
+
+    // lookup tables
+    private final IdTable nodesByKey = new IdTable() {
+        @Override
+        protected int hashOf(int id) {
+            return key[id].hashCode();
+        }
+    };
+    private final IdTable nodesByParentAndName = new IdTable() {
+        @Override
+        protected int hashOf(int id) {
+            return childHash(parent[id], segment[segmentOf[id]]);
+        }
+    };
+    private final IdTable segmentsByName = new IdTable() {
+        @Override
+        protected int hashOf(int id) {
+            return segment[id].hashCode();
+        }
+    };
+
+    private int size;
+    // reused to materialize paths
+    private int[] chain = new int[INITIAL_CAPACITY];
+    // recently materialized paths, direct-mapped by node id. ROOT marks an empty entry.
+    private final int[] cachedNodes = new int[CACHE_SIZE];
+    private final Path[] cachedPaths = new Path[CACHE_SIZE];
+
+    public WatchKeyTrie() {
+        reset();
+    }
+
+    private void reset() {
+        parent = new int[INITIAL_CAPACITY];
+        segmentOf = new int[INITIAL_CAPACITY];
+        childCount = new int[INITIAL_CAPACITY];
+        detached = new boolean[INITIAL_CAPACITY];
+        key = new WatchKey[INITIAL_CAPACITY];
+        parent[ROOT] = NONE;
+        segmentOf[ROOT] = NONE;
+        nextNode = ROOT + 1;
+        freeNodes = NONE;
+        segment = new String[INITIAL_CAPACITY];
+        segmentRefs = new int[INITIAL_CAPACITY];
+        // segment ids start at 1 so they can be stored in an id table
+        nextSegment = 1;
+        freeSegments = NONE;
+        nodesByKey.reset();
+        nodesByParentAndName.reset();
+        segmentsByName.reset();
+        Arrays.fill(cachedNodes, ROOT);
+        Arrays.fill(cachedPaths, null);
+        size = 0;
+    }
+
+    @Override
+    public Path put(WatchKey watchKey, Path dir) {
+        Preconditions.isNotNull(watchKey, "watchKey");
+        Preconditions.isNotNull(dir, "dir");
+        Path previous;
+        synchronized (this) {
+            if (fileSystem == null) {
+                fileSystem = dir.getFileSystem();
+            }
+            Preconditions.isTrue(fileSystem == dir.getFileSystem(), "All paths must belong to the same file system");
+            int node = findNode(watchKey);
+            if (node != NONE) {
+                previous = materialize(node);
+                if (previous.equals(dir)) {
+                    return previous;
+                }
+                unlinkKey(node);
+            } else {
+                previous = null;
+            }
+            node = nodeFor(dir);
+            if (key[node] != null) {
+                // a stale key of a former directory with the same path; the directory has been deleted in the meantime
+                detachNode(node);
+                node = nodeFor(dir);
+            }
+            key[node] = watchKey;
+            nodesByKey.insert(node);
+            size++;
+        }
+        if (previous == null) {
+            keyAdded(watchKey);
+        }
+        return previous;
+    }
+
+    @Override
+    public synchronized Path get(Object watchKey) {
+        int node = findNode(watchKey);
+        return node != NONE ? materialize(node) : null;
+    }
+
+    @Override
+    public synchronized boolean containsKey(Object watchKey) {
+        return findNode(watchKey) != NONE;
+    }
+
+    @Override
+    public Path remove(Object watchKey) {
+        Path previous;
+        synchronized (this) {
+            int node = findNode(watchKey);
+            if (node == NONE) {
+                return null;
+            }
+            previous = materialize(node);
+            unlinkKey(node);
+        }
+        keyRemoved((WatchKey) watchKey, false);
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        List<WatchKey> removed = new ArrayList<>();
+        synchronized (this) {
+            for (int node = ROOT + 1; node < nextNode; node++) {
+                if (key[node] != null) {
+                    removed.add(key[node]);
+                }
+            }
+            reset();
+        }
+        for (WatchKey watchKey : removed) {
+            keyRemoved(watchKey, true);
+        }
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return A snapshot of all mappings. The snapshot is not backed by this trie.
+     */
+    @Override
+    public synchronized Set<Entry<WatchKey, Path>> entrySet() {
+        Set<Entry<WatchKey, Path>> entries = new HashSet<>();
+        for (int node = ROOT + 1; node < nextNode; node++) {
+            if (key[node] != null) {
+                entries.add(new SimpleImmutableEntry<>(key[node], materialize(node)));
+            }
+        }
+        return Collections.unmodifiableSet(entries);
+    }
+
+    /**
+     * Unlinks the subtree below the provided directory from the trie (e.g. because the directory has been deleted).
+     * Watch keys within the subtree are retained until they are removed.
+     *
+     * @return true iff the directory has been known.
+     */
+    public synchronized boolean detach(Path dir) {
+        int node = findAttached(dir);
+        if (node == NONE) {
+            return false;
+        }
+        detachNode(node);
+        return true;
+    }
+
+    /**
+     * Re-keys the subtree of a directory that has been moved (e.g. renamed) to a new path. The watch keys within the
+     * subtree are kept and resolve to their new paths from now on. This is only correct if the watch service keeps
+     * watching a directory when it is moved (as inotify does).
+     *
+     * @param source The former path of the directory.
+     * @param target The new path of the directory. Must belong to the same file system as <code>source</code>.
+     * @return true iff the subtree has been moved, false if <code>source</code> has not been known.
+     */
+    public synchronized boolean move(Path source, Path target) {
+        int node = findAttached(source);
+        if (node == NONE || target.getFileName() == null) {
+            return false;
+        }
+        int existing = findAttached(target);
+        if (existing != NONE) {
+            // a stale node of a former directory with the same path
+            detachNode(existing);
+        }
+        Path targetParent = target.getParent();
+        int newParent = targetParent != null ? nodeFor(targetParent) : ROOT;
+        int oldParent = parent[node];
+        nodesByParentAndName.remove(node);
+        releaseSegment(segmentOf[node]);
+        childCount[oldParent]--;
+        parent[node] = newParent;
+        segmentOf[node] = acquireSegment(target.getFileName().toString());
+        childCount[newParent]++;
+        nodesByParentAndName.insert(node);
+        reclaim(oldParent);
+        // the cached paths of the complete subtree are outdated
+        Arrays.fill(cachedNodes, ROOT);
+        Arrays.fill(cachedPaths, null);
+        return true;
+    }
+
+    /**
+     * Removes the watch keys of a deleted directory and of its complete subtree at once.
+     *
+     * @param dir The deleted directory.
+     * @return The removed watch keys. Empty if the directory has not been known.
+     * @see #removeTree(WatchKey, Path)
+     */
+    public List<WatchKey> removeTree(Path dir) {
+        List<WatchKey> removed;
+        synchronized (this) {
+            int node = findAttached(dir);
+            if (node == NONE) {
+                return Collections.emptyList();
+            }
+            removed = removeSubtree(node);
+        }
+        for (WatchKey watchKey : removed) {
+            keyRemoved(watchKey, true);
+        }
+        return removed;
+    }
+
+    /**
+     * @return The attached node of the provided directory or {@link #NONE} if there is none.
+     */
+    private int findAttached(Path dir) {
+        if (fileSystem != dir.getFileSystem()) {
+            return NONE;
+        }
+        int node = ROOT;
+        Path root = dir.getRoot();
+        if (root != null) {
+            node = findChild(node, root.toString());
+        }
+        for (int i = 0; i < dir.getNameCount() && node != NONE; i++) {
+            node = findChild(node, dir.getName(i).toString());
+        }
+        return node == ROOT ? NONE : node;
+    }
+
+    /**
+     * Removes the watch keys of a deleted directory and of its complete subtree at once, without waiting for the watch
+     * service to invalidate them one by one.
+     *
+     * @param parentKey The watch key of the parent directory of the deleted entry.
+     * @param name      The name of the deleted entry, i.e. the context of the delete event.
+     * @return The removed watch keys. Empty if the entry has not been a watched directory.
+     */
+    public List<WatchKey> removeTree(WatchKey parentKey, Path name) {
+        List<WatchKey> removed;
+        synchronized (this) {
+            int parentNode = findNode(parentKey);
+            // most deleted entries are files; don't even convert the name if the parent has no watched subdirectories
+            if (parentNode == NONE || childCount[parentNode] == 0) {
+                return Collections.emptyList();
+            }
+            int node = findChild(parentNode, name.toString());
+            if (node == NONE) {
+                return Collections.emptyList();
+            }
+            removed = removeSubtree(node);
+        }
+        for (WatchKey watchKey : removed) {
+            keyRemoved(watchKey, true);
+        }
+        return removed;
+    }
+
+    private List<WatchKey> removeSubtree(int node) {
+        List<WatchKey> removed = new ArrayList<>();
+        if (key[node] != null) {
+            removed.add(key[node]);
+        }
+        if (childCount[node] > 0) {
+            // there are no links to children; scan all nodes instead. Usually, the subtree has been deleted
+            // bottom-up before and this is not necessary.
+            for (int candidate = ROOT + 1; candidate < nextNode; candidate++) {
+                if (key[candidate] != null && candidate != node && isDescendant(candidate, node)) {
+                    removed.add(key[candidate]);
+                }
+            }
+        }
+        for (WatchKey watchKey : removed) {
+            unlinkKey(findNode(watchKey));
+        }
+        return removed;
+    }
+
+    private boolean isDescendant(int node, int ancestor) {
+        for (int current = parent[node]; current != ROOT && current != NONE; current = parent[current]) {
+            if (current == ancestor) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Called after a watch key has been added.
+     */
+    protected void keyAdded(WatchKey watchKey) {
+        // no op by default
+    }
+
+    /**
+     * Called after a watch key has been removed.
+     *
+     * @param cleared true iff the watch key has been removed by {@link #clear()} or
+     *                {@link #removeTree(WatchKey, Path)}, i.e. it might still be valid.
+     */
+    protected void keyRemoved(WatchKey watchKey, boolean cleared) {
+        // no op by default
+    }
+
+    private int findNode(Object watchKey) {
+        if (watchKey == null) {
+            return NONE;
+        }
+        int[] slots = nodesByKey.slots;
+        int mask = slots.length - 1;
+        for (int i = mix(watchKey.hashCode()) & mask; slots[i] != EMPTY; i = (i + 1) & mask) {
+            int node = slots[i];
+            if (node != REMOVED && watchKey.equals(key[node])) {
+                return node;
+            }
+        }
+        return NONE;
+    }
+
+    private int findChild(int parentNode, String name) {
+        int[] slots = nodesByParentAndName.slots;
+        int mask = slots.length - 1;
+        for (int i = mix(childHash(parentNode, name)) & mask; slots[i] != EMPTY; i = (i + 1) & mask) {
+            int node = slots[i];
+            if (node != REMOVED && parent[node] == parentNode && segment[segmentOf[node]].equals(name)) {
+                return node;
+            }
+        }
+        return NONE;
+    }
+
+    private int findSegment(String name) {
+        int[] slots = segmentsByName.slots;
+        int mask = slots.length - 1;
+        for (int i = mix(name.hashCode()) & mask; slots[i] != EMPTY; i = (i + 1) & mask) {
+            int id = slots[i];
+            if (id != REMOVED && segment[id].equals(name)) {
+                return id;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * @return The (attached) node for the provided directory. Missing nodes on the way are created.
+     */
+    private int nodeFor(Path dir) {
+        int node = ROOT;
+        Path root = dir.getRoot();
+        if (root != null) {
+            node = childFor(node, root.toString());
+        }
+        for (int i = 0; i < dir.getNameCount(); i++) {
+            node = childFor(node, dir.getName(i).toString());
+        }
+        return node;
+    }
+
+    private int childFor(int parentNode, String name) {
+        int child = findChild(parentNode, name);
+        if (child != NONE) {
+            return child;
+        }
+        child = allocateNode();
+        parent[child] = parentNode;
+        segmentOf[child] = acquireSegment(name);
+        childCount[child] = 0;
+        detached[child] = false;
+        key[child] = null;
+        nodesByParentAndName.insert(child);
+        childCount[parentNode]++;
+        return child;
+    }
+
+    private void unlinkKey(int node) {
+        nodesByKey.remove(node);
+        key[node] = null;
+        size--;
+        reclaim(node);
+    }
+
+    private void detachNode(int node) {
+        if (!detached[node]) {
+            // the node still counts as a child of its parent; its ancestors are needed to materialize its path
+            nodesByParentAndName.remove(node);
+            detached[node] = true;
+            reclaim(node);
+        }
+    }
+
+    /**
+     * Frees the provided node and its ancestors as long as they have neither a watch key nor children.
+     */
+    private void reclaim(int node) {
+        while (node != ROOT && key[node] == null && childCount[node] == 0) {
+            int parentNode = parent[node];
+            if (!detached[node]) {
+                nodesByParentAndName.remove(node);
+            }
+            childCount[parentNode]--;
+            releaseSegment(segmentOf[node]);
+            freeNode(node);
+            node = parentNode;
+        }
+    }
+
+    private Path materialize(int node) {
+        int slot = node & (CACHE_SIZE - 1);
+        if (cachedNodes[slot] == node) {
+            return cachedPaths[slot];
+        }
+        Path path = resolve(node);
+        cachedNodes[slot] = node;
+        cachedPaths[slot] = path;
+        return path;
+    }
+
+    private Path resolve(int node) {
+        int depth = 0;
+        for (int current = node; current != ROOT; current = parent[current]) {
+            if (depth == chain.length) {
+                chain = Arrays.copyOf(chain, depth * 2);
+            }
+            chain[depth++] = current;
+        }
+        Path path = fileSystem.getPath(segment[segmentOf[chain[depth - 1]]]);
+        for (int i = depth - 2; i >= 0; i--) {
+            path = path.resolve(segment[segmentOf[chain[i]]]);
+        }
+        return path;
+    }
+
+    private int allocateNode() {
+        int node;
+        if (freeNodes != NONE) {
+            node = freeNodes;
+            freeNodes = parent[node];
+        } else {
+            if (nextNode == parent.length) {
+                int capacity = nextNode * 2;
+                parent = Arrays.copyOf(parent, capacity);
+                segmentOf = Arrays.copyOf(segmentOf, capacity);
+                childCount = Arrays.copyOf(childCount, capacity);
+                detached = Arrays.copyOf(detached, capacity);
+                key = Arrays.copyOf(key, capacity);
+            }
+            node = nextNode++;
+        }
+        return node;
+    }
+
+    private void freeNode(int node) {
+        int slot = node & (CACHE_SIZE - 1);
+        if (cachedNodes[slot] == node) {
+            cachedNodes[slot] = ROOT;
+            cachedPaths[slot] = null;
+        }
+        segmentOf[node] = NONE;
+        parent[node] = freeNodes;
+        freeNodes = node;
+    }
+
+    private int acquireSegment(String name) {
+        int id = findSegment(name);
+        if (id == NONE) {
+            if (freeSegments != NONE) {
+                id = freeSegments;
+                freeSegments = segmentRefs[id];
+            } else {
+                if (nextSegment == segment.length) {
+                    segment = Arrays.copyOf(segment, nextSegment * 2);
+                    segmentRefs = Arrays.copyOf(segmentRefs, nextSegment * 2);
+                }
+                id = nextSegment++;
+            }
+            segment[id] = name;
+            segmentRefs[id] = 0;
+            segmentsByName.insert(id);
+        }
+        segmentRefs[id]++;
+        return id;
+    }
+
+    private void releaseSegment(int id) {
+        if (--segmentRefs[id] == 0) {
+            segmentsByName.remove(id);
+            segment[id] = null;
+            segmentRefs[id] = freeSegments;
+            freeSegments = id;
+        }
+    }
+
+    private static int childHash(int parentNode, String name) {
+        return 31 * parentNode + name.hashCode();
+    }
+
+    private static int mix(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * An open addressing hash table with linear probing that stores positive ids. Lookups are implemented by the
+     * enclosing class as they compare against different data.
+     */
+    private abstract static class IdTable {
+        private int[] slots;
+        // number of ids
+        private int live;
+        // number of slots that are not empty (ids and removal markers)
+        private int used;
+
+        protected abstract int hashOf(int id);
+
+        private void reset() {
+            slots = new int[INITIAL_CAPACITY];
+            live = 0;
+            used = 0;
+        }
+
+        private void insert(int id) {
+            // keep the load factor at most 2/3
+            if (3 * (used + 1) > 2 * slots.length) {
+                rehash();
+            }
+            int mask = slots.length - 1;
+            int i = mix(hashOf(id)) & mask;
+            while (slots[i] > 0) {
+                i = (i + 1) & mask;
+            }
+            if (slots[i] == EMPTY) {
+                used++;
+            }
+            slots[i] = id;
+            live++;
+        }
+
+        private void remove(int id) {
+            int mask = slots.length - 1;
+            int i = mix(hashOf(id)) & mask;
+            while (slots[i] != id) {
+                i = (i + 1) & mask;
+            }
+            slots[i] = REMOVED;
+            live--;
+        }
+
+        private void rehash() {
+            int capacity = INITIAL_CAPACITY;
+            while (3 * (live + 1) > capacity) {
+                capacity *= 2;
+            }
+            int[] old = slots;
+            slots = new int[capacity];
+            used = 0;
+            live = 0;
+            for (int id : old) {
+                if (id > 0) {
+                    insert(id);
+                }
+            }
+        }
+    }
+}
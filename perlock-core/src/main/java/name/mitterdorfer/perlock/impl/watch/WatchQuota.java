@@ -0,0 +1,142 @@
+package name.mitterdorfer.perlock.impl.watch;
+
+import name.mitterdorfer.perlock.impl.util.Preconditions;
+
+import java.nio.file.Path;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>The share of a single path watcher in the kernel watches. A watch is reserved before a directory is registered
+ * and released when its watch key is removed. Reservations are limited by the maximum number of watches of the path
+ * watcher and by the {@link WatchBudgetManager} of its factory (if any).</p>
+ *
+ * <p>Directories that cannot be registered because there is no watch left are degraded: Registration strategies skip
+ * their subtree and hand them over to the path watcher which scans them periodically instead.</p>
+ *
+ * <p>Threading: This class is thread-safe. Degraded directories are handed over from registering threads to the
+ * thread that handles the keys of the path watcher.</p>
+ *
+ * <p>THIS IS AN INTERNAL IMPLEMENTATION CLASS AND DOES NOT BELONG TO THE API. DO NOT USE IT DIRECTLY.</p>
+ */
+public final class WatchQuota {
+    // null if only the maximum number of watches of this path watcher applies
+    private final WatchBudgetManager budget;
+    private final int maxWatches;
+    private final AtomicInteger reserved = new AtomicInteger();
+    private final AtomicInteger degradedSubtrees = new AtomicInteger();
+    private final Queue<Path> pendingDegradedDirs = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param budget     The budget of all path watchers of the factory. May be null if the watches of this path watcher
+     *                   do not count against a shared budget.
+     * @param maxWatches The maximum number of watches of this path watcher. Must be positive.
+     */
+    public WatchQuota(WatchBudgetManager budget, int maxWatches) {
+        Preconditions.isTrue(maxWatches > 0, "'maxWatches' must be positive");
+        this.budget = budget;
+        this.maxWatches = maxWatches;
+    }
+
+    /**
+     * Reserves a watch for a directory that is about to be registered.
+     *
+     * @return true iff a watch has been reserved.
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int current = reserved.get();
+            if (current >= maxWatches) {
+                return false;
+            }
+            if (reserved.compareAndSet(current, current + 1)) {
+                break;
+            }
+        }
+        if (budget != null && !budget.tryReserve()) {
+            reserved.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Releases watches whose watch keys have been removed (or that turned out not to be needed).
+     */
+    public void release(int watches) {
+        if (watches > 0) {
+            reserved.addAndGet(-watches);
+            if (budget != null) {
+                budget.release(watches);
+            }
+        }
+    }
+
+    /**
+     * Called when the kernel has refused a watch although it has been reserved, e.g. because other processes have used
+     * up the remaining watches in the meantime.
+     */
+    public void limitReached() {
+        if (budget != null) {
+            budget.limitReached();
+        }
+    }
+
+    /**
+     * Releases all watches and forgets about all degraded directories, e.g. because the path watcher has been stopped.
+     */
+    public void releaseAll() {
+        int watches = reserved.getAndSet(0);
+        pendingDegradedDirs.clear();
+        int subtrees = degradedSubtrees.getAndSet(0);
+        if (budget != null) {
+            budget.release(watches);
+            budget.degraded(-subtrees);
+        }
+    }
+
+    /**
+     * Hands over a directory that could not be registered for lack of watches. Its complete subtree (if the path
+     * watcher is recursive) has to be scanned periodically.
+     */
+    public void degrade(Path dir) {
+        pendingDegradedDirs.add(dir);
+        degradedSubtrees.incrementAndGet();
+        if (budget != null) {
+            budget.degraded(1);
+        }
+    }
+
+    /**
+     * @return The next directory that has been degraded since the last call or <code>null</code> if there is none.
+     */
+    public Path pollDegraded() {
+        return pendingDegradedDirs.poll();
+    }
+
+    /**
+     * @return true iff there are degraded directories that have not been polled yet.
+     */
+    public boolean hasPendingDegraded() {
+        return !pendingDegradedDirs.isEmpty();
+    }
+
+    /**
+     * Called when a degraded directory is not scanned on its own anymore, e.g. because it has been deleted.
+     */
+    public void degradedDirRemoved() {
+        degradedSubtrees.decrementAndGet();
+        if (budget != null) {
+            budget.degraded(-1);
+        }
+    }
+
+    public int getReserved() {
+        return reserved.get();
+    }
+
+    public int getDegradedSubtrees() {
+        return degradedSubtrees.get();
+    }
+}
@@ -1,20 +1,47 @@
 package name.mitterdorfer.perlock.impl.watch;
 
+import name.mitterdorfer.perlock.EventKind;
+import name.mitterdorfer.perlock.WatchOptions;
+
+import java.io.IOException;
+import java.nio.file.FileSystem;
 import java.nio.file.Path;
 import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.Map;
+import java.util.Set;
 
 /**
- * WatchRegistrationFactory abstracts the selection and creation process of a concrete WatchRegistrationStrategy.
+ * WatchRegistrationFactory abstracts the selection and creation process of a concrete WatchRegistrationStrategy and
+ * of the watch service on which it registers directories.
  */
 public interface WatchRegistrationFactory {
+    /**
+     * Creates a new watch service for the provided file system. The registration strategies of this factory must be
+     * able to register directories with it.
+     *
+     * @param fileSystem The file system whose paths will be watched. Must not be null.
+     * @return A new watch service. Never null.
+     * @throws IOException If the watch service cannot be created.
+     */
+    WatchService newWatchService(FileSystem fileSystem) throws IOException;
+
     /**
      * Chooses and creates a new WatchRegistrationStrategy instance.
      *
      * @param keys             The watch keys that are needed by the WatchRegistrationStrategy. Those keys will be
      *                         shared between the client and the WatchRegistrationStrategy. Must not be null.
      * @param recursiveWatcher true if recursive watching is requested, false otherwise.
+     * @param options          The watch options of the path watcher. Must not be null.
+     * @param filter           Determines which directories are registered. May be null if all directories should be
+     *                         registered.
+     * @param eventKinds       The kinds of events the path watcher needs to observe. The strategy registers
+     *                         directories for (at least) these kinds. Must not be null or empty.
+     * @param quota            Limits the number of watches of the path watcher. May be null if the number of watches
+     *                         is not limited.
      * @return A newly created instance of a suitable WatchRegistrationStrategy. Never null.
      */
-    WatchRegistrationStrategy createRegistrationStrategy(Map<WatchKey, Path> keys, boolean recursiveWatcher);
+    WatchRegistrationStrategy createRegistrationStrategy(Map<WatchKey, Path> keys, boolean recursiveWatcher,
+                                                         WatchOptions options, PathFilter filter,
+                                                         Set<EventKind> eventKinds, WatchQuota quota);
 }
@@ -9,13 +9,15 @@ import java.nio.file.WatchService;
  */
 public interface WatchRegistrationStrategy {
     /**
-     * Registers the root path with a watch service.
+     * Registers the root path with a watch service. Registration may continue in the background after this method
+     * has returned. The provided tracker is completed when all directories have been registered.
      *
      * @param watchService The watch service for which a path should be registered. Must not be null.
      * @param rootPath     The root path that should be registered. Must not be null.
+     * @param tracker      Tracks the progress of this registration. Must not be null.
      * @throws IOException In case of any I/O related problems.
      */
-    void registerRoot(WatchService watchService, Path rootPath) throws IOException;
+    void registerRoot(WatchService watchService, Path rootPath, RegistrationTracker tracker) throws IOException;
 
     /**
      * Registers a child path with a watch service. This method is intended to be called when a directory is recursively
@@ -1,14 +1,22 @@
 package name.mitterdorfer.perlock.impl.watch.registration;
 
+import name.mitterdorfer.perlock.EventKind;
+import name.mitterdorfer.perlock.impl.inotify.InotifyWatchService;
+import name.mitterdorfer.perlock.impl.inotify.WatchLimitReachedException;
+import name.mitterdorfer.perlock.impl.util.Preconditions;
+import name.mitterdorfer.perlock.impl.watch.PathFilter;
+import name.mitterdorfer.perlock.impl.watch.RegistrationTracker;
+import name.mitterdorfer.perlock.impl.watch.WatchQuota;
 import name.mitterdorfer.perlock.impl.watch.WatchRegistrationStrategy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.file.*;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
 import java.util.Map;
-
-import static java.nio.file.StandardWatchEventKinds.*;
+import java.util.Set;
 
 /**
  * <p>THIS IS AN INTERNAL IMPLEMENTATION CLASS AND DOES NOT BELONG TO THE API. DO NOT USE IT DIRECTLY.</p>
@@ -17,16 +25,114 @@ abstract class AbstractRegistrationStrategy implements WatchRegistrationStrategy
     protected final Logger LOG = LoggerFactory.getLogger(getClass());
 
     private final Map<WatchKey,Path> keys;
+    // null if all directories should be registered
+    private final PathFilter filter;
+    // the kinds of events the watch service should generate
+    private final WatchEvent.Kind<?>[] watchEventKinds;
+    // the same for the native inotify backend which can also report when a file is closed after writing
+    private final WatchEvent.Kind<?>[] inotifyEventKinds;
+    // null if the number of watches is not limited
+    private final WatchQuota quota;
+    // the registration of the root path that is currently in progress (or has been completed last)
+    private volatile RegistrationTracker progress = new RegistrationTracker(null);
 
     public AbstractRegistrationStrategy(Map<WatchKey, Path> keys) {
+        this(keys, null, EnumSet.range(EventKind.CREATE, EventKind.DELETE), null);
+    }
+
+    /**
+     * @param filter     Determines which directories are registered. May be null if all directories should be
+     *                   registered.
+     * @param eventKinds The kinds of events that are registered. Must not be null or empty.
+     * @param quota      Limits the number of watches. Directories that do not fit into the quota are degraded instead
+     *                   of registered. May be null if the number of watches is not limited.
+     */
+    public AbstractRegistrationStrategy(Map<WatchKey, Path> keys, PathFilter filter, Set<EventKind> eventKinds,
+                                        WatchQuota quota) {
+        Preconditions.isNotNull(eventKinds, "eventKinds");
+        Preconditions.isTrue(!eventKinds.isEmpty(), "'eventKinds' must not be empty");
         this.keys = keys;
+        this.filter = filter;
+        this.quota = quota;
+        Set<WatchEvent.Kind<?>> kinds = new LinkedHashSet<>();
+        for (EventKind eventKind : eventKinds) {
+            if (eventKind == EventKind.MOVE) {
+                // a move is correlated from the deletion of the source and the creation of the target
+                kinds.add(EventKind.DELETE.getWatchEventKind());
+                kinds.add(EventKind.CREATE.getWatchEventKind());
+            } else if (eventKind == EventKind.READY) {
+                // a file is ready some time after its creation or last modification
+                kinds.add(EventKind.CREATE.getWatchEventKind());
+                kinds.add(EventKind.MODIFY.getWatchEventKind());
+            } else {
+                kinds.add(eventKind.getWatchEventKind());
+            }
+        }
+        this.watchEventKinds = kinds.toArray(new WatchEvent.Kind<?>[kinds.size()]);
+        if (eventKinds.contains(EventKind.READY)) {
+            kinds.add(InotifyWatchService.ENTRY_CLOSE_WRITE);
+        }
+        this.inotifyEventKinds = kinds.toArray(new WatchEvent.Kind<?>[kinds.size()]);
+    }
+
+    @Override
+    public final void registerRoot(WatchService watchService, Path rootPath, RegistrationTracker tracker)
+            throws IOException {
+        this.progress = tracker;
+        boolean complete;
+        try {
+            complete = registerTree(watchService, rootPath, tracker);
+        } catch (IOException | RuntimeException ex) {
+            tracker.fail(ex);
+            throw ex;
+        }
+        if (complete) {
+            tracker.complete();
+        }
+    }
+
+    /**
+     * Registers the root path (and its subdirectories if applicable).
+     *
+     * @return true iff all directories have been registered. If false is returned the implementation has to complete
+     * the tracker itself.
+     */
+    protected abstract boolean registerTree(WatchService watchService, Path rootPath, RegistrationTracker tracker)
+            throws IOException;
+
+    /**
+     * @return true iff the provided directory (and its subtree) should be registered.
+     */
+    protected final boolean isWatched(Path dir) {
+        return filter == null || filter.isWatched(dir);
     }
 
     /**
      * Register the given directory with the WatchService
+     *
+     * @return true iff the directory has been registered. If false is returned there has been no watch left and the
+     * directory has been degraded; its subtree must not be registered either.
      */
-    protected final void register(WatchService watchService, Path dir) throws IOException {
-        WatchKey key = registerSingleDirectory(watchService, dir);
+    protected final boolean register(WatchService watchService, Path dir) throws IOException {
+        if (quota != null && !quota.tryAcquire()) {
+            degrade(dir);
+            return false;
+        }
+        WatchKey key;
+        try {
+            key = registerSingleDirectory(watchService, dir);
+        } catch (IOException ex) {
+            if (quota != null) {
+                quota.release(1);
+                // our view of the budget is outdated, e.g. other processes have used up watches in the meantime
+                if (isWatchLimitReached(ex)) {
+                    quota.limitReached();
+                    degrade(dir);
+                    return false;
+                }
+            }
+            throw ex;
+        }
         if (LOG.isTraceEnabled()) {
             Path prev = keys.get(key);
             if (prev == null) {
@@ -37,14 +143,46 @@ abstract class AbstractRegistrationStrategy implements WatchRegistrationStrategy
                 }
             }
         }
-        keys.put(key, dir);
+        if (keys.put(key, dir) != null && quota != null) {
+            // the directory has been registered before and the kernel reuses its watch
+            quota.release(1);
+        }
+        progress.registered();
+        return true;
+    }
+
+    /**
+     * @return true iff the kernel has refused to watch a directory because there is no inotify watch left.
+     */
+    static boolean isWatchLimitReached(IOException ex) {
+        if (ex instanceof WatchLimitReachedException) {
+            // errno ENOSPC of the native backend
+            return true;
+        }
+        if (ex instanceof FileSystemException) {
+            // the watch service of the JDK does not expose the errno but reports ENOSPC with this reason
+            return WatchLimitReachedException.REASON.equals(((FileSystemException) ex).getReason());
+        }
+        // other watch services might just use the message
+        String message = ex.getMessage();
+        return message != null && message.endsWith(WatchLimitReachedException.REASON);
+    }
+
+    private void degrade(Path dir) {
+        LOG.debug("No watch left for '{}'. Scanning it periodically instead.", dir);
+        quota.degrade(dir);
     }
 
     protected WatchKey registerSingleDirectory(WatchService watchService, Path dir) throws IOException {
+        if (watchService instanceof InotifyWatchService) {
+            // the native backend does not belong to the file system provider
+            return ((InotifyWatchService) watchService).register(dir, inotifyEventKinds);
+        }
         return dir.register(watchService, getWatchEventKinds());
     }
 
-    protected WatchEvent.Kind<?>[] getWatchEventKinds() {
-        return new WatchEvent.Kind<?>[] {ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY};
+    protected final WatchEvent.Kind<?>[] getWatchEventKinds() {
+        // the array is passed to the watch service which does not modify it
+        return watchEventKinds;
     }
 }
@@ -1,9 +1,15 @@
 package name.mitterdorfer.perlock.impl.watch.registration;
 
+import name.mitterdorfer.perlock.EventKind;
+import name.mitterdorfer.perlock.impl.watch.PathFilter;
+import name.mitterdorfer.perlock.impl.watch.RegistrationTracker;
+import name.mitterdorfer.perlock.impl.watch.WatchQuota;
+
 import java.io.IOException;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Map;
+import java.util.Set;
 
 import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
 
@@ -15,14 +21,21 @@ public final class DefaultRecursiveRegistrationStrategy extends AbstractRegistra
         super(keys);
     }
 
+    public DefaultRecursiveRegistrationStrategy(Map<WatchKey, Path> keys, PathFilter filter,
+                                                Set<EventKind> eventKinds, WatchQuota quota) {
+        super(keys, filter, eventKinds, quota);
+    }
+
     @Override
-    public void registerRoot(WatchService watchService, Path rootPath) throws IOException {
+    protected boolean registerTree(WatchService watchService, Path rootPath, RegistrationTracker tracker)
+            throws IOException {
         registerAll(watchService, rootPath);
+        return true;
     }
 
     @Override
     public void registerChild(WatchService watchService, Path childPath) throws IOException {
-        if (Files.isDirectory(childPath, NOFOLLOW_LINKS)) {
+        if (isWatched(childPath) && Files.isDirectory(childPath, NOFOLLOW_LINKS)) {
             registerAll(watchService, childPath);
         }
     }
@@ -37,7 +50,9 @@ public final class DefaultRecursiveRegistrationStrategy extends AbstractRegistra
         Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
             @Override
             public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                register(watchService, dir);
+                if (!isWatched(dir) || !register(watchService, dir)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
                 return FileVisitResult.CONTINUE;
             }
         });
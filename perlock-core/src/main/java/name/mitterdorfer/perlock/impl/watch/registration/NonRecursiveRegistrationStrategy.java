@@ -1,10 +1,15 @@
 package name.mitterdorfer.perlock.impl.watch.registration;
 
+import name.mitterdorfer.perlock.EventKind;
+import name.mitterdorfer.perlock.impl.watch.RegistrationTracker;
+import name.mitterdorfer.perlock.impl.watch.WatchQuota;
+
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * THIS IS AN INTERNAL IMPLEMENTATION CLASS AND DOES NOT BELONG TO THE API. DO NOT USE IT DIRECTLY.
@@ -14,9 +19,15 @@ public final class NonRecursiveRegistrationStrategy extends AbstractRegistration
         super(keys);
     }
 
+    public NonRecursiveRegistrationStrategy(Map<WatchKey, Path> keys, Set<EventKind> eventKinds, WatchQuota quota) {
+        super(keys, null, eventKinds, quota);
+    }
+
     @Override
-    public void registerRoot(WatchService watchService, Path rootPath) throws IOException {
+    protected boolean registerTree(WatchService watchService, Path rootPath, RegistrationTracker tracker)
+            throws IOException {
         register(watchService, rootPath);
+        return true;
     }
 
     @Override
@@ -0,0 +1,121 @@
+package name.mitterdorfer.perlock.impl.watch.registration;
+
+import name.mitterdorfer.perlock.EventKind;
+import name.mitterdorfer.perlock.impl.util.Preconditions;
+import name.mitterdorfer.perlock.impl.watch.PathFilter;
+import name.mitterdorfer.perlock.impl.watch.RegistrationTracker;
+import name.mitterdorfer.perlock.impl.watch.WatchQuota;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+
+/**
+ * <p>Registers a directory and all of its subdirectories like {@link DefaultRecursiveRegistrationStrategy} but walks
+ * the tree in parallel on a fork/join pool. Each directory is a task that registers the directory, lists it and forks a
+ * new task for each subdirectory. Idle worker threads steal subtrees from busy ones so the pool is kept busy even if
+ * the tree is unbalanced.</p>
+ *
+ * <p>The key map must be safe for concurrent modification as directories are registered by multiple threads.</p>
+ *
+ * <p>THIS IS AN INTERNAL IMPLEMENTATION CLASS AND DOES NOT BELONG TO THE API. DO NOT USE IT DIRECTLY.</p>
+ */
+public final class ParallelRecursiveRegistrationStrategy extends AbstractRegistrationStrategy {
+    private final ForkJoinPool pool;
+
+    public ParallelRecursiveRegistrationStrategy(Map<WatchKey, Path> keys, ForkJoinPool pool) {
+        this(keys, null, EnumSet.range(EventKind.CREATE, EventKind.DELETE), null, pool);
+    }
+
+    public ParallelRecursiveRegistrationStrategy(Map<WatchKey, Path> keys, PathFilter filter,
+                                                 Set<EventKind> eventKinds, WatchQuota quota, ForkJoinPool pool) {
+        super(keys, filter, eventKinds, quota);
+        Preconditions.isNotNull(pool, "pool");
+        this.pool = pool;
+    }
+
+    @Override
+    protected boolean registerTree(WatchService watchService, Path rootPath, RegistrationTracker tracker)
+            throws IOException {
+        registerAll(watchService, rootPath);
+        return true;
+    }
+
+    @Override
+    public void registerChild(WatchService watchService, Path childPath) throws IOException {
+        if (isWatched(childPath) && Files.isDirectory(childPath, NOFOLLOW_LINKS)) {
+            registerAll(watchService, childPath);
+        }
+    }
+
+    private void registerAll(WatchService watchService, Path start) throws IOException {
+        LOG.trace("Scanning '{}' in parallel ...", start);
+        try {
+            pool.invoke(new RegisterTask(watchService, start));
+        } catch (RegistrationException ex) {
+            throw ex.getCause();
+        }
+        LOG.trace("Done.");
+    }
+
+    private final class RegisterTask extends RecursiveAction {
+        // tasks are never serialized; declared because ForkJoinTask is serializable
+        private static final long serialVersionUID = 1L;
+
+        private final WatchService watchService;
+        private final Path dir;
+
+        private RegisterTask(WatchService watchService, Path dir) {
+            this.watchService = watchService;
+            this.dir = dir;
+        }
+
+        @Override
+        protected void compute() {
+            List<RegisterTask> subtasks = new ArrayList<>();
+            try {
+                if (!register(watchService, dir)) {
+                    return;
+                }
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                    for (Path child : stream) {
+                        if (isWatched(child) && Files.isDirectory(child, NOFOLLOW_LINKS)) {
+                            subtasks.add(new RegisterTask(watchService, child));
+                        }
+                    }
+                }
+            } catch (IOException ex) {
+                throw new RegistrationException(ex);
+            }
+            invokeAll(subtasks);
+        }
+    }
+
+    /**
+     * Transports an <code>IOException</code> out of the fork/join pool.
+     */
+    private static final class RegistrationException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private RegistrationException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package name.mitterdorfer.perlock.impl.watch.registration;
+
+import name.mitterdorfer.perlock.EventKind;
+import name.mitterdorfer.perlock.impl.util.Preconditions;
+import name.mitterdorfer.perlock.impl.watch.PathFilter;
+import name.mitterdorfer.perlock.impl.watch.RegistrationTracker;
+import name.mitterdorfer.perlock.impl.watch.WatchQuota;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+
+/**
+ * <p>Registers the first levels of a tree synchronously and the rest of the tree level by level on a background
+ * thread.</p>
+ *
+ * <p>Changes in a directory are missed until the directory is registered. Therefore, each directory that is registered
+ * in the background is scanned right after its registration: Entries that have been created or modified after the
+ * registration of the root path has started are reported as catch-up events via the {@link RegistrationTracker}. The
+ * check is based on timestamps so a change might occasionally be reported twice (by the scan and by the watch
+ * service).</p>
+ *
+ * <p>THIS IS AN INTERNAL IMPLEMENTATION CLASS AND DOES NOT BELONG TO THE API. DO NOT USE IT DIRECTLY.</p>
+ */
+public final class ProgressiveRecursiveRegistrationStrategy extends AbstractRegistrationStrategy {
+    private final int synchronousLevels;
+    private final Executor executor;
+
+    /**
+     * @param synchronousLevels The number of levels below the root path that are registered synchronously. Must not be
+     *                          negative.
+     * @param executor          Provides the thread that registers the remaining levels. Must not be null.
+     */
+    public ProgressiveRecursiveRegistrationStrategy(Map<WatchKey, Path> keys, int synchronousLevels,
+                                                    Executor executor) {
+        this(keys, null, EnumSet.range(EventKind.CREATE, EventKind.DELETE), null, synchronousLevels, executor);
+    }
+
+    /**
+     * @param filter            Determines which directories are registered. May be null.
+     * @param eventKinds        The kinds of events that are registered. Must not be null or empty.
+     * @param quota             Limits the number of watches. May be null.
+     * @param synchronousLevels The number of levels below the root path that are registered synchronously. Must not be
+     *                          negative.
+     * @param executor          Provides the thread that registers the remaining levels. Must not be null.
+     */
+    public ProgressiveRecursiveRegistrationStrategy(Map<WatchKey, Path> keys, PathFilter filter,
+                                                    Set<EventKind> eventKinds, WatchQuota quota,
+                                                    int synchronousLevels, Executor executor) {
+        super(keys, filter, eventKinds, quota);
+        Preconditions.isTrue(synchronousLevels >= 0, "'synchronousLevels' must not be negative");
+        Preconditions.isNotNull(executor, "executor");
+        this.synchronousLevels = synchronousLevels;
+        this.executor = executor;
+    }
+
+    @Override
+    protected boolean registerTree(WatchService watchService, Path rootPath, RegistrationTracker tracker)
+            throws IOException {
+        long startMillis = System.currentTimeMillis();
+        List<Path> level = registerLevels(watchService, rootPath, tracker);
+        if (level.isEmpty()) {
+            return true;
+        }
+        LOG.trace("Registering {} directories below '{}' in the background.", level.size(), rootPath);
+        executor.execute(new BackgroundRegistration(watchService, level, startMillis, tracker));
+        return false;
+    }
+
+    /**
+     * Registers the synchronous levels of the tree.
+     *
+     * @return The directories on the first level that should be registered in the background.
+     */
+    private List<Path> registerLevels(WatchService watchService, Path rootPath, RegistrationTracker tracker)
+            throws IOException {
+        if (!register(watchService, rootPath)) {
+            return new ArrayList<>();
+        }
+        List<Path> level = listDirectories(rootPath);
+        for (int depth = 1; depth <= synchronousLevels && !level.isEmpty(); depth++) {
+            List<Path> nextLevel = new ArrayList<>();
+            for (Path dir : level) {
+                if (register(watchService, dir)) {
+                    nextLevel.addAll(listDirectories(dir));
+                }
+            }
+            level = nextLevel;
+        }
+        tracker.discovered(level.size());
+        return level;
+    }
+
+    private List<Path> listDirectories(Path dir) throws IOException {
+        List<Path> dirs = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path child : stream) {
+                if (isWatched(child) && Files.isDirectory(child, NOFOLLOW_LINKS)) {
+                    dirs.add(child);
+                }
+            }
+        }
+        return dirs;
+    }
+
+    @Override
+    public void registerChild(WatchService watchService, Path childPath) throws IOException {
+        if (isWatched(childPath) && Files.isDirectory(childPath, NOFOLLOW_LINKS)) {
+            registerAll(watchService, childPath);
+        }
+    }
+
+    /**
+     * Register the given directory, and all its sub-directories, with the WatchService.
+     */
+    private void registerAll(final WatchService watchService, final Path start) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (!isWatched(dir) || !register(watchService, dir)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private final class BackgroundRegistration implements Runnable {
+        private final WatchService watchService;
+        private final Queue<Path> queue;
+        private final long startMillis;
+        private final RegistrationTracker tracker;
+
+        private BackgroundRegistration(WatchService watchService, List<Path> level, long startMillis,
+                                       RegistrationTracker tracker) {
+            this.watchService = watchService;
+            this.queue = new ArrayDeque<>(level);
+            this.startMillis = startMillis;
+            this.tracker = tracker;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Path dir;
+                while ((dir = queue.poll()) != null) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new InterruptedException();
+                    }
+                    if (!registerAndCatchUp(dir)) {
+                        LOG.trace("Background registration has been aborted.");
+                        return;
+                    }
+                    tracker.pendingRegistered();
+                }
+                LOG.trace("Background registration has finished.");
+                tracker.complete();
+            } catch (ClosedWatchServiceException | InterruptedException ex) {
+                LOG.trace("Background registration has been stopped.");
+                tracker.fail(ex);
+            } catch (Exception ex) {
+                LOG.warn("Background registration has failed.", ex);
+                tracker.fail(ex);
+            }
+        }
+
+        /**
+         * @return false iff the registration has been aborted.
+         */
+        private boolean registerAndCatchUp(Path dir) {
+            if (!tracker.beginStep()) {
+                return false;
+            }
+            try {
+                if (!register(watchService, dir)) {
+                    // the subtree is scanned periodically instead
+                    return true;
+                }
+            } catch (IOException ex) {
+                // the directory is gone already; so is its subtree
+                LOG.trace("Could not register '{}' in the background.", dir);
+                return true;
+            } finally {
+                tracker.endStep();
+            }
+            List<Path> subDirs = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path child : stream) {
+                    BasicFileAttributes attributes;
+                    try {
+                        attributes = Files.readAttributes(child, BasicFileAttributes.class, NOFOLLOW_LINKS);
+                    } catch (IOException ex) {
+                        // deleted in the meantime. If it has been created after start we'd miss nothing of relevance.
+                        continue;
+                    }
+                    if (attributes.isDirectory() && isWatched(child)) {
+                        subDirs.add(child);
+                    }
+                    if (attributes.creationTime().toMillis() >= startMillis) {
+                        tracker.catchUp(EventKind.CREATE, child);
+                    } else if (attributes.lastModifiedTime().toMillis() >= startMillis) {
+                        tracker.catchUp(EventKind.MODIFY, child);
+                    }
+                }
+            } catch (IOException ex) {
+                LOG.trace("Could not scan '{}' in the background.", dir);
+            }
+            tracker.discovered(subDirs.size());
+            queue.addAll(subDirs);
+            return true;
+        }
+    }
+}
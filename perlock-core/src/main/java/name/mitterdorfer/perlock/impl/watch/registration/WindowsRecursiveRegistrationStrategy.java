@@ -1,10 +1,14 @@
 package name.mitterdorfer.perlock.impl.watch.registration;
 
 import com.sun.nio.file.ExtendedWatchEventModifier;
+import name.mitterdorfer.perlock.EventKind;
+import name.mitterdorfer.perlock.impl.watch.RegistrationTracker;
+import name.mitterdorfer.perlock.impl.watch.WatchQuota;
 
 import java.io.IOException;
 import java.nio.file.*;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * THIS IS AN INTERNAL IMPLEMENTATION CLASS AND DOES NOT BELONG TO THE API. DO NOT USE IT DIRECTLY.
@@ -14,9 +18,15 @@ public final class WindowsRecursiveRegistrationStrategy extends AbstractRegistra
         super(keys);
     }
 
+    public WindowsRecursiveRegistrationStrategy(Map<WatchKey, Path> keys, Set<EventKind> eventKinds, WatchQuota quota) {
+        super(keys, null, eventKinds, quota);
+    }
+
     @Override
-    public void registerRoot(WatchService watchService, Path rootPath) throws IOException {
+    protected boolean registerTree(WatchService watchService, Path rootPath, RegistrationTracker tracker)
+            throws IOException {
         register(watchService, rootPath);
+        return true;
     }
 
     @Override
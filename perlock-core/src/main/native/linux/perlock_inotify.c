@@ -0,0 +1,101 @@
+/*
+ * Native part of the optional inotify backend of Perlock (see name.mitterdorfer.perlock.impl.inotify.Inotify).
+ *
+ * All functions return a negative errno value instead of throwing exceptions. They are mapped to exceptions on the
+ * Java side where the affected path is known.
+ */
+#include <jni.h>
+#include <errno.h>
+#include <poll.h>
+#include <stdint.h>
+#include <string.h>
+#include <unistd.h>
+#include <sys/eventfd.h>
+#include <sys/inotify.h>
+
+JNIEXPORT jint JNICALL
+Java_name_mitterdorfer_perlock_impl_inotify_Inotify_init(JNIEnv *env, jclass cls) {
+    int fd = inotify_init1(IN_NONBLOCK | IN_CLOEXEC);
+    return fd < 0 ? -errno : fd;
+}
+
+JNIEXPORT jint JNICALL
+Java_name_mitterdorfer_perlock_impl_inotify_Inotify_addWatch(JNIEnv *env, jclass cls, jint fd, jbyteArray path,
+                                                             jint mask) {
+    jbyte *bytes = (*env)->GetByteArrayElements(env, path, NULL);
+    if (bytes == NULL) {
+        /* OutOfMemoryError is pending */
+        return -ENOMEM;
+    }
+    int wd = inotify_add_watch(fd, (const char *) bytes, (uint32_t) mask);
+    int error = errno;
+    (*env)->ReleaseByteArrayElements(env, path, bytes, JNI_ABORT);
+    return wd < 0 ? -error : wd;
+}
+
+JNIEXPORT jint JNICALL
+Java_name_mitterdorfer_perlock_impl_inotify_Inotify_removeWatch(JNIEnv *env, jclass cls, jint fd, jint wd) {
+    return inotify_rm_watch(fd, wd) < 0 ? -errno : 0;
+}
+
+/*
+ * Waits until events are available or the wakeup file descriptor is signalled and reads as many events as fit into
+ * the buffer. Returns the number of bytes read, 0 on timeout or wakeup or a negative errno value.
+ */
+JNIEXPORT jint JNICALL
+Java_name_mitterdorfer_perlock_impl_inotify_Inotify_read(JNIEnv *env, jclass cls, jint fd, jint wakeupFd,
+                                                         jobject buffer, jint timeoutMillis) {
+    void *address = (*env)->GetDirectBufferAddress(env, buffer);
+    jlong capacity = (*env)->GetDirectBufferCapacity(env, buffer);
+    if (address == NULL || capacity <= 0) {
+        return -EINVAL;
+    }
+    struct pollfd fds[2];
+    fds[0].fd = fd;
+    fds[0].events = POLLIN;
+    fds[0].revents = 0;
+    fds[1].fd = wakeupFd;
+    fds[1].events = POLLIN;
+    fds[1].revents = 0;
+    int ready = poll(fds, 2, timeoutMillis);
+    if (ready < 0) {
+        return errno == EINTR ? 0 : -errno;
+    }
+    if (fds[1].revents != 0 || (fds[0].revents & POLLIN) == 0) {
+        return 0;
+    }
+    ssize_t bytes = read(fd, address, (size_t) capacity);
+    if (bytes < 0) {
+        return errno == EAGAIN || errno == EINTR ? 0 : -errno;
+    }
+    return (jint) bytes;
+}
+
+JNIEXPORT jint JNICALL
+Java_name_mitterdorfer_perlock_impl_inotify_Inotify_createWakeup(JNIEnv *env, jclass cls) {
+    int fd = eventfd(0, EFD_NONBLOCK | EFD_CLOEXEC);
+    return fd < 0 ? -errno : fd;
+}
+
+JNIEXPORT void JNICALL
+Java_name_mitterdorfer_perlock_impl_inotify_Inotify_wakeup(JNIEnv *env, jclass cls, jint wakeupFd) {
+    uint64_t one = 1;
+    /* the wakeup file descriptor is only signalled once before it is closed; the counter cannot overflow */
+    ssize_t ignored = write(wakeupFd, &one, sizeof(one));
+    (void) ignored;
+}
+
+JNIEXPORT void JNICALL
+Java_name_mitterdorfer_perlock_impl_inotify_Inotify_close(JNIEnv *env, jclass cls, jint fd) {
+    close(fd);
+}
+
+JNIEXPORT jstring JNICALL
+Java_name_mitterdorfer_perlock_impl_inotify_Inotify_strerror(JNIEnv *env, jclass cls, jint error) {
+    char message[256];
+    /* the XSI-compliant variant is selected by the feature test macros of the default build */
+    if (strerror_r(error, message, sizeof(message)) != 0) {
+        return (*env)->NewStringUTF(env, "Unknown error");
+    }
+    return (*env)->NewStringUTF(env, message);
+}
@@ -4,6 +4,7 @@ import java.nio.file.Path;
 import java.util.Collections;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -20,6 +21,17 @@ public class AssertingPathChangeListener implements PathChangeListener {
         assertEvent(path, EventKind.CREATE);
     }
 
+    /**
+     * Waits until a creation of <code>path</code> has been reported and fails if this does not happen in time.
+     */
+    public void awaitPathCreated(Path path, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!events.contains(new Event(path, EventKind.CREATE)) && System.nanoTime() - deadline < 0) {
+            Thread.sleep(10L);
+        }
+        assertPathCreated(path);
+    }
+
     public void assertPathNotCreated(Path path) {
         assertNoEvent(path, EventKind.CREATE);
     }
@@ -40,6 +52,10 @@ public class AssertingPathChangeListener implements PathChangeListener {
         assertNoEvent(path, EventKind.DELETE);
     }
 
+    public void assertPathReady(Path path) {
+        assertEvent(path, EventKind.READY);
+    }
+
     private void assertEvent(Path path, EventKind kind) {
         assertTrue("Expected event '" + kind + "' for path '" + path + "' is missing.", events.contains(new Event(path, kind)));
     }
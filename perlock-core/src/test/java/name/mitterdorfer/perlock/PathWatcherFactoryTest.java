@@ -10,13 +10,21 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class PathWatcherFactoryTest {
     // as stop happens in the background we might miss events. Wait a bit...
@@ -190,4 +198,518 @@ public class PathWatcherFactoryTest {
         lifecycleListener.assertOnStopCalled();
     }
 
+    @Test
+    public void testBatchListener() throws Exception {
+        Path dirLevel0 = Files.createDirectory(rootPath.resolve("dir0"));
+        final List<List<PathEvent>> batches = new CopyOnWriteArrayList<>();
+        PathWatcher watcher = pathWatcherFactory.createRecursiveWatcher(rootPath, new BatchPathChangeListener() {
+            @Override
+            public void onPathsChanged(List<PathEvent> events) {
+                List<PathEvent> batch = new ArrayList<>();
+                for (PathEvent event : events) {
+                    batch.add(event.copy());
+                }
+                batches.add(batch);
+            }
+        }, WatchOptions.defaults());
+        watcher.start();
+
+        Path firstFile = rootPath.resolve("first.txt");
+        Path secondFile = rootPath.resolve("second.txt");
+        Path fileInDirLevel0 = dirLevel0.resolve("third.txt");
+        Files.createFile(firstFile);
+        Files.createFile(secondFile);
+        Files.createFile(fileInDirLevel0);
+        Thread.sleep(TIME_GAP_POLL_INTERVAL);
+
+        watcher.stop();
+        Thread.sleep(TIME_GAP_LIFE_CYCLE);
+
+        List<PathEvent> events = new ArrayList<>();
+        for (List<PathEvent> batch : batches) {
+            events.addAll(batch);
+        }
+        assertTrue(events.contains(PathEvent.of(EventKind.CREATE, firstFile)));
+        assertTrue(events.contains(PathEvent.of(EventKind.CREATE, secondFile)));
+        assertTrue(events.contains(PathEvent.of(EventKind.CREATE, fileInDirLevel0)));
+        // events of both directories have been delivered together
+        assertTrue(batches.size() < events.size());
+    }
+
+    @Test
+    public void testRecoversEventsAfterOverflow() throws Exception {
+        ExecutorService scanExecutor = Executors.newFixedThreadPool(2);
+        WatchOptions options = WatchOptions.builder()
+                .recoverFromOverflow(scanExecutor, 0L, TimeUnit.MILLISECONDS)
+                .build();
+        PathWatcher watcher = pathWatcherFactory.createRecursiveWatcher(rootPath, pathChangeListener, options);
+        watcher.start();
+
+        // Jimfs queues at most 256 events per key and signals an overflow afterwards
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            files.add(Files.createFile(rootPath.resolve("file" + i + ".txt")));
+        }
+        // the rescan happens only after all regular events have been handled
+        for (Path file : files) {
+            pathChangeListener.awaitPathCreated(file, 5L, TimeUnit.SECONDS);
+        }
+
+        watcher.stop();
+        scanExecutor.shutdown();
+    }
+
+    @Test
+    public void testCatchesUpOnChangesWhileStopped() throws Exception {
+        Path modified = Files.createFile(rootPath.resolve("modified.txt"));
+        Path deleted = Files.createFile(rootPath.resolve("deleted.txt"));
+        Path unchanged = Files.createFile(rootPath.resolve("unchanged.txt"));
+        WatchOptions options = WatchOptions.builder()
+                .checkpoint(rootPath.resolveSibling("rootPath.checkpoint"), 1L, TimeUnit.HOURS, null)
+                .build();
+        PathWatcher watcher = pathWatcherFactory.createRecursiveWatcher(rootPath, pathChangeListener, options);
+        watcher.start();
+        Thread.sleep(TIME_GAP_POLL_INTERVAL);
+        watcher.stop();
+        Thread.sleep(TIME_GAP_LIFE_CYCLE);
+        // there is nothing to catch up on without a checkpoint
+        pathChangeListener.assertNoEvents();
+
+        Files.write(modified, Collections.singleton("Written while nobody was watching"), StandardCharsets.UTF_8);
+        Files.delete(deleted);
+        Path dirLevel0 = Files.createDirectory(rootPath.resolve("dir0"));
+        Path fileInDirLevel0 = Files.createFile(dirLevel0.resolve("text.txt"));
+
+        AssertingPathChangeListener restartedListener = new AssertingPathChangeListener();
+        PathWatcher restarted = pathWatcherFactory.createRecursiveWatcher(rootPath, restartedListener, options);
+        restarted.start();
+        Thread.sleep(TIME_GAP_POLL_INTERVAL);
+        // the new directory is watched as well
+        Path createdWhileWatching = Files.createFile(dirLevel0.resolve("quotes.txt"));
+        Thread.sleep(TIME_GAP_POLL_INTERVAL);
+        restarted.stop();
+        Thread.sleep(TIME_GAP_LIFE_CYCLE);
+
+        restartedListener.assertPathModified(modified);
+        restartedListener.assertPathDeleted(deleted);
+        restartedListener.assertPathCreated(dirLevel0);
+        restartedListener.assertPathCreated(fileInDirLevel0);
+        restartedListener.assertPathCreated(createdWhileWatching);
+        restartedListener.assertNoEventForPath(unchanged);
+    }
+
+    @Test
+    public void testMirroringWatcher() throws Exception {
+        Path dirLevel0 = Files.createDirectory(rootPath.resolve("dir0"));
+        Path fileInDirLevel0 = Files.createFile(dirLevel0.resolve("text.txt"));
+        MirroringPathWatcher watcher = pathWatcherFactory.createMirroringWatcher(rootPath, pathChangeListener,
+                WatchOptions.defaults());
+        WatchedTree tree = watcher.getWatchedTree();
+        watcher.start();
+
+        assertTrue(tree.exists(fileInDirLevel0));
+        assertEquals(Collections.singletonList(dirLevel0), tree.list(rootPath));
+
+        Path dirLevel1 = Files.createDirectory(dirLevel0.resolve("dir1"));
+        Path fileInDirLevel1 = Files.createFile(dirLevel1.resolve("quotes.txt"));
+        Files.delete(fileInDirLevel0);
+        Thread.sleep(2 * TIME_GAP_POLL_INTERVAL);
+        Files.write(fileInDirLevel1, Collections.singleton("Oh gravity, thou art so heartless."), StandardCharsets.UTF_8);
+        Thread.sleep(TIME_GAP_POLL_INTERVAL);
+
+        watcher.stop();
+        Thread.sleep(TIME_GAP_LIFE_CYCLE);
+
+        assertFalse(tree.exists(fileInDirLevel0));
+        assertEquals(Collections.singletonList(dirLevel1), tree.list(dirLevel0));
+        assertEquals(Collections.singletonList(fileInDirLevel1), tree.list(dirLevel1));
+        assertEquals(Files.size(fileInDirLevel1), tree.getAttributes(fileInDirLevel1).size());
+    }
+
+    @Test
+    public void testProgressiveRegistration() throws Exception {
+        Path dirLevel0 = Files.createDirectory(rootPath.resolve("dir0"));
+        Path dirLevel1 = Files.createDirectory(dirLevel0.resolve("dir1"));
+        // existing entries must be older than the registration to be distinguishable from changes
+        Thread.sleep(10L);
+        ExecutorService registrationExecutor = Executors.newSingleThreadExecutor();
+        final CountDownLatch registrationBlocked = new CountDownLatch(1);
+        registrationExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    registrationBlocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        WatchOptions options = WatchOptions.builder()
+                .registerProgressively(0, registrationExecutor)
+                .build();
+        PathWatcher watcher = pathWatcherFactory.createRecursiveWatcher(rootPath, pathChangeListener, options);
+        watcher.start();
+        RegistrationProgress progress = ((ProgressReportingPathWatcher) watcher).getRegistrationProgress();
+        assertFalse(progress.isDone());
+        assertEquals(1L, progress.getRegisteredDirectories());
+        assertEquals(1L, progress.getPendingDirectories());
+
+        // dirLevel1 is not registered yet; the background registration has to catch up on this change
+        Path fileInDirLevel1 = Files.createFile(dirLevel1.resolve("quotes.txt"));
+        registrationBlocked.countDown();
+        progress.get(5, TimeUnit.SECONDS);
+        assertEquals(3L, progress.getRegisteredDirectories());
+        assertEquals(0L, progress.getPendingDirectories());
+        Thread.sleep(TIME_GAP_POLL_INTERVAL);
+
+        watcher.stop();
+        registrationExecutor.shutdown();
+        Thread.sleep(TIME_GAP_LIFE_CYCLE);
+
+        pathChangeListener.assertPathCreated(fileInDirLevel1);
+        pathChangeListener.assertPathNotCreated(dirLevel1);
+    }
+
+    @Test
+    public void testFilteredWatcher() throws Exception {
+        Path excludedDir = Files.createDirectory(rootPath.resolve("target"));
+        Path deepDir = Files.createDirectories(rootPath.resolve("dir0/dir1"));
+        WatchOptions options = WatchOptions.builder()
+                .exclude("glob:target")
+                .include("glob:**.txt")
+                .maxDepth(1)
+                .build();
+        PathWatcher watcher = pathWatcherFactory.createRecursiveWatcher(rootPath, pathChangeListener, options);
+        watcher.start();
+
+        Path includedFile = Files.createFile(rootPath.resolve("dir0/text.txt"));
+        Path otherFile = Files.createFile(rootPath.resolve("dir0/text.csv"));
+        Path fileInExcludedDir = Files.createFile(excludedDir.resolve("text.txt"));
+        Path fileInDeepDir = Files.createFile(deepDir.resolve("text.txt"));
+        Thread.sleep(TIME_GAP_POLL_INTERVAL);
+
+        watcher.stop();
+        Thread.sleep(TIME_GAP_LIFE_CYCLE);
+
+        pathChangeListener.assertPathCreated(includedFile);
+        pathChangeListener.assertNoEventForPath(otherFile);
+        pathChangeListener.assertNoEventForPath(fileInExcludedDir);
+        pathChangeListener.assertNoEventForPath(excludedDir);
+        pathChangeListener.assertNoEventForPath(fileInDeepDir);
+    }
+
+    @Test
+    public void testWatcherWithEventKindMask() throws Exception {
+        WatchOptions options = WatchOptions.builder()
+                .eventKinds(EnumSet.of(EventKind.DELETE))
+                .build();
+        PathWatcher watcher = pathWatcherFactory.createRecursiveWatcher(rootPath, pathChangeListener, options);
+        watcher.start();
+
+        Path newDir = Files.createDirectory(rootPath.resolve("newDir"));
+        Thread.sleep(TIME_GAP_POLL_INTERVAL);
+        Path newFile = Files.createFile(newDir.resolve("file.txt"));
+        Thread.sleep(TIME_GAP_POLL_INTERVAL);
+        Files.delete(newFile);
+        Thread.sleep(TIME_GAP_POLL_INTERVAL);
+
+        watcher.stop();
+        Thread.sleep(TIME_GAP_LIFE_CYCLE);
+
+        // the new directory is watched although creations are not reported
+        pathChangeListener.assertPathNotCreated(newDir);
+        pathChangeListener.assertPathNotCreated(newFile);
+        pathChangeListener.assertPathDeleted(newFile);
+    }
+
+    @Test
+    public void testScansDegradedSubtreeIfNoWatchIsLeft() throws Exception {
+        Path degradedDir = Files.createDirectories(rootPath.resolve("dir0/dir1"));
+        WatchOptions options = WatchOptions.builder()
+                .limitWatches(1, 50L, TimeUnit.MILLISECONDS)
+                .build();
+        PathWatcher watcher = pathWatcherFactory.createRecursiveWatcher(rootPath, pathChangeListener, options);
+        watcher.start();
+
+        Path file = Files.createFile(degradedDir.resolve("text.txt"));
+        Thread.sleep(TIME_GAP_POLL_INTERVAL);
+
+        watcher.stop();
+        Thread.sleep(TIME_GAP_LIFE_CYCLE);
+
+        pathChangeListener.assertPathCreated(file);
+        // in-memory file systems do not use inotify watches
+        assertEquals(0, pathWatcherFactory.getWatchBudget().getReserved());
+    }
+
+    @Test
+    public void testPollingWatcher() throws Exception {
+        Path dir = Files.createDirectories(rootPath.resolve("dir0/dir1"));
+        Path existingFile = Files.createFile(rootPath.resolve("existing.txt"));
+        Path deletedFile = Files.createFile(dir.resolve("deleted.txt"));
+        ExecutorService scanExecutor = Executors.newFixedThreadPool(2);
+        WatchOptions options = WatchOptions.builder()
+                .poll(scanExecutor, 20L, 200L, TimeUnit.MILLISECONDS)
+                .build();
+        PathWatcher watcher = pathWatcherFactory.createRecursiveWatcher(rootPath, pathChangeListener, options);
+        watcher.start();
+        RegistrationProgress progress = ((ProgressReportingPathWatcher) watcher).getRegistrationProgress();
+        assertTrue(progress.isDone());
+        assertEquals(3, progress.getRegisteredDirectories());
+
+        Path newFile = Files.createFile(dir.resolve("text.txt"));
+        Files.write(existingFile, Collections.singleton("Don't Panic."), StandardCharsets.UTF_8);
+        Files.delete(deletedFile);
+        Thread.sleep(TIME_GAP_POLL_INTERVAL);
+
+        watcher.stop();
+        Thread.sleep(TIME_GAP_LIFE_CYCLE);
+        scanExecutor.shutdown();
+        assertFalse(watcher.isRunning());
+        lifecycleListener.assertOnStartCalled();
+        lifecycleListener.assertOnStopCalled();
+
+        pathChangeListener.assertPathCreated(newFile);
+        pathChangeListener.assertPathModified(existingFile);
+        pathChangeListener.assertPathNotCreated(existingFile);
+        pathChangeListener.assertPathDeleted(deletedFile);
+    }
+
+    @Test
+    public void testDetectsMoves() throws Exception {
+        Path dir = Files.createDirectory(rootPath.resolve("dir0"));
+        Path file = Files.createFile(rootPath.resolve("old.txt"));
+        RecordingListener listener = new RecordingListener();
+        WatchOptions options = WatchOptions.builder()
+                .detectMoves(500L, TimeUnit.MILLISECONDS)
+                .build();
+        PathWatcher watcher = pathWatcherFactory.createRecursiveWatcher(rootPath, listener, options);
+        watcher.start();
+
+        Path movedFile = dir.resolve("new.txt");
+        Files.move(file, movedFile);
+        Thread.sleep(TIME_GAP_POLL_INTERVAL);
+        Path movedDir = rootPath.resolve("dir1");
+        Files.move(dir, movedDir);
+        Thread.sleep(TIME_GAP_POLL_INTERVAL);
+        // the moved directory is still watched
+        Path newFile = Files.createFile(movedDir.resolve("text.txt"));
+        Path deletedFile = movedDir.resolve("new.txt");
+        Files.delete(deletedFile);
+        // deletions are held back while waiting for a creation
+        Thread.sleep(TIME_GAP_POLL_INTERVAL + 500L);
+
+        watcher.stop();
+        Thread.sleep(TIME_GAP_LIFE_CYCLE);
+
+        List<PathEvent> events = listener.events;
+        assertTrue(events.contains(PathEvent.moved(file, movedFile)));
+        assertTrue(events.contains(PathEvent.moved(dir, movedDir)));
+        assertTrue(events.contains(PathEvent.of(EventKind.CREATE, newFile)));
+        assertTrue(events.contains(PathEvent.of(EventKind.DELETE, deletedFile)));
+        assertFalse(events.contains(PathEvent.of(EventKind.DELETE, file)));
+        assertFalse(events.contains(PathEvent.of(EventKind.CREATE, movedDir)));
+    }
+
+    @Test
+    public void testPollingWatcherDetectsMoves() throws Exception {
+        Path dir = Files.createDirectories(rootPath.resolve("dir0/dir1"));
+        Path file = Files.createFile(dir.resolve("old.txt"));
+        RecordingListener listener = new RecordingListener();
+        WatchOptions options = WatchOptions.builder()
+                .poll(null, 20L, 200L, TimeUnit.MILLISECONDS)
+                .detectMoves(1L, TimeUnit.MILLISECONDS)
+                .build();
+        PathWatcher watcher = pathWatcherFactory.createRecursiveWatcher(rootPath, listener, options);
+        watcher.start();
+
+        Path movedDir = rootPath.resolve("dir2");
+        Files.move(rootPath.resolve("dir0"), movedDir);
+        Thread.sleep(TIME_GAP_POLL_INTERVAL);
+
+        watcher.stop();
+        Thread.sleep(TIME_GAP_LIFE_CYCLE);
+
+        assertEquals(Collections.singletonList(PathEvent.moved(rootPath.resolve("dir0"), movedDir)), listener.events);
+        assertTrue(Files.exists(movedDir.resolve("dir1").resolve(file.getFileName())));
+    }
+
+    @Test
+    public void testAwaitsWriteCompletion() throws Exception {
+        ExecutorService timerExecutor = Executors.newSingleThreadExecutor();
+        RecordingListener listener = new RecordingListener();
+        WatchOptions options = WatchOptions.builder()
+                .awaitWriteCompletion(100L, TimeUnit.MILLISECONDS, timerExecutor)
+                .build();
+        PathWatcher watcher = pathWatcherFactory.createRecursiveWatcher(rootPath, listener, options);
+        watcher.start();
+
+        Path dir = Files.createDirectory(rootPath.resolve("dir0"));
+        Path file = Files.createFile(rootPath.resolve("message.xml"));
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(3 * TIME_GAP_POLL_INTERVAL);
+        while (System.nanoTime() < end) {
+            Files.write(file, Collections.singleton("<message/>"), StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+            Thread.sleep(20L);
+        }
+        assertTrue(listener.events.contains(PathEvent.of(EventKind.CREATE, dir)));
+        assertFalse(listener.events.contains(PathEvent.of(EventKind.READY, file)));
+        // the file is ready after two unchanged probes
+        Thread.sleep(TIME_GAP_POLL_INTERVAL + 300L);
+
+        watcher.stop();
+        Thread.sleep(TIME_GAP_LIFE_CYCLE);
+        timerExecutor.shutdown();
+
+        List<PathEvent> events = listener.events;
+        assertTrue(events.contains(PathEvent.of(EventKind.READY, file)));
+        assertFalse(events.contains(PathEvent.of(EventKind.CREATE, file)));
+        assertFalse(events.contains(PathEvent.of(EventKind.MODIFY, file)));
+    }
+
+    @Test
+    public void testPublisherSharesPathWatcherBetweenSubscribers() throws Exception {
+        PathEventPublisher publisher = pathWatcherFactory.createRecursivePublisher(rootPath, WatchOptions.defaults(), 16);
+        RecordingSubscriber eager = new RecordingSubscriber(Long.MAX_VALUE);
+        RecordingSubscriber lazy = new RecordingSubscriber(0L);
+        publisher.subscribe(eager);
+        publisher.subscribe(lazy);
+        publisher.start();
+
+        Path dir = Files.createDirectory(rootPath.resolve("dir0"));
+        Thread.sleep(TIME_GAP_POLL_INTERVAL);
+        assertTrue(eager.events.contains(PathEvent.of(EventKind.CREATE, dir)));
+        assertTrue(lazy.events.isEmpty());
+
+        lazy.subscription.request(1L);
+        assertEquals(Collections.singletonList(PathEvent.of(EventKind.CREATE, dir)), lazy.events);
+
+        publisher.stop();
+        Thread.sleep(TIME_GAP_LIFE_CYCLE);
+        assertTrue(eager.completed);
+        assertTrue(lazy.completed);
+    }
+
+        @Test
+    public void testWatcherProducesIntoEventQueue() throws Exception {
+        PathEventQueue queue = PathWatcherFactory.createEventQueue(16, OverflowPolicy.COALESCE);
+        PathWatcher watcher = pathWatcherFactory.createNonRecursiveWatcher(rootPath, queue, WatchOptions.defaults());
+        watcher.start();
+
+        Path file = Files.createFile(rootPath.resolve("text.txt"));
+        assertEquals(PathEvent.of(EventKind.CREATE, file), queue.poll(5L, TimeUnit.SECONDS));
+
+        watcher.stop();
+        Thread.sleep(TIME_GAP_LIFE_CYCLE);
+    }
+
+        @Test
+    public void testDispatchesInParallel() throws Exception {
+        ExecutorService dispatchExecutor = Executors.newFixedThreadPool(2);
+        RecordingListener listener = new RecordingListener();
+        WatchOptions options = WatchOptions.builder()
+                .dispatchInParallel(dispatchExecutor, 2, 64, DispatchKey.PATH, OverflowPolicy.BLOCK)
+                .build();
+        PathWatcher watcher = pathWatcherFactory.createNonRecursiveWatcher(rootPath, listener, options);
+        watcher.start();
+
+        Path file = Files.createFile(rootPath.resolve("text.txt"));
+        Thread.sleep(TIME_GAP_POLL_INTERVAL);
+        Files.delete(file);
+        Thread.sleep(TIME_GAP_POLL_INTERVAL);
+
+        watcher.stop();
+        Thread.sleep(TIME_GAP_LIFE_CYCLE);
+        dispatchExecutor.shutdown();
+
+        List<PathEvent> events = listener.events;
+        assertTrue(events.indexOf(PathEvent.of(EventKind.CREATE, file)) >= 0);
+        assertTrue(events.indexOf(PathEvent.of(EventKind.CREATE, file)) < events.indexOf(PathEvent.of(EventKind.DELETE, file)));
+    }
+
+    @Test
+    public void testRecordsMetricsPerWatcherAndPerFactory() throws Exception {
+        Files.createDirectory(rootPath.resolve("sub"));
+        PathWatcherMetrics metrics = pathWatcherFactory.createMetrics();
+        WatchOptions options = WatchOptions.builder().recordMetrics(metrics).build();
+        PathWatcher watcher = pathWatcherFactory.createRecursiveWatcher(rootPath, new RecordingListener(), options);
+        watcher.start();
+
+        Files.createFile(rootPath.resolve("text.txt"));
+        Thread.sleep(TIME_GAP_POLL_INTERVAL);
+        watcher.stop();
+        Thread.sleep(TIME_GAP_LIFE_CYCLE);
+
+        assertEquals(1L, metrics.getRegistrations());
+        assertEquals(2L, metrics.getDirectoriesWalked());
+        assertEquals(2L, metrics.getRegisteredKeys());
+        assertEquals(Long.valueOf(1L), metrics.getEventsByKind().get(EventKind.CREATE.name()));
+        assertTrue(metrics.getWakeups() >= 1L);
+        assertEquals(1L, metrics.getListenerInvocations());
+        assertEquals(metrics.getEvents(), pathWatcherFactory.getMetrics().getEvents());
+        assertEquals(2L, pathWatcherFactory.getMetrics().getRegisteredKeys());
+    }
+
+    @Test
+    public void testRejectsSecondWatcherWithSameCheckpointFile() throws Exception {
+        Path checkpoint = rootPath.resolveSibling("rootPath.checkpoint");
+        WatchOptions options = WatchOptions.builder().checkpoint(checkpoint, 1L, TimeUnit.HOURS, null).build();
+        pathWatcherFactory.createRecursiveWatcher(rootPath, new RecordingListener(), options);
+        Path otherRoot = Files.createDirectory(rootPath.resolve("other"));
+        WatchOptions otherOptions = WatchOptions.builder()
+                .checkpoint(checkpoint.getParent().resolve("./rootPath.checkpoint"), 1L, TimeUnit.HOURS, null).build();
+
+        for (WatchOptions sameCheckpoint : new WatchOptions[]{options, otherOptions}) {
+            try {
+                pathWatcherFactory.createNonRecursiveWatcher(otherRoot, new RecordingListener(), sameCheckpoint);
+                fail("Expected an IllegalArgumentException");
+            } catch (IllegalArgumentException expected) {
+                assertTrue(expected.getMessage().contains("rootPath.checkpoint"));
+            }
+        }
+    }
+
+        private static final class RecordingListener implements BatchPathChangeListener {
+        private final List<PathEvent> events = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void onPathsChanged(List<PathEvent> batch) {
+            for (PathEvent event : batch) {
+                events.add(event.copy());
+            }
+        }
+    }
+
+    private static final class RecordingSubscriber implements PathEventSubscriber {
+        private final List<PathEvent> events = new CopyOnWriteArrayList<>();
+        private final long initialDemand;
+        private volatile PathEventSubscription subscription;
+        private volatile boolean completed;
+
+        private RecordingSubscriber(long initialDemand) {
+            this.initialDemand = initialDemand;
+        }
+
+        @Override
+        public void onSubscribe(PathEventSubscription subscription) {
+            this.subscription = subscription;
+            if (initialDemand > 0) {
+                subscription.request(initialDemand);
+            }
+        }
+
+        @Override
+        public void onNext(PathEvent event) {
+            events.add(event);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            throw new AssertionError(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+    }
 }
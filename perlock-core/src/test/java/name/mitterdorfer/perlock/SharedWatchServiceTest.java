@@ -0,0 +1,219 @@
+package name.mitterdorfer.perlock;
+
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import com.google.common.jimfs.WatchServiceConfiguration;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SharedWatchServiceTest {
+    // as stop happens in the background we might miss events. Wait a bit...
+    private static final long TIME_GAP_LIFE_CYCLE = 100L;
+    // Jimfs polls only every 100 milliseconds...
+    private static final long TIME_GAP_POLL_INTERVAL = 150L;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path rootPath;
+    private ThreadPoolExecutor executor;
+    private PathWatcherFactory pathWatcherFactory;
+    private AssertingLifecycleListener lifecycleListener;
+
+    @Before
+    public void setUp() throws Exception {
+        WatchServiceConfiguration wsc = WatchServiceConfiguration.polling(100, TimeUnit.MILLISECONDS);
+        FileSystem fs = Jimfs.newFileSystem(Configuration.unix().toBuilder().setWatchServiceConfiguration(wsc).build());
+        rootPath = fs.getPath("/rootPath");
+        Files.createDirectory(rootPath);
+
+        executor = (ThreadPoolExecutor) Executors.newCachedThreadPool();
+        lifecycleListener = new AssertingLifecycleListener();
+        pathWatcherFactory = new PathWatcherFactory(executor, lifecycleListener, WatchServiceMode.PER_FILE_SYSTEM);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testWatchersShareOneThread() throws Exception {
+        Path firstRoot = Files.createDirectory(rootPath.resolve("first"));
+        Path secondRoot = Files.createDirectory(rootPath.resolve("second"));
+        AssertingPathChangeListener firstListener = new AssertingPathChangeListener();
+        AssertingPathChangeListener secondListener = new AssertingPathChangeListener();
+
+        PathWatcher firstWatcher = pathWatcherFactory.createRecursiveWatcher(firstRoot, firstListener).start();
+        PathWatcher secondWatcher = pathWatcherFactory.createNonRecursiveWatcher(secondRoot, secondListener).start();
+        assertTrue(firstWatcher.isRunning());
+        assertTrue(secondWatcher.isRunning());
+        lifecycleListener.assertOnStartCalled();
+
+        Path firstFile = firstRoot.resolve("first.txt");
+        Path secondFile = secondRoot.resolve("second.txt");
+        Files.createFile(firstFile);
+        Files.createFile(secondFile);
+        Thread.sleep(TIME_GAP_POLL_INTERVAL);
+
+        assertEquals(1, executor.getActiveCount());
+        firstListener.assertPathCreated(firstFile);
+        firstListener.assertNoEventForPath(secondFile);
+        secondListener.assertPathCreated(secondFile);
+        secondListener.assertNoEventForPath(firstFile);
+
+        firstWatcher.stop();
+        secondWatcher.stop();
+        Thread.sleep(TIME_GAP_LIFE_CYCLE);
+        assertFalse(firstWatcher.isRunning());
+        assertFalse(secondWatcher.isRunning());
+        lifecycleListener.assertOnStopCalled();
+        // the polling thread has terminated after the last watcher has been stopped
+        assertEquals(0, executor.getActiveCount());
+    }
+
+    @Test
+    public void testStoppingOneWatcherDoesNotAffectOverlappingWatcher() throws Exception {
+        AssertingPathChangeListener recursiveListener = new AssertingPathChangeListener();
+        AssertingPathChangeListener nonRecursiveListener = new AssertingPathChangeListener();
+        PathWatcher recursiveWatcher = pathWatcherFactory.createRecursiveWatcher(rootPath, recursiveListener).start();
+        PathWatcher nonRecursiveWatcher = pathWatcherFactory.createNonRecursiveWatcher(rootPath, nonRecursiveListener).start();
+
+        Path fileInRootPath = rootPath.resolve("text.txt");
+        Files.createFile(fileInRootPath);
+        Thread.sleep(TIME_GAP_POLL_INTERVAL);
+        recursiveListener.assertPathCreated(fileInRootPath);
+        nonRecursiveListener.assertPathCreated(fileInRootPath);
+
+        nonRecursiveWatcher.stop();
+        assertFalse(nonRecursiveWatcher.isRunning());
+        assertTrue(recursiveWatcher.isRunning());
+
+        Files.delete(fileInRootPath);
+        Thread.sleep(TIME_GAP_POLL_INTERVAL);
+        recursiveListener.assertPathDeleted(fileInRootPath);
+        nonRecursiveListener.assertPathNotDeleted(fileInRootPath);
+
+        recursiveWatcher.stop();
+    }
+
+    @Test
+    public void testOverlappingWatchersWithDifferentEventKinds() throws Exception {
+        // re-registering a directory replaces the kinds of events of the kernel watch; Jimfs hands out a new key instead
+        Path realRootPath = temporaryFolder.getRoot().toPath();
+        AssertingPathChangeListener createListener = new AssertingPathChangeListener();
+        AssertingPathChangeListener deleteListener = new AssertingPathChangeListener();
+        PathWatcher createWatcher = pathWatcherFactory.createRecursiveWatcher(realRootPath, createListener,
+                WatchOptions.builder().eventKinds(EnumSet.of(EventKind.CREATE)).build()).start();
+        PathWatcher deleteWatcher = pathWatcherFactory.createNonRecursiveWatcher(realRootPath, deleteListener,
+                WatchOptions.builder().eventKinds(EnumSet.of(EventKind.DELETE)).build()).start();
+
+        Path fileInRootPath = Files.createFile(realRootPath.resolve("text.txt"));
+        Thread.sleep(TIME_GAP_POLL_INTERVAL);
+        Files.delete(fileInRootPath);
+        Thread.sleep(TIME_GAP_POLL_INTERVAL);
+
+        createListener.assertPathCreated(fileInRootPath);
+        createListener.assertPathNotDeleted(fileInRootPath);
+        deleteListener.assertPathDeleted(fileInRootPath);
+        deleteListener.assertPathNotCreated(fileInRootPath);
+        createWatcher.stop();
+        deleteWatcher.stop();
+    }
+
+    @Test
+    public void testOverlappingWatchersShareWatches() throws Exception {
+        Assume.assumeTrue(pathWatcherFactory.getWatchBudget().getSystemLimit() > 0);
+        Path realRootPath = temporaryFolder.getRoot().toPath();
+        Files.createDirectory(realRootPath.resolve("dir0"));
+        WatchBudget budget = pathWatcherFactory.getWatchBudget();
+        PathWatcher recursiveWatcher = pathWatcherFactory.createRecursiveWatcher(realRootPath,
+                new AssertingPathChangeListener()).start();
+        PathWatcher nonRecursiveWatcher = pathWatcherFactory.createNonRecursiveWatcher(realRootPath,
+                new AssertingPathChangeListener()).start();
+        // both path watchers use the kernel watch of the root path
+        assertEquals(2, budget.getReserved());
+
+        recursiveWatcher.stop();
+        assertEquals(1, budget.getReserved());
+        nonRecursiveWatcher.stop();
+        assertEquals(0, budget.getReserved());
+    }
+
+    @Test
+    public void testRogueListenerStopsOnlyItsOwnWatcher() throws Exception {
+        final RuntimeException testException = new RuntimeException("exception by rogue listener");
+        testException.setStackTrace(new StackTraceElement[0]);
+        AssertingPathChangeListener wellBehavedListener = new AssertingPathChangeListener();
+        PathWatcher rogueWatcher = pathWatcherFactory.createNonRecursiveWatcher(rootPath, new PathChangeListener() {
+            @Override
+            public void onPathChanged(EventKind eventKind, Path path) {
+                throw testException;
+            }
+        }).start();
+        PathWatcher wellBehavedWatcher = pathWatcherFactory.createNonRecursiveWatcher(rootPath, wellBehavedListener).start();
+
+        Path fileInRootPath = rootPath.resolve("text.txt");
+        Files.createFile(fileInRootPath);
+        Thread.sleep(TIME_GAP_POLL_INTERVAL);
+
+        assertFalse(rogueWatcher.isRunning());
+        assertTrue(wellBehavedWatcher.isRunning());
+        wellBehavedListener.assertPathCreated(fileInRootPath);
+        lifecycleListener.assertNumberOfReportedExceptions(1);
+        lifecycleListener.assertSameException(testException);
+        lifecycleListener.assertOnStopCalled();
+
+        wellBehavedWatcher.stop();
+    }
+
+    @Test
+    public void testRestartAfterLastWatcherHasStopped() throws Exception {
+        AssertingPathChangeListener pathChangeListener = new AssertingPathChangeListener();
+        PathWatcher watcher = pathWatcherFactory.createNonRecursiveWatcher(rootPath, pathChangeListener);
+        watcher.start();
+        watcher.stop();
+        Thread.sleep(TIME_GAP_LIFE_CYCLE);
+
+        watcher.start();
+        Path fileInRootPath = rootPath.resolve("text.txt");
+        Files.createFile(fileInRootPath);
+        Thread.sleep(TIME_GAP_POLL_INTERVAL);
+        pathChangeListener.assertPathCreated(fileInRootPath);
+        watcher.stop();
+    }
+
+    @Test
+    public void testWritesCheckpointWhenStopped() throws Exception {
+        AssertingPathChangeListener pathChangeListener = new AssertingPathChangeListener();
+        Path checkpoint = rootPath.resolveSibling("rootPath.checkpoint");
+        WatchOptions options = WatchOptions.builder().checkpoint(checkpoint, 1L, TimeUnit.HOURS, null).build();
+        PathWatcher watcher = pathWatcherFactory.createRecursiveWatcher(rootPath, pathChangeListener, options);
+        watcher.start();
+        watcher.stop();
+        assertTrue(Files.exists(checkpoint));
+
+        Path fileInRootPath = Files.createFile(rootPath.resolve("text.txt"));
+        watcher.start();
+        // the catch-up scan runs on the polling thread which is woken up for it
+        Thread.sleep(TIME_GAP_LIFE_CYCLE);
+        pathChangeListener.assertPathCreated(fileInRootPath);
+        watcher.stop();
+    }
+}
@@ -0,0 +1,38 @@
+package name.mitterdorfer.perlock;
+
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+import static org.junit.Assume.assumeTrue;
+
+public class VirtualThreadsTest {
+    @Test
+    public void testRunsTasksOnVirtualThreads() throws Exception {
+        assumeTrue(VirtualThreads.isSupported());
+        ExecutorService executorService = VirtualThreads.newExecutorService();
+        try {
+            Future<Boolean> virtual = executorService.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return (Boolean) Thread.class.getMethod("isVirtual").invoke(Thread.currentThread());
+                }
+            });
+            assertTrue(virtual.get(5, TimeUnit.SECONDS));
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testRejectsVirtualThreadsIfUnsupported() {
+        assumeFalse(VirtualThreads.isSupported());
+        PathWatcherFactory.withVirtualThreads(PathWatcherFactory.NoOpLifecycleListener.INSTANCE,
+                WatchServiceMode.PER_FILE_SYSTEM);
+    }
+}
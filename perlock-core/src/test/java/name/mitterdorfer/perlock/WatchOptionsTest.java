@@ -0,0 +1,43 @@
+package name.mitterdorfer.perlock;
+
+import org.junit.Test;
+
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WatchOptionsTest {
+    @Test
+    public void testKeepsMovesIfEventKindsAreRestrictedAfterwards() {
+        WatchOptions options = WatchOptions.builder()
+                .detectMoves(1L, TimeUnit.SECONDS)
+                .eventKinds(EnumSet.of(EventKind.CREATE))
+                .build();
+
+        assertTrue(options.isDetectMoves());
+        assertEquals(EnumSet.of(EventKind.CREATE, EventKind.MOVE), options.getEventKinds());
+        assertEquals(TimeUnit.SECONDS.toNanos(1L), options.getMoveWindowNanos());
+    }
+
+    @Test
+    public void testKeepsMovesIfEventKindsAreRestrictedBefore() {
+        WatchOptions options = WatchOptions.builder()
+                .eventKinds(EnumSet.of(EventKind.CREATE))
+                .detectMoves(1L, TimeUnit.SECONDS)
+                .build();
+
+        assertTrue(options.isDetectMoves());
+        assertEquals(EnumSet.of(EventKind.CREATE, EventKind.MOVE), options.getEventKinds());
+    }
+
+    @Test
+    public void testDoesNotDetectMovesByDefault() {
+        WatchOptions options = WatchOptions.builder().eventKinds(EnumSet.of(EventKind.CREATE)).build();
+
+        assertFalse(options.isDetectMoves());
+        assertEquals(EnumSet.of(EventKind.CREATE), options.getEventKinds());
+    }
+}
@@ -0,0 +1,288 @@
+package name.mitterdorfer.perlock.impl;
+
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import name.mitterdorfer.perlock.BatchPathChangeListener;
+import name.mitterdorfer.perlock.EventKind;
+import name.mitterdorfer.perlock.PathEvent;
+import name.mitterdorfer.perlock.WatchOptions;
+import name.mitterdorfer.perlock.impl.inotify.InotifyWatchService;
+import name.mitterdorfer.perlock.impl.metrics.StripedWatchMetrics;
+import name.mitterdorfer.perlock.impl.watch.PathFilter;
+import name.mitterdorfer.perlock.impl.watch.RegistrationTracker;
+import name.mitterdorfer.perlock.impl.watch.WatchQuota;
+import name.mitterdorfer.perlock.impl.watch.WatchRegistrationFactory;
+import name.mitterdorfer.perlock.impl.watch.WatchRegistrationStrategy;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.Watchable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Ensures that handling events does not allocate in steady state (unless a listener requests paths). Creations in
+ * recursively watched trees are an exception with the watch service of the JDK: The path watcher has to resolve the
+ * path of each new entry to check whether it is a directory. The native inotify backend reports this with the event.
+ */
+public class WatchServicePathWatcherAllocationTest {
+    private static final int EVENTS_PER_KEY = 16;
+    private static final int ITERATIONS = 20000;
+    // tolerates allocations of the measurement itself
+    private static final long MAX_ALLOCATED_BYTES = 4096L;
+
+    private com.sun.management.ThreadMXBean threadMXBean;
+    private Path rootPath;
+    private WatchKey key;
+    private List<WatchEvent<?>> events;
+    private CountingListener listener;
+    private WatchServicePathWatcher watcher;
+    private Level previousLevel;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() throws Exception {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threadMXBean = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        FileSystem fs = Jimfs.newFileSystem(Configuration.unix());
+        rootPath = Files.createDirectories(fs.getPath("/rootPath/dir0/dir1"));
+        key = new StubWatchKey();
+        events = new ArrayList<>();
+        for (int i = 0; i < EVENTS_PER_KEY; i++) {
+            events.add(new StubWatchEvent(i % 2 == 0 ? ENTRY_MODIFY : ENTRY_DELETE, fs.getPath("file" + i + ".txt")));
+        }
+        listener = new CountingListener();
+        // trace logging allocates
+        Logger logger = Logger.getLogger(WatchServicePathWatcher.class);
+        previousLevel = logger.getLevel();
+        logger.setLevel(Level.INFO);
+    }
+
+    @After
+    public void tearDown() {
+        if (watcher != null) {
+            watcher.stop();
+        }
+        Logger.getLogger(WatchServicePathWatcher.class).setLevel(previousLevel);
+    }
+
+    @Test
+    public void testNonRecursiveWatcherDoesNotAllocate() throws Exception {
+        assertNoAllocations(false);
+    }
+
+    @Test
+    public void testRecursiveWatcherDoesNotAllocate() throws Exception {
+        assertNoAllocations(true);
+    }
+
+    @Test
+    public void testNonRecursiveWatcherDoesNotAllocateForCreatedEntries() throws Exception {
+        events.clear();
+        for (int i = 0; i < EVENTS_PER_KEY; i++) {
+            events.add(new StubWatchEvent(ENTRY_CREATE, rootPath.getFileSystem().getPath("file" + i + ".txt")));
+        }
+        assertNoAllocations(false);
+        assertEquals(2L * ITERATIONS * EVENTS_PER_KEY, listener.created);
+    }
+
+    @Test
+    public void testRecursiveWatcherDoesNotAllocateForFilesCreatedInNativeBackend() throws Exception {
+        Assume.assumeTrue(InotifyWatchService.isSupported(FileSystems.getDefault()));
+        rootPath = folder.getRoot().toPath();
+        events = createFiles(rootPath);
+        assertNoAllocations(true);
+        assertEquals(2L * ITERATIONS * EVENTS_PER_KEY, listener.created);
+    }
+
+    @Test
+    public void testRecordingMetricsDoesNotAllocate() throws Exception {
+        StripedWatchMetrics metrics = new StripedWatchMetrics(new StripedWatchMetrics(null));
+        assertNoAllocations(true, WatchOptions.builder().recordMetrics(metrics).build());
+        assertEquals(2L * ITERATIONS * EVENTS_PER_KEY, metrics.getEvents());
+    }
+
+    private void assertNoAllocations(boolean recursive) throws Exception {
+        assertNoAllocations(recursive, WatchOptions.defaults());
+    }
+
+    private void assertNoAllocations(boolean recursive, WatchOptions options) throws Exception {
+        watcher = new WatchServicePathWatcher(rootPath, new StubRegistrationFactory(key), recursive, listener,
+                options, null, null, null, null);
+        watcher.start();
+        // warm up: let the batch grow to its steady state size and the JIT compile the hot path
+        handleKeys();
+
+        long threadId = Thread.currentThread().getId();
+        long before = threadMXBean.getThreadAllocatedBytes(threadId);
+        handleKeys();
+        long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals(2L * ITERATIONS * EVENTS_PER_KEY, listener.modified + listener.deleted + listener.created);
+        assertTrue("Allocated " + allocated + " bytes while handling events", allocated <= MAX_ALLOCATED_BYTES);
+    }
+
+    private void handleKeys() {
+        for (int i = 0; i < ITERATIONS; i++) {
+            watcher.handleKey(key, events);
+        }
+    }
+
+    /**
+     * @return The events of the native inotify backend for {@link #EVENTS_PER_KEY} files that are created in
+     * <code>dir</code>.
+     */
+    private static List<WatchEvent<?>> createFiles(Path dir) throws Exception {
+        List<WatchEvent<?>> createEvents = new ArrayList<>();
+        try (InotifyWatchService watchService = InotifyWatchService.open()) {
+            WatchKey nativeKey = watchService.register(dir, ENTRY_CREATE);
+            for (int i = 0; i < EVENTS_PER_KEY; i++) {
+                Files.createFile(dir.resolve("file" + i + ".txt"));
+            }
+            while (createEvents.size() < EVENTS_PER_KEY) {
+                assertSame(nativeKey, watchService.poll(1L, TimeUnit.SECONDS));
+                createEvents.addAll(nativeKey.pollEvents());
+                nativeKey.reset();
+            }
+        }
+        return createEvents;
+    }
+
+    /**
+     * Only inspects event kinds. Requesting paths would allocate.
+     */
+    private static final class CountingListener implements BatchPathChangeListener {
+        private long modified;
+        private long deleted;
+        private long created;
+
+        @Override
+        public void onPathsChanged(List<PathEvent> events) {
+            for (int i = 0; i < events.size(); i++) {
+                EventKind eventKind = events.get(i).getEventKind();
+                if (eventKind == EventKind.MODIFY) {
+                    modified++;
+                } else if (eventKind == EventKind.DELETE) {
+                    deleted++;
+                } else {
+                    created++;
+                }
+            }
+        }
+    }
+
+    private static final class StubRegistrationFactory implements WatchRegistrationFactory {
+        private final WatchKey key;
+
+        private StubRegistrationFactory(WatchKey key) {
+            this.key = key;
+        }
+
+        @Override
+        public WatchService newWatchService(FileSystem fileSystem) throws IOException {
+            return fileSystem.newWatchService();
+        }
+
+        @Override
+        public WatchRegistrationStrategy createRegistrationStrategy(final Map<WatchKey, Path> keys,
+                                                                    boolean recursiveWatcher, WatchOptions options,
+                                                                    PathFilter filter, Set<EventKind> eventKinds,
+                                                                    WatchQuota quota) {
+            return new WatchRegistrationStrategy() {
+                @Override
+                public void registerRoot(WatchService watchService, Path rootPath, RegistrationTracker tracker) {
+                    keys.put(key, rootPath);
+                    tracker.complete();
+                }
+
+                @Override
+                public void registerChild(WatchService watchService, Path childPath) {
+                    // not needed
+                }
+            };
+        }
+    }
+
+    private static final class StubWatchEvent implements WatchEvent<Path> {
+        private final Kind<Path> kind;
+        private final Path context;
+
+        private StubWatchEvent(Kind<Path> kind, Path context) {
+            this.kind = kind;
+            this.context = context;
+        }
+
+        @Override
+        public Kind<Path> kind() {
+            return kind;
+        }
+
+        @Override
+        public int count() {
+            return 1;
+        }
+
+        @Override
+        public Path context() {
+            return context;
+        }
+    }
+
+    private static final class StubWatchKey implements WatchKey {
+        @Override
+        public boolean isValid() {
+            return true;
+        }
+
+        @Override
+        public List<WatchEvent<?>> pollEvents() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean reset() {
+            return true;
+        }
+
+        @Override
+        public void cancel() {
+            // nothing to cancel
+        }
+
+        @Override
+        public Watchable watchable() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
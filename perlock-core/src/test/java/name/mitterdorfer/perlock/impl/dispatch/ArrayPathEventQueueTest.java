@@ -0,0 +1,173 @@
+package name.mitterdorfer.perlock.impl.dispatch;
+
+import name.mitterdorfer.perlock.EventKind;
+import name.mitterdorfer.perlock.OverflowPolicy;
+import name.mitterdorfer.perlock.PathEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ArrayPathEventQueueTest {
+    private static final long TIMEOUT_SECONDS = 5L;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testDrainsEventsInOrder() {
+        ArrayPathEventQueue queue = new ArrayPathEventQueue(4, OverflowPolicy.BLOCK);
+        publish(queue, EventKind.CREATE, "a");
+        queue.onPathsChanged(Collections.singletonList(PathEvent.moved(path("a"), path("b"))));
+        publish(queue, EventKind.MODIFY, "b");
+        assertEquals(3, queue.size());
+
+        List<PathEvent> events = new ArrayList<>();
+        assertEquals(2, queue.drainTo(events, 2));
+        assertEquals(Arrays.asList(PathEvent.of(EventKind.CREATE, path("a")), PathEvent.moved(path("a"), path("b"))),
+                events);
+        assertEquals(PathEvent.of(EventKind.MODIFY, path("b")), queue.poll());
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testDropsOldestEventsWhenFull() {
+        ArrayPathEventQueue queue = new ArrayPathEventQueue(2, OverflowPolicy.DROP_OLDEST);
+        for (String path : Arrays.asList("a", "b", "c", "d")) {
+            publish(queue, EventKind.CREATE, path);
+        }
+        assertEquals(Arrays.asList("CREATE c", "CREATE d"), drain(queue));
+    }
+
+    @Test
+    public void testCoalescesEventsWhenFull() {
+        ArrayPathEventQueue queue = new ArrayPathEventQueue(2, OverflowPolicy.COALESCE);
+        publish(queue, EventKind.CREATE, "a");
+        publish(queue, EventKind.CREATE, "b");
+        publish(queue, EventKind.CREATE, "c");
+        publish(queue, EventKind.MODIFY, "c");
+        publish(queue, EventKind.CREATE, "d");
+        publish(queue, EventKind.DELETE, "d");
+        publish(queue, EventKind.MODIFY, "a");
+        assertEquals(4, queue.size());
+
+        assertEquals(Arrays.asList("CREATE a", "CREATE b", "CREATE c", "MODIFY a"), drain(queue));
+        // the overflow buffer is empty again, so new events go to the queue
+        publish(queue, EventKind.DELETE, "a");
+        assertEquals(Collections.singletonList("DELETE a"), drain(queue));
+    }
+
+    @Test
+    public void testBlocksProducerUntilConsumerTakesEvent() throws Exception {
+        final ArrayPathEventQueue queue = new ArrayPathEventQueue(2, OverflowPolicy.BLOCK);
+        publish(queue, EventKind.CREATE, "a");
+        publish(queue, EventKind.CREATE, "x");
+        Future<?> producer = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                publish(queue, EventKind.CREATE, "b");
+            }
+        });
+        Thread.sleep(100L);
+        assertFalse(producer.isDone());
+
+        assertEquals(PathEvent.of(EventKind.CREATE, path("a")), queue.poll());
+        producer.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("CREATE x", "CREATE b"), drain(queue));
+    }
+
+    @Test
+    public void testWaitsForEvents() throws Exception {
+        final ArrayPathEventQueue queue = new ArrayPathEventQueue(4, OverflowPolicy.BLOCK);
+        assertNull(queue.poll(10L, TimeUnit.MILLISECONDS));
+
+        Future<PathEvent> consumer = executor.submit(new Callable<PathEvent>() {
+            @Override
+            public PathEvent call() throws Exception {
+                return queue.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+        });
+        Thread.sleep(100L);
+        publish(queue, EventKind.CREATE, "a");
+        assertEquals(PathEvent.of(EventKind.CREATE, path("a")), consumer.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testDeliversEventsOfConcurrentProducers() throws Exception {
+        final ArrayPathEventQueue queue = new ArrayPathEventQueue(16, OverflowPolicy.BLOCK);
+        final int producers = 4;
+        final int eventsPerProducer = 10000;
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < eventsPerProducer; i++) {
+                        publish(queue, EventKind.MODIFY, "file-" + producer + "-" + i);
+                    }
+                }
+            });
+        }
+        Set<Path> received = new HashSet<>();
+        List<PathEvent> batch = new ArrayList<>();
+        while (received.size() < producers * eventsPerProducer) {
+            PathEvent event = queue.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (event == null) {
+                break;
+            }
+            received.add(event.getPath());
+            queue.drainTo(batch, 8);
+            for (PathEvent e : batch) {
+                received.add(e.getPath());
+            }
+            batch.clear();
+        }
+        assertEquals(producers * eventsPerProducer, received.size());
+        assertTrue(received.contains(path("file-3-9999")));
+    }
+
+    private static List<String> drain(ArrayPathEventQueue queue) {
+        List<String> events = new ArrayList<>();
+        PathEvent event;
+        while ((event = queue.poll()) != null) {
+            events.add(event.toString());
+        }
+        return events;
+    }
+
+    private static void publish(ArrayPathEventQueue queue, EventKind eventKind, String path) {
+        queue.onPathsChanged(Collections.singletonList(PathEvent.of(eventKind, path(path))));
+    }
+
+    private static Path path(String path) {
+        return Paths.get(path);
+    }
+}
@@ -0,0 +1,125 @@
+package name.mitterdorfer.perlock.impl.dispatch;
+
+import name.mitterdorfer.perlock.BatchPathChangeListener;
+import name.mitterdorfer.perlock.EventKind;
+import name.mitterdorfer.perlock.PathEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DebouncingDispatcherTest {
+    private static final long QUIET_PERIOD_MILLIS = 50L;
+    // generous to avoid spurious failures on slow machines
+    private static final long TIME_GAP_QUIET_PERIOD = 4 * QUIET_PERIOD_MILLIS;
+
+    private ExecutorService executor;
+    private RecordingListener listener;
+    private DebouncingDispatcher dispatcher;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newCachedThreadPool();
+        listener = new RecordingListener();
+        dispatcher = new DebouncingDispatcher(listener, executor, QUIET_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+        dispatcher.start();
+    }
+
+    @After
+    public void tearDown() {
+        dispatcher.stop();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testMergesEventsOnSamePath() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            publish(dispatcher, EventKind.MODIFY, path("modified"));
+        }
+        publish(dispatcher, EventKind.CREATE, path("created"));
+        publish(dispatcher, EventKind.MODIFY, path("created"));
+        publish(dispatcher, EventKind.CREATE, path("temporary"));
+        publish(dispatcher, EventKind.DELETE, path("temporary"));
+        publish(dispatcher, EventKind.DELETE, path("replaced"));
+        publish(dispatcher, EventKind.CREATE, path("replaced"));
+        Thread.sleep(TIME_GAP_QUIET_PERIOD);
+
+        List<String> events = listener.events();
+        Collections.sort(events);
+        assertEquals(Arrays.asList("CREATE created", "MODIFY modified", "MODIFY replaced"), events);
+    }
+
+    @Test
+    public void testSplitsMoveIfItsPathsChangeAgain() throws Exception {
+        dispatcher.onPathsChanged(Collections.singletonList(PathEvent.moved(path("a"), path("b"))));
+        dispatcher.onPathsChanged(Collections.singletonList(PathEvent.moved(path("c"), path("d"))));
+        publish(dispatcher, EventKind.MODIFY, path("d"));
+        publish(dispatcher, EventKind.CREATE, path("c"));
+        Thread.sleep(TIME_GAP_QUIET_PERIOD);
+
+        List<String> events = listener.events();
+        Collections.sort(events);
+        assertEquals(Arrays.asList("CREATE d", "MODIFY c", "MOVE a -> b"), events);
+    }
+
+    @Test
+    public void testHoldsBackEventsUntilPathIsQuiet() throws Exception {
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIME_GAP_QUIET_PERIOD);
+        while (System.nanoTime() < end) {
+            publish(dispatcher, EventKind.MODIFY, path("busy"));
+            Thread.sleep(QUIET_PERIOD_MILLIS / 5);
+        }
+        assertTrue(listener.events().isEmpty());
+
+        Thread.sleep(TIME_GAP_QUIET_PERIOD);
+        assertEquals(Collections.singletonList("MODIFY busy"), listener.events());
+    }
+
+    @Test
+    public void testDeliversPendingEventsOnStop() throws Exception {
+        DebouncingDispatcher slowDispatcher = new DebouncingDispatcher(listener, executor, 1L, TimeUnit.HOURS);
+        slowDispatcher.start();
+        publish(slowDispatcher, EventKind.CREATE, path("file"));
+        slowDispatcher.stop();
+        Thread.sleep(TIME_GAP_QUIET_PERIOD);
+
+        assertEquals(Collections.singletonList("CREATE file"), listener.events());
+    }
+
+    private static void publish(DispatchStage stage, EventKind eventKind, Path path) {
+        stage.onPathsChanged(Collections.singletonList(PathEvent.of(eventKind, path)));
+    }
+
+    private static Path path(String name) {
+        return Paths.get(name);
+    }
+
+    private static final class RecordingListener implements BatchPathChangeListener {
+        private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void onPathsChanged(List<PathEvent> batch) {
+            for (PathEvent event : batch) {
+                events.add(event.toString());
+            }
+        }
+
+        List<String> events() {
+            synchronized (events) {
+                return new ArrayList<>(events);
+            }
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package name.mitterdorfer.perlock.impl.dispatch;
+
+import name.mitterdorfer.perlock.BatchPathChangeListener;
+import name.mitterdorfer.perlock.DispatchKey;
+import name.mitterdorfer.perlock.EventKind;
+import name.mitterdorfer.perlock.OverflowPolicy;
+import name.mitterdorfer.perlock.PathEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class KeyedParallelDispatcherTest {
+    private static final long TIMEOUT_SECONDS = 5L;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testPreservesOrderPerPath() throws Exception {
+        final int files = 50;
+        final int rounds = 200;
+        final Map<Path, List<EventKind>> received = new ConcurrentHashMap<>();
+        final CountDownLatch allReceived = new CountDownLatch(files * rounds * 3);
+        KeyedParallelDispatcher dispatcher = new KeyedParallelDispatcher(new BatchPathChangeListener() {
+            @Override
+            public void onPathsChanged(List<PathEvent> events) {
+                for (PathEvent event : events) {
+                    // each path is only ever delivered by one thread at a time
+                    received.get(event.getPath()).add(event.getEventKind());
+                    allReceived.countDown();
+                }
+            }
+        }, executor, 4, 8, DispatchKey.PATH, OverflowPolicy.BLOCK);
+        List<EventKind> expected = new ArrayList<>();
+        for (int f = 0; f < files; f++) {
+            received.put(path("file" + f), Collections.synchronizedList(new ArrayList<EventKind>()));
+        }
+        dispatcher.start();
+        for (int r = 0; r < rounds; r++) {
+            for (EventKind eventKind : new EventKind[]{EventKind.CREATE, EventKind.MODIFY, EventKind.DELETE}) {
+                for (int f = 0; f < files; f++) {
+                    publish(dispatcher, eventKind, path("file" + f));
+                }
+                expected.add(eventKind);
+            }
+        }
+        assertTrue(allReceived.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        dispatcher.stop();
+
+        for (List<EventKind> eventKinds : received.values()) {
+            assertEquals(expected, eventKinds);
+        }
+    }
+
+    @Test
+    public void testSlowEventDoesNotBlockOtherLanes() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final Path slow = path("slow");
+        final List<Path> delivered = Collections.synchronizedList(new ArrayList<Path>());
+        final CountDownLatch fastDelivered = new CountDownLatch(1);
+        KeyedParallelDispatcher dispatcher = new KeyedParallelDispatcher(new BatchPathChangeListener() {
+            @Override
+            public void onPathsChanged(List<PathEvent> events) {
+                for (PathEvent event : events) {
+                    if (event.getPath().equals(slow)) {
+                        awaitQuietly(release);
+                        delivered.add(event.getPath());
+                    } else {
+                        // record before signalling; the test thread inspects the deliveries right afterwards
+                        delivered.add(event.getPath());
+                        fastDelivered.countDown();
+                    }
+                }
+            }
+        }, executor, 2, 8, DispatchKey.PATH, OverflowPolicy.BLOCK);
+        Path fast = pathInOtherLane(dispatcher, slow);
+        dispatcher.start();
+
+        publish(dispatcher, EventKind.MODIFY, slow);
+        publish(dispatcher, EventKind.MODIFY, fast);
+        assertTrue(fastDelivered.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        release.countDown();
+        dispatcher.stop();
+        assertEquals(fast, delivered.get(0));
+    }
+
+    @Test
+    public void testOrdersMoveWithEventsOfSourcePath() throws Exception {
+        final Path source = path("source");
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch targetDelivered = new CountDownLatch(1);
+        final CountDownLatch sourceDeleted = new CountDownLatch(1);
+        final List<PathEvent> delivered = Collections.synchronizedList(new ArrayList<PathEvent>());
+        KeyedParallelDispatcher dispatcher = new KeyedParallelDispatcher(new BatchPathChangeListener() {
+            @Override
+            public void onPathsChanged(List<PathEvent> events) {
+                for (PathEvent event : events) {
+                    if (event.getEventKind() == EventKind.MODIFY) {
+                        awaitQuietly(release);
+                    }
+                    delivered.add(event.copy());
+                    if (event.getEventKind() == EventKind.DELETE) {
+                        sourceDeleted.countDown();
+                    } else if (event.getEventKind() != EventKind.MODIFY) {
+                        targetDelivered.countDown();
+                    }
+                }
+            }
+        }, executor, 2, 8, DispatchKey.PATH, OverflowPolicy.BLOCK);
+        Path target = pathInOtherLane(dispatcher, source);
+        dispatcher.start();
+
+        publish(dispatcher, EventKind.MODIFY, source);
+        dispatcher.onPathsChanged(Collections.singletonList(PathEvent.moved(source, target)));
+        // the target is not held up by the slow event of the source...
+        assertTrue(targetDelivered.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        release.countDown();
+        assertTrue(sourceDeleted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        dispatcher.stop();
+
+        // ... but the source is only moved away after its earlier event has been delivered
+        assertEquals(3, delivered.size());
+        assertEquals(PathEvent.of(EventKind.CREATE, target), delivered.get(0));
+        assertEquals(PathEvent.of(EventKind.MODIFY, source), delivered.get(1));
+        assertEquals(PathEvent.of(EventKind.DELETE, source), delivered.get(2));
+    }
+
+    @Test
+    public void testDeliversMoveWithinOneLane() throws Exception {
+        final List<PathEvent> delivered = Collections.synchronizedList(new ArrayList<PathEvent>());
+        final CountDownLatch allDelivered = new CountDownLatch(1);
+        KeyedParallelDispatcher dispatcher = new KeyedParallelDispatcher(new BatchPathChangeListener() {
+            @Override
+            public void onPathsChanged(List<PathEvent> events) {
+                for (PathEvent event : events) {
+                    delivered.add(event.copy());
+                    allDelivered.countDown();
+                }
+            }
+        }, executor, 2, 8, DispatchKey.PARENT_DIRECTORY, OverflowPolicy.BLOCK);
+        Path dir = path("incoming");
+        dispatcher.start();
+
+        dispatcher.onPathsChanged(Collections.singletonList(PathEvent.moved(dir.resolve("a.tmp"), dir.resolve("a"))));
+        assertTrue(allDelivered.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        dispatcher.stop();
+
+        assertEquals(Collections.singletonList(PathEvent.moved(dir.resolve("a.tmp"), dir.resolve("a"))), delivered);
+    }
+
+    @Test
+    public void testKeysByParentDirectory() {
+        KeyedParallelDispatcher dispatcher = new KeyedParallelDispatcher(new BatchPathChangeListener() {
+            @Override
+            public void onPathsChanged(List<PathEvent> events) {
+                // not needed
+            }
+        }, executor, 8, 8, DispatchKey.PARENT_DIRECTORY, OverflowPolicy.BLOCK);
+        Path dir = path("incoming");
+        for (int i = 0; i < 100; i++) {
+            assertEquals(dispatcher.laneOf(dir.resolve("data" + i)), dispatcher.laneOf(dir.resolve("data" + i + ".md5")));
+        }
+    }
+
+    @Test
+    public void testRethrowsListenerExceptionOnPathWatcherThread() throws Exception {
+        final RuntimeException failure = new IllegalStateException("rogue listener");
+        KeyedParallelDispatcher dispatcher = new KeyedParallelDispatcher(new BatchPathChangeListener() {
+            @Override
+            public void onPathsChanged(List<PathEvent> events) {
+                throw failure;
+            }
+        }, executor, 2, 8, DispatchKey.PATH, OverflowPolicy.BLOCK);
+        dispatcher.start();
+        publish(dispatcher, EventKind.CREATE, path("a"));
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        try {
+            // the failure is recorded only after the listener has thrown
+            for (int i = 0; System.nanoTime() < end; i++) {
+                Thread.sleep(10L);
+                publish(dispatcher, EventKind.CREATE, path("b" + i));
+            }
+            fail("Expected listener exception to be rethrown");
+        } catch (IllegalStateException ex) {
+            assertSame(failure, ex);
+        } finally {
+            dispatcher.stop();
+        }
+    }
+
+    private static Path pathInOtherLane(KeyedParallelDispatcher dispatcher, Path path) {
+        for (int i = 0; ; i++) {
+            Path candidate = path("fast" + i);
+            if (dispatcher.laneOf(candidate) != dispatcher.laneOf(path)) {
+                return candidate;
+            }
+        }
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void publish(KeyedParallelDispatcher dispatcher, EventKind eventKind, Path path) {
+        dispatcher.onPathsChanged(Collections.singletonList(PathEvent.of(eventKind, path)));
+    }
+
+    private static Path path(String path) {
+        return Paths.get(path);
+    }
+}
@@ -0,0 +1,181 @@
+package name.mitterdorfer.perlock.impl.dispatch;
+
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import name.mitterdorfer.perlock.EventKind;
+import name.mitterdorfer.perlock.PathEvent;
+import name.mitterdorfer.perlock.PathEventSubscriber;
+import name.mitterdorfer.perlock.PathEventSubscription;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PathEventBroadcasterTest {
+    private FileSystem fs;
+    private PathEventBroadcaster broadcaster;
+
+    @Before
+    public void setUp() {
+        fs = Jimfs.newFileSystem(Configuration.unix());
+        broadcaster = new PathEventBroadcaster(2);
+    }
+
+    @Test
+    public void testDeliversOnlyRequestedEvents() {
+        RecordingSubscriber subscriber = subscribe();
+        publish(EventKind.CREATE, "a");
+        publish(EventKind.CREATE, "b");
+        assertTrue(subscriber.events.isEmpty());
+
+        subscriber.subscription.request(1L);
+        assertEquals(Collections.singletonList("CREATE a"), subscriber.events);
+        subscriber.subscription.request(5L);
+        assertEquals(Arrays.asList("CREATE a", "CREATE b"), subscriber.events);
+        // the remaining demand is used for new events immediately
+        publish(EventKind.MODIFY, "b");
+        assertEquals(Arrays.asList("CREATE a", "CREATE b", "MODIFY b"), subscriber.events);
+    }
+
+    @Test
+    public void testMergesEventsPerPathOnceBufferIsFull() {
+        RecordingSubscriber subscriber = subscribe();
+        publish(EventKind.CREATE, "a");
+        publish(EventKind.MODIFY, "a");
+        publish(EventKind.CREATE, "b");
+        publish(EventKind.MODIFY, "b");
+        publish(EventKind.CREATE, "c");
+        publish(EventKind.DELETE, "c");
+        broadcaster.onPathsChanged(Collections.singletonList(PathEvent.moved(path("d"), path("e"))));
+        publish(EventKind.MODIFY, "b");
+
+        subscriber.subscription.request(Long.MAX_VALUE);
+        assertEquals(Arrays.asList("CREATE a", "MODIFY a", "CREATE b", "DELETE d", "CREATE e"), subscriber.events);
+    }
+
+    @Test
+    public void testSubscribersHaveIndependentDemand() {
+        RecordingSubscriber first = subscribe();
+        RecordingSubscriber second = subscribe();
+        first.subscription.request(Long.MAX_VALUE);
+        publish(EventKind.CREATE, "a");
+
+        assertEquals(Collections.singletonList("CREATE a"), first.events);
+        assertTrue(second.events.isEmpty());
+        second.subscription.cancel();
+        second.subscription.request(1L);
+        assertTrue(second.events.isEmpty());
+    }
+
+    @Test
+    public void testCompletesAfterBufferedEvents() {
+        RecordingSubscriber subscriber = subscribe();
+        publish(EventKind.CREATE, "a");
+        broadcaster.terminate();
+        assertFalse(subscriber.completed);
+
+        subscriber.subscription.request(1L);
+        assertEquals(Collections.singletonList("CREATE a"), subscriber.events);
+        assertTrue(subscriber.completed);
+        // late subscribers are completed immediately
+        assertTrue(subscribe().completed);
+    }
+
+    @Test
+    public void testSignalsFailure() {
+        RecordingSubscriber subscriber = subscribe();
+        IOException failure = new IOException("watch service closed");
+        broadcaster.fail(failure);
+        broadcaster.terminate();
+
+        assertSame(failure, subscriber.error);
+        assertFalse(subscriber.completed);
+    }
+
+    @Test
+    public void testRejectsNonPositiveDemand() {
+        RecordingSubscriber subscriber = subscribe();
+        publish(EventKind.CREATE, "a");
+        subscriber.subscription.request(0L);
+
+        assertTrue(subscriber.error instanceof IllegalArgumentException);
+        assertTrue(subscriber.events.isEmpty());
+    }
+
+    @Test
+    public void testForgetsSubscriberThatCancelsInOnSubscribe() {
+        RecordingSubscriber subscriber = new RecordingSubscriber() {
+            @Override
+            public void onSubscribe(PathEventSubscription subscription) {
+                super.onSubscribe(subscription);
+                subscription.cancel();
+            }
+        };
+        broadcaster.subscribe(subscriber);
+        RecordingSubscriber rejected = new RecordingSubscriber() {
+            @Override
+            public void onSubscribe(PathEventSubscription subscription) {
+                super.onSubscribe(subscription);
+                subscription.request(0L);
+            }
+        };
+        broadcaster.subscribe(rejected);
+        publish(EventKind.CREATE, "a");
+
+        assertEquals(0, broadcaster.getSubscriberCount());
+        assertTrue(subscriber.events.isEmpty());
+        assertTrue(rejected.error instanceof IllegalArgumentException);
+    }
+
+    private RecordingSubscriber subscribe() {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        broadcaster.subscribe(subscriber);
+        return subscriber;
+    }
+
+    private void publish(EventKind eventKind, String path) {
+        broadcaster.onPathsChanged(Collections.singletonList(PathEvent.of(eventKind, path(path))));
+    }
+
+    private Path path(String path) {
+        return fs.getPath(path);
+    }
+
+    private static class RecordingSubscriber implements PathEventSubscriber {
+        private final List<String> events = new ArrayList<>();
+        private PathEventSubscription subscription;
+        private Throwable error;
+        private boolean completed;
+
+        @Override
+        public void onSubscribe(PathEventSubscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(PathEvent event) {
+            events.add(event.toString());
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package name.mitterdorfer.perlock.impl.dispatch;
+
+import name.mitterdorfer.perlock.EventKind;
+import name.mitterdorfer.perlock.OverflowPolicy;
+import name.mitterdorfer.perlock.PathChangeListener;
+import name.mitterdorfer.perlock.PathEvent;
+import name.mitterdorfer.perlock.WaitStrategy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RingBufferDispatcherTest {
+    private static final long TIMEOUT_SECONDS = 5L;
+
+    private ExecutorService executor;
+    private RecordingListener listener;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newSingleThreadExecutor();
+        listener = new RecordingListener();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testDeliversAllEventsInOrder() throws Exception {
+        for (WaitStrategy waitStrategy : WaitStrategy.values()) {
+            RecordingListener recorder = new RecordingListener();
+            RingBufferDispatcher dispatcher = new RingBufferDispatcher(new PathChangeListenerAdapter(recorder), executor,
+                    8, waitStrategy, OverflowPolicy.BLOCK);
+            dispatcher.start();
+            List<String> expected = new ArrayList<>();
+            for (int i = 0; i < 10000; i++) {
+                publish(dispatcher, EventKind.MODIFY, path("file" + i));
+                expected.add("MODIFY file" + i);
+            }
+            recorder.awaitEvents(expected.size());
+            dispatcher.stop();
+            assertEquals(expected, recorder.events());
+        }
+    }
+
+    @Test
+    public void testDropsOldestEventsWhenFull() throws Exception {
+        RingBufferDispatcher dispatcher = new RingBufferDispatcher(new PathChangeListenerAdapter(listener), executor, 4,
+                WaitStrategy.PARK, OverflowPolicy.DROP_OLDEST);
+        dispatcher.start();
+        // the consumer blocks in the listener on the first event so the ring buffer fills up
+        publish(dispatcher, EventKind.CREATE, path("blocker"));
+        listener.awaitBlocked();
+        for (int i = 1; i <= 10; i++) {
+            publish(dispatcher, EventKind.CREATE, path("file" + i));
+        }
+        listener.unblock();
+        listener.awaitEvents(5);
+        dispatcher.stop();
+
+        assertEquals(Arrays.asList("CREATE blocker", "CREATE file7", "CREATE file8", "CREATE file9", "CREATE file10"),
+                listener.events());
+    }
+
+    @Test
+    public void testCoalescesEventsWhenFull() throws Exception {
+        RingBufferDispatcher dispatcher = new RingBufferDispatcher(new PathChangeListenerAdapter(listener), executor, 2,
+                WaitStrategy.PARK, OverflowPolicy.COALESCE);
+        dispatcher.start();
+        publish(dispatcher, EventKind.CREATE, path("blocker"));
+        listener.awaitBlocked();
+        // fills the ring buffer
+        publish(dispatcher, EventKind.CREATE, path("b"));
+        publish(dispatcher, EventKind.CREATE, path("c"));
+        // overflows
+        publish(dispatcher, EventKind.CREATE, path("d"));
+        publish(dispatcher, EventKind.MODIFY, path("d"));
+        publish(dispatcher, EventKind.CREATE, path("e"));
+        publish(dispatcher, EventKind.DELETE, path("e"));
+        publish(dispatcher, EventKind.MODIFY, path("b"));
+        publish(dispatcher, EventKind.MODIFY, path("b"));
+        listener.unblock();
+        listener.awaitEvents(5);
+        dispatcher.stop();
+
+        assertEquals(Arrays.asList("CREATE blocker", "CREATE b", "CREATE c", "CREATE d", "MODIFY b"), listener.events());
+    }
+
+    @Test
+    public void testRethrowsListenerExceptionOnProducerThread() throws Exception {
+        final RuntimeException testException = new RuntimeException("exception by rogue listener");
+        final CountDownLatch thrown = new CountDownLatch(1);
+        RingBufferDispatcher dispatcher = new RingBufferDispatcher(new PathChangeListenerAdapter(new PathChangeListener() {
+            @Override
+            public void onPathChanged(EventKind eventKind, Path path) {
+                thrown.countDown();
+                throw testException;
+            }
+        }), executor, 4, WaitStrategy.YIELD, OverflowPolicy.BLOCK);
+        dispatcher.start();
+        publish(dispatcher, EventKind.CREATE, path("file"));
+        assertTrue(thrown.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        // the dispatcher thread needs a moment to record the exception
+        Thread.sleep(50L);
+        try {
+            publish(dispatcher, EventKind.CREATE, path("file"));
+            fail("Expected exception of listener to be rethrown");
+        } catch (RuntimeException ex) {
+            assertSame(testException, ex);
+        }
+        dispatcher.stop();
+    }
+
+    private static void publish(DispatchStage stage, EventKind eventKind, Path path) {
+        stage.onPathsChanged(Collections.singletonList(PathEvent.of(eventKind, path)));
+    }
+
+    private static Path path(String name) {
+        return Paths.get(name);
+    }
+
+    private static final class RecordingListener implements PathChangeListener {
+        private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        private final CountDownLatch blocked = new CountDownLatch(1);
+        private final CountDownLatch unblocked = new CountDownLatch(1);
+
+        @Override
+        public void onPathChanged(EventKind eventKind, Path path) {
+            events.add(eventKind + " " + path);
+            if (path.toString().equals("blocker")) {
+                blocked.countDown();
+                try {
+                    unblocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        void awaitBlocked() throws InterruptedException {
+            assertTrue(blocked.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+
+        void unblock() {
+            unblocked.countDown();
+        }
+
+        void awaitEvents(int expectedEvents) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+            while (events.size() < expectedEvents && System.nanoTime() < deadline) {
+                Thread.sleep(10L);
+            }
+            // give the dispatcher the chance to deliver unexpected additional events
+            Thread.sleep(50L);
+        }
+
+        List<String> events() {
+            synchronized (events) {
+                return new ArrayList<>(events);
+            }
+        }
+    }
+}
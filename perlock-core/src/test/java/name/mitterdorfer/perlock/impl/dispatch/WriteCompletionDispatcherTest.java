@@ -0,0 +1,140 @@
+package name.mitterdorfer.perlock.impl.dispatch;
+
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import name.mitterdorfer.perlock.BatchPathChangeListener;
+import name.mitterdorfer.perlock.EventKind;
+import name.mitterdorfer.perlock.PathEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WriteCompletionDispatcherTest {
+    private static final long PROBE_INTERVAL_MILLIS = 50L;
+    // a file is ready after two probes; generous to avoid spurious failures on slow machines
+    private static final long TIME_GAP_READY = 6 * PROBE_INTERVAL_MILLIS;
+
+    private FileSystem fs;
+    private ExecutorService executor;
+    private RecordingListener listener;
+    private WriteCompletionDispatcher dispatcher;
+
+    @Before
+    public void setUp() {
+        fs = Jimfs.newFileSystem(Configuration.unix());
+        executor = Executors.newCachedThreadPool();
+        listener = new RecordingListener();
+        dispatcher = new WriteCompletionDispatcher(listener, executor, PROBE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        dispatcher.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        dispatcher.stop();
+        executor.shutdownNow();
+        fs.close();
+    }
+
+    @Test
+    public void testReportsFileAsReadyOnceItIsNotWrittenToAnymore() throws Exception {
+        Path file = Files.createFile(fs.getPath("message.xml"));
+        publish(EventKind.CREATE, file);
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIME_GAP_READY);
+        while (System.nanoTime() < end) {
+            // some writers do not trigger any event (e.g. on network file systems)
+            append(file);
+            Thread.sleep(PROBE_INTERVAL_MILLIS / 5);
+        }
+        assertTrue(listener.events().isEmpty());
+
+        Thread.sleep(TIME_GAP_READY);
+        assertEquals(Collections.singletonList("READY message.xml"), listener.events());
+    }
+
+    @Test
+    public void testPassesOnOtherEvents() throws Exception {
+        Path dir = Files.createDirectory(fs.getPath("dir"));
+        Path existing = Files.createFile(fs.getPath("existing"));
+        publish(EventKind.CREATE, fs.getPath("temporary"));
+        publish(EventKind.DELETE, fs.getPath("temporary"));
+        publish(EventKind.MODIFY, existing);
+        publish(EventKind.DELETE, existing);
+        publish(EventKind.CREATE, dir);
+        Thread.sleep(TIME_GAP_READY);
+
+        assertEquals(Arrays.asList("DELETE existing", "CREATE dir"), listener.events());
+    }
+
+    @Test
+    public void testKeepsMovedFilePending() throws Exception {
+        Path file = Files.createFile(fs.getPath("message.tmp"));
+        publish(EventKind.CREATE, file);
+        Path target = Files.move(file, fs.getPath("message.xml"));
+        dispatcher.onPathsChanged(Collections.singletonList(PathEvent.moved(file, target)));
+        Thread.sleep(TIME_GAP_READY);
+
+        assertEquals(Collections.singletonList("READY message.xml"), listener.events());
+    }
+
+    @Test
+    public void testReportsFileThatHasBeenClosedAfterWritingImmediately() throws Exception {
+        Path file = Files.createFile(fs.getPath("message.xml"));
+        publish(EventKind.CREATE, file);
+        dispatcher.closedAfterWrite(file);
+        Thread.sleep(PROBE_INTERVAL_MILLIS / 2);
+
+        assertEquals(Collections.singletonList("READY message.xml"), listener.events());
+    }
+
+    @Test
+    public void testDeliversPendingEventsOnStop() throws Exception {
+        Path file = Files.createFile(fs.getPath("message.xml"));
+        publish(EventKind.CREATE, file);
+        dispatcher.stop();
+        Thread.sleep(PROBE_INTERVAL_MILLIS);
+
+        assertEquals(Collections.singletonList("CREATE message.xml"), listener.events());
+    }
+
+    private void publish(EventKind eventKind, Path path) {
+        dispatcher.onPathsChanged(Collections.singletonList(PathEvent.of(eventKind, path)));
+    }
+
+    private static void append(Path file) throws IOException {
+        Files.write(file, Collections.singleton("<message/>"), StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+    }
+
+    private static final class RecordingListener implements BatchPathChangeListener {
+        private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void onPathsChanged(List<PathEvent> batch) {
+            for (PathEvent event : batch) {
+                events.add(event.toString());
+            }
+        }
+
+        List<String> events() {
+            synchronized (events) {
+                return new ArrayList<>(events);
+            }
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package name.mitterdorfer.perlock.impl.inotify;
+
+import name.mitterdorfer.perlock.AssertingPathChangeListener;
+import name.mitterdorfer.perlock.PathWatcher;
+import name.mitterdorfer.perlock.PathWatcherFactory;
+import name.mitterdorfer.perlock.WatchOptions;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs only if the native library is on the <code>java.library.path</code> (build it with the
+ * <code>inotifyLibrary</code> task).
+ */
+public class InotifyWatchServiceTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path rootPath;
+    private InotifyWatchService watchService;
+
+    @Before
+    public void setUp() throws Exception {
+        Assume.assumeTrue(InotifyWatchService.isSupported(FileSystems.getDefault()));
+        rootPath = folder.getRoot().toPath();
+        watchService = InotifyWatchService.open();
+    }
+
+    @After
+    public void tearDown() {
+        if (watchService != null) {
+            watchService.close();
+        }
+    }
+
+    @Test
+    public void testReportsEvents() throws Exception {
+        WatchKey key = watchService.register(rootPath, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+        assertSame(key, watchService.register(rootPath, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE));
+
+        Path file = Files.createFile(rootPath.resolve("text.txt"));
+        Files.write(file, Collections.singleton("Don't Panic."), StandardCharsets.UTF_8);
+        Files.delete(file);
+
+        List<String> events = new ArrayList<>();
+        while (events.size() < 3) {
+            WatchKey signalled = watchService.poll(1L, TimeUnit.SECONDS);
+            assertSame(key, signalled);
+            for (WatchEvent<?> event : signalled.pollEvents()) {
+                assertEquals(file.getFileName(), event.context());
+                events.add(event.kind().name());
+            }
+            assertTrue(signalled.reset());
+        }
+        assertEquals(ENTRY_CREATE.name(), events.get(0));
+        assertEquals(ENTRY_MODIFY.name(), events.get(1));
+        assertEquals(ENTRY_DELETE.name(), events.get(events.size() - 1));
+        assertNull(watchService.poll());
+    }
+
+    @Test
+    public void testRelatesRenameEventsByCookie() throws Exception {
+        WatchKey key = watchService.register(rootPath, ENTRY_CREATE, ENTRY_DELETE);
+        Path file = Files.createFile(rootPath.resolve("old.txt"));
+        assertSame(key, watchService.poll(1L, TimeUnit.SECONDS));
+        key.pollEvents();
+        assertTrue(key.reset());
+
+        Files.move(file, rootPath.resolve("new.txt"));
+
+        assertSame(key, watchService.poll(1L, TimeUnit.SECONDS));
+        List<WatchEvent<?>> events = key.pollEvents();
+        assertEquals(2, events.size());
+        assertEquals(ENTRY_DELETE, events.get(0).kind());
+        assertEquals(ENTRY_CREATE, events.get(1).kind());
+        assertTrue(InotifyWatchService.moveCookieOf(events.get(0)) != 0);
+        assertEquals(InotifyWatchService.moveCookieOf(events.get(0)), InotifyWatchService.moveCookieOf(events.get(1)));
+    }
+
+    @Test
+    public void testTellsWhetherEntryIsDirectory() throws Exception {
+        WatchKey key = watchService.register(rootPath, ENTRY_CREATE);
+        Files.createFile(rootPath.resolve("text.txt"));
+        Files.createDirectory(rootPath.resolve("dir0"));
+
+        List<WatchEvent<?>> events = new ArrayList<>();
+        while (events.size() < 2) {
+            assertSame(key, watchService.poll(1L, TimeUnit.SECONDS));
+            events.addAll(key.pollEvents());
+            assertTrue(key.reset());
+        }
+        assertTrue(InotifyWatchService.isKnownNonDirectory(events.get(0)));
+        assertFalse(InotifyWatchService.isKnownNonDirectory(events.get(1)));
+    }
+
+    @Test
+    public void testInvalidatesKeyOfDeletedDirectory() throws Exception {
+        Path dir = Files.createDirectory(rootPath.resolve("dir0"));
+        WatchKey key = watchService.register(dir, ENTRY_CREATE);
+
+        Files.delete(dir);
+
+        assertSame(key, watchService.poll(1L, TimeUnit.SECONDS));
+        assertFalse(key.reset());
+        assertFalse(key.isValid());
+    }
+
+    @Test(expected = NoSuchFileException.class)
+    public void testCannotRegisterMissingDirectory() throws Exception {
+        watchService.register(rootPath.resolve("missing"), ENTRY_CREATE);
+    }
+
+    @Test
+    public void testCloseWakesUpWaitingThread() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<WatchKey> result = executor.submit(new Callable<WatchKey>() {
+                @Override
+                public WatchKey call() throws Exception {
+                    return watchService.take();
+                }
+            });
+            Thread.sleep(50L);
+            watchService.close();
+            try {
+                result.get(1L, TimeUnit.SECONDS);
+                fail("take() should have failed");
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof ClosedWatchServiceException);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testRecursiveWatcherUsesNativeBackend() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        AssertingPathChangeListener listener = new AssertingPathChangeListener();
+        PathWatcher watcher = new PathWatcherFactory(executor).createRecursiveWatcher(rootPath, listener);
+        watcher.start();
+
+        Path dir = Files.createDirectory(rootPath.resolve("dir0"));
+        Thread.sleep(100L);
+        Path file = Files.createFile(dir.resolve("text.txt"));
+        Thread.sleep(100L);
+
+        watcher.stop();
+        executor.shutdown();
+        listener.assertPathCreated(dir);
+        listener.assertPathCreated(file);
+    }
+
+    @Test
+    public void testRecursiveWatcherFollowsMovedDirectory() throws Exception {
+        Path dir = Files.createDirectories(rootPath.resolve("dir0/dir1"));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        AssertingPathChangeListener listener = new AssertingPathChangeListener();
+        WatchOptions options = WatchOptions.builder().detectMoves(100L, TimeUnit.MILLISECONDS).build();
+        PathWatcher watcher = new PathWatcherFactory(executor).createRecursiveWatcher(rootPath, listener, options);
+        watcher.start();
+        Thread.sleep(100L);
+
+        Path movedDir = rootPath.resolve("dir2");
+        Files.move(dir.getParent(), movedDir);
+        Thread.sleep(100L);
+        Path file = Files.createFile(movedDir.resolve("dir1/text.txt"));
+        Thread.sleep(100L);
+
+        watcher.stop();
+        executor.shutdown();
+        listener.assertPathDeleted(dir.getParent());
+        listener.assertPathCreated(movedDir);
+        listener.assertPathCreated(file);
+    }
+
+    @Test
+    public void testReportsFileAsReadyWhenItIsClosedAfterWriting() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        AssertingPathChangeListener listener = new AssertingPathChangeListener();
+        // without the close event the file would not be ready before the watcher stops
+        WatchOptions options = WatchOptions.builder().awaitWriteCompletion(10L, TimeUnit.SECONDS, executor).build();
+        PathWatcher watcher = new PathWatcherFactory(executor).createRecursiveWatcher(rootPath, listener, options);
+        watcher.start();
+
+        Path file = Files.write(rootPath.resolve("message.xml"), Collections.singleton("<message/>"),
+                StandardCharsets.UTF_8);
+        Thread.sleep(100L);
+        listener.assertPathReady(file);
+
+        watcher.stop();
+        executor.shutdown();
+        listener.assertPathNotCreated(file);
+    }
+}
@@ -0,0 +1,135 @@
+package name.mitterdorfer.perlock.impl.metrics;
+
+import name.mitterdorfer.perlock.EventKind;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StripedWatchMetricsTest {
+    @Test
+    public void testSumsCountersOfConcurrentThreads() throws Exception {
+        final StripedWatchMetrics metrics = new StripedWatchMetrics(null);
+        final int threads = 4;
+        final int events = 10000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < events; i++) {
+                        metrics.onEvent(EventKind.MODIFY);
+                        metrics.onWakeup(2);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5L, TimeUnit.SECONDS));
+
+        assertEquals(threads * events, metrics.getEvents());
+        assertEquals(Long.valueOf(threads * events), metrics.getEventsByKind().get("MODIFY"));
+        assertEquals(Long.valueOf(0L), metrics.getEventsByKind().get("CREATE"));
+        assertEquals(threads * events, metrics.getWakeups());
+        assertEquals(2.0d, metrics.getEventsPerWakeup(), 0.0d);
+    }
+
+    @Test
+    public void testSumsCountersOfMoreThreadsThanStripes() throws Exception {
+        final StripedWatchMetrics metrics = new StripedWatchMetrics(null);
+        // more threads than stripes, so some threads do not own a stripe and record into the shared one
+        final int threads = 100;
+        final int invocations = 1000;
+        Thread[] recorders = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            recorders[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < invocations; i++) {
+                        metrics.onListenerInvoked(1000L);
+                    }
+                }
+            });
+            recorders[t].start();
+        }
+        for (Thread recorder : recorders) {
+            recorder.join();
+        }
+
+        assertEquals(threads * invocations, metrics.getListenerInvocations());
+        assertEquals(1000.0d, metrics.getListenerLatencyMeanNanos(), 0.0d);
+        assertEquals(1000L, metrics.getListenerLatencyMaxNanos());
+    }
+
+    @Test
+    public void testRecordsIntoParent() {
+        StripedWatchMetrics parent = new StripedWatchMetrics(null);
+        StripedWatchMetrics first = new StripedWatchMetrics(parent);
+        StripedWatchMetrics second = new StripedWatchMetrics(parent);
+        first.onKeyRegistered();
+        second.onKeyRegistered();
+        second.onKeysInvalidated(3);
+        first.onOverflow();
+        first.onRegistrationCompleted(TimeUnit.MILLISECONDS.toNanos(20L), 10L);
+
+        assertEquals(1L, first.getRegisteredKeys());
+        assertEquals(2L, parent.getRegisteredKeys());
+        assertEquals(3L, parent.getInvalidatedKeys());
+        assertEquals(1L, parent.getOverflows());
+        assertEquals(1L, parent.getRegistrations());
+        assertEquals(20L, parent.getRegistrationTimeMillis());
+        assertEquals(10L, parent.getDirectoriesWalked());
+    }
+
+    @Test
+    public void testListenerLatencyPercentiles() {
+        StripedWatchMetrics metrics = new StripedWatchMetrics(null);
+        for (int i = 0; i < 98; i++) {
+            metrics.onListenerInvoked(1000L);
+        }
+        metrics.onListenerInvoked(100000L);
+        metrics.onListenerInvoked(5000000L);
+
+        assertEquals(100L, metrics.getListenerInvocations());
+        // 1000 ns are in the bucket [512, 1023]
+        assertEquals(1023L, metrics.getListenerLatencyP50Nanos());
+        assertEquals(131071L, metrics.getListenerLatencyP99Nanos());
+        assertEquals(5000000L, metrics.getListenerLatencyMaxNanos());
+        assertEquals(5000000L, metrics.listenerLatencyPercentile(1.0d));
+        assertEquals((98 * 1000L + 100000L + 5000000L) / 100.0d, metrics.getListenerLatencyMeanNanos(), 0.001d);
+    }
+
+    @Test
+    public void testBucketsArePowersOfTwo() {
+        assertEquals(0, StripedWatchMetrics.bucketOf(0L));
+        assertEquals(1, StripedWatchMetrics.bucketOf(1L));
+        assertEquals(2, StripedWatchMetrics.bucketOf(2L));
+        assertEquals(2, StripedWatchMetrics.bucketOf(3L));
+        assertEquals(3, StripedWatchMetrics.bucketOf(4L));
+        assertEquals(63, StripedWatchMetrics.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testRegistersMBean() throws Exception {
+        StripedWatchMetrics metrics = new StripedWatchMetrics(null);
+        metrics.onEvent(EventKind.CREATE);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = metrics.registerMBean("test, with special characters");
+        try {
+            assertEquals("PathWatcherMetrics", name.getKeyProperty("type"));
+            assertEquals(1L, server.getAttribute(name, "Events"));
+            assertEquals(0L, server.getAttribute(name, "Overflows"));
+        } finally {
+            server.unregisterMBean(name);
+        }
+        assertFalse(server.isRegistered(name));
+    }
+}
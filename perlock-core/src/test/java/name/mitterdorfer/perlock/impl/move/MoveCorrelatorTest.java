@@ -0,0 +1,104 @@
+package name.mitterdorfer.perlock.impl.move;
+
+import name.mitterdorfer.perlock.impl.recovery.DirectorySnapshot;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class MoveCorrelatorTest {
+    private static final long WINDOW = 100L;
+
+    private MoveCorrelator moves;
+    private RecordingSink sink;
+
+    @Before
+    public void setUp() {
+        moves = new MoveCorrelator(WINDOW);
+        sink = new RecordingSink();
+    }
+
+    @Test
+    public void testCorrelatesDeletionAndCreationOfSameEntry() {
+        moves.deleted(Paths.get("old.txt"), 1, 0L, sink);
+
+        assertNull(moves.created(2));
+        assertEquals(Paths.get("old.txt"), moves.created(1));
+
+        assertTrue(moves.isEmpty());
+        assertEquals(-1L, moves.expire(WINDOW, sink));
+        assertTrue(sink.deleted.isEmpty());
+    }
+
+    @Test
+    public void testReleasesDeletionsAfterWindow() {
+        moves.deleted(Paths.get("first.txt"), 1, 0L, sink);
+        moves.deleted(Paths.get("second.txt"), 2, 10L, sink);
+
+        assertEquals(WINDOW, moves.expire(0L, sink));
+        assertEquals(10L, moves.expire(WINDOW, sink));
+        assertEquals(Collections.singletonList(Paths.get("first.txt")), sink.deleted);
+
+        assertEquals(-1L, moves.expire(WINDOW + 10L, sink));
+        assertEquals(Arrays.asList(Paths.get("first.txt"), Paths.get("second.txt")), sink.deleted);
+        assertNull(moves.created(2));
+    }
+
+    @Test
+    public void testReleasesDeletionOfRecreatedPath() {
+        moves.deleted(Paths.get("file.txt"), 1, 0L, sink);
+
+        assertTrue(moves.release(Paths.get("file.txt"), sink));
+        assertFalse(moves.release(Paths.get("file.txt"), sink));
+
+        assertEquals(Collections.singletonList(Paths.get("file.txt")), sink.deleted);
+        assertTrue(moves.isEmpty());
+    }
+
+    @Test
+    public void testDoesNotMistakeReusedFileKeyForMove() {
+        DirectorySnapshot.Entry renamed = entry(42L, 1000L, 10L, false);
+        DirectorySnapshot.Entry recreated = entry(42L, 2000L, 0L, false);
+
+        assertEquals(MoveCorrelator.identityOf(renamed), MoveCorrelator.identityOf(entry(42L, 1000L, 10L, false)));
+        assertNotEquals(MoveCorrelator.identityOf(renamed), MoveCorrelator.identityOf(recreated));
+        // a moved directory might have a new modification time
+        assertEquals(MoveCorrelator.identityOf(entry(43L, 1000L, 4096L, true)),
+                MoveCorrelator.identityOf(entry(43L, 2000L, 4096L, true)));
+        assertNull(MoveCorrelator.identityOf(entry(null, 1000L, 10L, false)));
+    }
+
+    private static DirectorySnapshot.Entry entry(Object fileKey, long lastModified, long size, boolean directory) {
+        BasicFileAttributes attributes = mock(BasicFileAttributes.class);
+        when(attributes.fileKey()).thenReturn(fileKey);
+        when(attributes.lastModifiedTime()).thenReturn(FileTime.fromMillis(lastModified));
+        when(attributes.size()).thenReturn(size);
+        when(attributes.isDirectory()).thenReturn(directory);
+        when(attributes.isRegularFile()).thenReturn(!directory);
+        return DirectorySnapshot.Entry.of(attributes);
+    }
+
+    private static final class RecordingSink implements MoveCorrelator.Sink {
+        private final List<Path> deleted = new ArrayList<>();
+
+        @Override
+        public void onDeleted(Path path) {
+            deleted.add(path);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package name.mitterdorfer.perlock.impl.poll;
+
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import name.mitterdorfer.perlock.impl.recovery.DirectorySnapshot;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PollingPathWatcherTest {
+    private static final long MIN = TimeUnit.MILLISECONDS.toNanos(100L);
+    private static final long MAX = TimeUnit.SECONDS.toNanos(1L);
+
+    private Path rootPath;
+
+    @Before
+    public void setUp() throws Exception {
+        rootPath = Files.createDirectory(Jimfs.newFileSystem(Configuration.unix()).getPath("/rootPath"));
+    }
+
+    @Test
+    public void testBacksOffWhileIdle() {
+        long interval = MIN;
+        interval = PollingPathWatcher.nextInterval(interval, false, MIN, MAX);
+        assertEquals(2 * MIN, interval);
+        for (int i = 0; i < 10; i++) {
+            interval = PollingPathWatcher.nextInterval(interval, false, MIN, MAX);
+        }
+        assertEquals(MAX, interval);
+
+        assertEquals(MIN, PollingPathWatcher.nextInterval(interval, true, MIN, MAX));
+    }
+
+    @Test
+    public void testSkipsListingOfUnchangedDirectory() throws Exception {
+        Path file = Files.createFile(rootPath.resolve("text.txt"));
+        FileTime longAgo = FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1L));
+        Files.setLastModifiedTime(rootPath, longAgo);
+        DirectorySnapshot previous = DirectorySnapshot.scan(rootPath);
+
+        // pretend that the file system did not update the modification time of the directory
+        Path hiddenFile = Files.createFile(rootPath.resolve("hidden.txt"));
+        Files.setLastModifiedTime(rootPath, longAgo);
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 1000L));
+
+        DirectorySnapshot current = DirectorySnapshot.rescan(rootPath, previous);
+
+        assertNull(current.get(hiddenFile.getFileName()));
+        assertTrue(previous.get(file.getFileName()).isModified(current.get(file.getFileName())));
+
+        // a directory that has changed is listed again
+        Files.setLastModifiedTime(rootPath, FileTime.fromMillis(System.currentTimeMillis()));
+        assertNotNull(DirectorySnapshot.rescan(rootPath, current).get(hiddenFile.getFileName()));
+    }
+
+    @Test
+    public void testListsRecentlyModifiedDirectory() throws Exception {
+        DirectorySnapshot previous = DirectorySnapshot.scan(rootPath);
+        Path file = Files.createFile(rootPath.resolve("text.txt"));
+        // within the granularity of coarse timestamps the modification time cannot be trusted
+        Files.setLastModifiedTime(rootPath, previous.getDirectory().lastModifiedTime());
+
+        assertNotNull(DirectorySnapshot.rescan(rootPath, previous).get(file.getFileName()));
+    }
+}
@@ -0,0 +1,245 @@
+package name.mitterdorfer.perlock.impl.recovery;
+
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import name.mitterdorfer.perlock.EventKind;
+import name.mitterdorfer.perlock.impl.tree.TreeMirror;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CheckpointFileTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path rootPath;
+    private CheckpointFile checkpoint;
+    private RecordingSink sink;
+
+    @Before
+    public void setUp() throws Exception {
+        FileSystem fs = Jimfs.newFileSystem(Configuration.unix());
+        rootPath = Files.createDirectory(fs.getPath("/rootPath"));
+        checkpoint = new CheckpointFile(Files.createDirectory(fs.getPath("/checkpoints")).resolve("root.checkpoint"));
+        sink = new RecordingSink();
+    }
+
+    @Test
+    public void testReportsNoCheckpointIfFileDoesNotExist() throws Exception {
+        assertFalse(checkpoint.read(rootPath, new MapSnapshotStore()));
+    }
+
+    @Test
+    public void testRestoresSnapshotsOfSubtree() throws Exception {
+        Path dirLevel0 = Files.createDirectory(rootPath.resolve("dir0"));
+        Path dirLevel1 = Files.createDirectory(dirLevel0.resolve("dir1"));
+        Path file = Files.write(dirLevel1.resolve("file.txt"), new byte[]{1, 2, 3});
+        OverflowRecovery recovery = new OverflowRecovery(true, null, 0L);
+        recovery.track(rootPath);
+        recovery.checkpoint(rootPath, checkpoint);
+
+        MapSnapshotStore restored = new MapSnapshotStore();
+        assertTrue(checkpoint.read(rootPath, restored));
+
+        assertEquals(1, restored.get(rootPath).size());
+        assertTrue(restored.get(rootPath).get(dirLevel0.getFileName()).isDirectory());
+        assertNotNull(restored.get(dirLevel0).getDirectory());
+        DirectorySnapshot.Entry entry = restored.get(dirLevel1).get(file.getFileName());
+        assertTrue(entry.isRegularFile());
+        assertEquals(3L, entry.size());
+        assertEquals(Files.getLastModifiedTime(file).toMillis(), entry.getLastModified());
+        assertEquals(String.valueOf(Files.getAttribute(file, "fileKey")), entry.fileKey());
+    }
+
+    @Test
+    public void testRestoresMirror() throws Exception {
+        Path dirLevel0 = Files.createDirectory(rootPath.resolve("dir0"));
+        Path file = Files.createFile(dirLevel0.resolve("file.txt"));
+        TreeMirror mirror = new TreeMirror(rootPath);
+        OverflowRecovery recovery = new OverflowRecovery(true, null, 0L, mirror);
+        recovery.track(rootPath);
+        recovery.checkpoint(rootPath, checkpoint);
+
+        TreeMirror restored = new TreeMirror(rootPath);
+        assertTrue(checkpoint.read(rootPath, restored));
+
+        assertEquals(Collections.singletonList(dirLevel0), restored.list(rootPath));
+        assertEquals(Collections.singletonList(file), restored.list(dirLevel0));
+        assertTrue(restored.getAttributes(file).isRegularFile());
+    }
+
+    @Test
+    public void testCatchesUpOnChangesSinceCheckpoint() throws Exception {
+        Path dirLevel0 = Files.createDirectory(rootPath.resolve("dir0"));
+        Path modified = Files.createFile(dirLevel0.resolve("modified.txt"));
+        Path deleted = Files.createFile(rootPath.resolve("deleted.txt"));
+        Path deletedDir = Files.createDirectory(rootPath.resolve("deletedDir"));
+        Files.createFile(deletedDir.resolve("file.txt"));
+        Files.createFile(dirLevel0.resolve("unchanged.txt"));
+        OverflowRecovery before = new OverflowRecovery(true, null, 0L);
+        before.track(rootPath);
+        before.checkpoint(rootPath, checkpoint);
+
+        Files.write(modified, new byte[]{42});
+        Files.delete(deleted);
+        Files.delete(deletedDir.resolve("file.txt"));
+        Files.delete(deletedDir);
+        Path createdDir = Files.createDirectory(dirLevel0.resolve("createdDir"));
+        Path created = Files.createFile(createdDir.resolve("created.txt"));
+
+        OverflowRecovery after = new OverflowRecovery(true, null, 0L);
+        assertTrue(after.restore(rootPath, checkpoint));
+        after.rescanIfDue(sink);
+
+        List<String> events = sink.events();
+        // whether the modification time of the directory has changed depends on the timestamp granularity
+        events.remove("MODIFY " + dirLevel0);
+        Collections.sort(events);
+        assertEquals(Arrays.asList("CREATE " + createdDir, "CREATE " + created, "DELETE " + deleted,
+                "DELETE " + deletedDir, "MODIFY " + modified), events);
+    }
+
+    @Test
+    public void testReportsReplacedFileAsModified() throws Exception {
+        Path replaced = Files.write(rootPath.resolve("replaced.txt"), new byte[]{1});
+        Path replacement = Files.write(rootPath.resolve("replacement.txt"), new byte[]{2});
+        Files.setLastModifiedTime(replacement, Files.getLastModifiedTime(replaced));
+        OverflowRecovery before = new OverflowRecovery(false, null, 0L);
+        before.track(rootPath);
+        before.checkpoint(rootPath, checkpoint);
+
+        Files.delete(replaced);
+        Files.move(replacement, replaced);
+        OverflowRecovery after = new OverflowRecovery(false, null, 0L);
+        after.restore(rootPath, checkpoint);
+        after.rescanIfDue(sink);
+
+        assertEquals(Arrays.asList("DELETE " + replacement, "MODIFY " + replaced), sink.events());
+    }
+
+    @Test
+    public void testReplacesPreviousCheckpoint() throws Exception {
+        OverflowRecovery recovery = new OverflowRecovery(false, null, 0L);
+        recovery.track(rootPath);
+        recovery.checkpoint(rootPath, checkpoint);
+        Path created = Files.createFile(rootPath.resolve("created.txt"));
+        recovery.update(EventKind.CREATE, created);
+        recovery.checkpoint(rootPath, checkpoint);
+
+        MapSnapshotStore restored = new MapSnapshotStore();
+        checkpoint.read(rootPath, restored);
+
+        assertNotNull(restored.get(rootPath).get(created.getFileName()));
+        // no temporary files are left behind
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(checkpoint.getFile().getParent())) {
+            List<Path> checkpoints = new ArrayList<>();
+            for (Path file : files) {
+                checkpoints.add(file);
+            }
+            assertEquals(Collections.singletonList(checkpoint.getFile()), checkpoints);
+        }
+    }
+
+    @Test
+    public void testRejectsTruncatedCheckpoint() throws Exception {
+        Files.createFile(rootPath.resolve("file.txt"));
+        OverflowRecovery recovery = new OverflowRecovery(false, null, 0L);
+        recovery.track(rootPath);
+        recovery.checkpoint(rootPath, checkpoint);
+        byte[] content = Files.readAllBytes(checkpoint.getFile());
+        Files.write(checkpoint.getFile(), Arrays.copyOf(content, content.length - 3));
+
+        assertCorrupt(rootPath);
+    }
+
+    @Test
+    public void testRejectsOtherFileFormat() throws Exception {
+        Files.write(checkpoint.getFile(), "not a checkpoint".getBytes("UTF-8"));
+
+        assertCorrupt(rootPath);
+    }
+
+    @Test
+    public void testRejectsCheckpointOfOtherRootPath() throws Exception {
+        OverflowRecovery recovery = new OverflowRecovery(false, null, 0L);
+        recovery.track(rootPath);
+        recovery.checkpoint(rootPath, checkpoint);
+
+        assertCorrupt(Files.createDirectory(rootPath.resolveSibling("otherRootPath")));
+    }
+
+    @Test
+    public void testForgetsSnapshotsIfCheckpointCannotBeRestored() throws Exception {
+        Files.write(checkpoint.getFile(), "not a checkpoint".getBytes("UTF-8"));
+        MapSnapshotStore snapshots = new MapSnapshotStore();
+        snapshots.replace(rootPath, DirectorySnapshot.scan(rootPath));
+        OverflowRecovery recovery = new OverflowRecovery(false, null, 0L, snapshots);
+
+        try {
+            recovery.restore(rootPath, checkpoint);
+            fail("Expected corrupt checkpoint to be rejected");
+        } catch (IOException ex) {
+            assertFalse(snapshots.isTracked(rootPath));
+        }
+    }
+
+    @Test
+    public void testReadsMemoryMappedCheckpointOnDefaultFileSystem() throws Exception {
+        Path realRoot = temporaryFolder.newFolder("rootPath").toPath();
+        Path dir = Files.createDirectory(realRoot.resolve("dir"));
+        Files.createFile(dir.resolve("file.txt"));
+        CheckpointFile realCheckpoint = new CheckpointFile(temporaryFolder.getRoot().toPath().resolve("checkpoint"));
+        OverflowRecovery before = new OverflowRecovery(true, null, 0L);
+        before.track(realRoot);
+        before.checkpoint(realRoot, realCheckpoint);
+
+        Path created = Files.createFile(dir.resolve("created.txt"));
+        OverflowRecovery after = new OverflowRecovery(true, null, 0L);
+        assertTrue(after.restore(realRoot, realCheckpoint));
+        after.rescanIfDue(sink);
+
+        // the file keys of the checkpoint and of the live tree match; file.txt is unchanged
+        List<String> events = sink.events();
+        events.remove("MODIFY " + dir);
+        assertEquals(Collections.singletonList("CREATE " + created), events);
+    }
+
+    private void assertCorrupt(Path root) {
+        try {
+            checkpoint.read(root, new MapSnapshotStore());
+            fail("Expected checkpoint to be rejected");
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+
+    private static final class RecordingSink implements OverflowRecovery.Sink {
+        private final List<String> events = new ArrayList<>();
+
+        @Override
+        public void onRecoveredEvent(EventKind eventKind, Path path) {
+            events.add(eventKind + " " + path);
+        }
+
+        private List<String> events() {
+            return events;
+        }
+    }
+}
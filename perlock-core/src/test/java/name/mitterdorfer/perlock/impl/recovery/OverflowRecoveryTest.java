@@ -0,0 +1,125 @@
+package name.mitterdorfer.perlock.impl.recovery;
+
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import name.mitterdorfer.perlock.EventKind;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OverflowRecoveryTest {
+    private Path rootPath;
+    private ExecutorService executor;
+    private RecordingSink sink;
+
+    @Before
+    public void setUp() throws Exception {
+        FileSystem fs = Jimfs.newFileSystem(Configuration.unix());
+        rootPath = Files.createDirectory(fs.getPath("/rootPath"));
+        executor = Executors.newFixedThreadPool(2);
+        sink = new RecordingSink();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testSynthesizesMissingEventsFromDiff() throws Exception {
+        Path modified = Files.createFile(rootPath.resolve("modified.txt"));
+        Path deleted = Files.createFile(rootPath.resolve("deleted.txt"));
+        Files.createFile(rootPath.resolve("unchanged.txt"));
+        OverflowRecovery recovery = new OverflowRecovery(false, executor, 0L);
+        recovery.track(rootPath);
+
+        Files.write(modified, new byte[]{42});
+        Files.delete(deleted);
+        Path created = Files.createFile(rootPath.resolve("created.txt"));
+        recovery.overflow(rootPath);
+        assertEquals(-1L, recovery.rescanIfDue(sink));
+
+        assertEquals(Arrays.asList("CREATE " + created, "DELETE " + deleted, "MODIFY " + modified), sink.events());
+    }
+
+    @Test
+    public void testDoesNotRepeatEventsThatHaveBeenReceived() throws Exception {
+        OverflowRecovery recovery = new OverflowRecovery(false, executor, 0L);
+        recovery.track(rootPath);
+
+        Path received = Files.createFile(rootPath.resolve("received.txt"));
+        recovery.update(EventKind.CREATE, received);
+        Path lost = Files.createFile(rootPath.resolve("lost.txt"));
+        recovery.overflow(rootPath);
+        recovery.rescanIfDue(sink);
+
+        assertEquals(Collections.singletonList("CREATE " + lost), sink.events());
+    }
+
+    @Test
+    public void testRescansSubtreeOfRecursiveWatcher() throws Exception {
+        Path dirLevel0 = Files.createDirectory(rootPath.resolve("dir0"));
+        Path deletedDir = Files.createDirectory(rootPath.resolve("deletedDir"));
+        Files.createFile(deletedDir.resolve("file.txt"));
+        OverflowRecovery recovery = new OverflowRecovery(true, executor, 0L);
+        recovery.track(rootPath);
+
+        Path dirLevel1 = Files.createDirectory(dirLevel0.resolve("dir1"));
+        Path fileInDirLevel1 = Files.createFile(dirLevel1.resolve("file.txt"));
+        Files.delete(deletedDir.resolve("file.txt"));
+        Files.delete(deletedDir);
+        // all keys overflow. The subtree of the root path is rescanned only once
+        recovery.overflow(dirLevel0);
+        recovery.overflow(rootPath);
+        recovery.rescanIfDue(sink);
+
+        // depending on the timestamp resolution there might also be a MODIFY event for dir0
+        List<String> events = sink.events();
+        events.remove("MODIFY " + dirLevel0);
+        assertEquals(Arrays.asList("CREATE " + dirLevel1, "CREATE " + fileInDirLevel1, "DELETE " + deletedDir), events);
+    }
+
+    @Test
+    public void testRateLimitsRescans() throws Exception {
+        OverflowRecovery recovery = new OverflowRecovery(false, executor, TimeUnit.HOURS.toNanos(1L));
+        recovery.track(rootPath);
+        recovery.overflow(rootPath);
+        assertEquals(-1L, recovery.rescanIfDue(sink));
+
+        Files.createFile(rootPath.resolve("created.txt"));
+        recovery.overflow(rootPath);
+        long delay = recovery.rescanIfDue(sink);
+
+        assertTrue(delay > 0L && delay <= TimeUnit.HOURS.toNanos(1L));
+        assertTrue(sink.events().isEmpty());
+    }
+
+    private static final class RecordingSink implements OverflowRecovery.Sink {
+        private final List<String> events = new ArrayList<>();
+
+        @Override
+        public void onRecoveredEvent(EventKind eventKind, Path path) {
+            events.add(eventKind + " " + path);
+        }
+
+        List<String> events() {
+            List<String> sorted = new ArrayList<>(events);
+            Collections.sort(sorted);
+            return sorted;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package name.mitterdorfer.perlock.impl.tree;
+
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import name.mitterdorfer.perlock.EventKind;
+import name.mitterdorfer.perlock.impl.recovery.OverflowRecovery;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TreeMirrorTest {
+    private FileSystem fs;
+    private Path rootPath;
+    private TreeMirror mirror;
+    private OverflowRecovery recovery;
+
+    @Before
+    public void setUp() throws Exception {
+        fs = Jimfs.newFileSystem(Configuration.unix());
+        rootPath = Files.createDirectory(fs.getPath("/rootPath"));
+        mirror = new TreeMirror(rootPath);
+        recovery = new OverflowRecovery(true, null, 0L, mirror);
+    }
+
+    @Test
+    public void testMirrorsInitialTree() throws Exception {
+        Path dirLevel0 = Files.createDirectory(rootPath.resolve("dir0"));
+        Path dirLevel1 = Files.createDirectory(dirLevel0.resolve("dir1"));
+        Path fileInRootPath = Files.write(rootPath.resolve("text.txt"), new byte[]{1, 2, 3});
+        Path fileInDirLevel1 = Files.createFile(dirLevel1.resolve("quotes.txt"));
+        recovery.track(rootPath);
+
+        assertTrue(mirror.exists(rootPath));
+        assertTrue(mirror.exists(fileInDirLevel1));
+        assertFalse(mirror.exists(rootPath.resolve("missing.txt")));
+        assertFalse(mirror.exists(fs.getPath("/elsewhere")));
+        assertEquals(Arrays.asList(dirLevel0, fileInRootPath), sorted(mirror.list(rootPath)));
+        assertEquals(Collections.singletonList(fileInDirLevel1), mirror.list(dirLevel1));
+        assertNull(mirror.list(fileInRootPath));
+
+        BasicFileAttributes attributes = mirror.getAttributes(fileInRootPath);
+        assertTrue(attributes.isRegularFile());
+        assertEquals(3L, attributes.size());
+        assertEquals(Files.getLastModifiedTime(fileInRootPath), attributes.lastModifiedTime());
+        assertTrue(mirror.getAttributes(dirLevel1).isDirectory());
+    }
+
+    @Test
+    public void testFollowsEvents() throws Exception {
+        Path deletedDir = Files.createDirectory(rootPath.resolve("deletedDir"));
+        Path fileInDeletedDir = Files.createFile(deletedDir.resolve("file.txt"));
+        recovery.track(rootPath);
+
+        Path dirLevel0 = Files.createDirectory(rootPath.resolve("dir0"));
+        Path fileInDirLevel0 = Files.createFile(dirLevel0.resolve("file.txt"));
+        recovery.update(EventKind.CREATE, dirLevel0);
+        Files.write(fileInDirLevel0, new byte[]{42});
+        recovery.update(EventKind.MODIFY, fileInDirLevel0);
+        Files.delete(fileInDeletedDir);
+        Files.delete(deletedDir);
+        recovery.update(EventKind.DELETE, deletedDir);
+
+        assertEquals(Collections.singletonList(dirLevel0), mirror.list(rootPath));
+        assertEquals(Collections.singletonList(fileInDirLevel0), mirror.list(dirLevel0));
+        assertEquals(1L, mirror.getAttributes(fileInDirLevel0).size());
+        assertFalse(mirror.exists(deletedDir));
+        assertFalse(mirror.exists(fileInDeletedDir));
+    }
+
+    @Test
+    public void testSwitchesToMapForLargeDirectories() throws Exception {
+        recovery.track(rootPath);
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Path file = Files.createFile(rootPath.resolve("file" + i + ".txt"));
+            recovery.update(EventKind.CREATE, file);
+            files.add(file);
+        }
+        for (int i = 0; i < 100; i += 2) {
+            Path file = files.get(i);
+            Files.delete(file);
+            recovery.update(EventKind.DELETE, file);
+        }
+
+        List<Path> remaining = new ArrayList<>();
+        for (int i = 1; i < 100; i += 2) {
+            assertTrue(mirror.exists(files.get(i)));
+            assertFalse(mirror.exists(files.get(i - 1)));
+            remaining.add(files.get(i));
+        }
+        assertEquals(sorted(remaining), sorted(mirror.list(rootPath)));
+    }
+
+    @Test
+    public void testRecoversFromOverflow() throws Exception {
+        Path dirLevel0 = Files.createDirectory(rootPath.resolve("dir0"));
+        Path deleted = Files.createFile(dirLevel0.resolve("deleted.txt"));
+        recovery.track(rootPath);
+
+        Files.delete(deleted);
+        Path created = Files.createFile(dirLevel0.resolve("created.txt"));
+        recovery.overflow(dirLevel0);
+        recovery.rescanIfDue(new OverflowRecovery.Sink() {
+            @Override
+            public void onRecoveredEvent(EventKind eventKind, Path path) {
+                // not needed
+            }
+        });
+
+        assertEquals(Collections.singletonList(created), mirror.list(dirLevel0));
+        assertTrue(mirror.exists(dirLevel0));
+    }
+
+    private static List<Path> sorted(List<Path> paths) {
+        List<Path> sorted = new ArrayList<>(paths);
+        Collections.sort(sorted);
+        return sorted;
+    }
+}
@@ -0,0 +1,76 @@
+package name.mitterdorfer.perlock.impl.watch;
+
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import name.mitterdorfer.perlock.WatchOptions;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PathFilterTest {
+    private Path rootPath;
+
+    @Before
+    public void setUp() {
+        rootPath = Jimfs.newFileSystem(Configuration.unix()).getPath("/rootPath");
+    }
+
+    @Test
+    public void testNoFilterForDefaultOptions() {
+        assertNull(PathFilter.create(rootPath, WatchOptions.defaults()));
+    }
+
+    @Test
+    public void testPrunesExcludedDirectories() {
+        PathFilter filter = PathFilter.create(rootPath, WatchOptions.builder()
+                .exclude("glob:{.git,**/.git}")
+                .exclude("regex:.*/target")
+                .build());
+
+        assertTrue(filter.isWatched(rootPath));
+        assertTrue(filter.isWatched(rootPath.resolve("src")));
+        assertFalse(filter.isWatched(rootPath.resolve(".git")));
+        assertFalse(filter.isWatched(rootPath.resolve("module/.git")));
+        assertFalse(filter.isWatched(rootPath.resolve("module/target")));
+        // only submodules have a target directory in this example
+        assertTrue(filter.isWatched(rootPath.resolve("target")));
+
+        assertFalse(filter.isExcluded(rootPath.resolve("src/Main.java")));
+        assertTrue(filter.isExcluded(rootPath.resolve(".git")));
+        assertTrue(filter.isExcluded(rootPath.resolve(".git/objects/pack")));
+        assertTrue(filter.isExcluded(rootPath.resolve("module/target/classes")));
+    }
+
+    @Test
+    public void testLimitsDepth() {
+        PathFilter filter = PathFilter.create(rootPath, WatchOptions.builder().maxDepth(1).build());
+
+        assertTrue(filter.isWatched(rootPath.resolve("dir0")));
+        assertFalse(filter.isWatched(rootPath.resolve("dir0/dir1")));
+
+        // entries of the deepest watched directories are reported
+        assertFalse(filter.isExcluded(rootPath.resolve("dir0/dir1")));
+        assertTrue(filter.isExcluded(rootPath.resolve("dir0/dir1/file.txt")));
+    }
+
+    @Test
+    public void testIncludesOnlyMatchingPaths() {
+        PathFilter filter = PathFilter.create(rootPath, WatchOptions.builder().include("glob:**.java").build());
+
+        assertTrue(filter.isIncluded(rootPath.resolve("src/Main.java")));
+        assertFalse(filter.isIncluded(rootPath.resolve("src/main.c")));
+        // include patterns do not affect registration
+        assertTrue(filter.isWatched(rootPath.resolve("src")));
+        assertFalse(filter.isExcluded(rootPath.resolve("src/main.c")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsPatternWithoutSyntax() {
+        WatchOptions.builder().exclude("**/target");
+    }
+}
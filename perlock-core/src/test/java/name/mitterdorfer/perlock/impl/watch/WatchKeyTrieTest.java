@@ -0,0 +1,223 @@
+package name.mitterdorfer.perlock.impl.watch;
+
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.nio.file.WatchKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class WatchKeyTrieTest {
+    private Path rootPath;
+    private RecordingTrie trie;
+
+    @Before
+    public void setUp() {
+        FileSystem fs = Jimfs.newFileSystem(Configuration.unix());
+        rootPath = fs.getPath("/rootPath");
+        trie = new RecordingTrie();
+    }
+
+    @Test
+    public void testMapsKeysToPaths() {
+        WatchKey rootKey = mock(WatchKey.class);
+        WatchKey childKey = mock(WatchKey.class);
+        Path child = rootPath.resolve("dir0");
+
+        assertNull(trie.put(rootKey, rootPath));
+        assertNull(trie.put(childKey, child));
+
+        assertEquals(2, trie.size());
+        assertEquals(rootPath, trie.get(rootKey));
+        assertEquals(child, trie.get(childKey));
+        assertTrue(trie.containsKey(childKey));
+        assertNull(trie.get(mock(WatchKey.class)));
+        assertEquals(2, trie.added.size());
+    }
+
+    @Test
+    public void testUpdatesPathOfKey() {
+        WatchKey key = mock(WatchKey.class);
+        Path oldPath = rootPath.resolve("old");
+        Path newPath = rootPath.resolve("new");
+        trie.put(key, oldPath);
+
+        assertEquals(oldPath, trie.put(key, newPath));
+
+        assertEquals(1, trie.size());
+        assertEquals(newPath, trie.get(key));
+        assertEquals(1, trie.added.size());
+    }
+
+    @Test
+    public void testRemovesKeys() {
+        WatchKey rootKey = mock(WatchKey.class);
+        WatchKey childKey = mock(WatchKey.class);
+        Path child = rootPath.resolve("dir0").resolve("dir1");
+        trie.put(rootKey, rootPath);
+        trie.put(childKey, child);
+
+        assertEquals(child, trie.remove(childKey));
+        assertNull(trie.remove(childKey));
+
+        assertEquals(1, trie.size());
+        assertEquals(rootPath, trie.get(rootKey));
+        assertEquals(1, trie.removed.size());
+        assertFalse(trie.detach(child));
+    }
+
+    @Test
+    public void testDetachesSubtree() {
+        WatchKey dirKey = mock(WatchKey.class);
+        WatchKey subDirKey = mock(WatchKey.class);
+        Path dir = rootPath.resolve("dir0");
+        Path subDir = dir.resolve("dir1");
+        trie.put(dirKey, dir);
+        trie.put(subDirKey, subDir);
+
+        assertTrue(trie.detach(dir));
+
+        // stale keys are still resolved until they are removed
+        assertEquals(subDir, trie.get(subDirKey));
+        // the directory is created again
+        WatchKey newDirKey = mock(WatchKey.class);
+        trie.put(newDirKey, dir);
+        assertEquals(dir, trie.get(newDirKey));
+        assertEquals(dir, trie.remove(dirKey));
+        assertEquals(subDir, trie.remove(subDirKey));
+        assertEquals(1, trie.size());
+        assertEquals(dir, trie.get(newDirKey));
+    }
+
+    @Test
+    public void testRemovesDeletedSubtree() {
+        WatchKey rootKey = mock(WatchKey.class);
+        WatchKey dirKey = mock(WatchKey.class);
+        WatchKey subDirKey = mock(WatchKey.class);
+        WatchKey siblingKey = mock(WatchKey.class);
+        Path dir = rootPath.resolve("dir0");
+        trie.put(rootKey, rootPath);
+        trie.put(dirKey, dir);
+        trie.put(subDirKey, dir.resolve("dir1").resolve("dir2"));
+        trie.put(siblingKey, rootPath.resolve("dir3"));
+
+        assertTrue(trie.removeTree(rootKey, dir.getFileSystem().getPath("file.txt")).isEmpty());
+        List<WatchKey> removed = trie.removeTree(rootKey, dir.getFileSystem().getPath("dir0"));
+
+        assertEquals(2, removed.size());
+        assertTrue(removed.containsAll(Arrays.asList(dirKey, subDirKey)));
+        assertEquals(removed, trie.cleared);
+        assertEquals(2, trie.size());
+        assertEquals(rootPath.resolve("dir3"), trie.get(siblingKey));
+        assertTrue(trie.removeTree(siblingKey, dir.getFileSystem().getPath("dir0")).isEmpty());
+    }
+
+    @Test
+    public void testMovesSubtree() {
+        WatchKey dirKey = mock(WatchKey.class);
+        WatchKey subDirKey = mock(WatchKey.class);
+        WatchKey siblingKey = mock(WatchKey.class);
+        Path dir = rootPath.resolve("dir0");
+        Path sibling = rootPath.resolve("dir3");
+        trie.put(dirKey, dir);
+        trie.put(subDirKey, dir.resolve("dir1"));
+        trie.put(siblingKey, sibling);
+        // materialize the old paths
+        assertEquals(dir.resolve("dir1"), trie.get(subDirKey));
+
+        Path target = sibling.resolve("dir4");
+        assertTrue(trie.move(dir, target));
+
+        assertEquals(target, trie.get(dirKey));
+        assertEquals(target.resolve("dir1"), trie.get(subDirKey));
+        assertEquals(sibling, trie.get(siblingKey));
+        assertEquals(3, trie.size());
+        assertTrue(trie.removed.isEmpty());
+        assertFalse(trie.move(dir, rootPath.resolve("dir5")));
+        List<WatchKey> removed = trie.removeTree(target);
+        assertEquals(2, removed.size());
+        assertTrue(removed.containsAll(Arrays.asList(dirKey, subDirKey)));
+    }
+
+    @Test
+    public void testReplacesStaleKeyForSamePath() {
+        WatchKey staleKey = mock(WatchKey.class);
+        WatchKey newKey = mock(WatchKey.class);
+        Path dir = rootPath.resolve("dir0");
+        trie.put(staleKey, dir);
+
+        trie.put(newKey, dir);
+
+        assertEquals(2, trie.size());
+        assertEquals(dir, trie.get(staleKey));
+        assertEquals(dir, trie.get(newKey));
+    }
+
+    @Test
+    public void testClearsAllKeys() {
+        List<WatchKey> keys = new ArrayList<>();
+        Map<WatchKey, Path> expected = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            WatchKey key = mock(WatchKey.class);
+            Path dir = rootPath.resolve("dir" + i % 10).resolve("dir" + i);
+            keys.add(key);
+            expected.put(key, dir);
+            trie.put(key, dir);
+        }
+        assertEquals(expected, trie);
+
+        trie.clear();
+
+        assertTrue(trie.isEmpty());
+        assertEquals(keys.size(), trie.cleared.size());
+        assertTrue(trie.cleared.containsAll(keys));
+    }
+
+    @Test
+    public void testReusesReclaimedNodes() {
+        Map<WatchKey, Path> expected = new HashMap<>();
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 100; i++) {
+                WatchKey key = mock(WatchKey.class);
+                Path dir = rootPath.resolve("round" + round).resolve("dir" + i);
+                trie.put(key, dir);
+                expected.put(key, dir);
+            }
+            // remove every other key of the previous rounds
+            List<WatchKey> keys = new ArrayList<>(expected.keySet());
+            for (int i = 0; i < keys.size(); i += 2) {
+                assertEquals(expected.remove(keys.get(i)), trie.remove(keys.get(i)));
+            }
+        }
+        assertEquals(expected, trie);
+    }
+
+    private static final class RecordingTrie extends WatchKeyTrie {
+        private final List<WatchKey> added = new ArrayList<>();
+        private final List<WatchKey> removed = new ArrayList<>();
+        private final List<WatchKey> cleared = new ArrayList<>();
+
+        @Override
+        protected void keyAdded(WatchKey watchKey) {
+            added.add(watchKey);
+        }
+
+        @Override
+        protected void keyRemoved(WatchKey watchKey, boolean clear) {
+            (clear ? cleared : removed).add(watchKey);
+        }
+    }
+}
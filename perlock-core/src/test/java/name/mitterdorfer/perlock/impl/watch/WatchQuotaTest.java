@@ -0,0 +1,155 @@
+package name.mitterdorfer.perlock.impl.watch;
+
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WatchQuotaTest {
+    private FileSystem fs;
+    private Path procRoot;
+
+    @Before
+    public void setUp() throws Exception {
+        fs = Jimfs.newFileSystem(Configuration.unix());
+        procRoot = Files.createDirectories(fs.getPath("/proc"));
+        write(procRoot.resolve("sys/fs/inotify/max_user_watches"), "10");
+        // two processes of the current user with 3 and 2 watches
+        addInotifyInstance("100", "3", 3);
+        addInotifyInstance("200", "4", 2);
+        // other file descriptors are ignored
+        Path regularFile = write(procRoot.resolve("100/fdinfo/5"), "inotify wd:1 ino:1 sdev:1 mask:1");
+        Files.createSymbolicLink(procRoot.resolve("100/fd/5"), regularFile);
+        Files.createDirectories(procRoot.resolve("self"));
+    }
+
+    private void addInotifyInstance(String pid, String fd, int watches) throws Exception {
+        Files.createDirectories(procRoot.resolve(pid).resolve("fd"));
+        Files.createSymbolicLink(procRoot.resolve(pid).resolve("fd").resolve(fd), fs.getPath("anon_inode:inotify"));
+        StringBuilder fdInfo = new StringBuilder("pos:\t0\nflags:\t00\n");
+        for (int i = 1; i <= watches; i++) {
+            fdInfo.append("inotify wd:").append(i).append(" ino:").append(i).append(" sdev:1 mask:fc6\n");
+        }
+        write(procRoot.resolve(pid).resolve("fdinfo").resolve(fd), fdInfo.toString());
+    }
+
+    private static Path write(Path file, String content) throws Exception {
+        Files.createDirectories(file.getParent());
+        return Files.write(file, Arrays.asList(content), StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void testReadsLimitsFromProc() {
+        InotifyLimits limits = new InotifyLimits(procRoot);
+
+        assertEquals(10, limits.readMaxUserWatches());
+        assertEquals(5, limits.countUserWatches());
+    }
+
+    @Test
+    public void testLimitsAreUnknownWithoutProc() {
+        InotifyLimits limits = new InotifyLimits(fs.getPath("/missing"));
+        WatchBudgetManager budget = new WatchBudgetManager(limits);
+
+        assertEquals(-1, limits.readMaxUserWatches());
+        assertEquals(-1, limits.countUserWatches());
+        assertEquals(Integer.MAX_VALUE, budget.getLimit());
+    }
+
+    @Test
+    public void testSharesBudgetBetweenQuotas() {
+        WatchBudgetManager budget = new WatchBudgetManager(new InotifyLimits(procRoot));
+        WatchQuota first = new WatchQuota(budget, Integer.MAX_VALUE);
+        WatchQuota second = new WatchQuota(budget, Integer.MAX_VALUE);
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(first.tryAcquire());
+        }
+        assertTrue(second.tryAcquire());
+        assertTrue(second.tryAcquire());
+        assertFalse(second.tryAcquire());
+
+        assertEquals(5, budget.getLimit());
+        assertEquals(5, budget.getReserved());
+        assertEquals(3, first.getReserved());
+
+        first.release(1);
+        assertTrue(second.tryAcquire());
+        assertEquals(3, second.getReserved());
+    }
+
+    @Test
+    public void testRefreshesLimitWhenReservationFails() throws Exception {
+        WatchBudgetManager budget = new WatchBudgetManager(new InotifyLimits(procRoot), Long.MAX_VALUE, 0L);
+        WatchQuota quota = new WatchQuota(budget, Integer.MAX_VALUE);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(quota.tryAcquire());
+        }
+        // our own watches are part of the usage but do not reduce the limit
+        addInotifyInstance("300", "3", 5);
+        assertFalse(quota.tryAcquire());
+        assertEquals(5, budget.getLimit());
+
+        // another process has released its watches
+        write(procRoot.resolve("200/fdinfo/4"), "pos:\t0\nflags:\t00");
+
+        assertTrue(quota.tryAcquire());
+        assertEquals(7, budget.getLimit());
+        assertEquals(8, budget.getSystemUsage());
+    }
+
+    @Test
+    public void testSamplesUsageOnlyPeriodically() throws Exception {
+        WatchBudgetManager budget = new WatchBudgetManager(new InotifyLimits(procRoot));
+        assertEquals(5, budget.getSystemUsage());
+
+        addInotifyInstance("300", "3", 5);
+
+        assertEquals(5, budget.getSystemUsage());
+        assertEquals(5, budget.getLimit());
+    }
+
+    @Test
+    public void testLimitsWatchesPerQuota() {
+        WatchQuota quota = new WatchQuota(null, 2);
+
+        assertTrue(quota.tryAcquire());
+        assertTrue(quota.tryAcquire());
+        assertFalse(quota.tryAcquire());
+        quota.release(1);
+        assertTrue(quota.tryAcquire());
+    }
+
+    @Test
+    public void testHandsOverDegradedDirectories() {
+        WatchBudgetManager budget = new WatchBudgetManager(new InotifyLimits(procRoot));
+        WatchQuota quota = new WatchQuota(budget, 1);
+        Path dir = fs.getPath("/rootPath/dir0");
+        assertTrue(quota.tryAcquire());
+
+        quota.degrade(dir);
+
+        assertTrue(budget.isExhausted());
+        assertEquals(1, budget.getDegradedSubtrees());
+        assertTrue(quota.hasPendingDegraded());
+        assertEquals(dir, quota.pollDegraded());
+        assertNull(quota.pollDegraded());
+
+        quota.releaseAll();
+
+        assertFalse(budget.isExhausted());
+        assertEquals(0, budget.getReserved());
+        assertEquals(0, quota.getReserved());
+    }
+}
@@ -1,21 +1,32 @@
 package name.mitterdorfer.perlock.impl.watch.registration;
 
+import name.mitterdorfer.perlock.EventKind;
+import name.mitterdorfer.perlock.impl.inotify.WatchLimitReachedException;
+import name.mitterdorfer.perlock.impl.watch.RegistrationTracker;
+import name.mitterdorfer.perlock.impl.watch.WatchQuota;
 import name.mitterdorfer.perlock.impl.watch.WatchRegistrationStrategy;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Matchers;
 
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileSystemException;
 import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
@@ -36,13 +47,52 @@ public class NonRecursiveRegistrationStrategyTest {
         WatchService watchService = mock(WatchService.class);
         when(rootPath.register(eq(watchService), Matchers.<WatchEvent.Kind>anyVararg())).thenReturn(watchKeyForRootPath);
 
-        strategy.registerRoot(watchService, rootPath);
+        strategy.registerRoot(watchService, rootPath, new RegistrationTracker(null));
 
         assertEquals(1, keys.size());
         assertTrue(keys.containsKey(watchKeyForRootPath));
         assertEquals(rootPath, keys.get(watchKeyForRootPath));
     }
 
+    @Test
+    public void testRegistersOnlyRequestedEventKinds() throws Exception {
+        strategy = new NonRecursiveRegistrationStrategy(keys, EnumSet.of(EventKind.CREATE), null);
+        Path rootPath = mock(Path.class);
+        WatchService watchService = mock(WatchService.class);
+        when(rootPath.register(eq(watchService), Matchers.<WatchEvent.Kind>anyVararg())).thenReturn(mock(WatchKey.class));
+
+        strategy.registerRoot(watchService, rootPath, new RegistrationTracker(null));
+
+        verify(rootPath).register(watchService, StandardWatchEventKinds.ENTRY_CREATE);
+    }
+
+    @Test
+    public void testDegradesDirectoryIfKernelHasNoWatchLeft() throws Exception {
+        WatchQuota quota = new WatchQuota(null, Integer.MAX_VALUE);
+        strategy = new NonRecursiveRegistrationStrategy(keys, EnumSet.of(EventKind.CREATE), quota);
+        Path rootPath = mock(Path.class);
+        WatchService watchService = mock(WatchService.class);
+        // the watch service of the JDK reports ENOSPC like this
+        when(rootPath.register(eq(watchService), Matchers.<WatchEvent.Kind>anyVararg())).thenThrow(
+                new FileSystemException("/rootPath", null, WatchLimitReachedException.REASON));
+
+        strategy.registerRoot(watchService, rootPath, new RegistrationTracker(null));
+
+        assertTrue(keys.isEmpty());
+        assertEquals(0, quota.getReserved());
+        assertEquals(rootPath, quota.pollDegraded());
+    }
+
+    @Test
+    public void testDetectsThatKernelHasNoWatchLeft() {
+        assertTrue(AbstractRegistrationStrategy.isWatchLimitReached(new WatchLimitReachedException("/rootPath")));
+        assertTrue(AbstractRegistrationStrategy.isWatchLimitReached(
+                new FileSystemException("/rootPath", null, WatchLimitReachedException.REASON)));
+        assertTrue(AbstractRegistrationStrategy.isWatchLimitReached(new IOException(WatchLimitReachedException.REASON)));
+        assertFalse(AbstractRegistrationStrategy.isWatchLimitReached(new AccessDeniedException("/rootPath")));
+        assertFalse(AbstractRegistrationStrategy.isWatchLimitReached(new IOException()));
+    }
+
     @Test
     public void testDoesNotRegisterChildPath() throws Exception {
         Path childPath = mock(Path.class);
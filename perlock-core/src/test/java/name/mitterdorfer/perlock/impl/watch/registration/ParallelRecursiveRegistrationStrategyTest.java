@@ -0,0 +1,113 @@
+package name.mitterdorfer.perlock.impl.watch.registration;
+
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import name.mitterdorfer.perlock.EventKind;
+import name.mitterdorfer.perlock.WatchOptions;
+import name.mitterdorfer.perlock.impl.watch.PathFilter;
+import name.mitterdorfer.perlock.impl.watch.RegistrationTracker;
+import name.mitterdorfer.perlock.impl.watch.WatchRegistrationStrategy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelRecursiveRegistrationStrategyTest {
+    private Path rootPath;
+    private WatchService watchService;
+    private ForkJoinPool pool;
+    private ConcurrentMap<WatchKey, Path> keys;
+    private WatchRegistrationStrategy strategy;
+
+    @Before
+    public void setUp() throws Exception {
+        FileSystem fs = Jimfs.newFileSystem(Configuration.unix());
+        rootPath = Files.createDirectory(fs.getPath("/rootPath"));
+        watchService = fs.newWatchService();
+        pool = new ForkJoinPool(4);
+        keys = new ConcurrentHashMap<>();
+        strategy = new ParallelRecursiveRegistrationStrategy(keys, pool);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.shutdownNow();
+        watchService.close();
+    }
+
+    @Test
+    public void testRegistersCompleteTree() throws Exception {
+        List<Path> dirs = new ArrayList<>();
+        dirs.add(rootPath);
+        for (int i = 0; i < 10; i++) {
+            Path dirLevel0 = Files.createDirectory(rootPath.resolve("dir" + i));
+            dirs.add(dirLevel0);
+            Files.createFile(dirLevel0.resolve("file.txt"));
+            for (int j = 0; j < 10; j++) {
+                dirs.add(Files.createDirectory(dirLevel0.resolve("dir" + j)));
+            }
+        }
+        Files.createFile(rootPath.resolve("file.txt"));
+
+        strategy.registerRoot(watchService, rootPath, new RegistrationTracker(null));
+
+        assertEquals(dirs.size(), keys.size());
+        assertEquals(new HashSet<>(dirs), new HashSet<>(keys.values()));
+    }
+
+    @Test
+    public void testRegistersNewSubtree() throws Exception {
+        strategy.registerRoot(watchService, rootPath, new RegistrationTracker(null));
+        Path dirLevel0 = Files.createDirectory(rootPath.resolve("dir0"));
+        Path dirLevel1 = Files.createDirectory(dirLevel0.resolve("dir1"));
+        Path fileInDirLevel1 = Files.createFile(dirLevel1.resolve("file.txt"));
+
+        strategy.registerChild(watchService, dirLevel0);
+        strategy.registerChild(watchService, fileInDirLevel1);
+
+        assertEquals(3, keys.size());
+        assertTrue(keys.values().contains(dirLevel1));
+    }
+
+    @Test
+    public void testPrunesExcludedSubtrees() throws Exception {
+        Path included = Files.createDirectory(rootPath.resolve("src"));
+        Path excluded = Files.createDirectory(rootPath.resolve("target"));
+        Files.createDirectory(excluded.resolve("classes"));
+        Path tooDeep = Files.createDirectories(included.resolve("main/java"));
+        PathFilter filter = PathFilter.create(rootPath, WatchOptions.builder()
+                .exclude("glob:target")
+                .maxDepth(2)
+                .build());
+        strategy = new ParallelRecursiveRegistrationStrategy(keys, filter, EnumSet.allOf(EventKind.class), null,
+                pool);
+
+        strategy.registerRoot(watchService, rootPath, new RegistrationTracker(null));
+        strategy.registerChild(watchService, excluded);
+
+        assertEquals(new HashSet<>(Arrays.asList(rootPath, included, tooDeep.getParent())),
+                new HashSet<>(keys.values()));
+    }
+
+    @Test(expected = NoSuchFileException.class)
+    public void testPropagatesIOException() throws Exception {
+        strategy.registerRoot(watchService, rootPath.resolve("missing"), new RegistrationTracker(null));
+    }
+}
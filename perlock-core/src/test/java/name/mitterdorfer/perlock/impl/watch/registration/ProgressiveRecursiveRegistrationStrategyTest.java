@@ -0,0 +1,192 @@
+package name.mitterdorfer.perlock.impl.watch.registration;
+
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import name.mitterdorfer.perlock.EventKind;
+import name.mitterdorfer.perlock.PathEvent;
+import name.mitterdorfer.perlock.impl.watch.RegistrationTracker;
+import name.mitterdorfer.perlock.impl.watch.WatchRegistrationStrategy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ProgressiveRecursiveRegistrationStrategyTest {
+    private Path rootPath;
+    private WatchService watchService;
+    private ConcurrentMap<WatchKey, Path> keys;
+    private DeferredExecutor executor;
+    private WatchRegistrationStrategy strategy;
+
+    @Before
+    public void setUp() throws Exception {
+        FileSystem fs = Jimfs.newFileSystem(Configuration.unix());
+        rootPath = Files.createDirectory(fs.getPath("/rootPath"));
+        watchService = fs.newWatchService();
+        keys = new ConcurrentHashMap<>();
+        executor = new DeferredExecutor();
+        strategy = new ProgressiveRecursiveRegistrationStrategy(keys, 1, executor);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        watchService.close();
+    }
+
+    @Test
+    public void testRegistersFirstLevelsSynchronously() throws Exception {
+        List<Path> dirs = createTree();
+        RegistrationTracker tracker = new RegistrationTracker(null);
+
+        strategy.registerRoot(watchService, rootPath, tracker);
+
+        // root path and one level below
+        assertEquals(1 + 3, keys.size());
+        assertFalse(tracker.isDone());
+        assertEquals(9, tracker.getPendingDirectories());
+
+        executor.runAll();
+
+        assertTrue(tracker.isDone());
+        assertNull(tracker.get(0, TimeUnit.SECONDS));
+        assertEquals(dirs.size(), tracker.getRegisteredDirectories());
+        assertEquals(0, tracker.getPendingDirectories());
+        assertEquals(new HashSet<>(dirs), new HashSet<>(keys.values()));
+    }
+
+    @Test
+    public void testCompletesImmediatelyForShallowTree() throws Exception {
+        Files.createDirectory(rootPath.resolve("dir0"));
+        RegistrationTracker tracker = new RegistrationTracker(null);
+
+        strategy.registerRoot(watchService, rootPath, tracker);
+
+        assertTrue(tracker.isDone());
+        assertTrue(executor.isEmpty());
+        assertEquals(2, keys.size());
+    }
+
+    @Test
+    public void testCatchesUpOnChangesBeforeRegistration() throws Exception {
+        createTree();
+        // ensure that the existing tree is older than the registration
+        Thread.sleep(10);
+        RegistrationTracker tracker = new RegistrationTracker(null);
+        strategy.registerRoot(watchService, rootPath, tracker);
+        Path newFile = Files.createFile(rootPath.resolve("dir0/dir0/dir0/new.txt"));
+
+        executor.runAll();
+
+        Set<PathEvent> events = new HashSet<>();
+        PathEvent event;
+        while ((event = tracker.pollCatchUpEvent()) != null) {
+            events.add(event);
+        }
+        assertTrue(events.contains(PathEvent.of(EventKind.CREATE, newFile)));
+        assertFalse(events.contains(PathEvent.of(EventKind.CREATE, rootPath.resolve("dir0/dir0/dir0/file.txt"))));
+    }
+
+    @Test
+    public void testDoesNotRegisterAfterAbort() throws Exception {
+        createTree();
+        RegistrationTracker tracker = new RegistrationTracker(null);
+        strategy.registerRoot(watchService, rootPath, tracker);
+        int synchronouslyRegistered = keys.size();
+
+        tracker.abort();
+        executor.runAll();
+
+        assertEquals(synchronouslyRegistered, keys.size());
+        try {
+            tracker.get();
+            fail("Aborted registration must not complete normally");
+        } catch (ExecutionException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRegistersInBackgroundThread() throws Exception {
+        createTree();
+        ExecutorService backgroundExecutor = Executors.newSingleThreadExecutor();
+        try {
+            strategy = new ProgressiveRecursiveRegistrationStrategy(keys, 0, backgroundExecutor);
+            RegistrationTracker tracker = new RegistrationTracker(null);
+
+            strategy.registerRoot(watchService, rootPath, tracker);
+            tracker.get(5, TimeUnit.SECONDS);
+
+            assertEquals(1 + 3 + 9 + 27, keys.size());
+        } finally {
+            backgroundExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Creates three levels below the root path with three directories and a file per directory.
+     *
+     * @return All directories including the root path.
+     */
+    private List<Path> createTree() throws Exception {
+        List<Path> dirs = new ArrayList<>();
+        dirs.add(rootPath);
+        List<Path> level = new ArrayList<>(dirs);
+        for (int depth = 0; depth < 3; depth++) {
+            List<Path> nextLevel = new ArrayList<>();
+            for (Path parent : level) {
+                Files.createFile(parent.resolve("file.txt"));
+                for (int i = 0; i < 3; i++) {
+                    nextLevel.add(Files.createDirectory(parent.resolve("dir" + i)));
+                }
+            }
+            dirs.addAll(nextLevel);
+            level = nextLevel;
+        }
+        return dirs;
+    }
+
+    /**
+     * Runs tasks only on request to make the background registration deterministic.
+     */
+    private static final class DeferredExecutor implements Executor {
+        private final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        public boolean isEmpty() {
+            return tasks.isEmpty();
+        }
+
+        public void runAll() {
+            for (Runnable task : tasks) {
+                task.run();
+            }
+            tasks.clear();
+        }
+    }
+}
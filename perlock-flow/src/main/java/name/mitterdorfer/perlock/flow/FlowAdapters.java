@@ -0,0 +1,111 @@
+package name.mitterdorfer.perlock.flow;
+
+import name.mitterdorfer.perlock.PathEvent;
+import name.mitterdorfer.perlock.PathEventPublisher;
+import name.mitterdorfer.perlock.PathEventSubscriber;
+import name.mitterdorfer.perlock.PathEventSubscription;
+
+import java.util.Objects;
+import java.util.concurrent.Flow;
+
+/**
+ * <p>Exposes a {@link PathEventPublisher} as <code>java.util.concurrent.Flow.Publisher</code> so that standard
+ * reactive consumers (and, via their own <code>Flow</code> adapters, Reactive Streams libraries) can subscribe to path
+ * events:</p>
+ *
+ * <pre>
+ * PathEventPublisher publisher = factory.createRecursivePublisher(rootPath, options, 1024);
+ * Flow.Publisher&lt;PathEvent&gt; flowPublisher = FlowAdapters.toFlowPublisher(publisher);
+ * flowPublisher.subscribe(subscriber);
+ * publisher.start();
+ * </pre>
+ *
+ * <p>The adapter only forwards signals, so backpressure, buffering and merging of events behave as described in
+ * {@link PathEventPublisher}. The life cycle of the path watcher is still controlled via the
+ * <code>PathEventPublisher</code>.</p>
+ */
+public final class FlowAdapters {
+    private FlowAdapters() {
+        // no instances intended
+    }
+
+    /**
+     * @param publisher The publisher to adapt. Must not be null.
+     * @return A <code>Flow.Publisher</code> that subscribes each subscriber to <code>publisher</code>. Never null.
+     */
+    public static Flow.Publisher<PathEvent> toFlowPublisher(PathEventPublisher publisher) {
+        Objects.requireNonNull(publisher, "publisher");
+        return new FlowPublisher(publisher);
+    }
+
+    private static final class FlowPublisher implements Flow.Publisher<PathEvent> {
+        private final PathEventPublisher publisher;
+
+        private FlowPublisher(PathEventPublisher publisher) {
+            this.publisher = publisher;
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super PathEvent> subscriber) {
+            // required by the Flow contract (Reactive Streams rule 1.9)
+            Objects.requireNonNull(subscriber, "subscriber");
+            publisher.subscribe(new SubscriberAdapter(subscriber));
+        }
+
+        @Override
+        public String toString() {
+            return "FlowPublisher{" + publisher + "}";
+        }
+    }
+
+    private static final class SubscriberAdapter implements PathEventSubscriber {
+        private final Flow.Subscriber<? super PathEvent> subscriber;
+
+        private SubscriberAdapter(Flow.Subscriber<? super PathEvent> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void onSubscribe(PathEventSubscription subscription) {
+            subscriber.onSubscribe(new SubscriptionAdapter(subscription));
+        }
+
+        @Override
+        public void onNext(PathEvent event) {
+            subscriber.onNext(event);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            subscriber.onError(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            subscriber.onComplete();
+        }
+
+        @Override
+        public String toString() {
+            return subscriber.toString();
+        }
+    }
+
+    private static final class SubscriptionAdapter implements Flow.Subscription {
+        private final PathEventSubscription subscription;
+
+        private SubscriptionAdapter(PathEventSubscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void request(long n) {
+            subscription.request(n);
+        }
+
+        @Override
+        public void cancel() {
+            subscription.cancel();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package name.mitterdorfer.perlock.flow;
+
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import com.google.common.jimfs.WatchServiceConfiguration;
+import name.mitterdorfer.perlock.EventKind;
+import name.mitterdorfer.perlock.PathEvent;
+import name.mitterdorfer.perlock.PathEventPublisher;
+import name.mitterdorfer.perlock.PathWatcherFactory;
+import name.mitterdorfer.perlock.WatchOptions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class FlowAdaptersTest {
+    private Path rootPath;
+    private ExecutorService executor;
+    private PathEventPublisher publisher;
+
+    @Before
+    public void setUp() throws Exception {
+        WatchServiceConfiguration wsc = WatchServiceConfiguration.polling(100, TimeUnit.MILLISECONDS);
+        FileSystem fs = Jimfs.newFileSystem(Configuration.unix().toBuilder().setWatchServiceConfiguration(wsc).build());
+        rootPath = Files.createDirectory(fs.getPath("/rootPath"));
+        executor = Executors.newSingleThreadExecutor();
+        publisher = new PathWatcherFactory(executor).createRecursivePublisher(rootPath, WatchOptions.defaults(), 16);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testForwardsSignalsAndDemand() throws Exception {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        FlowAdapters.toFlowPublisher(publisher).subscribe(subscriber);
+        publisher.start();
+        assertEquals("subscribed", subscriber.signals.poll(5L, TimeUnit.SECONDS));
+
+        Path first = Files.createFile(rootPath.resolve("first.txt"));
+        Path second = Files.createFile(rootPath.resolve("second.txt"));
+        // nothing is requested yet
+        assertNull(subscriber.signals.poll(250L, TimeUnit.MILLISECONDS));
+
+        subscriber.subscription.request(1L);
+        assertEquals(PathEvent.of(EventKind.CREATE, first).toString(), subscriber.signals.poll(5L, TimeUnit.SECONDS));
+        assertNull(subscriber.signals.poll(250L, TimeUnit.MILLISECONDS));
+        subscriber.subscription.request(1L);
+        assertEquals(PathEvent.of(EventKind.CREATE, second).toString(), subscriber.signals.poll(5L, TimeUnit.SECONDS));
+
+        publisher.stop();
+        assertEquals("completed", subscriber.signals.poll(5L, TimeUnit.SECONDS));
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testRejectsNullSubscriber() {
+        FlowAdapters.toFlowPublisher(publisher).subscribe(null);
+    }
+
+    private static final class RecordingSubscriber implements Flow.Subscriber<PathEvent> {
+        private final BlockingQueue<String> signals = new LinkedBlockingQueue<>();
+        private volatile Flow.Subscription subscription;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            signals.add("subscribed");
+        }
+
+        @Override
+        public void onNext(PathEvent event) {
+            signals.add(event.toString());
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            signals.add("failed: " + throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            signals.add("completed");
+        }
+    }
+}
@@ -3,6 +3,7 @@ package name.mitterdorfer.perlock.spring;
 import name.mitterdorfer.perlock.PathChangeListener;
 import name.mitterdorfer.perlock.PathWatcher;
 import name.mitterdorfer.perlock.PathWatcherFactory;
+import name.mitterdorfer.perlock.WatchOptions;
 import org.springframework.beans.factory.FactoryBean;
 
 import java.nio.file.Path;
@@ -19,6 +20,8 @@ public class PathWatcherFactoryBean implements FactoryBean<PathWatcher> {
 
     private final PathChangeListener pathChangeListener;
 
+    private final WatchOptions watchOptions;
+
     /**
      * Creates a new PathWatcherFactoryBean instance.
      *
@@ -29,17 +32,33 @@ public class PathWatcherFactoryBean implements FactoryBean<PathWatcher> {
      */
     public PathWatcherFactoryBean(PathWatcherFactory pathWatcherFactory, Path rootPath,
                                   boolean watchRecursively, PathChangeListener pathChangeListener) {
+        this(pathWatcherFactory, rootPath, watchRecursively, pathChangeListener, WatchOptions.defaults());
+    }
+
+    /**
+     * Creates a new PathWatcherFactoryBean instance.
+     *
+     * @param pathWatcherFactory The <code>PathWatcherFactory</code> that is used to create <code>PathWatcher</code> instances. Must not be null.
+     * @param rootPath           The root path that should be watched.
+     * @param watchRecursively   true if and only if a <code>PathWatcher</code> should be created that watches subdirectories below the <code>rootPath</code> recursively.
+     * @param pathChangeListener Callback that is notified when a change below the <code>rootPath</code> has occurred. Must not be null.
+     * @param watchOptions       Options that tune the behavior of the <code>PathWatcher</code>. Must not be null.
+     */
+    public PathWatcherFactoryBean(PathWatcherFactory pathWatcherFactory, Path rootPath,
+                                  boolean watchRecursively, PathChangeListener pathChangeListener,
+                                  WatchOptions watchOptions) {
         this.factory = pathWatcherFactory;
         this.rootPath = rootPath;
         this.watchRecursively = watchRecursively;
         this.pathChangeListener = pathChangeListener;
+        this.watchOptions = watchOptions;
     }
 
     @Override
     public PathWatcher getObject() throws Exception {
         return watchRecursively ?
-                factory.createRecursiveWatcher(rootPath, pathChangeListener) :
-                factory.createNonRecursiveWatcher(rootPath, pathChangeListener);
+                factory.createRecursiveWatcher(rootPath, pathChangeListener, watchOptions) :
+                factory.createNonRecursiveWatcher(rootPath, pathChangeListener, watchOptions);
     }
 
     @Override